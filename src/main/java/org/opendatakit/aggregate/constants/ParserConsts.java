@@ -58,6 +58,12 @@ public final class ParserConsts {
    */
   public final static int FILE_SIZE_MAX = 5000000;
 
+  /**
+   * Multi-part file items larger than this are spooled to a temporary file
+   * rather than held in memory
+   */
+  public final static int MULTIPART_SPILL_THRESHOLD = 1024 * 1024;
+
   /**
    * Namespace of ODK extensions to the OpenRosa standards
    */
@@ -32,10 +32,9 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.config.SocketConfig;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.protocol.BasicHttpContext;
@@ -162,13 +161,12 @@ public abstract class AbstractExternalService implements ExternalService {
   protected HttpResponse sendHttpRequest(String method, String url, HttpEntity entity, List<NameValuePair> qparams, CallingContext cc) throws
       IOException {
 
-    // setup client
+    // the client is shared and pooled across all publishers; the response
+    // must be fully consumed by the caller to release its connection.
     HttpClientFactory factory = (HttpClientFactory) cc.getBean(BeanDefs.HTTP_CLIENT_FACTORY);
 
-    SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
-        .setSoTimeout(SOCKET_ESTABLISHMENT_TIMEOUT_MILLISECONDS)
-        .build();
-    RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
+    RequestConfig requestConfig = RequestConfig.copy(factory.getDefaultRequestConfig())
+        .setSocketTimeout(SOCKET_ESTABLISHMENT_TIMEOUT_MILLISECONDS)
         .setConnectTimeout(SERVICE_TIMEOUT_MILLISECONDS)
         .setRedirectsEnabled(true)
         .setAuthenticationEnabled(true)
@@ -176,7 +174,7 @@ public abstract class AbstractExternalService implements ExternalService {
         .setCircularRedirectsAllowed(true)
         .build();
 
-    HttpClient client = factory.createHttpClient(socketConfig, null, requestConfig);
+    HttpClient client = factory.getSharedHttpClient();
 
     // context holds authentication state machine, so it cannot be
     // shared across independent activities.
@@ -185,7 +183,7 @@ public abstract class AbstractExternalService implements ExternalService {
     localContext.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
     localContext.setAttribute(HttpClientContext.CREDS_PROVIDER, credsProvider);
 
-    HttpUriRequest request = null;
+    HttpRequestBase request = null;
     if (entity == null && (POST.equals(method) || PATCH.equals(method) || PUT.equals(method))) {
       throw new IllegalStateException("No body supplied for POST, PATCH or PUT request");
     } else if (entity != null && !(POST.equals(method) || PATCH.equals(method) || PUT.equals(method))) {
@@ -235,7 +233,8 @@ public abstract class AbstractExternalService implements ExternalService {
       throw new IllegalStateException("Unexpected request method");
     }
 
-    HttpResponse resp = client.execute(request);
+    request.setConfig(requestConfig);
+    HttpResponse resp = client.execute(request, localContext);
     return resp;
   }
 
@@ -76,6 +76,12 @@ public abstract class GoogleOauth2ExternalService extends AbstractExternalServic
 
   private static final JsonFactory jsonFactory = new JacksonFactory();
 
+  /**
+   * Transports are thread-safe and hold the TLS configuration, so a single
+   * one is shared by every Google publisher rather than built per instance.
+   */
+  private static HttpTransport sharedHttpTransport = null;
+
   protected GoogleCredential credential;
   protected HttpTransport httpTransport;
 
@@ -90,7 +96,7 @@ public abstract class GoogleOauth2ExternalService extends AbstractExternalServic
     try {
       this.credential = getCredential(credentialScope, cc);
       try {
-        this.httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        this.httpTransport = getSharedHttpTransport();
         this.requestFactory = httpTransport.createRequestFactory(credential);
       } catch (GeneralSecurityException e) {
         throw new ODKExternalServiceCredentialsException(e);
@@ -120,6 +126,14 @@ public abstract class GoogleOauth2ExternalService extends AbstractExternalServic
 
   }
 
+  protected static synchronized HttpTransport getSharedHttpTransport()
+      throws GeneralSecurityException, IOException {
+    if (sharedHttpTransport == null) {
+      sharedHttpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    }
+    return sharedHttpTransport;
+  }
+
   protected static GoogleCredential getCredential(String scopes, CallingContext cc)
       throws ODKExternalServiceCredentialsException {
     try {
@@ -151,8 +165,7 @@ public abstract class GoogleOauth2ExternalService extends AbstractExternalServic
       }
       PrivateKey serviceAccountPrivateKey = (PrivateKey) key;
 
-      HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-      GoogleCredential credential = new GoogleCredential.Builder().setTransport(httpTransport)
+      GoogleCredential credential = new GoogleCredential.Builder().setTransport(getSharedHttpTransport())
           .setJsonFactory(jsonFactory).setServiceAccountId(serviceAccountUser)
           .setServiceAccountScopes(Collections.singleton(scopes))
           .setServiceAccountPrivateKey(serviceAccountPrivateKey).build();
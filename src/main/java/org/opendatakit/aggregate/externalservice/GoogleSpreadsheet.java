@@ -22,13 +22,11 @@ import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.sheets.v4.Sheets;
@@ -53,7 +51,6 @@ import com.google.api.services.sheets.v4.model.SheetProperties;
 import com.google.api.services.sheets.v4.model.Spreadsheet;
 import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
 import java.io.IOException;
-import java.security.GeneralSecurityException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -123,17 +120,9 @@ public class GoogleSpreadsheet extends GoogleOauth2ExternalService implements Ex
             cc.getServerURL(), FormMultipleValueServlet.ADDR, true, true, true, true),
         new GoogleSpreadsheetHeaderFormatter(true, true, true), cc);
 
-    try {
-      HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-
-      spreadsheetService = new Sheets.Builder(httpTransport, JSON_FACTORY, credential)
-          .setApplicationName(ServletConsts.APPLICATION_NAME)
-          .build();
-    } catch (GeneralSecurityException e) {
-      throw new ODKExternalServiceCredentialsException(e);
-    } catch (IOException e) {
-      throw new ODKExternalServiceException(e);
-    }
+    spreadsheetService = new Sheets.Builder(httpTransport, JSON_FACTORY, credential)
+        .setApplicationName(ServletConsts.APPLICATION_NAME)
+        .build();
 
     objectEntity = gsObject;
   }
@@ -17,10 +17,9 @@
 
 package org.opendatakit.aggregate.externalservice;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import java.io.ByteArrayOutputStream;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Collections;
@@ -28,7 +27,9 @@ import java.util.List;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.common.BinaryOption;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
 import org.opendatakit.aggregate.constants.common.ExternalServiceType;
@@ -40,10 +41,13 @@ import org.opendatakit.aggregate.format.element.BasicElementFormatter;
 import org.opendatakit.aggregate.format.header.BasicHeaderFormatter;
 import org.opendatakit.aggregate.format.structure.JsonFormatterWithFilters;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.task.UploadSubmissions;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.security.User;
 import org.opendatakit.common.security.common.EmailParser;
 import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
@@ -56,16 +60,45 @@ import org.opendatakit.common.web.constants.HtmlConsts;
  */
 public class JsonServer extends AbstractExternalService implements ExternalService {
 
+  /**
+   * Layout of the body of a POST carrying more than one submission.
+   */
+  public enum BatchFormat {
+    /**
+     * One object, like the single-record body, but with "content" set to
+     * "records" and "data" holding an array of submissions.
+     */
+    ARRAY,
+    /**
+     * Newline-delimited JSON: one object per submission and per line, with
+     * "content" set to "record". Unlike the single-record body, whose "data"
+     * is a one-element array, each line's "data" is the bare submission
+     * object.
+     */
+    NDJSON
+  }
+
+  private static final String JSON_CONTENT_TYPE = "application/json";
+  private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+  private static final String RECORD_CONTENT = "record";
+  private static final String RECORDS_CONTENT = "records";
+
   /**
    * Datastore entity specific to this type of external service
    */
   private final JsonServer3ParameterTable objectEntity;
 
+  private final int batchSize;
+  private final BatchFormat batchFormat;
+
   private JsonServer(JsonServer3ParameterTable entity, FormServiceCursor formServiceCursor,
                      IForm form, CallingContext cc) {
     super(form, formServiceCursor, new BasicElementFormatter(true, true, true),
         new BasicHeaderFormatter(true, true, true), cc);
     objectEntity = entity;
+    UploadSubmissions uploadSubmissions = (UploadSubmissions) cc.getBean(BeanDefs.UPLOAD_TASK_BEAN);
+    batchSize = uploadSubmissions.getJsonBatchSize();
+    batchFormat = uploadSubmissions.getJsonBatchFormat();
   }
 
   private JsonServer(JsonServer3ParameterTable entity, IForm form,
@@ -158,36 +191,61 @@ public class JsonServer extends AbstractExternalService implements ExternalServi
         && (fsc == null ? (other.fsc == null) : (other.fsc != null && fsc.equals(other.fsc)));
   }
 
+  /**
+   * Batching is enabled by setting the jsonBatchSize of the upload task bean
+   * above 1; otherwise each submission is sent in its own POST.
+   */
   @Override
-  protected void insertData(Submission submission, CallingContext cc)
-      throws ODKExternalServiceException {
-    try {
-      BinaryOption option = objectEntity.getBinaryOption();
-
-      ByteArrayOutputStream baStream = new ByteArrayOutputStream();
-      PrintWriter pWriter = new PrintWriter(new OutputStreamWriter(baStream, HtmlConsts.UTF8_ENCODE));
-
-      System.out.println("Sending one JSON Submission");
+  public boolean canBatchSubmissions() {
+    return batchSize > 1;
+  }
 
-      // format submission
-      JsonFormatterWithFilters formatter = new JsonFormatterWithFilters(pWriter, form, null, option,
-          true, cc.getServerURL());
-      formatter.processSubmissions(Collections.singletonList(submission), cc);
-      pWriter.flush();
+  /**
+   * Sends the submissions in POSTs of up to jsonBatchSize submissions each,
+   * advancing and persisting the cursor after every batch the server accepts.
+   */
+  @Override
+  public void sendSubmissions(List<Submission> submissions, boolean streaming, CallingContext cc)
+      throws ODKExternalServiceException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    for (int start = 0; start < submissions.size(); start += batchSize) {
+      List<Submission> batch = submissions.subList(start,
+          Math.min(start + batchSize, submissions.size()));
+      postSubmissions(batch, batchFormat, cc);
 
-      JsonParser parser = new JsonParser();
-      JsonElement submissionJsonObj = parser.parse(baStream.toString(HtmlConsts.UTF8_ENCODE));
+      ExternalServiceUtils.updateFscToSuccessfulSubmissionDate(fsc, batch.get(batch.size() - 1),
+          streaming);
+      try {
+        ds.putEntity(fsc, user);
+      } catch (ODKEntityPersistException | ODKOverQuotaException e) {
+        throw new ODKExternalServiceException("unable to persist the publishing cursor", e);
+      }
+    }
+  }
 
-      // create json object
-      JsonObject entity = new JsonObject();
-      entity.addProperty("token", getAuthKey());
-      entity.addProperty("content", "record");
-      entity.addProperty("formId", form.getFormId());
-      entity.addProperty("formVersion", form.getMajorMinorVersionString());
-      entity.add("data", submissionJsonObj);
+  @Override
+  protected void insertData(Submission submission, CallingContext cc)
+      throws ODKExternalServiceException {
+    postSubmissions(Collections.singletonList(submission), null, cc);
+  }
 
-      StringEntity postentity = new StringEntity(entity.toString(), HtmlConsts.UTF8_ENCODE);
-      postentity.setContentType("application/json");
+  /**
+   * POSTs the submissions, formatting them into the body as the client
+   * writes it to the connection, so that the body is never held in memory.
+   * The body holds at most jsonBatchSize submissions.
+   *
+   * @param format the batch layout, or null to send a single-record body,
+   *               whose "data" is an array holding the one submission.
+   */
+  private void postSubmissions(List<Submission> submissions, BatchFormat format,
+                               CallingContext cc) throws ODKExternalServiceException {
+    try {
+      // of unknown length, so sent chunked; the client re-formats the body
+      // if it has to resend it (e.g., on an authentication challenge).
+      EntityTemplate postentity = new EntityTemplate(new SubmissionsBody(submissions, format, cc));
+      postentity.setContentType((format == BatchFormat.NDJSON) ? NDJSON_CONTENT_TYPE
+          : JSON_CONTENT_TYPE);
 
       this.sendRequest(getServerUrl(), postentity, cc);
     } catch (ODKExternalServiceCredentialsException e) {
@@ -206,6 +264,75 @@ public class JsonServer extends AbstractExternalService implements ExternalServi
     }
   }
 
+  /**
+   * Writes the body of a POST carrying the given submissions.
+   */
+  private final class SubmissionsBody implements ContentProducer {
+    private final List<Submission> submissions;
+    private final BatchFormat format;
+    private final CallingContext cc;
+
+    SubmissionsBody(List<Submission> submissions, BatchFormat format, CallingContext cc) {
+      this.submissions = submissions;
+      this.format = format;
+      this.cc = cc;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      BinaryOption option = objectEntity.getBinaryOption();
+      PrintWriter pWriter = new PrintWriter(new OutputStreamWriter(outstream,
+          HtmlConsts.UTF8_ENCODE));
+
+      // format submissions
+      JsonFormatterWithFilters formatter = new JsonFormatterWithFilters(pWriter, form, null, option,
+          true, cc.getServerURL());
+      try {
+        if (format == null) {
+          pWriter.append(envelopePrefix(RECORD_CONTENT));
+          formatter.processSubmissions(submissions, cc);
+          pWriter.append(BasicConsts.RIGHT_BRACE);
+        } else if (format == BatchFormat.NDJSON) {
+          String prefix = envelopePrefix(RECORD_CONTENT);
+          for (Submission submission : submissions) {
+            pWriter.append(prefix);
+            pWriter.append(formatter.formatSubmission(submission, cc));
+            pWriter.append(BasicConsts.RIGHT_BRACE);
+            pWriter.append('\n');
+          }
+        } else {
+          pWriter.append(envelopePrefix(RECORDS_CONTENT));
+          formatter.processSubmissions(submissions, cc);
+          pWriter.append(BasicConsts.RIGHT_BRACE);
+        }
+      } catch (ODKDatastoreException e) {
+        throw new IOException("Unable to format the submissions", e);
+      }
+      // the client closes the stream
+      pWriter.flush();
+      if (pWriter.checkError()) {
+        throw new IOException("Unable to write the submissions");
+      }
+    }
+  }
+
+  /**
+   * @return the start of the body object, up to and including the name of
+   *     its "data" member.
+   */
+  private String envelopePrefix(String content) {
+    return BasicConsts.LEFT_BRACE
+        + "\"token\":" + toJsonString(getAuthKey())
+        + ",\"content\":" + toJsonString(content)
+        + ",\"formId\":" + toJsonString(form.getFormId())
+        + ",\"formVersion\":" + toJsonString(form.getMajorMinorVersionString())
+        + ",\"data\":";
+  }
+
+  private static String toJsonString(String value) {
+    return (value == null) ? "null" : new JsonPrimitive(value).toString();
+  }
+
   @Override
   public String getDescriptiveTargetString() {
     // the token, if supplied, is a secret.
@@ -532,9 +532,8 @@ class Form implements IForm {
     if (filePath.indexOf("/") != -1) {
       filePath = filePath.substring(filePath.indexOf("/") + 1);
     }
-    byte[] byteArray = item.getStream().toByteArray();
     BlobSubmissionOutcome outcome =
-        manifest.setValueFromByteArray(byteArray, item.getContentType(), filePath, overwriteOK, cc);
+        manifest.setValueFromStream(item, item.getContentType(), filePath, overwriteOK, cc);
     return (outcome == BlobSubmissionOutcome.NEW_FILE_VERSION);
   }
 
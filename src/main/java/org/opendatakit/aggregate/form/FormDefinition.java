@@ -20,6 +20,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import org.opendatakit.aggregate.datamodel.FormDataModel;
 import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
@@ -68,9 +72,18 @@ public class FormDefinition {
    * If forms are deleted and reloaded, they get a different key each time.
    * The key is defined in the SubmissionAssociationTable.
    * <p>
-   * NOTE: should only be accessed via synchronized methods to get or remove forms.
+   * Lookups do not lock. A missing definition is built by a single thread
+   * while holding the key's entry in loadLocks; other threads asking for
+   * the same key wait for it, and threads asking for other keys do not.
+   * The entry is removed only by its holder, once the load is done.
    */
-  private static final Map<String, FormDefinition> formDefinitions = new HashMap<String, FormDefinition>();
+  private static final ConcurrentMap<String, FormDefinition> formDefinitions = new ConcurrentHashMap<String, FormDefinition>();
+  private static final ConcurrentMap<String, Object> loadLocks = new ConcurrentHashMap<String, Object>();
+  /**
+   * incremented by every forget(), so that a definition being built while
+   * it is forgotten does not linger in formDefinitions.
+   */
+  private static final AtomicLong forgetCount = new AtomicLong();
 
   /**
    * the entity that defines the mapping of the form id to this data model
@@ -477,9 +490,9 @@ public class FormDefinition {
 
   /**
    * Traverse the form data model and assertRelation() on all the backing objects.
-   * Called from within the synchronized getFormDefinition() static method.
+   * Called from loadFormDefinition() while holding the form's load lock.
    */
-  private static synchronized final void assertBackingObjects(FormDataModel m,
+  private static final void assertBackingObjects(FormDataModel m,
                                                               Set<CommonFieldsBase> objs, CallingContext cc) throws ODKDatastoreException {
     CommonFieldsBase obj = m.getBackingObjectPrototype();
     if (obj != null && !objs.contains(obj)) {
@@ -493,14 +506,15 @@ public class FormDefinition {
   }
 
   /**
-   * Synchronized access to the formDefinitions map.  Synchronization is only required for the
-   * put operation on the map, but also aids in efficient quota usage during periods of intense start-up.
+   * Concurrent access to the formDefinitions map. A definition that is not yet
+   * known is built once, however many threads ask for it at the same time, which
+   * aids in efficient quota usage during periods of intense start-up.
    *
    * @return The definition.  The uriSubmissionDataModel is used to ensure that the
    *     currently valid definition of a form is being used (should the form be
    *     deleted then reloaded).
    */
-  public static synchronized final FormDefinition getFormDefinition(String formId, CallingContext cc) {
+  public static final FormDefinition getFormDefinition(String formId, CallingContext cc) {
 
     if (formId.indexOf('/') != -1) {
       throw new IllegalArgumentException("formId is not well formed: " + formId);
@@ -510,72 +524,114 @@ public class FormDefinition {
     boolean asDaemon = cc.getAsDeamon();
     try {
       cc.setAsDaemon(true);
-      List<? extends CommonFieldsBase> fdmList = null;
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
-      try {
-        SubmissionAssociationTable sa = getSubmissionAssociation(formId, false, cc);
-        if (sa == null) {
-          // must be in a partially defined state.
-          logger.warn("No complete persistence model for sa record matching this formId " + formId);
-          return null;
-        }
-        String uriSubmissionDataModel = sa.getUriSubmissionDataModel();
+      SubmissionAssociationTable sa = getSubmissionAssociation(formId, false, cc);
+      if (sa == null) {
+        // must be in a partially defined state.
+        logger.warn("No complete persistence model for sa record matching this formId " + formId);
+        return null;
+      }
+      return getOrLoadFormDefinition(sa.getUriSubmissionDataModel(),
+          () -> loadFormDefinition(sa, formId, cc));
+    } finally {
+      cc.setAsDaemon(asDaemon);
+    }
+  }
+
+  /**
+   * @return the cached definition of the given uriSubmissionDataModel, or
+   *     the one built by the loader (null if it could not be built).
+   */
+  static final FormDefinition getOrLoadFormDefinition(String uriSubmissionDataModel,
+                                                      Supplier<FormDefinition> loader) {
+    // try to retrieve based upon this uri...
+    FormDefinition fd = formDefinitions.get(uriSubmissionDataModel);
+    if (fd != null) {
+      // found it...
+      return fd;
+    }
 
-        // try to retrieve based upon this uri...
-        FormDefinition fd = formDefinitions.get(uriSubmissionDataModel);
+    for (;;) {
+      Object loadLock = loadLocks.computeIfAbsent(uriSubmissionDataModel, k -> new Object());
+      synchronized (loadLock) {
+        // another thread may have built it while we waited...
+        fd = formDefinitions.get(uriSubmissionDataModel);
         if (fd != null) {
-          // found it...
           return fd;
-        } else {
-          // retrieve it...
-          FormDataModel fdm = FormDataModel.assertRelation(cc);
-          Query query = ds.createQuery(fdm, "FormDefinition.getFormDefinition", user);
-          query.addFilter(FormDataModel.URI_SUBMISSION_DATA_MODEL, FilterOperation.EQUAL, uriSubmissionDataModel);
-          fdmList = query.executeQuery();
-
-          if (fdmList == null || fdmList.size() == 0) {
-            logger.warn("No FDM records for formId " + formId);
-            return null;
-          }
-
-          // try to construct the fd...
-          try {
-            fd = new FormDefinition(sa, formId, fdmList, cc);
-          } catch (IllegalStateException e) {
-            e.printStackTrace();
-            logger.error("Form definition is not interpretable for formId " + formId);
-            return null;
-          }
-
-          // and synchronize field sizes to those defined in the database...
-          try {
-            Set<CommonFieldsBase> objs = new HashSet<CommonFieldsBase>();
-            assertBackingObjects(fd.getTopLevelGroup(), objs, cc);
-          } catch (ODKDatastoreException e1) {
-            e1.printStackTrace();
-            logger.error("Asserting relations failed for formId " + formId);
-            fd = null;
-          }
-
-          // errors might have not cleared the fd...
+        }
+        if (loadLocks.get(uriSubmissionDataModel) != loadLock) {
+          // retired by the thread that held it; queue on the current one
+          continue;
+        }
+        try {
+          long forgetCountBeforeLoad = forgetCount.get();
+          fd = loader.get();
           if (fd != null) {
             // remember details about this form
             formDefinitions.put(uriSubmissionDataModel, fd);
-            return fd;
+            if (forgetCount.get() != forgetCountBeforeLoad) {
+              // forgotten while we were building it; it may already be stale
+              formDefinitions.remove(uriSubmissionDataModel, fd);
+            }
           }
+          return fd;
+        } finally {
+          // only the holder retires the lock, so no two loads overlap
+          loadLocks.remove(uriSubmissionDataModel, loadLock);
         }
-      } catch (ODKDatastoreException e) {
-        logger.warn("Persistence Layer failure " + e.getMessage() + " for formId " + formId);
+      }
+    }
+  }
+
+  /**
+   * Builds the definition from the FormDataModel records of the given
+   * submission association.
+   *
+   * @return the definition, or null if it could not be built.
+   */
+  private static final FormDefinition loadFormDefinition(SubmissionAssociationTable sa,
+                                                         String formId, CallingContext cc) {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    try {
+      // retrieve it...
+      FormDataModel fdm = FormDataModel.assertRelation(cc);
+      Query query = ds.createQuery(fdm, "FormDefinition.getFormDefinition", user);
+      query.addFilter(FormDataModel.URI_SUBMISSION_DATA_MODEL, FilterOperation.EQUAL, sa.getUriSubmissionDataModel());
+      List<? extends CommonFieldsBase> fdmList = query.executeQuery();
+
+      if (fdmList == null || fdmList.size() == 0) {
+        logger.warn("No FDM records for formId " + formId);
         return null;
       }
-    } finally {
-      cc.setAsDaemon(asDaemon);
+
+      // try to construct the fd...
+      FormDefinition fd;
+      try {
+        fd = new FormDefinition(sa, formId, fdmList, cc);
+      } catch (IllegalStateException e) {
+        e.printStackTrace();
+        logger.error("Form definition is not interpretable for formId " + formId);
+        return null;
+      }
+
+      // and synchronize field sizes to those defined in the database...
+      try {
+        Set<CommonFieldsBase> objs = new HashSet<CommonFieldsBase>();
+        assertBackingObjects(fd.getTopLevelGroup(), objs, cc);
+      } catch (ODKDatastoreException e1) {
+        e1.printStackTrace();
+        logger.error("Asserting relations failed for formId " + formId);
+        return null;
+      }
+      return fd;
+    } catch (ODKDatastoreException e) {
+      logger.warn("Persistence Layer failure " + e.getMessage() + " for formId " + formId);
+      return null;
     }
-    return null;
   }
 
-  static synchronized final void forget(String uriSubmissionDataModel) {
+  static final void forget(String uriSubmissionDataModel) {
+    forgetCount.incrementAndGet();
     formDefinitions.remove(uriSubmissionDataModel);
   }
 
@@ -653,10 +709,12 @@ public class FormDefinition {
     // delete everything out of FDM
     DeleteHelper.deleteEntities(eks, cc);
 
-    // drop the tables...
+    // drop the tables (the form delete task drops them beforehand)...
     for (CommonFieldsBase b : getBackingTableSet()) {
       try {
-        ds.dropRelation(b, user);
+        if (ds.hasRelation(b.getSchemaName(), b.getTableName(), user)) {
+          ds.dropRelation(b, user);
+        }
       } catch (ODKDatastoreException e) {
         e.printStackTrace();
       }
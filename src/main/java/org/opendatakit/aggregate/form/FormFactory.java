@@ -20,10 +20,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.parser.FormParserForJavaRosa;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
@@ -49,129 +49,185 @@ import org.slf4j.LoggerFactory;
 public class FormFactory {
 
   private static final Logger logger = LoggerFactory.getLogger(FormFactory.class);
-  private static final List<IForm> cache = new LinkedList<IForm>();
-  private static long cacheTimestamp = 0L;
+  /**
+   * Cached forms, by form URI (the md5 hash of the formId). Lookups of a
+   * form verified within the settle time take no locks.
+   */
+  private static final ConcurrentHashMap<String, CacheEntry> cache =
+      new ConcurrentHashMap<String, CacheEntry>();
+  private static final Object formListLock = new Object();
+  private static volatile long formListTimestamp = 0L;
 
   private FormFactory() {
   }
 
   /**
-   * Return the list of forms in the database.
-   * If topLevelAuri is null, return all forms. Otherwise, return the form with the matching URI.
-   * This is the main interface to the cache of form objects.  The cache is refreshed as a whole
-   * every PersistConsts.MAX_SETTLE_MILLISECONDS.
+   * A cached form and when it was last checked against its FormInfoTable row.
+   * Refreshes are done holding the entry's monitor, so a slow Form
+   * construction only blocks requests for that same form.
    */
-  private static synchronized final List<IForm> internalGetForms(String topLevelAuri, CallingContext cc) throws ODKDatastoreException {
+  private static final class CacheEntry {
+    volatile IForm form = null;
+    volatile long verifiedTimestamp = 0L;
 
-    List<IForm> forms = new ArrayList<IForm>();
-    if (cacheTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS > System.currentTimeMillis()) {
-      // TODO: This cache should reside in MemCache.  Right now, different running
-      // servers might see different Form definitions for up to the settle time.
-      //
-      // Since the datastore is treated as having a settle time of MAX_SETTLE_MILLISECONDS,
-      // we should rely on the cache for that time interval.  Without MemCache-style
-      // support, this is somewhat problematic since different server instances might
-      // see different versions of the same Form.
-      //
-      logger.info("FormCache: using cached list of Forms");
-    } else {
-      // we have a fairly stale list of forms -- interrogate the database
-      // for what is really there and update the cache.
-      Map<String, IForm> oldForms = new HashMap<String, IForm>();
-      for (IForm f : cache) {
-        oldForms.put(f.getUri(), f);
+    boolean isFresh(long now) {
+      return verifiedTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS > now;
+    }
+
+    /**
+     * Reload the form only if the info row shows it has changed. Caller
+     * must hold this entry's monitor.
+     */
+    void refresh(FormInfoTable infoRow, CallingContext cc) throws ODKDatastoreException {
+      IForm f = form;
+      // rely on the fact that a persist updates the last-update-date of the
+      // top-level FormInfoTable even if only subordinate values are updated.
+      Date infoDate = infoRow.getLastUpdateDate();
+      Date oldDate = (f == null) ? null : f.getLastUpdateDate();
+      if (!(f != null && f.hasValidFormDefinition() &&
+          (infoRow.getCreationDate().equals(f.getCreationDate())) &&
+          ((infoDate == null && oldDate == null) ||
+              (infoDate != null && oldDate != null && infoDate.equals(oldDate))))) {
+        logger.info("FormCache: refreshing form definition from database: " + infoRow.getStringField(FormInfoTable.FORM_ID));
+        // pull and update from the datastore
+        f = new Form(infoRow, cc);
       }
-      cache.clear();
-      logger.info("FormCache: fetching new list of Forms");
-
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
-
-      FormInfoTable relation = FormInfoTable.assertRelation(cc);
-      // ensure that Form table exists...
-      Query formQuery = ds.createQuery(relation, "Form.getForms", user);
-      List<? extends CommonFieldsBase> infoRows = formQuery.executeQuery();
-
-      for (CommonFieldsBase cb : infoRows) {
-        FormInfoTable infoRow = (FormInfoTable) cb;
-        IForm f = oldForms.get(infoRow.getUri());
-        // rely on the fact that a persist updates the last-update-date of the
-        // top-level FormInfoTable even if only subordinate values are updated.
-        Date infoDate = infoRow.getLastUpdateDate();
-        Date oldDate = (f == null) ? null : f.getLastUpdateDate();
-        if (f != null && f.hasValidFormDefinition() &&
-            (infoRow.getCreationDate().equals(f.getCreationDate())) &&
-            ((infoDate == null && oldDate == null) ||
-                (infoDate != null && oldDate != null && infoDate.equals(oldDate)))) {
-          cache.add(f);
-        } else {
-          logger.info("FormCache: refreshing form definition from database: " + infoRow.getStringField(FormInfoTable.FORM_ID));
-          // pull and update from the datastore
-          f = new Form(infoRow, cc);
-          cache.add(f);
-        }
+      if (!f.isValid()) {
+        logger.error("Possible corruption: Form with URI " + f.getUri() + " is not valid");
+        f = null;
       }
+      form = f;
+      verifiedTimestamp = System.currentTimeMillis();
+    }
+  }
 
-      for (IForm form : cache)
-        if (!form.isValid()) {
-          logger.error("Possible corruption: Form with URI " + form.getUri() + " is not valid");
-          cache.remove(form);
-        }
-
-      // sort by form title then by form id
-      Collections.sort(forms, new Comparator<IForm>() {
+  /**
+   * Return the form with the given URI. The cached form is used if it was
+   * verified within PersistConsts.MAX_SETTLE_MILLISECONDS; otherwise its
+   * FormInfoTable row is fetched and the form is reloaded only if that row
+   * has changed.
+   */
+  private static IForm getForm(String topLevelAuri, CallingContext cc) throws ODKDatastoreException {
+    CacheEntry entry = cache.get(topLevelAuri);
+    if (entry == null) {
+      entry = cache.computeIfAbsent(topLevelAuri, k -> new CacheEntry());
+    }
+    if (!entry.isFresh(System.currentTimeMillis())) {
+      synchronized (entry) {
+        if (!entry.isFresh(System.currentTimeMillis())) {
+          Datastore ds = cc.getDatastore();
+          User user = cc.getCurrentUser();
+          FormInfoTable infoRow;
+          try {
+            infoRow = ds.getEntity(FormInfoTable.assertRelation(cc), topLevelAuri, user);
+          } catch (ODKEntityNotFoundException e) {
+            // don't accumulate entries for forms that do not exist
+            cache.remove(topLevelAuri, entry);
+            throw e;
+          }
+          entry.refresh(infoRow, cc);
 
-        @Override
-        public int compare(IForm o1, IForm o2) {
-          int ref = o1.getViewableName().compareToIgnoreCase(o2.getViewableName());
-          if (ref != 0) return ref;
-          return o1.getFormId().compareToIgnoreCase(o2.getFormId());
+          // test to see if we need to trigger the watchdog
+          BackendActionsTable.triggerWatchdog(cc);
         }
-      });
+      }
+    }
 
-      // update cacheTimestamp -- note that if the datastore is very slow, this will
-      // space out the updates because the cacheTimestamp is established after all
-      // the datastore accesses.
-      cacheTimestamp = System.currentTimeMillis();
+    IForm f = entry.form;
+    if (f == null)
+      throw new ODKEntityNotFoundException("Could not retrieve form uri: " + topLevelAuri);
+    // TODO: check authorization?
+    return f;
+  }
 
-      // test to see if we need to trigger the watchdog
-      BackendActionsTable.triggerWatchdog(cc);
+  /**
+   * Return the list of forms in the database, sorted by title then form id.
+   * The set of forms is re-read from the FormInfoTable every
+   * PersistConsts.MAX_SETTLE_MILLISECONDS; individual forms are only reloaded
+   * if their FormInfoTable row has changed.
+   */
+  public static final List<IForm> getForms(boolean checkAuthorization, CallingContext cc) throws ODKDatastoreException {
+    if (formListTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS > System.currentTimeMillis()) {
+      // TODO: This cache should reside in MemCache.  Right now, different running
+      // servers might see different Form definitions for up to the settle time.
+      logger.info("FormCache: using cached list of Forms");
+    } else {
+      synchronized (formListLock) {
+        if (formListTimestamp + PersistConsts.MAX_SETTLE_MILLISECONDS <= System.currentTimeMillis()) {
+          refreshFormList(cc);
+        }
+      }
     }
 
-    for (IForm v : cache) {
-      if (topLevelAuri == null || v.getUri().equals(topLevelAuri)) {
-        forms.add(v);
+    List<IForm> forms = new ArrayList<IForm>();
+    for (CacheEntry entry : cache.values()) {
+      IForm f = entry.form;
+      if (f != null) {
+        forms.add(f);
       }
     }
-    return forms;
-  }
 
-  public static synchronized void clearForm(IForm match) {
-    // NOTE: delays refresh of the forms list by the settle time.
-    cache.remove(match);
-    cacheTimestamp = System.currentTimeMillis();
+    // sort by form title then by form id
+    Collections.sort(forms, new Comparator<IForm>() {
+
+      @Override
+      public int compare(IForm o1, IForm o2) {
+        int ref = o1.getViewableName().compareToIgnoreCase(o2.getViewableName());
+        if (ref != 0) return ref;
+        return o1.getFormId().compareToIgnoreCase(o2.getFormId());
+      }
+    });
+    // TODO: check authorization
+    return forms;
   }
 
   /**
-   * Common private static method through which all Form objects are obtained.
-   * This provides a cache of the form data.  If known, the top-level object's
-   * row object is passed in.  This is a database access optimization (minimize
-   * GAE billing).
+   * Interrogate the database for what forms are really there and update the
+   * cache. Caller must hold formListLock.
    */
-  private static IForm getForm(String topLevelAuri, CallingContext cc) throws ODKDatastoreException {
-    List<IForm> forms = internalGetForms(topLevelAuri, cc);
+  private static void refreshFormList(CallingContext cc) throws ODKDatastoreException {
+    logger.info("FormCache: fetching new list of Forms");
 
-    if (forms.isEmpty())
-      throw new ODKEntityNotFoundException("Could not retrieve form uri: " + topLevelAuri);
-    IForm f = forms.get(0);
-    // TODO: check authorization?
-    return f;
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    FormInfoTable relation = FormInfoTable.assertRelation(cc);
+    // ensure that Form table exists...
+    Query formQuery = ds.createQuery(relation, "Form.getForms", user);
+    List<? extends CommonFieldsBase> infoRows = formQuery.executeQuery();
+
+    Set<String> uris = new HashSet<String>();
+    for (CommonFieldsBase cb : infoRows) {
+      FormInfoTable infoRow = (FormInfoTable) cb;
+      uris.add(infoRow.getUri());
+      CacheEntry entry = cache.computeIfAbsent(infoRow.getUri(), k -> new CacheEntry());
+      synchronized (entry) {
+        entry.refresh(infoRow, cc);
+      }
+    }
+    // forget forms that have been deleted
+    cache.keySet().retainAll(uris);
+
+    // update formListTimestamp -- note that if the datastore is very slow, this will
+    // space out the updates because the timestamp is established after all
+    // the datastore accesses.
+    formListTimestamp = System.currentTimeMillis();
+
+    // test to see if we need to trigger the watchdog
+    BackendActionsTable.triggerWatchdog(cc);
   }
 
-  public static final List<IForm> getForms(boolean checkAuthorization, CallingContext cc) throws ODKDatastoreException {
-    List<IForm> forms = internalGetForms(null, cc);
-    // TODO: check authorization
-    return forms;
+  public static void clearForm(IForm match) {
+    // NOTE: the form is reported as not found, and the forms list is not
+    // refreshed, for the settle time.
+    CacheEntry entry = cache.get(match.getUri());
+    if (entry != null) {
+      synchronized (entry) {
+        entry.form = null;
+        entry.verifiedTimestamp = System.currentTimeMillis();
+      }
+    }
+    formListTimestamp = System.currentTimeMillis();
   }
 
   public static final String extractWellFormedFormId(String submissionKey) {
@@ -78,7 +78,7 @@ public class FormInfoFilesetTable extends DynamicBase {
     fieldList.add(DESCRIPTION);
     fieldList.add(DESCRIPTION_URL);
 
-    fieldValueMap.put(primaryKey, FormInfoFilesetTable.URI_FORM_ID_VALUE_FORM_INFO_FILESET);
+    setStringField(primaryKey, FormInfoFilesetTable.URI_FORM_ID_VALUE_FORM_INFO_FILESET);
   }
 
   private FormInfoFilesetTable(FormInfoFilesetTable ref, User user) {
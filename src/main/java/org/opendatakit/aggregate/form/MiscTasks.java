@@ -16,6 +16,7 @@
 package org.opendatakit.aggregate.form;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -52,6 +53,14 @@ public class MiscTasks {
   // delete any successful or abandoned misc tasks older than 30 days
   private static final long MANY_DAYS_AGO = 30 * 24 * 60 * 60 * 1000L;
 
+  /**
+   * The columns read when summarizing the status of the tasks of each form.
+   */
+  private static final List<DataField> STATUS_TIMESTAMP_FIELDS = Collections.unmodifiableList(
+      Arrays.asList(MiscTasksTable.FORM_ID, MiscTasksTable.STATUS,
+          MiscTasksTable.COMPLETION_DATE, MiscTasksTable.LAST_ACTIVITY_DATE,
+          MiscTasksTable.REQUEST_DATE));
+
   private final MiscTasksTable row;
 
   private MiscTasks(MiscTasksTable row) {
@@ -235,6 +244,7 @@ public class MiscTasks {
     User user = cc.getCurrentUser();
     Query q = ds.createQuery(relation, "MiscTasks.getFormDeletionStatusTimestampOfAllFormIds", user);
     q.addFilter(MiscTasksTable.TASK_TYPE, FilterOperation.EQUAL, TaskType.DELETE_FORM.name());
+    q.setProjection(STATUS_TIMESTAMP_FIELDS);
     // collect all Deletion tasks that are in progress or being retried...
     List<? extends CommonFieldsBase> l = q.executeQuery();
     for (CommonFieldsBase b : l) {
@@ -271,6 +281,7 @@ public class MiscTasks {
     User user = cc.getCurrentUser();
     Query q = ds.createQuery(relation, "MiscTasks.getPurgeSubmissionsStatusTimestampOfAllFormIds", user);
     q.addFilter(MiscTasksTable.TASK_TYPE, FilterOperation.EQUAL, TaskType.PURGE_OLDER_SUBMISSIONS.name());
+    q.setProjection(STATUS_TIMESTAMP_FIELDS);
     // collect all Deletion tasks that are in progress or being retried...
     List<? extends CommonFieldsBase> l = q.executeQuery();
     for (CommonFieldsBase b : l) {
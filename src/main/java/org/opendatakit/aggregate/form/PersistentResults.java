@@ -15,6 +15,8 @@
  */
 package org.opendatakit.aggregate.form;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -297,6 +299,22 @@ public class PersistentResults {
     return bcm.getBlob(1, cc);
   }
 
+  /**
+   * Stream the result file to the output stream.
+   *
+   * @return false if there is no result file.
+   */
+  public boolean writeResultFileContents(OutputStream os, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    if (bcm.getAttachmentCount(cc) == 0)
+      return false;
+    if (bcm.getAttachmentCount(cc) > 1) {
+      throw new IllegalStateException("Too many results attached!");
+    }
+    bcm.writeBlob(1, os, cc);
+    return true;
+  }
+
   public void setResultFile(byte[] byteArray, String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc) throws ODKDatastoreException {
     if (bcm.getAttachmentCount(cc) > 0) {
       throw new IllegalStateException("Results are already attached!");
@@ -304,6 +322,19 @@ public class PersistentResults {
     bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * Same as {@link #setResultFile(byte[], String, String, boolean, CallingContext)}
+   * but copies the content from the source (e.g., a
+   * {@link org.opendatakit.common.datamodel.SpillFile}) one part at a time
+   * rather than requiring it to be held in memory.
+   */
+  public void setResultFile(BinaryContentManipulator.BlobSource source, String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc) throws ODKDatastoreException {
+    if (bcm.getAttachmentCount(cc) > 0) {
+      throw new IllegalStateException("Results are already attached!");
+    }
+    bcm.setValueFromStream(source, contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
   public String getUri() {
     return row.getUri();
   }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.format;
+
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * A {@link SubmissionFormatter} whose submissions format independently of one
+ * another, so that several can be formatted concurrently and the results
+ * written out afterwards in submission order.
+ */
+public interface RowSubmissionFormatter extends SubmissionFormatter {
+
+  /**
+   * Format a single submission without writing it to the output. May be
+   * called concurrently from several threads.
+   */
+  String formatSubmission(Submission submission, CallingContext cc) throws ODKDatastoreException;
+
+  /**
+   * Write a submission produced by {@link #formatSubmission} to the output.
+   * Called from one thread, in submission order.
+   */
+  void appendFormattedSubmission(String formattedSubmission);
+}
@@ -25,7 +25,7 @@ import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.RepeatCallbackFormatter;
 import org.opendatakit.aggregate.format.Row;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.RowSubmissionFormatter;
 import org.opendatakit.aggregate.format.element.JsonElementFormatter;
 import org.opendatakit.aggregate.server.GenerateHeaderInfo;
 import org.opendatakit.aggregate.submission.Submission;
@@ -38,7 +38,7 @@ import org.opendatakit.common.web.constants.BasicConsts;
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  */
-public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCallbackFormatter {
+public class JsonFormatterWithFilters implements RowSubmissionFormatter, RepeatCallbackFormatter {
 
   private boolean first = true;
 
@@ -76,13 +76,23 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
       throws ODKDatastoreException {
     // format row elements
     for (Submission sub : submissions) {
-      if (!first) {
-        output.append(FormatConsts.JSON_VALUE_DELIMITER);
-      }
-      first = false;
-      Row row = sub.getFormattedValuesAsRow(propertyNames, elemFormatter, false, cc);
-      appendJsonObject(row.getFormattedValues().iterator());
+      appendFormattedSubmission(formatSubmission(sub, cc));
+    }
+  }
+
+  @Override
+  public String formatSubmission(Submission sub, CallingContext cc) throws ODKDatastoreException {
+    Row row = sub.getFormattedValuesAsRow(propertyNames, elemFormatter, false, cc);
+    return formatJsonObject(row.getFormattedValues().iterator());
+  }
+
+  @Override
+  public void appendFormattedSubmission(String formattedSubmission) {
+    if (!first) {
+      output.append(FormatConsts.JSON_VALUE_DELIMITER);
     }
+    first = false;
+    output.append(formattedSubmission);
   }
 
   @Override
@@ -138,16 +148,18 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
    *
    * @param itr string values to be separated by commas
    */
-  private void appendJsonObject(Iterator<String> itr) {
-    output.append(BasicConsts.LEFT_BRACE);
+  private String formatJsonObject(Iterator<String> itr) {
+    StringBuilder b = new StringBuilder();
+    b.append(BasicConsts.LEFT_BRACE);
     boolean firstElement = true;
     while (itr.hasNext()) {
       if (!firstElement) {
-        output.append(FormatConsts.JSON_VALUE_DELIMITER);
+        b.append(FormatConsts.JSON_VALUE_DELIMITER);
       }
       firstElement = false;
-      output.append(itr.next());
+      b.append(itr.next());
     }
-    output.append(BasicConsts.RIGHT_BRACE);
+    b.append(BasicConsts.RIGHT_BRACE);
+    return b.toString();
   }
 }
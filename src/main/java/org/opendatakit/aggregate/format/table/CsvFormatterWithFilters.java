@@ -27,7 +27,7 @@ import org.opendatakit.aggregate.constants.format.FormatConsts;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.RowSubmissionFormatter;
 import org.opendatakit.aggregate.format.element.LinkElementFormatter;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.server.GenerateHeaderInfo;
@@ -37,7 +37,7 @@ import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 
-public class CsvFormatterWithFilters implements SubmissionFormatter {
+public class CsvFormatterWithFilters implements RowSubmissionFormatter {
 
   private final IForm form;
   private final PrintWriter output;
@@ -69,7 +69,7 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
   @Override
   public final void beforeProcessSubmissions(CallingContext cc) {
     // format headers
-    appendCsvRow(headers.iterator());
+    output.append(formatCsvRow(headers.iterator()));
   }
 
   @Override
@@ -77,11 +77,22 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
                                              CallingContext cc) throws ODKDatastoreException {
     // format row elements
     for (Submission sub : submissions) {
-      Row row = sub.getFormattedValuesAsRow(namespaces, propertyNames, elemFormatter, false, cc);
-      appendCsvRow(row.getFormattedValues().iterator());
+      appendFormattedSubmission(formatSubmission(sub, cc));
     }
   }
 
+  @Override
+  public final String formatSubmission(Submission sub, CallingContext cc)
+      throws ODKDatastoreException {
+    Row row = sub.getFormattedValuesAsRow(namespaces, propertyNames, elemFormatter, false, cc);
+    return formatCsvRow(row.getFormattedValues().iterator());
+  }
+
+  @Override
+  public final void appendFormattedSubmission(String formattedSubmission) {
+    output.append(formattedSubmission);
+  }
+
   @Override
   public final void afterProcessSubmissions(CallingContext cc) {
   }
@@ -94,25 +105,26 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
   }
 
   /**
-   * Helper function used to append the comma separated value row
+   * Helper function used to build the comma separated value row
    *
    * @param itr string values to be separated by commas
    */
-  private void appendCsvRow(Iterator<String> itr) {
-    output.append(BasicConsts.EMPTY_STRING);
+  private static String formatCsvRow(Iterator<String> itr) {
+    StringBuilder b = new StringBuilder();
     while (itr.hasNext()) {
       String value = itr.next();
       if (value != null) {
         // escape double quotes with another double quote per RFC 4180
         value = value.replaceAll(BasicConsts.QUOTE, BasicConsts.QUOTE_QUOTE);
-        output.append(BasicConsts.QUOTE).append(value).append(BasicConsts.QUOTE);
+        b.append(BasicConsts.QUOTE).append(value).append(BasicConsts.QUOTE);
       }
       if (itr.hasNext()) {
-        output.append(FormatConsts.CSV_DELIMITER);
+        b.append(FormatConsts.CSV_DELIMITER);
       } else {
-        output.append(BasicConsts.NEW_LINE);
+        b.append(BasicConsts.NEW_LINE);
       }
     }
+    return b.toString();
   }
 
 }
@@ -17,9 +17,12 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,12 +41,20 @@ import org.opendatakit.aggregate.constants.ParserConsts;
  * Parses a multi part form request into a set of multiPartFormItems. The
  * information stored in items are indexed by either the field name or the file
  * name (or both) provided in the http submission
+ * <p>
+ * Parts are copied in bulk; any file part larger than the spill threshold is
+ * streamed to a temporary file rather than held in heap. Call
+ * {@link #dispose()} once the items are no longer needed.
  *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  */
 public class MultiPartFormData {
 
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  private static final String SPILL_FILE_PREFIX = "odk-multipart-";
+
   private final Map<String, String> simpleFieldNameMap;
 
   private final Map<String, MultiPartFormItem> fieldNameMap;
@@ -52,7 +63,18 @@ public class MultiPartFormData {
 
   private final Map<String, MultiPartFormItem> fileNameWithoutExtensionNameMap;
 
+  private final List<MultiPartFormItem> spilledItems = new ArrayList<MultiPartFormItem>();
+
   public MultiPartFormData(HttpServletRequest req) throws FileUploadException, IOException {
+    this(req, ParserConsts.MULTIPART_SPILL_THRESHOLD);
+  }
+
+  /**
+   * @param spillThreshold file parts larger than this many bytes are written
+   *                       to a temporary file instead of being kept in memory.
+   */
+  public MultiPartFormData(HttpServletRequest req, int spillThreshold)
+      throws FileUploadException, IOException {
 
     simpleFieldNameMap = new HashMap<String, String>();
     fieldNameMap = new HashMap<String, MultiPartFormItem>();
@@ -70,36 +92,36 @@ public class MultiPartFormData {
 
     List<MultiPartFormItem> fileNameList = new ArrayList<MultiPartFormItem>();
 
-    FileItemIterator items = upload.getItemIterator(req);
-    while (items.hasNext()) {
-      FileItemStream item = items.next();
-      ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-      BufferedInputStream formStream = new BufferedInputStream(item
-          .openStream());
-
-      // TODO: determine ways to possibly improve efficiency
-      int nextByte = formStream.read();
-      while (nextByte != -1) {
-        byteStream.write(nextByte);
-        nextByte = formStream.read();
-      }
-      formStream.close();
+    try {
+      FileItemIterator items = upload.getItemIterator(req);
+      while (items.hasNext()) {
+        FileItemStream item = items.next();
 
-      if (item.isFormField()) {
-        simpleFieldNameMap.put(item.getFieldName(), byteStream.toString());
-      } else {
-        MultiPartFormItem data = new MultiPartFormItem(item.getFieldName(),
-            item.getName(), item.getContentType(), byteStream);
+        if (item.isFormField()) {
+          ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+          InputStream formStream = item.openStream();
+          try {
+            copy(formStream, byteStream, new byte[COPY_BUFFER_SIZE], Long.MAX_VALUE);
+          } finally {
+            formStream.close();
+          }
+          simpleFieldNameMap.put(item.getFieldName(), byteStream.toString());
+        } else {
+          MultiPartFormItem data = readItem(item, spillThreshold);
 
-        String fieldName = item.getFieldName();
-        if (fieldName != null) {
-          fieldNameMap.put(fieldName, data);
-        }
-        String fileName = item.getName();
-        if (fileName != null && fileName.length() != 0) {
-          fileNameList.add(data);
+          String fieldName = item.getFieldName();
+          if (fieldName != null) {
+            fieldNameMap.put(fieldName, data);
+          }
+          String fileName = item.getName();
+          if (fileName != null && fileName.length() != 0) {
+            fileNameList.add(data);
+          }
         }
       }
+    } catch (FileUploadException | IOException | RuntimeException e) {
+      dispose();
+      throw e;
     }
 
     // Find the common prefix to the filenames being uploaded...
@@ -161,6 +183,74 @@ public class MultiPartFormData {
     }
   }
 
+  /**
+   * Reads the item into memory until it exceeds spillThreshold bytes, then
+   * continues streaming it (and what was already read) into a temporary file.
+   */
+  private MultiPartFormItem readItem(FileItemStream item, int spillThreshold) throws IOException {
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    ExposedByteArrayOutputStream byteStream = new ExposedByteArrayOutputStream();
+    InputStream formStream = item.openStream();
+    try {
+      long inMemory = copy(formStream, byteStream, buffer, spillThreshold);
+      if (inMemory <= spillThreshold) {
+        return new MultiPartFormItem(item.getFieldName(), item.getName(), item.getContentType(),
+            byteStream.getBuffer(), byteStream.size());
+      }
+
+      File spillFile = File.createTempFile(SPILL_FILE_PREFIX, null);
+      MultiPartFormItem data;
+      try {
+        OutputStream fileStream = new FileOutputStream(spillFile);
+        try {
+          byteStream.writeTo(fileStream);
+          byteStream = null;
+          long length = inMemory + copy(formStream, fileStream, buffer, Long.MAX_VALUE);
+          data = new MultiPartFormItem(item.getFieldName(), item.getName(),
+              item.getContentType(), spillFile, length);
+        } finally {
+          fileStream.close();
+        }
+      } catch (IOException e) {
+        if (!spillFile.delete()) {
+          spillFile.deleteOnExit();
+        }
+        throw e;
+      }
+      spilledItems.add(data);
+      return data;
+    } finally {
+      formStream.close();
+    }
+  }
+
+  /**
+   * Copies from in to out until end of stream or until more than limit bytes
+   * have been copied.
+   *
+   * @return the number of bytes copied.
+   */
+  private static long copy(InputStream in, OutputStream out, byte[] buffer, long limit)
+      throws IOException {
+    long count = 0;
+    int len;
+    while (count <= limit && (len = in.read(buffer)) != -1) {
+      out.write(buffer, 0, len);
+      count += len;
+    }
+    return count;
+  }
+
+  /**
+   * Deletes any temporary files backing the parsed items.
+   */
+  public void dispose() {
+    for (MultiPartFormItem item : spilledItems) {
+      item.dispose();
+    }
+    spilledItems.clear();
+  }
+
   public String getSimpleFormField(String fieldName) {
     return simpleFieldNameMap.get(fieldName);
   }
@@ -181,4 +271,14 @@ public class MultiPartFormData {
     return Collections.unmodifiableSet(fileNameMap.entrySet());
   }
 
+  /**
+   * Gives access to the internal buffer so in-memory parts are not copied
+   * again when the item is constructed.
+   */
+  private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
 }
@@ -17,26 +17,59 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
 
 /**
- * Object representation of multi part form data
+ * Object representation of multi part form data. The content is either held
+ * in memory or, for large parts, spilled to a temporary file. Consumers should
+ * prefer {@link #openStream()} and {@link #getLength()} over
+ * {@link #getBytes()}.
  *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
  */
-public final class MultiPartFormItem {
+public final class MultiPartFormItem implements BinaryContentManipulator.BlobSource {
 
   private final String name;
   private final String contentType;
-  private final ByteArrayOutputStream stream;
+  private final byte[] content;
+  private final int contentLength;
+  private final File spillFile;
+  private final long length;
   private String filename;
 
-  public MultiPartFormItem(String fieldName, String fileName, String contentType, ByteArrayOutputStream byteStream) {
+  /**
+   * In-memory content: the first contentLength bytes of content.
+   */
+  MultiPartFormItem(String fieldName, String fileName, String contentType, byte[] content,
+                    int contentLength) {
     this.name = fieldName;
     this.filename = fileName;
     this.contentType = contentType;
-    this.stream = byteStream;
+    this.content = content;
+    this.contentLength = contentLength;
+    this.spillFile = null;
+    this.length = contentLength;
+  }
+
+  /**
+   * Content spilled to a temporary file of the given length.
+   */
+  MultiPartFormItem(String fieldName, String fileName, String contentType, File spillFile,
+                    long length) {
+    this.name = fieldName;
+    this.filename = fileName;
+    this.contentType = contentType;
+    this.content = null;
+    this.contentLength = 0;
+    this.spillFile = spillFile;
+    this.length = length;
   }
 
   public String getFilename() {
@@ -51,7 +84,51 @@ public final class MultiPartFormItem {
     return contentType;
   }
 
-  public ByteArrayOutputStream getStream() {
-    return stream;
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  public boolean isSpilledToDisk() {
+    return spillFile != null;
+  }
+
+  /**
+   * @return a new stream over the content. The caller must close it.
+   */
+  @Override
+  public InputStream openStream() throws IOException {
+    if (spillFile != null) {
+      return new FileInputStream(spillFile);
+    }
+    return new ByteArrayInputStream(content, 0, contentLength);
+  }
+
+  /**
+   * Materializes the whole content in memory. Avoid for large parts.
+   */
+  public byte[] getBytes() throws IOException {
+    if (spillFile != null) {
+      return Files.readAllBytes(spillFile.toPath());
+    }
+    byte[] bytes = new byte[contentLength];
+    System.arraycopy(content, 0, bytes, 0, contentLength);
+    return bytes;
+  }
+
+  public String getString(String encoding) throws IOException {
+    if (spillFile != null) {
+      return new String(getBytes(), encoding);
+    }
+    return new String(content, 0, contentLength, encoding);
+  }
+
+  /**
+   * Removes the spill file, if any. The item must not be read afterwards.
+   */
+  void dispose() {
+    if (spillFile != null && spillFile.exists() && !spillFile.delete()) {
+      spillFile.deleteOnExit();
+    }
   }
 }
@@ -18,7 +18,6 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -26,9 +25,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import org.apache.commons.codec.binary.Base64;
 import org.opendatakit.aggregate.constants.ParserConsts;
 import org.opendatakit.aggregate.constants.ServletConsts;
@@ -42,6 +39,7 @@ import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData.Reason;
 import org.opendatakit.aggregate.exception.ODKParseException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.parser.SubmissionXmlReader.ParsedElement;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionField;
 import org.opendatakit.aggregate.submission.SubmissionSet;
@@ -63,22 +61,11 @@ import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 public class SubmissionParser {
 
-  private static final String OPEN_ROSA_NAMESPACE_PRELIM = "http://openrosa.org/xforms/metadata";
-  private static final String OPEN_ROSA_NAMESPACE = "http://openrosa.org/xforms";
-  private static final String OPEN_ROSA_NAMESPACE_SLASH = "http://openrosa.org/xforms/";
-  private static final String OPEN_ROSA_METADATA_TAG = "meta";
-  private static final String OPEN_ROSA_INSTANCE_ID = "instanceID";
   private String formId;
   private IForm form;
-  private Element root;
   private Submission submission;
   private boolean preExistingComplete = false;
   private MultiPartFormData submissionFormItems;
@@ -101,7 +88,7 @@ public class SubmissionParser {
       throw new IOException("DID NOT GET A SUBMISSION");
     }
 
-    InputStream inputStreamXML = new ByteArrayInputStream(submission.getStream().toByteArray());
+    InputStream inputStreamXML = submission.openStream();
     try {
       constructorHelper(inputStreamXML, isIncomplete, cc);
     } finally {
@@ -121,84 +108,19 @@ public class SubmissionParser {
     return form;
   }
 
-  private String getOpenRosaInstanceId() {
-    Node n = findMetaTag(root);
-    if (n != null) {
-      NodeList nl = n.getChildNodes();
-      for (int i = 0; i < nl.getLength(); ++i) {
-        Node cn = nl.item(i);
-        String cnUri = cn.getNamespaceURI();
-        String cnName = cn.getLocalName();
-        if (cn.getNodeType() == Node.ELEMENT_NODE
-            && cnName.equals(OPEN_ROSA_INSTANCE_ID)
-            && (cnUri == null ||
-            cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
-            cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
-            cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
-          NodeList cnl = cn.getChildNodes();
-          boolean textFound = false;
-          int idxText = -1;
-          for (int j = 0; j < cnl.getLength(); ++j) {
-            Node cnln = cnl.item(j);
-            if (cnln.getNodeType() == Node.TEXT_NODE) {
-              if (textFound) {
-                throw new IllegalStateException("Expected a single text node");
-              }
-              textFound = true;
-              idxText = j;
-            }
-          }
-          if (textFound) {
-            return cnl.item(idxText).getNodeValue();
-          }
-        }
-      }
-    }
-    return null;
-  }
-
-  private Node findMetaTag(Node parent) {
-    if (parent.getNodeType() != Node.ELEMENT_NODE)
-      return null;
-    String parentName = parent.getLocalName();
-    NodeList nl = parent.getChildNodes();
-    for (int i = 0; i < nl.getLength(); ++i) {
-      Node n = nl.item(i);
-      String namespace = n.getNamespaceURI();
-      String name = n.getLocalName();
-      if (n.getNodeType() == Node.ELEMENT_NODE
-          && name.equals(OPEN_ROSA_METADATA_TAG)
-          && (namespace == null ||
-          namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
-          namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
-          namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
-        return n;
-      } else {
-        n = findMetaTag(n);
-        if (n != null)
-          return n;
-      }
-    }
-    return null;
-  }
-
   private void constructorHelper(InputStream inputStreamXML, boolean isIncomplete, CallingContext cc) throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData, ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
+    SubmissionXmlReader xmlReader;
+    ParsedElement parsedRoot;
     try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
-      factory.setIgnoringComments(true);
-      factory.setCoalescing(true);
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(inputStreamXML);
-      root = doc.getDocumentElement();
-      // if debugging: printNode(root);
+      xmlReader = new SubmissionXmlReader(inputStreamXML);
+      xmlReader.readRoot();
 
       // check for odk id
-      formId = root.getAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
+      formId = xmlReader.getRootAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
 
       // if odk id is not present use namespace
       if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
-        String schema = root.getAttribute(ParserConsts.NAMESPACE_ATTRIBUTE);
+        String schema = xmlReader.getRootAttribute(ParserConsts.NAMESPACE_ATTRIBUTE);
 
         // TODO: move this into FormDefinition?
         if (schema == null) {
@@ -208,25 +130,25 @@ public class SubmissionParser {
         formId = schema;
       }
 
-    } catch (ParserConfigurationException e) {
-      throw new IOException(e);
-    } catch (SAXException e) {
-      e.printStackTrace();
-      throw new IOException(e);
-    }
+      // need to escape all slashes... for xpath processing...
+      formId = formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
 
-    // need to escape all slashes... for xpath processing...
-    formId = formId.replaceAll(ParserConsts.FORWARD_SLASH, ParserConsts.FORWARD_SLASH_SUBSTITUTION);
+      String fullyQualifiedId = FormFactory.extractWellFormedFormId(formId);
 
-    String fullyQualifiedId = FormFactory.extractWellFormedFormId(formId);
+      form = FormFactory.retrieveFormByFormId(fullyQualifiedId, cc);
+      if (!form.getSubmissionEnabled()) {
+        throw new ODKFormSubmissionsDisabledException();
+      }
 
-    form = FormFactory.retrieveFormByFormId(fullyQualifiedId, cc);
-    if (!form.getSubmissionEnabled()) {
-      throw new ODKFormSubmissionsDisabledException();
+      // map the rest of the document onto the form as it is read
+      parsedRoot = xmlReader.readSubmission(form.getTopLevelGroupElement());
+    } catch (XMLStreamException e) {
+      e.printStackTrace();
+      throw new IOException(e);
     }
 
-    String modelVersionString = root.getAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
-    String uiVersionString = root.getAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
+    String modelVersionString = xmlReader.getRootAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
+    String uiVersionString = xmlReader.getRootAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
     Long modelVersion = null;
     Long uiVersion = null;
     if (modelVersionString != null && modelVersionString.length() > 0) {
@@ -236,23 +158,23 @@ public class SubmissionParser {
       uiVersion = Long.valueOf(uiVersionString);
     }
 
-    String instanceId = getOpenRosaInstanceId();
+    String instanceId = xmlReader.getOpenRosaInstanceId();
     if (instanceId == null) {
-      instanceId = root.getAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
+      instanceId = xmlReader.getRootAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
       if (instanceId == null || instanceId.length() == 0) {
         instanceId = CommonFieldsBase.newUri();
       }
     }
 
     Date submissionDate = new Date();
-    String submissionDateString = root.getAttribute(ParserConsts.SUBMISSION_DATE_ATTRIBUTE_NAME);
+    String submissionDateString = xmlReader.getRootAttribute(ParserConsts.SUBMISSION_DATE_ATTRIBUTE_NAME);
     if (submissionDateString != null && submissionDateString.length() != 0) {
       submissionDate = JRTemporal.dateTime(submissionDateString).getParsed();
     }
 
     Date markedAsCompleteDate = new Date();
-    String markedAsCompleteDateString = root
-        .getAttribute(ParserConsts.MARKED_AS_COMPLETE_DATE_ATTRIBUTE_NAME);
+    String markedAsCompleteDateString = xmlReader
+        .getRootAttribute(ParserConsts.MARKED_AS_COMPLETE_DATE_ATTRIBUTE_NAME);
     if (markedAsCompleteDateString != null && markedAsCompleteDateString.length() != 0) {
       markedAsCompleteDate = JRTemporal.dateTime(markedAsCompleteDateString).getParsed();
     }
@@ -297,9 +219,8 @@ public class SubmissionParser {
       topLevelTableKey = submission.getKey();
 
       Map<String, Integer> repeatGroupIndices = new HashMap<String, Integer>();
-      FormElementModel formRoot = form.getTopLevelGroupElement();
       // if the submission is pre-existing in the datastore, ONLY update binaries
-      boolean uploadAllBinaries = processSubmissionElement(formRoot, root, submission,
+      boolean uploadAllBinaries = processSubmissionElement(parsedRoot, submission,
           repeatGroupIndices, preExisting, cc);
       submission.setIsComplete(uploadAllBinaries);
       if (uploadAllBinaries) {
@@ -324,39 +245,13 @@ public class SubmissionParser {
     }
   }
 
-  private boolean processSubmissionElement(FormElementModel node, Element currentSubmissionElement, SubmissionSet submissionSet, Map<String, Integer> repeatGroupIndicies, boolean preExisting, CallingContext cc) throws ODKParseException, ODKConversionException, ODKDatastoreException {
-
-    if (node == null || currentSubmissionElement == null) {
-      return true;
-    }
-
-    // the element name of the fdm is the tag name...
-    String submissionTag = node.getElementName();
-    if (submissionTag == null) {
-      return true;
-    }
-
-    // verify that the xml matches the node we are processing...
-    if (!currentSubmissionElement.getLocalName().equals(submissionTag)) {
-      throw new ODKParseException("Xml document element tag: "
-          + currentSubmissionElement.getLocalName()
-          + " does not match the xform data model tag name: " + submissionTag);
-    }
+  private boolean processSubmissionElement(ParsedElement group, SubmissionSet submissionSet, Map<String, Integer> repeatGroupIndicies, boolean preExisting, CallingContext cc) throws ODKConversionException, ODKDatastoreException {
 
-    // get the structure under the fdm tag name...
-    List<Element> elements = getElements(currentSubmissionElement);
-    if (elements.size() == 0) {
-      return true; // the group is not relevant...
-    }
     // and for each of these, they should be fields under the given fdm
     // and values within the submissionSet
     boolean complete = true;
-    for (Element e : elements) {
-      FormElementModel m = node.findElementByName(e.getLocalName());
-      if (m == null) {
-        continue;
-        // throw new ODKParseException();
-      }
+    for (ParsedElement e : group.children) {
+      FormElementModel m = e.model;
       switch (m.getElementType()) {
         case METADATA:
           // This keeps lint warnings down
@@ -365,7 +260,7 @@ public class SubmissionParser {
           // need to recurse on these elements keeping the same
           // submissionSet...
           complete = complete
-              & processSubmissionElement(m, e, submissionSet, repeatGroupIndicies, preExisting, cc);
+              & processSubmissionElement(e, submissionSet, repeatGroupIndicies, preExisting, cc);
           break;
         case REPEAT:
           // get the field that will hold the repeats...
@@ -402,7 +297,7 @@ public class SubmissionParser {
           }
           // populate the instance's submission set with values from e...
           complete = complete
-              & processSubmissionElement(m, e, repeatableSubmissionSet, repeatGroupIndicies,
+              & processSubmissionElement(e, repeatableSubmissionSet, repeatGroupIndicies,
               preExisting, cc);
           break;
         case STRING:
@@ -414,38 +309,38 @@ public class SubmissionParser {
         case SELECT1: // identifies SelectChoice table
         case SELECTN: // identifies SelectChoice table
           if (!preExisting) {
-            String value = getSubmissionValue(e);
+            String value = e.value;
             SubmissionField<?> subField = (SubmissionField<?>) submissionSet.getElementValue(m);
             subField.setValueFromString(value);
           }
           break;
         case JRDATE:
           if (!preExisting) {
-            String value = getSubmissionValue(e);
+            String value = e.value;
             ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(value);
           }
           break;
         case JRTIME:
           if (!preExisting) {
-            String value = getSubmissionValue(e);
+            String value = e.value;
             ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(value);
           }
           break;
         case JRDATETIME:
           if (!preExisting) {
-            String value = getSubmissionValue(e);
+            String value = e.value;
             ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(value);
           }
           break;
         case GEOPOINT:
           if (!preExisting) {
-            String value = getSubmissionValue(e);
+            String value = e.value;
             ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(value);
           }
           break;
         case BINARY: // identifies BinaryContent table
         {
-          String value = getSubmissionValue(e);
+          String value = e.value;
           SubmissionField<?> submissionElement = ((SubmissionField<?>) submissionSet
               .getElementValue(m));
           complete = complete & processBinarySubmission(m, submissionElement, value, cc);
@@ -489,9 +384,8 @@ public class SubmissionParser {
         if (fileName == null || fileName.length() == 0) {
           fileName = null;
         }
-        byte[] byteArray = binaryData.getStream().toByteArray();
-        submissionElement.setValueFromByteArray(byteArray, binaryData.getContentType(),
-            fileName, false, cc);
+        BlobSubmissionType blob = (BlobSubmissionType) submissionElement;
+        blob.setValueFromStream(binaryData, binaryData.getContentType(), fileName, false, cc);
       } else {
         // Assume the value is the filename...
         submissionElement.setValueFromByteArray(null, null, value, false, cc);
@@ -505,39 +399,4 @@ public class SubmissionParser {
     return true;
   }
 
-  private List<Element> getElements(Element rootNode) {
-    List<Element> elements = new ArrayList<Element>();
-
-    NodeList nodeList = rootNode.getChildNodes();
-
-    for (int i = 0; i < nodeList.getLength(); ++i) {
-      Node node = nodeList.item(i);
-      if (node.getNodeType() == Node.ELEMENT_NODE) {
-        elements.add((Element) node);
-      }
-    }
-    return elements;
-  }
-
-  private String getSubmissionValue(Element element) {
-    // could not find element, return null
-    if (element == null) {
-      return null;
-    }
-
-    NodeList childNodeList = element.getChildNodes();
-    // get element value
-    for (int i = 0; i < childNodeList.getLength(); i++) {
-      Node node = childNodeList.item(i);
-      if (node.getNodeType() == Node.TEXT_NODE) {
-        String value = node.getNodeValue().trim();
-        if (value.length() > 0) {
-          return value;
-        } // else go to next node
-      }
-    } // else has no value so continue
-
-    return null;
-  }
-
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.parser;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.exception.ODKParseException;
+import org.opendatakit.common.web.constants.BasicConsts;
+
+/**
+ * Pull parser over a submission document.
+ * <p>
+ * {@link #readRoot()} stops at the document element so that the form can be
+ * looked up from its attributes; {@link #readSubmission(FormElementModel)}
+ * then reads the rest of the document, keeping only the elements that map
+ * onto the form's element tree. The OpenRosa instanceID is picked up as the
+ * elements stream by.
+ */
+final class SubmissionXmlReader {
+
+  private static final String OPEN_ROSA_NAMESPACE_PRELIM = "http://openrosa.org/xforms/metadata";
+  private static final String OPEN_ROSA_NAMESPACE = "http://openrosa.org/xforms";
+  private static final String OPEN_ROSA_NAMESPACE_SLASH = "http://openrosa.org/xforms/";
+  private static final String OPEN_ROSA_METADATA_TAG = "meta";
+  private static final String OPEN_ROSA_INSTANCE_ID = "instanceID";
+
+  // factories are costly to create and not guaranteed to be thread-safe
+  private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    return factory;
+  });
+
+  private final XMLStreamReader reader;
+  private final Map<String, String> rootAttributes = new HashMap<String, String>();
+  private String rootName;
+
+  /**
+   * depth of the current element; the document element is at depth 1.
+   */
+  private int depth = 0;
+  /**
+   * depth of the first OpenRosa meta element while it is open, 0 otherwise.
+   */
+  private int metaDepth = 0;
+  private boolean metaSeen = false;
+  /**
+   * text of the instanceID element being read, or null.
+   */
+  private StringBuilder instanceIdText = null;
+  private int instanceIdTextNodes = 0;
+  private boolean inInstanceIdText = false;
+  private String instanceId = null;
+
+  SubmissionXmlReader(InputStream inputStreamXML) throws XMLStreamException {
+    reader = INPUT_FACTORY.get().createXMLStreamReader(inputStreamXML);
+  }
+
+  /**
+   * Advances to the document element and records its attributes.
+   */
+  void readRoot() throws XMLStreamException {
+    while (next() != XMLStreamConstants.START_ELEMENT) {
+      if (!reader.hasNext()) {
+        throw new XMLStreamException("Submission has no document element");
+      }
+    }
+    rootName = reader.getLocalName();
+    for (int i = 0; i < reader.getAttributeCount(); ++i) {
+      String prefix = reader.getAttributePrefix(i);
+      if (prefix == null || prefix.length() == 0) {
+        rootAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+      }
+    }
+    for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+      String prefix = reader.getNamespacePrefix(i);
+      if (prefix == null || prefix.length() == 0) {
+        rootAttributes.put(ParserConsts.NAMESPACE_ATTRIBUTE, reader.getNamespaceURI(i));
+      }
+    }
+  }
+
+  /**
+   * @return the value of the unprefixed attribute of the document element, or
+   *     the empty string if it is not present.
+   */
+  String getRootAttribute(String name) {
+    String value = rootAttributes.get(name);
+    return (value == null) ? BasicConsts.EMPTY_STRING : value;
+  }
+
+  /**
+   * @return the text of the instanceID of the first OpenRosa meta block, or
+   *     null if there is none. Only complete once the document has been read.
+   */
+  String getOpenRosaInstanceId() {
+    return instanceId;
+  }
+
+  /**
+   * Reads the rest of the document.
+   *
+   * @param formRoot the top-level group of the form the submission belongs to.
+   * @return the document element with the fields and groups that map onto
+   *     the form.
+   */
+  ParsedElement readSubmission(FormElementModel formRoot) throws XMLStreamException,
+      ODKParseException {
+    ParsedElement root = new ParsedElement(formRoot, null, new ArrayList<ParsedElement>());
+    // the element name of the fdm is the tag name...
+    String submissionTag = formRoot.getElementName();
+    if (submissionTag == null) {
+      skipElement();
+    } else {
+      // verify that the xml matches the node we are processing...
+      if (!rootName.equals(submissionTag)) {
+        throw new ODKParseException("Xml document element tag: " + rootName
+            + " does not match the xform data model tag name: " + submissionTag);
+      }
+      readGroup(formRoot, root);
+    }
+    // read to the end so that malformed documents are still rejected
+    while (reader.hasNext()) {
+      next();
+    }
+    reader.close();
+    return root;
+  }
+
+  /**
+   * Reads the children of the group or repeat element just started, up to
+   * and including its end tag.
+   */
+  private void readGroup(FormElementModel node, ParsedElement group) throws XMLStreamException {
+    int groupDepth = depth;
+    for (; ; ) {
+      int event = next();
+      if (event == XMLStreamConstants.END_ELEMENT && depth < groupDepth) {
+        return;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      FormElementModel m = node.findElementByName(reader.getLocalName());
+      if (m == null) {
+        skipElement();
+        continue;
+      }
+      switch (m.getElementType()) {
+        case METADATA:
+          skipElement();
+          break;
+        case GROUP:
+        case REPEAT: {
+          ParsedElement child = new ParsedElement(m, null, new ArrayList<ParsedElement>());
+          group.children.add(child);
+          readGroup(m, child);
+        }
+        break;
+        default:
+          group.children.add(new ParsedElement(m, readValue(), null));
+          break;
+      }
+    }
+  }
+
+  /**
+   * Reads the element just started, up to and including its end tag.
+   *
+   * @return the first non-blank run of text directly within the element,
+   *     trimmed, or null if there is none.
+   */
+  private String readValue() throws XMLStreamException {
+    int valueDepth = depth;
+    String value = null;
+    StringBuilder text = null;
+    for (; ; ) {
+      int event = next();
+      if (isText(event)) {
+        if (depth == valueDepth) {
+          if (text == null) {
+            text = new StringBuilder();
+          }
+          text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+        }
+      } else if (event == XMLStreamConstants.START_ELEMENT
+          || event == XMLStreamConstants.END_ELEMENT) {
+        if (value == null && text != null) {
+          String trimmed = text.toString().trim();
+          if (trimmed.length() > 0) {
+            value = trimmed;
+          }
+        }
+        text = null;
+        if (event == XMLStreamConstants.END_ELEMENT && depth < valueDepth) {
+          return value;
+        }
+      }
+    }
+  }
+
+  /**
+   * Skips the element just started, up to and including its end tag.
+   */
+  private void skipElement() throws XMLStreamException {
+    int skipDepth = depth;
+    while (!(next() == XMLStreamConstants.END_ELEMENT && depth < skipDepth)) {
+      // next() still tracks the meta block while skipping
+    }
+  }
+
+  /**
+   * Advances the reader, keeping track of the depth and of the OpenRosa
+   * instanceID.
+   */
+  private int next() throws XMLStreamException {
+    int event = reader.next();
+    switch (event) {
+      case XMLStreamConstants.START_ELEMENT:
+        ++depth;
+        inInstanceIdText = false;
+        if (!metaSeen && depth > 1
+            && reader.getLocalName().equals(OPEN_ROSA_METADATA_TAG)
+            && isOpenRosaNamespace(reader.getNamespaceURI())) {
+          metaSeen = true;
+          metaDepth = depth;
+        } else if (metaDepth != 0 && depth == metaDepth + 1 && instanceId == null
+            && reader.getLocalName().equals(OPEN_ROSA_INSTANCE_ID)
+            && isOpenRosaNamespace(reader.getNamespaceURI())) {
+          instanceIdText = new StringBuilder();
+          instanceIdTextNodes = 0;
+        }
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.CDATA:
+      case XMLStreamConstants.SPACE:
+        if (instanceIdText != null && depth == metaDepth + 1) {
+          if (!inInstanceIdText) {
+            ++instanceIdTextNodes;
+            inInstanceIdText = true;
+          }
+          instanceIdText.append(reader.getTextCharacters(), reader.getTextStart(),
+              reader.getTextLength());
+        }
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        inInstanceIdText = false;
+        if (instanceIdText != null && depth == metaDepth + 1) {
+          if (instanceIdTextNodes > 1) {
+            throw new IllegalStateException("Expected a single text node");
+          }
+          if (instanceIdTextNodes == 1) {
+            instanceId = instanceIdText.toString();
+          }
+          instanceIdText = null;
+        } else if (depth == metaDepth) {
+          metaDepth = 0;
+        }
+        --depth;
+        break;
+      default:
+        break;
+    }
+    return event;
+  }
+
+  private static boolean isText(int event) {
+    return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+        || event == XMLStreamConstants.SPACE;
+  }
+
+  private static boolean isOpenRosaNamespace(String namespace) {
+    return namespace == null || namespace.length() == 0
+        || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE)
+        || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH)
+        || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM);
+  }
+
+  /**
+   * An element of the submission that maps onto the form: either a group or
+   * repeat instance holding its mapped children in document order, or a
+   * field holding its value.
+   */
+  static final class ParsedElement {
+    final FormElementModel model;
+    final String value;
+    final List<ParsedElement> children;
+
+    ParsedElement(FormElementModel model, String value, List<ParsedElement> children) {
+      this.model = model;
+      this.value = value;
+      this.children = children;
+    }
+  }
+}
@@ -17,7 +17,9 @@
 package org.opendatakit.aggregate.process;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
@@ -26,6 +28,7 @@ import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.aggregate.util.ThumbnailTable;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
@@ -50,6 +53,9 @@ public class DeleteSubmissions {
 
   public void deleteSubmissions(CallingContext cc) throws ODKOverQuotaException, ODKFormNotFoundException, ODKDatastoreException {
     List<EntityKey> deleteKeys = new ArrayList<EntityKey>();
+    // the submissions found, by form, to delete their thumbnails first
+    Map<String, IForm> forms = new HashMap<String, IForm>();
+    Map<String, List<String>> topLevelUris = new HashMap<String, List<String>>();
 
     for (SubmissionKey submissionKey : submissionKeys) {
       List<SubmissionKeyPart> parts = submissionKey.splitSubmissionKey();
@@ -69,6 +75,9 @@ public class DeleteSubmissions {
       if (tle != null) {
         // we have the top-level entity. Construct the submission.
         IForm form = FormFactory.retrieveFormByFormId(parts.get(0).getElementName(), cc);
+        forms.put(form.getFormId(), form);
+        topLevelUris.computeIfAbsent(form.getFormId(), k -> new ArrayList<String>())
+            .add(tle.getUri());
         try {
           Submission sub = new Submission(tle, form, cc);
           sub.recursivelyAddEntityKeysForDeletion(deleteKeys, cc);
@@ -81,6 +90,9 @@ public class DeleteSubmissions {
         }
       }
     }
+    for (Map.Entry<String, List<String>> e : topLevelUris.entrySet()) {
+      ThumbnailTable.deleteSubmissionThumbnails(forms.get(e.getKey()), e.getValue(), cc);
+    }
     DeleteHelper.deleteEntities(deleteKeys, cc);
   }
 }
@@ -39,9 +39,11 @@ import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.server.UITrans;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
 import org.opendatakit.aggregate.submission.type.jr.JRTemporal;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.QueryResult;
@@ -218,12 +220,13 @@ public class QueryByUIFilterGroup extends QueryBase {
     // retrieve submissions
     QueryResult results = getQueryResult(cursor, fetchLimit);
     List<? extends CommonFieldsBase> submissionEntities = results.getResultList();
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(submissionEntities, getForm(), cc);
 
     // create a row for each submission
     for (int count = 0; count < submissionEntities.size(); count++) {
       CommonFieldsBase subEntity = submissionEntities.get(count);
       try {
-        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), cc);
+        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), prefetch, cc);
         retrievedSubmissions.add(sub);
       } catch (ODKDatastoreException e) {
         Logger logger = LoggerFactory.getLogger(QueryByUIFilterGroup.class);
@@ -251,23 +254,24 @@ public class QueryByUIFilterGroup extends QueryBase {
     return retrievedSubmissions;
   }
 
-  public List<TopLevelDynamicBase> getTopLevelSubmissionObjects(CallingContext cc) throws ODKDatastoreException {
+  /**
+   * @return the URIs of the next page of submissions, fetched without reading
+   *     any of the other columns of the submissions.
+   */
+  public List<String> getTopLevelSubmissionUris(CallingContext cc) throws ODKDatastoreException {
 
-    List<TopLevelDynamicBase> topLevelEntities = new ArrayList<TopLevelDynamicBase>();
+    List<String> uris = new ArrayList<String>();
 
-    // retrieve submissions
+    // retrieve only the keys (and the sort columns for the cursor)
+    query.setProjection(Collections.<DataField>emptyList());
     QueryResult results = getQueryResult(cursor, fetchLimit);
-    List<? extends CommonFieldsBase> submissionEntities = results.getResultList();
-
-    // create a row for each submission
-    for (int count = 0; count < submissionEntities.size(); count++) {
-      CommonFieldsBase subEntity = submissionEntities.get(count);
-      topLevelEntities.add((TopLevelDynamicBase) subEntity);
+    for (CommonFieldsBase subEntity : results.getResultList()) {
+      uris.add(subEntity.getUri());
     }
 
     // advance cursor...
     cursor = results.getResumeCursor();
-    return topLevelEntities;
+    return uris;
   }
 
   public void populateSubmissions(SubmissionUISummary summary, List<FormElementModel> filteredElements, ElementFormatter elemFormatter, List<FormElementNamespace> elementTypes, CallingContext cc) throws ODKDatastoreException {
@@ -345,9 +349,10 @@ public class QueryByUIFilterGroup extends QueryBase {
     List<SubmissionUI> submissionList = new ArrayList<SubmissionUI>();
 
     // create a row for each submission
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(results.getResultList(), getForm(), cc);
     for (CommonFieldsBase subEntity : results.getResultList()) {
       try {
-        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), cc);
+        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), prefetch, cc);
         Row row = sub.getFormattedValuesAsRow(elementTypes, filteredElements, elemFormatter, false,
             cc);
 
@@ -153,9 +153,14 @@ public class BinaryDataServlet extends ServletUtilBase {
 
     Date lastUpdateDate = null;
     byte[] imageBlob = null;
+    // the full-size content is streamed from one of these...
+    PersistentResults results = null;
+    BlobSubmissionType blob = null;
+    int blobOrdinal = 1;
     String unrootedFileName = null;
     String contentType = null;
     Long contentLength = null;
+    String contentHash = null;
 
     List<SubmissionKeyPart> parts = key.splitSubmissionKey();
     if (parts.get(0).getElementName().equals(PersistentResults.FORM_ID_PERSISTENT_RESULT)) {
@@ -171,7 +176,10 @@ public class BinaryDataServlet extends ServletUtilBase {
         unrootedFileName = info.unrootedFilename;
         contentType = info.contentType;
         contentLength = info.contentLength;
-        imageBlob = p.getResultFileContents(cc);
+        results = p;
+        if (previewSize) {
+          imageBlob = p.getResultFileContents(cc);
+        }
         lastUpdateDate = p.getCompletionDate();
       } catch (ODKOverQuotaException e) {
         e.printStackTrace();
@@ -240,11 +248,13 @@ public class BinaryDataServlet extends ServletUtilBase {
             // OK. This is the attachment we want...
             ordinal = ord.intValue();
           }
-          imageBlob = b.getBlob(ordinal, cc);
+          blob = b;
+          blobOrdinal = ordinal;
           lastUpdateDate = b.getLastUpdateDate(ordinal, cc);
           unrootedFileName = b.getUnrootedFilename(ordinal, cc);
           contentType = b.getContentType(ordinal, cc);
           contentLength = b.getContentLength(ordinal, cc);
+          contentHash = b.getContentHash(ordinal, cc);
         } catch (ODKOverQuotaException e) {
           e.printStackTrace();
           quotaExceededError(resp);
@@ -258,7 +268,34 @@ public class BinaryDataServlet extends ServletUtilBase {
       }
     }
 
-    if (imageBlob != null && imageBlob.length > 0) {
+    // full-size submission attachments support conditional and partial GETs.
+    // None of this touches the blob parts themselves.
+    ByteRange range = null;
+    if (!previewSize && blob != null && contentHash != null && contentLength != null) {
+      String eTag = "\"" + contentHash + "\"";
+      resp.setHeader("ETag", eTag);
+      resp.setHeader("Accept-Ranges", "bytes");
+      if (isNotModified(req, eTag, lastUpdateDate)) {
+        if (lastUpdateDate != null) {
+          resp.setHeader("Last-Modified", OffsetDateTime.ofInstant(lastUpdateDate.toInstant(), systemDefault()).format(RFC_1123_DATE_TIME));
+        }
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      String ifRange = req.getHeader("If-Range");
+      if (ifRange == null || ifRange.trim().equals(eTag)) {
+        range = ByteRange.parse(req.getHeader("Range"), contentLength);
+      }
+      if (range == ByteRange.UNSATISFIABLE) {
+        resp.setHeader("Content-Range", range.toContentRange(contentLength));
+        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+    }
+
+    boolean hasContent = (previewSize && blob == null) ? (imageBlob != null && imageBlob.length > 0)
+        : (contentLength != null && contentLength > 0);
+    if (hasContent) {
       if (contentType == null) {
         contentType = HtmlConsts.RESP_TYPE_IMAGE_JPEG;
       }
@@ -271,7 +308,22 @@ public class BinaryDataServlet extends ServletUtilBase {
         if (contentType.equals(HtmlConsts.RESP_TYPE_IMAGE_JPEG)) {
           // resize
           ImageUtil imageUtil = (ImageUtil) cc.getBean(BeanDefs.IMAGE_UTIL);
-          imageBlob = imageUtil.resizeImage(imageBlob, 64, 48);
+          if (blob != null) {
+            // thumbnails of attachments are cached by content hash...
+            final BlobSubmissionType source = blob;
+            final int sourceOrdinal = blobOrdinal;
+            try {
+              imageBlob = imageUtil.getThumbnail(contentHash, 64, 48,
+                  () -> source.getBlob(sourceOrdinal, cc), cc);
+            } catch (ODKDatastoreException e) {
+              e.printStackTrace();
+              resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                  "Unable to retrieve attachment");
+              return;
+            }
+          } else {
+            imageBlob = imageUtil.resizeImage(imageBlob, 64, 48);
+          }
         } else {
           // display not-able-to-resize image...
           imageBlob = playJPG;
@@ -280,8 +332,12 @@ public class BinaryDataServlet extends ServletUtilBase {
       } else {
         resp.setHeader("Last-Modified", OffsetDateTime.ofInstant(lastUpdateDate.toInstant(), systemDefault()).format(RFC_1123_DATE_TIME));
         resp.setContentType(contentType);
-        if (contentLength != null) {
-          resp.setContentLength(contentLength.intValue());
+        if (range != null) {
+          resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          resp.setHeader("Content-Range", range.toContentRange(contentLength));
+          resp.setContentLengthLong(range.getLength());
+        } else if (contentLength != null) {
+          resp.setContentLengthLong(contentLength);
         }
       }
 
@@ -295,7 +351,28 @@ public class BinaryDataServlet extends ServletUtilBase {
       }
 
       OutputStream os = resp.getOutputStream();
-      os.write(imageBlob);
+      if (previewSize) {
+        os.write(imageBlob);
+      } else {
+        // stream the attachment straight from the datastore to the client...
+        try {
+          if (results != null) {
+            results.writeResultFileContents(os, cc);
+          } else if (range != null) {
+            blob.writeBlob(blobOrdinal, os, range.getFirst(), range.getLength(), cc);
+          } else {
+            blob.writeBlob(blobOrdinal, os, cc);
+          }
+        } catch (ODKDatastoreException e) {
+          e.printStackTrace();
+          if (!resp.isCommitted()) {
+            resp.reset();
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                "Unable to retrieve attachment");
+          }
+          return;
+        }
+      }
       os.close();
     } else {
       resp.setContentType(HtmlConsts.RESP_TYPE_PLAIN);
@@ -303,6 +380,37 @@ public class BinaryDataServlet extends ServletUtilBase {
     }
   }
 
+  /**
+   * If-None-Match takes precedence over If-Modified-Since (RFC 7232 section 6).
+   */
+  private static boolean isNotModified(HttpServletRequest req, String eTag, Date lastUpdateDate) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(eTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (lastUpdateDate == null) {
+      return false;
+    }
+    long ifModifiedSince;
+    try {
+      ifModifiedSince = req.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      // unparseable date -- ignore the header
+      return false;
+    }
+    // HTTP dates have one-second resolution
+    return ifModifiedSince != -1 && lastUpdateDate.getTime() / 1000 <= ifModifiedSince / 1000;
+  }
+
   private final String getKeyPath(List<SubmissionKeyPart> parts) {
     StringBuilder b = new StringBuilder();
     for (SubmissionKeyPart p : parts) {
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.servlet;
+
+/**
+ * A single byte range from an HTTP Range request header (RFC 7233).
+ * Multi-range requests are not supported; callers serve the whole
+ * entity for those, which the RFC allows.
+ */
+public final class ByteRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  /**
+   * Returned by {@link #parse} when the range is syntactically valid but
+   * does not overlap the entity (416 Range Not Satisfiable).
+   */
+  public static final ByteRange UNSATISFIABLE = new ByteRange(-1L, -1L);
+
+  private final long first;
+  private final long last;
+
+  private ByteRange(long first, long last) {
+    this.first = first;
+    this.last = last;
+  }
+
+  /**
+   * @return the requested range, {@link #UNSATISFIABLE}, or null if the
+   *     header is absent, malformed or asks for more than one range (in
+   *     which case the header is ignored and the full entity is sent).
+   */
+  public static ByteRange parse(String header, long entityLength) {
+    if (header == null || !header.startsWith(BYTES_UNIT)) {
+      return null;
+    }
+    String spec = header.substring(BYTES_UNIT.length()).trim();
+    if (spec.indexOf(',') != -1) {
+      return null;
+    }
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    String firstStr = spec.substring(0, dash).trim();
+    String lastStr = spec.substring(dash + 1).trim();
+    try {
+      if (firstStr.length() == 0) {
+        // suffix range -- the final N bytes
+        long suffixLength = Long.parseLong(lastStr);
+        if (suffixLength <= 0 || entityLength == 0) {
+          return UNSATISFIABLE;
+        }
+        return new ByteRange(Math.max(0L, entityLength - suffixLength), entityLength - 1);
+      }
+      long first = Long.parseLong(firstStr);
+      long last = (lastStr.length() == 0) ? Long.MAX_VALUE : Long.parseLong(lastStr);
+      if (first < 0 || last < first) {
+        return null;
+      }
+      if (first >= entityLength) {
+        return UNSATISFIABLE;
+      }
+      return new ByteRange(first, Math.min(last, entityLength - 1));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public long getFirst() {
+    return first;
+  }
+
+  public long getLast() {
+    return last;
+  }
+
+  public long getLength() {
+    return last - first + 1;
+  }
+
+  /**
+   * @return the value of the Content-Range response header for this range.
+   */
+  public String toContentRange(long entityLength) {
+    if (this == UNSATISFIABLE) {
+      return "bytes */" + entityLength;
+    }
+    return "bytes " + first + "-" + last + "/" + entityLength;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.servlet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.AccessStatistics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.LatencyStatistics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+/**
+ * Servlet reporting the datastore access counters, per table and per query
+ * logging context, as JSON. Restricted to site administrators.
+ */
+public class DatastoreMetricsServlet extends ServletUtilBase {
+
+  /**
+   * URI from base
+   */
+  public static final String ADDR = "ssl/datastore-metrics";
+  /**
+   * Serial number for serialization
+   */
+  private static final long serialVersionUID = -3180520371650853190L;
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+    DatastoreAccessMetrics metrics = (DatastoreAccessMetrics) cc
+        .getBean(BeanDefs.DATASTORE_ACCESS_METRICS);
+
+    JsonArray bounds = new JsonArray();
+    for (long bound : DatastoreAccessMetrics.getLatencyBucketBoundsMillis()) {
+      bounds.add(bound);
+    }
+    JsonObject result = new JsonObject();
+    result.add("latencyBucketBoundsMillis", bounds);
+    result.add("tables", toJson(metrics.getTableStatistics()));
+    result.add("contexts", toJson(metrics.getContextStatistics()));
+
+    // do not cache...
+    resp.setHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+    resp.setHeader("Pragma", "no-cache");
+    resp.setHeader("Expires", "0");
+    resp.setContentType(HtmlConsts.RESP_TYPE_JSON);
+    resp.setCharacterEncoding(HtmlConsts.UTF8_ENCODE);
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.getWriter().print(result.toString());
+  }
+
+  private static JsonArray toJson(List<AccessStatistics> statistics) {
+    JsonArray array = new JsonArray();
+    for (AccessStatistics s : statistics) {
+      JsonObject entry = new JsonObject();
+      entry.addProperty("name", s.getName());
+      entry.addProperty("rowsRead", s.getRowsRead());
+      for (Operation operation : Operation.values()) {
+        long count = s.getCount(operation);
+        if (count == 0) {
+          continue;
+        }
+        String name = operation.name().toLowerCase(Locale.ROOT);
+        entry.addProperty(name + "Count", count);
+        LatencyStatistics latency = s.getLatency(operation);
+        if (latency.getCount() != 0) {
+          JsonObject l = new JsonObject();
+          l.addProperty("count", latency.getCount());
+          l.addProperty("meanMillis", latency.getMeanMillis());
+          l.addProperty("maxMillis", latency.getMaxMillis());
+          JsonArray buckets = new JsonArray();
+          for (long bucketCount : latency.getBucketCounts()) {
+            buckets.add(bucketCount);
+          }
+          l.add("buckets", buckets);
+          entry.add(name + "Latency", l);
+        }
+      }
+      array.add(entry);
+    }
+    return array;
+  }
+}
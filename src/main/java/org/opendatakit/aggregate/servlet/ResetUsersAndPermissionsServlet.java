@@ -209,9 +209,10 @@ public class ResetUsersAndPermissionsServlet extends ServletUtilBase {
     // TODO Add in form title process so it will update the changes in the XML
     // of form
 
+    MultiPartFormData resetUsersAndPermissions = null;
     try {
       // process form
-      MultiPartFormData resetUsersAndPermissions = new MultiPartFormData(req);
+      resetUsersAndPermissions = new MultiPartFormData(req);
 
       MultiPartFormItem usersAndPermissionsCsv = resetUsersAndPermissions
           .getFormDataByFieldName(ACCESS_DEF_PRAM);
@@ -221,7 +222,7 @@ public class ResetUsersAndPermissionsServlet extends ServletUtilBase {
       if (usersAndPermissionsCsv != null) {
         // TODO: changed added output stream writer. probably something better
         // exists
-        inputCsv = usersAndPermissionsCsv.getStream().toString(HtmlConsts.UTF8_ENCODE);
+        inputCsv = usersAndPermissionsCsv.getString(HtmlConsts.UTF8_ENCODE);
       }
 
       StringReader csvContentReader = null;
@@ -657,6 +658,10 @@ public class ResetUsersAndPermissionsServlet extends ServletUtilBase {
       logger.error("users and capabilities .csv upload persistence error: " + e.toString());
       e.printStackTrace(resp.getWriter());
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ErrorConsts.UPLOAD_PROBLEM);
+    } finally {
+      if (resetUsersAndPermissions != null) {
+        resetUsersAndPermissions.dispose();
+      }
     }
   }
 }
@@ -190,9 +190,10 @@ public class ServiceAccountPrivateKeyUploadServlet extends ServletUtilBase {
       return;
     }
 
+    MultiPartFormData uploadedFormItems = null;
     try {
       // process form
-      MultiPartFormData uploadedFormItems = new MultiPartFormData(req);
+      uploadedFormItems = new MultiPartFormData(req);
 
       String simpleApiKey = uploadedFormItems.getSimpleFormField(SIMPLE_API_KEY_PARAM);
       if (simpleApiKey != null) {
@@ -221,7 +222,7 @@ public class ServiceAccountPrivateKeyUploadServlet extends ServletUtilBase {
       byte[] p12FileContent = null;
 
       if (privateKeyFileData != null) {
-        p12FileContent = privateKeyFileData.getStream().toByteArray();
+        p12FileContent = privateKeyFileData.getBytes();
       }
 
       if (clientId == null || serviceAccountEmail == null || p12FileContent == null ||
@@ -258,6 +259,10 @@ public class ServiceAccountPrivateKeyUploadServlet extends ServletUtilBase {
       logger.error("Set private key information error: " + e.getMessage());
       e.printStackTrace(resp.getWriter());
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ErrorConsts.UPLOAD_PROBLEM);
+    } finally {
+      if (uploadedFormItems != null) {
+        uploadedFormItems.dispose();
+      }
     }
   }
 
@@ -19,6 +19,7 @@ package org.opendatakit.aggregate.servlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import javax.servlet.http.HttpServletRequest;
@@ -35,6 +36,7 @@ import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.QueryResult;
@@ -176,6 +178,8 @@ public class SubmissionDownloadListServlet extends ServletUtilBase {
           .orElse(false);
       if (!includeIncomplete)
         query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+      // only the URIs (and the lastUpdateDate for the cursor) are needed
+      query.setProjection(Collections.<DataField>emptyList());
 
       QueryResult result = query.executeQuery(cursor, numEntries);
       List<String> uriList = new ArrayList<>();
@@ -208,10 +208,11 @@ public class SubmissionServlet extends ServletUtilBase {
 
     Double openRosaVersion = getOpenRosaVersion(req);
     boolean isIncomplete = false;
+    MultiPartFormData uploadedSubmissionItems = null;
     try {
       SubmissionParser submissionParser = null;
       if (ServletFileUpload.isMultipartContent(req)) {
-        MultiPartFormData uploadedSubmissionItems = new MultiPartFormData(req);
+        uploadedSubmissionItems = new MultiPartFormData(req);
         String isIncompleteFlag = uploadedSubmissionItems
             .getSimpleFormField(ServletConsts.TRANSFER_IS_INCOMPLETE);
         isIncomplete = (isIncompleteFlag != null && isIncompleteFlag.compareToIgnoreCase("YES") == 0);
@@ -353,6 +354,10 @@ public class SubmissionServlet extends ServletUtilBase {
       logger.error("Unexpected exception: " + e.getMessage());
       e.printStackTrace();
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unexpected exception");
+    } finally {
+      if (uploadedSubmissionItems != null) {
+        uploadedSubmissionItems.dispose();
+      }
     }
   }
 }
@@ -23,7 +23,6 @@ import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.opendatakit.aggregate.ContextFactory;
-import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
@@ -114,7 +113,8 @@ public class XFormsDownloadServlet extends ServletUtilBase {
     // (formInfo/row/fileset/[xform|manifest])
     SubmissionKeyPart part = parts.get(3);
 
-    byte[] imageBlob;
+    BinaryContentManipulator content;
+    int ordinal;
     String unrootedFileName;
     String contentType;
     Long contentLength;
@@ -130,7 +130,8 @@ public class XFormsDownloadServlet extends ServletUtilBase {
         unrootedFileName = xform.getUnrootedFilename(1, cc);
         contentType = xform.getContentType(1, cc);
         contentLength = xform.getContentLength(1, cc);
-        imageBlob = xform.getBlob(1, cc);
+        content = xform;
+        ordinal = 1;
       } catch (ODKDatastoreException e) {
         e.printStackTrace();
         resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -153,7 +154,8 @@ public class XFormsDownloadServlet extends ServletUtilBase {
         unrootedFileName = manifest.getUnrootedFilename(idx, cc);
         contentType = manifest.getContentType(idx, cc);
         contentLength = manifest.getContentLength(idx, cc);
-        imageBlob = manifest.getBlob(idx, cc);
+        content = manifest;
+        ordinal = idx;
       } catch (ODKDatastoreException e) {
         e.printStackTrace();
         resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -162,32 +164,38 @@ public class XFormsDownloadServlet extends ServletUtilBase {
       }
     }
 
-    if (imageBlob != null) {
-      if (contentType == null) {
-        resp.setContentType(HtmlConsts.RESP_TYPE_IMAGE_JPEG);
-      } else {
-        resp.setContentType(contentType);
-      }
-      if (contentLength != null) {
-        resp.setContentLength(contentLength.intValue());
-      }
+    if (contentType == null) {
+      resp.setContentType(HtmlConsts.RESP_TYPE_IMAGE_JPEG);
+    } else {
+      resp.setContentType(contentType);
+    }
+    if (contentLength != null) {
+      resp.setContentLength(contentLength.intValue());
+    }
 
-      if (downloadAsAttachmentString != null && !"".equals(downloadAsAttachmentString)) {
-        // set filename if we are downloading to disk...
-        // need this for manifest fetch logic...
-        if (unrootedFileName != null) {
-          resp.addHeader(HtmlConsts.CONTENT_DISPOSITION, "attachment; filename=\"" + unrootedFileName
-              + "\"");
-        }
+    if (downloadAsAttachmentString != null && !"".equals(downloadAsAttachmentString)) {
+      // set filename if we are downloading to disk...
+      // need this for manifest fetch logic...
+      if (unrootedFileName != null) {
+        resp.addHeader(HtmlConsts.CONTENT_DISPOSITION, "attachment; filename=\"" + unrootedFileName
+            + "\"");
       }
+    }
 
-      OutputStream os = resp.getOutputStream();
-      os.write(imageBlob);
-      os.close();
-    } else {
-      resp.setContentType(HtmlConsts.RESP_TYPE_PLAIN);
-      resp.getWriter().print(ErrorConsts.NO_IMAGE_EXISTS);
+    OutputStream os = resp.getOutputStream();
+    try {
+      // stream the attachment straight from the datastore to the client...
+      content.writeBlob(ordinal, os, cc);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      if (!resp.isCommitted()) {
+        resp.reset();
+        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Unable to retrieve attachment");
+      }
+      return;
     }
+    os.close();
   }
 
 }
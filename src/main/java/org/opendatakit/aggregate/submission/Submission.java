@@ -64,6 +64,19 @@ public class Submission extends SubmissionSet {
     super(null, submission, form.getTopLevelGroupElement(), form, cc);
   }
 
+  /**
+   * Construct a submission from an entity from the data store, assembling its
+   * nested groups, repeats, choices and attachment declarations from the
+   * prefetched rows of the page it was fetched in.
+   *
+   * @see SubmissionPrefetch#fetch
+   */
+  public Submission(TopLevelDynamicBase submission, IForm form, SubmissionPrefetch prefetch,
+                    CallingContext cc) throws ODKDatastoreException {
+    super(null, submission, form.getTopLevelGroupElement(), form,
+        (prefetch != null && prefetch.includes(submission.getUri())) ? prefetch : null, cc);
+  }
+
   public Submission(String uri, IForm form, CallingContext cc) throws
       ODKDatastoreException {
     super(null, (TopLevelDynamicBase) cc.getDatastore().getEntity(
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.submission;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * The child rows (phantom and repeat group rows, select-multiple choices and
+ * attachment declarations) of a page of submissions, fetched with one query
+ * per child table rather than one query per table per submission.
+ * <p>
+ * Pass it to {@link Submission#Submission(org.opendatakit.aggregate.datamodel.TopLevelDynamicBase, IForm, SubmissionPrefetch, CallingContext)}
+ * to assemble each submission from memory. Submissions that were not part of
+ * the fetched page fall back to the per-submission queries.
+ */
+public final class SubmissionPrefetch {
+
+  /**
+   * Maximum number of top level URIs in a single IN (...) filter. Keeps the
+   * statement well under the bind parameter limits of the supported databases.
+   */
+  private static final int MAX_URIS_PER_QUERY = 500;
+
+  private final Set<String> topLevelUris = new HashSet<String>();
+  /**
+   * schema-qualified table name => parent URI => rows, in ordinal order.
+   */
+  private final Map<String, Map<String, List<CommonFieldsBase>>> rowsByTable = new HashMap<String, Map<String, List<CommonFieldsBase>>>();
+
+  private SubmissionPrefetch() {
+  }
+
+  /**
+   * Fetch every child row of the given top level rows, one query per child
+   * table (per {@link #MAX_URIS_PER_QUERY} submissions).
+   */
+  public static SubmissionPrefetch fetch(List<? extends CommonFieldsBase> topLevelRows, IForm form,
+                                         CallingContext cc) throws ODKDatastoreException {
+    SubmissionPrefetch prefetch = new SubmissionPrefetch();
+    if (topLevelRows.isEmpty()) {
+      return prefetch;
+    }
+    List<String> uris = new ArrayList<String>();
+    for (CommonFieldsBase row : topLevelRows) {
+      uris.add(row.getUri());
+    }
+    prefetch.topLevelUris.addAll(uris);
+
+    Map<String, DynamicBase> relations = new LinkedHashMap<String, DynamicBase>();
+    collectChildRelations(form.getTopLevelGroupElement().getFormDataModel(), relations);
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    for (Map.Entry<String, DynamicBase> entry : relations.entrySet()) {
+      DynamicBase relation = entry.getValue();
+      Map<String, List<CommonFieldsBase>> rowsByParent = new HashMap<String, List<CommonFieldsBase>>();
+      for (int i = 0; i < uris.size(); i += MAX_URIS_PER_QUERY) {
+        List<String> batch = uris.subList(i, Math.min(i + MAX_URIS_PER_QUERY, uris.size()));
+        Query q = ds.createQuery(relation, "SubmissionPrefetch.fetch", user);
+        q.addValueSetFilter(relation.topLevelAuri, batch);
+        q.addSort(relation.parentAuri, Direction.ASCENDING);
+        q.addSort(relation.ordinalNumber, Direction.ASCENDING);
+        for (CommonFieldsBase cb : q.executeQuery()) {
+          String parentAuri = ((DynamicBase) cb).getParentAuri();
+          List<CommonFieldsBase> rows = rowsByParent.get(parentAuri);
+          if (rows == null) {
+            rows = new ArrayList<CommonFieldsBase>();
+            rowsByParent.put(parentAuri, rows);
+          }
+          rows.add(cb);
+        }
+      }
+      prefetch.rowsByTable.put(entry.getKey(), rowsByParent);
+    }
+    return prefetch;
+  }
+
+  /**
+   * Gather the distinct child tables of the form: every backing table other
+   * than the top level table and the blob tables (which are read lazily).
+   */
+  private static void collectChildRelations(FormDataModel m, Map<String, DynamicBase> relations) {
+    CommonFieldsBase relation = m.getBackingObjectPrototype();
+    if (relation instanceof DynamicBase) {
+      String key = tableKey(relation);
+      if (!relations.containsKey(key)) {
+        relations.put(key, (DynamicBase) relation);
+      }
+    }
+    for (FormDataModel child : m.getChildren()) {
+      collectChildRelations(child, relations);
+    }
+  }
+
+  private static String tableKey(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
+  }
+
+  /**
+   * @return true if the child rows of the given submission were prefetched.
+   */
+  public boolean includes(String uriTopLevel) {
+    return topLevelUris.contains(uriTopLevel);
+  }
+
+  /**
+   * @return the rows of the given table under the given parent, in ordinal
+   *     order, or null if the table was not prefetched.
+   */
+  public List<? extends CommonFieldsBase> getChildRows(CommonFieldsBase relation, String parentAuri) {
+    Map<String, List<CommonFieldsBase>> rowsByParent = rowsByTable.get(tableKey(relation));
+    if (rowsByParent == null) {
+      return null;
+    }
+    List<CommonFieldsBase> rows = rowsByParent.get(parentAuri);
+    return (rows == null) ? Collections.<CommonFieldsBase>emptyList() : rows;
+  }
+}
@@ -112,7 +112,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     this.topLevelTableKey = topLevelTableKey;
     dbEntities.put(group.getFormDataModel().getDDRelationName(), tlg);
     recursivelyCreateEntities(group.getFormDataModel(), datastore, user);
-    buildSubmissionFields(group, cc);
+    buildSubmissionFields(group, null, cc);
   }
 
   public SubmissionSet(Long modelVersion, Long uiVersion, String uriTopLevelGroup, IForm form, CallingContext cc) throws ODKDatastoreException {
@@ -134,10 +134,19 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     // persist and recursively construct it...
     dbEntities.put(group.getFormDataModel().getDDRelationName(), tlg);
     recursivelyCreateEntities(group.getFormDataModel(), datastore, user);
-    buildSubmissionFields(group, cc);
+    buildSubmissionFields(group, null, cc);
   }
 
   public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row, FormElementModel group, IForm form, CallingContext cc) throws ODKDatastoreException {
+    this(enclosingSet, row, group, form, null, cc);
+  }
+
+  /**
+   * Construct the submission set from its row in the datastore, taking its
+   * child rows from the prefetch rather than querying for them if one is
+   * supplied.
+   */
+  public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row, FormElementModel group, IForm form, SubmissionPrefetch prefetch, CallingContext cc) throws ODKDatastoreException {
     this.form = form;
     this.group = group;
     this.enclosingSet = enclosingSet;
@@ -161,8 +170,8 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     }
     dbEntities.put(group.getFormDataModel().getDDRelationName(), row);
     recursivelyGetEntities(topLevelTableKey.getKey(), row.getUri(), group.getFormDataModel(),
-        datastore, user);
-    buildSubmissionFields(group, cc);
+        prefetch, datastore, user);
+    buildSubmissionFields(group, prefetch, cc);
   }
 
   private boolean isPhantomOfSubmissionSet(FormDataModel m) {
@@ -209,7 +218,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     }
   }
 
-  private void recursivelyGetEntities(String uriTopLevel, String uriParent, FormDataModel groupDataModel, Datastore datastore, User user) throws ODKDatastoreException {
+  private void recursivelyGetEntities(String uriTopLevel, String uriParent, FormDataModel groupDataModel, SubmissionPrefetch prefetch, Datastore datastore, User user) throws ODKDatastoreException {
     DynamicCommonFieldsBase groupRelation = (DynamicCommonFieldsBase) groupDataModel
         .getBackingObjectPrototype();
     for (FormDataModel m : groupDataModel.getChildren()) {
@@ -230,10 +239,14 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
         } else {
           if (mBackingObject == null) {
             DynamicBase mBaseRelation = (DynamicBase) mRelation;
-            Query query = datastore.createQuery(mBaseRelation,
-                "SubmissionSet.recursivelyGetEntities", user);
-            query.addFilter(mBaseRelation.parentAuri, FilterOperation.EQUAL, uriParent);
-            List<? extends CommonFieldsBase> rows = query.executeQuery();
+            List<? extends CommonFieldsBase> rows = (prefetch == null) ? null
+                : prefetch.getChildRows(mBaseRelation, uriParent);
+            if (rows == null) {
+              Query query = datastore.createQuery(mBaseRelation,
+                  "SubmissionSet.recursivelyGetEntities", user);
+              query.addFilter(mBaseRelation.parentAuri, FilterOperation.EQUAL, uriParent);
+              rows = query.executeQuery();
+            }
             if (rows.size() > 1) {
               throw new IllegalStateException(
                   "Expected exactly one match in phantom reconstruction! " + " SELECT * FROM "
@@ -265,12 +278,12 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
           nestedGroupUriParent = mBackingObject.getUri();
         }
         // and ensure that we create the other datastores...
-        recursivelyGetEntities(uriTopLevel, nestedGroupUriParent, m, datastore, user);
+        recursivelyGetEntities(uriTopLevel, nestedGroupUriParent, m, prefetch, datastore, user);
       }
     }
   }
 
-  private void buildSubmissionFields(FormElementModel group, CallingContext cc) throws ODKDatastoreException {
+  private void buildSubmissionFields(FormElementModel group, SubmissionPrefetch prefetch, CallingContext cc) throws ODKDatastoreException {
     DynamicCommonFieldsBase groupRowGroup = getGroupBackingObject();
     for (FormElementModel m : group.getChildren()) {
       SubmissionField<?> submissionField;
@@ -380,7 +393,7 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
             }
             // groups are not manifest unless they repeat...
             // just recurse to build out the fields under them...
-            buildSubmissionFields(m, cc);
+            buildSubmissionFields(m, prefetch, cc);
             break;
           // additional supporting tables
           case PHANTOM: // if a relation needs to be divided in order to fit
@@ -389,31 +402,26 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
             }
             // phantoms are not manifest...
             // just recurse to build out the fields under them...
-            buildSubmissionFields(m, cc);
+            buildSubmissionFields(m, prefetch, cc);
             break;
           case BINARY: // identifies BinaryContent table
-            submissionField = new BlobSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey,
-                constructSubmissionKey(m));
+            BlobSubmissionType blobField = new BlobSubmissionType(m, groupRowGroup.getUri(),
+                topLevelTableKey, constructSubmissionKey(m));
             // pass in row we occur under (to access parentAuri)
-            submissionField.getValueFromEntity(cc);
-            elementsToValues.put(m, submissionField);
+            blobField.getValueFromEntity(prefetch, cc);
+            elementsToValues.put(m, blobField);
             break;
           case SELECT1: // identifies SelectChoice table
-            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey); // pass
-            // in row we occur under to access parentAuri
-            submissionField.getValueFromEntity(cc);
-            elementsToValues.put(m, submissionField);
-            break;
           case SELECTN: // identifies SelectChoice table
-            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey); // pass
-            // in row we occur under to access parentAuri
-            submissionField.getValueFromEntity(cc);
-            elementsToValues.put(m, submissionField);
+            ChoiceSubmissionType choiceField = new ChoiceSubmissionType(m, groupRowGroup.getUri(),
+                topLevelTableKey); // pass in row we occur under to access parentAuri
+            choiceField.getValueFromEntity(prefetch, cc);
+            elementsToValues.put(m, choiceField);
             break;
           case REPEAT:
             RepeatSubmissionType repeatNode = new RepeatSubmissionType(this, m,
                 groupRowGroup.getUri(), form);
-            repeatNode.getValueFromEntity(cc);
+            repeatNode.getValueFromEntity(prefetch, cc);
             elementsToValues.put(m, repeatNode);
             break;
           case BINARY_CONTENT_REF_BLOB: // association between
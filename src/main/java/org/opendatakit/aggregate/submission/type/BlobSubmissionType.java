@@ -17,6 +17,8 @@
 
 package org.opendatakit.aggregate.submission.type;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 import org.opendatakit.aggregate.constants.ErrorConsts;
@@ -28,11 +30,13 @@ import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
 import org.opendatakit.aggregate.submission.SubmissionValue;
 import org.opendatakit.common.datamodel.BinaryContent;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.BinaryContentRefBlob;
 import org.opendatakit.common.datamodel.RefBlob;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -96,6 +100,16 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.getBlob(ordinal, cc);
   }
 
+  public void writeBlob(int ordinal, OutputStream os, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    bcm.writeBlob(ordinal, os, cc);
+  }
+
+  public void writeBlob(int ordinal, OutputStream os, long offset, long length, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    bcm.writeBlob(ordinal, os, offset, length, cc);
+  }
+
   /**
    * Convert value from byte array to data store blob type. Store blob in blob
    * storage and save the key of the blob storage into submission set. There can
@@ -114,6 +128,17 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * Same as {@link #setValueFromByteArray} but reads the content from the
+   * given source rather than requiring it to be held in memory.
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromStream(
+      BinaryContentManipulator.BlobSource source, String contentType, String unrootedFilePath,
+      boolean overwriteOK, CallingContext cc) throws ODKDatastoreException {
+
+    return bcm.setValueFromStream(source, contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
   @Override
   public void setValueFromString(String value) throws ODKConversionException {
     throw new ODKConversionException(ErrorConsts.NO_STRING_TO_BLOB_CONVERT);
@@ -124,6 +149,21 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     // lazy access when retrieving data from the database
   }
 
+  /**
+   * Attachment declarations are still read lazily, but from the prefetch
+   * rather than the datastore when it holds them.
+   */
+  public void getValueFromEntity(SubmissionPrefetch prefetch, CallingContext cc) {
+    if (prefetch != null) {
+      FormDataModel bnDataModel = element.getFormDataModel();
+      List<? extends CommonFieldsBase> contentHits = prefetch.getChildRows(
+          bnDataModel.getBackingObjectPrototype(), parentKey);
+      if (contentHits != null) {
+        bcm.setPrefetchedAttachments(contentHits);
+      }
+    }
+  }
+
   @Override
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
     bcm.persist(cc);
@@ -22,6 +22,7 @@ import org.opendatakit.aggregate.datamodel.SelectChoice;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
 import org.opendatakit.aggregate.submission.SubmissionValue;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
@@ -68,15 +69,26 @@ public class ChoiceSubmissionType extends SubmissionFieldBase<List<String>> {
 
   @Override
   public void getValueFromEntity(CallingContext cc) throws ODKDatastoreException {
+    getValueFromEntity(null, cc);
+  }
 
-    SelectChoice sel = (SelectChoice) element.getFormDataModel().getBackingObjectPrototype();
-    Query q = cc.getDatastore().createQuery(element.getFormDataModel().getBackingObjectPrototype(),
-        "ChoiceSubmissionType.getValueFromEntity", cc.getCurrentUser());
-    q.addFilter(sel.parentAuri, FilterOperation.EQUAL, parentKey);
-    q.addSort(sel.parentAuri, Direction.ASCENDING); // for GAE work-around
-    q.addSort(sel.ordinalNumber, Direction.ASCENDING);
+  /**
+   * Same as {@link #getValueFromEntity(CallingContext)}, but takes the choices
+   * from the prefetch when it holds them.
+   */
+  public void getValueFromEntity(SubmissionPrefetch prefetch, CallingContext cc) throws ODKDatastoreException {
 
-    List<? extends CommonFieldsBase> choiceHits = q.executeQuery();
+    SelectChoice sel = (SelectChoice) element.getFormDataModel().getBackingObjectPrototype();
+    List<? extends CommonFieldsBase> choiceHits = (prefetch == null) ? null
+        : prefetch.getChildRows(sel, parentKey);
+    if (choiceHits == null) {
+      Query q = cc.getDatastore().createQuery(element.getFormDataModel().getBackingObjectPrototype(),
+          "ChoiceSubmissionType.getValueFromEntity", cc.getCurrentUser());
+      q.addFilter(sel.parentAuri, FilterOperation.EQUAL, parentKey);
+      q.addSort(sel.parentAuri, Direction.ASCENDING); // for GAE work-around
+      q.addSort(sel.ordinalNumber, Direction.ASCENDING);
+      choiceHits = q.executeQuery();
+    }
     choices.clear();
     values.clear();
     long expectedOrdinal = 1L;
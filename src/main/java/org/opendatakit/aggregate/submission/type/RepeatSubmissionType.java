@@ -32,6 +32,7 @@ import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.submission.SubmissionElement;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
+import org.opendatakit.aggregate.submission.SubmissionPrefetch;
 import org.opendatakit.aggregate.submission.SubmissionRepeat;
 import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.SubmissionValue;
@@ -134,13 +135,28 @@ public class RepeatSubmissionType implements SubmissionRepeat {
 
   @Override
   public void getValueFromEntity(CallingContext cc) throws ODKDatastoreException {
+    getValueFromEntity(null, cc);
+  }
+
+  /**
+   * Same as {@link #getValueFromEntity(CallingContext)}, but takes the repeat
+   * rows (and everything nested within them) from the prefetch when it holds
+   * them.
+   */
+  @SuppressWarnings("unchecked")
+  public void getValueFromEntity(SubmissionPrefetch prefetch, CallingContext cc) throws ODKDatastoreException {
     DynamicBase submission = (DynamicBase) repeatGroup.getFormDataModel().getBackingObjectPrototype();
 
-    List<CommonFieldsBase> repeatRows = getRepeatRows(cc, submission);
+    List<CommonFieldsBase> repeatRows = (prefetch == null) ? null
+        : (List<CommonFieldsBase>) prefetch.getChildRows(submission, uriAssociatedRow);
+    if (repeatRows == null) {
+      repeatRows = getRepeatRows(cc, submission);
+    }
 
     for (List<DynamicBase> groupOfRepeatRows : groupPerOrdinalNumber(submission, repeatRows)) {
       DynamicBase row = chooseOneFrom(groupOfRepeatRows);
-      SubmissionSet submissionSet = new SubmissionSet(enclosingSet, row, repeatGroup, form, cc);
+      SubmissionSet submissionSet = new SubmissionSet(enclosingSet, row, repeatGroup, form,
+          prefetch, cc);
       submissionSets.add(submissionSet);
       submissionSetIndex.put(row.getOrdinalNumber(), submissionSet);
     }
@@ -15,8 +15,8 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.util.Date;
 import java.util.concurrent.ScheduledFuture;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.springframework.scheduling.TaskScheduler;
 
 /**
@@ -27,16 +27,20 @@ public class AggregrateThreadExecutor {
 
   private static AggregrateThreadExecutor classInstance = null;
   private TaskScheduler exec;
+  private BackgroundTaskExecutor backgroundTaskExecutor;
 
-  private AggregrateThreadExecutor(TaskScheduler taskScheduler) {
+  private AggregrateThreadExecutor(TaskScheduler taskScheduler,
+                                   BackgroundTaskExecutor backgroundTaskExecutor) {
     exec = taskScheduler;
+    this.backgroundTaskExecutor = backgroundTaskExecutor;
   }
 
-  public synchronized static void initialize(TaskScheduler taskScheduler) {
+  public synchronized static void initialize(TaskScheduler taskScheduler,
+                                             BackgroundTaskExecutor backgroundTaskExecutor) {
     if (classInstance != null)
       throw new IllegalStateException("called after having set the task scheduler");
 
-    classInstance = new AggregrateThreadExecutor(taskScheduler);
+    classInstance = new AggregrateThreadExecutor(taskScheduler, backgroundTaskExecutor);
   }
 
   public synchronized static AggregrateThreadExecutor getAggregateThreadExecutor() {
@@ -46,8 +50,21 @@ public class AggregrateThreadExecutor {
     return classInstance;
   }
 
-  public void execute(Runnable task) {
-    exec.schedule(task, new Date(System.currentTimeMillis() + 100));
+  /**
+   * Queue a background job on the pool for its kind of work. The job is
+   * dropped if one with the same key is still waiting to run.
+   *
+   * @param lane    - the pool to run the job on.
+   * @param taskKey - identifies the job (e.g., its kind and the key of the
+   *                record it works on).
+   * @param task    - the job.
+   */
+  public void execute(TaskLane lane, String taskKey, Runnable task) {
+    backgroundTaskExecutor.execute(lane, taskKey, task);
+  }
+
+  public BackgroundTaskExecutor getBackgroundTaskExecutor() {
+    return backgroundTaskExecutor;
   }
 
   /**
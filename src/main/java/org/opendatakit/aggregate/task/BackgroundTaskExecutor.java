@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Runs the background jobs launched by the watchdog on a separate, bounded
+ * thread pool per kind of job, so that a long export cannot hold up
+ * publishing and vice versa.
+ * <p>
+ * A job is identified by a key. A job whose key matches one that is still
+ * waiting in its lane's queue is dropped; the watchdog re-launches stalled
+ * work anyway. Jobs are also dropped (and logged) when a lane's queue is full.
+ *
+ * @see AggregrateThreadExecutor
+ */
+public class BackgroundTaskExecutor implements InitializingBean {
+  private static final Logger logger = LoggerFactory.getLogger(BackgroundTaskExecutor.class);
+
+  public enum TaskLane {
+    /**
+     * Uploads to external services and the creation of their worksheets.
+     */
+    PUBLISHING,
+    /**
+     * CSV, KML and JSON file exports.
+     */
+    EXPORT,
+    /**
+     * Form deletion and submission purges.
+     */
+    MAINTENANCE
+  }
+
+  private int publishingThreads = 3;
+  private int exportThreads = 1;
+  private int maintenanceThreads = 1;
+  private int queueCapacity = 100;
+
+  private final Map<TaskLane, Lane> lanes = new EnumMap<TaskLane, Lane>(TaskLane.class);
+
+  public int getPublishingThreads() {
+    return publishingThreads;
+  }
+
+  public void setPublishingThreads(int publishingThreads) {
+    this.publishingThreads = publishingThreads;
+  }
+
+  public int getExportThreads() {
+    return exportThreads;
+  }
+
+  public void setExportThreads(int exportThreads) {
+    this.exportThreads = exportThreads;
+  }
+
+  public int getMaintenanceThreads() {
+    return maintenanceThreads;
+  }
+
+  public void setMaintenanceThreads(int maintenanceThreads) {
+    this.maintenanceThreads = maintenanceThreads;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (publishingThreads < 1 || exportThreads < 1 || maintenanceThreads < 1)
+      throw new IllegalStateException("every task lane needs at least one thread");
+    if (queueCapacity < 1)
+      throw new IllegalStateException("queueCapacity must be positive");
+    lanes.put(TaskLane.PUBLISHING, new Lane(TaskLane.PUBLISHING, publishingThreads));
+    lanes.put(TaskLane.EXPORT, new Lane(TaskLane.EXPORT, exportThreads));
+    lanes.put(TaskLane.MAINTENANCE, new Lane(TaskLane.MAINTENANCE, maintenanceThreads));
+  }
+
+  /**
+   * Queue the task on the given lane unless a task with the same key is
+   * already waiting there.
+   *
+   * @return true if the task was queued.
+   */
+  public boolean execute(TaskLane lane, String taskKey, Runnable task) {
+    return getLane(lane).submit(taskKey, task);
+  }
+
+  /**
+   * @return a snapshot of the queue depth, activity and wait times of the lane.
+   */
+  public LaneStatistics getStatistics(TaskLane lane) {
+    return getLane(lane).getStatistics();
+  }
+
+  public void destroy() {
+    for (Lane lane : lanes.values()) {
+      lane.executor.shutdownNow();
+    }
+  }
+
+  private Lane getLane(TaskLane lane) {
+    Lane l = lanes.get(lane);
+    if (l == null)
+      throw new IllegalStateException("called before the task lanes were initialized");
+    return l;
+  }
+
+  public static final class LaneStatistics {
+    private final TaskLane lane;
+    private final int queueDepth;
+    private final int activeCount;
+    private final long completedCount;
+    private final long droppedCount;
+    private final long averageWaitMillis;
+    private final long maxWaitMillis;
+
+    LaneStatistics(TaskLane lane, int queueDepth, int activeCount, long completedCount,
+                   long droppedCount, long averageWaitMillis, long maxWaitMillis) {
+      this.lane = lane;
+      this.queueDepth = queueDepth;
+      this.activeCount = activeCount;
+      this.completedCount = completedCount;
+      this.droppedCount = droppedCount;
+      this.averageWaitMillis = averageWaitMillis;
+      this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public TaskLane getLane() {
+      return lane;
+    }
+
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    public int getActiveCount() {
+      return activeCount;
+    }
+
+    public long getCompletedCount() {
+      return completedCount;
+    }
+
+    /**
+     * @return the number of tasks dropped as duplicates or for lack of room.
+     */
+    public long getDroppedCount() {
+      return droppedCount;
+    }
+
+    public long getAverageWaitMillis() {
+      return averageWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+      return lane + ": queued " + queueDepth + ", active " + activeCount + ", completed "
+          + completedCount + ", dropped " + droppedCount + ", wait avg " + averageWaitMillis
+          + " ms max " + maxWaitMillis + " ms";
+    }
+  }
+
+  private final class Lane {
+    final TaskLane lane;
+    final ThreadPoolExecutor executor;
+    /**
+     * keys of the tasks waiting in the queue (not yet running)
+     */
+    final Set<String> queuedKeys = ConcurrentHashMap.newKeySet();
+    final LongAdder startedCount = new LongAdder();
+    final LongAdder totalWaitNanos = new LongAdder();
+    final AtomicLong maxWaitNanos = new AtomicLong();
+    final LongAdder droppedCount = new LongAdder();
+
+    Lane(final TaskLane lane, int threads) {
+      this.lane = lane;
+      ThreadFactory threadFactory = new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "aggregate-" + lane.name().toLowerCase() + "-"
+              + threadNumber.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        }
+      };
+      this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(queueCapacity), threadFactory);
+    }
+
+    boolean submit(final String taskKey, final Runnable task) {
+      if (!queuedKeys.add(taskKey)) {
+        droppedCount.increment();
+        logger.debug("{} task {} is already queued", lane, taskKey);
+        return false;
+      }
+      final long queuedNanos = System.nanoTime();
+      try {
+        executor.execute(() -> {
+          queuedKeys.remove(taskKey);
+          long waitNanos = System.nanoTime() - queuedNanos;
+          startedCount.increment();
+          totalWaitNanos.add(waitNanos);
+          maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+          try {
+            task.run();
+          } catch (Throwable t) {
+            logger.error(lane + " task " + taskKey + " failed", t);
+          }
+        });
+        return true;
+      } catch (RejectedExecutionException e) {
+        queuedKeys.remove(taskKey);
+        droppedCount.increment();
+        logger.warn("{} queue is full; dropped task {}", lane, taskKey);
+        return false;
+      }
+    }
+
+    LaneStatistics getStatistics() {
+      long started = startedCount.sum();
+      long averageWaitNanos = (started == 0) ? 0L : totalWaitNanos.sum() / started;
+      return new LaneStatistics(lane, executor.getQueue().size(), executor.getActiveCount(),
+          executor.getCompletedTaskCount(), droppedCount.sum(),
+          TimeUnit.NANOSECONDS.toMillis(averageWaitNanos),
+          TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+  }
+}
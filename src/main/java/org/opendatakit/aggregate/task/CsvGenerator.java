@@ -19,12 +19,14 @@ package org.opendatakit.aggregate.task;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.web.CallingContext;
 
 public class CsvGenerator {
   public void createCsvTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     CsvWorkerImpl worker = new CsvWorkerImpl(form, persistentResultsKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::generateCsv);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.EXPORT, "csv:" + persistentResultsKey,
+        worker::generateCsv);
   }
 }
@@ -15,11 +15,9 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Date;
-import java.util.List;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.constants.ServletConsts;
 import org.opendatakit.aggregate.constants.common.ExportStatus;
@@ -32,8 +30,8 @@ import org.opendatakit.aggregate.format.table.CsvFormatterWithFilters;
 import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.SpillFile;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 import org.slf4j.Logger;
@@ -68,9 +66,12 @@ public class CsvWorkerImpl {
     logger.info("Beginning CSV generation: " + persistentResultsKey.toString() +
         " form " + form.getFormId());
 
+    SpillFile spillFile = null;
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
+      // written to disk as it is generated; never held in memory in full
+      spillFile = new SpillFile("csv");
+      // closed, if the export fails, when the spill file is deleted
+      PrintWriter pw = spillFile.openWriter();
 
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
@@ -96,29 +97,20 @@ public class CsvWorkerImpl {
       formatter = new CsvFormatterWithFilters(form, cc.getServerURL(), pw, filterGroup);
 
       logger.info("after setup of CSV file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (; ; ) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if (submissions.isEmpty()) break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting csv for " + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
-      }
-      logger.info("wrapping up csv generation for " + form.getFormId());
-      formatter.afterProcessSubmissions(cc);
+      // fetch the next page while formatting this one
+      new ExportPipeline("CSV", form, cc).run(query, formatter);
 
       // output file
       pw.close();
-      byte[] outputFile = stream.toByteArray();
+      if (pw.checkError()) {
+        throw new IOException("Unable to write csv file for " + form.getFormId());
+      }
 
       // refetch because this might have taken a while...
       r = new PersistentResults(persistentResultsKey, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("saving csv into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_CSV,
+        r.setResultFile(spillFile, HtmlConsts.RESP_TYPE_CSV,
             form.getViewableFormNameSuitableAsFileName() + ServletConsts.CSV_FILENAME_APPEND, false, cc);
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
@@ -131,6 +123,10 @@ public class CsvWorkerImpl {
       }
     } catch (Exception e) {
       failureRecovery(e);
+    } finally {
+      if (spillFile != null) {
+        spillFile.delete();
+      }
     }
   }
 
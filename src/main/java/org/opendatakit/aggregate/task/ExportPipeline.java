@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.RowSubmissionFormatter;
+import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.query.submission.QueryBase;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the fetch and format stages of an export concurrently. A fetch thread
+ * queries and hydrates pages of submissions into a bounded queue while the
+ * calling thread formats the previous page; the queue bound provides the
+ * backpressure that keeps a slow formatter from accumulating pages in memory.
+ * <p>
+ * If the formatter is a {@link RowSubmissionFormatter}, the submissions of a
+ * page are also formatted on several threads and written out in order.
+ * <p>
+ * The time spent in each stage, and blocked on the other stage, is logged
+ * when the export finishes.
+ */
+class ExportPipeline {
+
+  /**
+   * Pages fetched ahead of the formatter.
+   */
+  private static final int PAGES_IN_FLIGHT = 2;
+
+  private static final Logger logger = LoggerFactory.getLogger(ExportPipeline.class);
+
+  private final String exportType;
+  private final IForm form;
+  private final CallingContext cc;
+  private final int formatThreads;
+
+  ExportPipeline(String exportType, IForm form, CallingContext cc) {
+    this(exportType, form, cc, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+  }
+
+  ExportPipeline(String exportType, IForm form, CallingContext cc, int formatThreads) {
+    this.exportType = exportType;
+    this.form = form;
+    this.cc = cc;
+    this.formatThreads = formatThreads;
+  }
+
+  /**
+   * Format every submission of the query. Any failure of either stage is
+   * thrown from here, after the other stage has been stopped.
+   */
+  void run(QueryBase query, SubmissionFormatter formatter) throws Exception {
+    BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(PAGES_IN_FLIGHT);
+    Fetcher fetcher = new Fetcher(query, pages);
+    Thread fetchThread = new Thread(fetcher, exportType + " export fetch " + form.getFormId());
+    fetchThread.setDaemon(true);
+
+    ExecutorService formatPool = null;
+    if (formatter instanceof RowSubmissionFormatter && formatThreads > 1) {
+      formatPool = Executors.newFixedThreadPool(formatThreads);
+    }
+
+    long startNanos = System.nanoTime();
+    long formatNanos = 0L;
+    long formatWaitNanos = 0L;
+    int pageCount = 0;
+    int submissionCount = 0;
+    boolean completed = false;
+    try {
+      formatter.beforeProcessSubmissions(cc);
+      fetchThread.start();
+      for (; ; ) {
+        long waitStart = System.nanoTime();
+        Page page = pages.take();
+        formatWaitNanos += System.nanoTime() - waitStart;
+        if (page.failure != null) {
+          throw page.failure;
+        }
+        if (page.submissions == null) {
+          break;
+        }
+        long formatStart = System.nanoTime();
+        if (formatPool != null) {
+          formatInParallel((RowSubmissionFormatter) formatter, page.submissions, formatPool);
+        } else {
+          formatter.processSubmissionSegment(page.submissions, cc);
+        }
+        formatNanos += System.nanoTime() - formatStart;
+        pageCount++;
+        submissionCount += page.submissions.size();
+        logger.info("page " + pageCount + " of " + exportType + " export formatted for "
+            + form.getFormId());
+      }
+      formatter.afterProcessSubmissions(cc);
+      completed = true;
+    } finally {
+      fetchThread.interrupt();
+      if (formatPool != null) {
+        formatPool.shutdownNow();
+      }
+      logger.info(exportType + " export of " + form.getFormId()
+          + (completed ? "" : " (abandoned)") + ": "
+          + submissionCount + " submissions in " + pageCount + " pages, "
+          + millis(System.nanoTime() - startNanos) + " ms total; fetch "
+          + millis(fetcher.fetchNanos) + " ms (blocked on format "
+          + millis(fetcher.fetchWaitNanos) + " ms); format "
+          + millis(formatNanos) + " ms (waiting on fetch "
+          + millis(formatWaitNanos) + " ms)");
+    }
+  }
+
+  private void formatInParallel(final RowSubmissionFormatter formatter,
+                                List<Submission> submissions, ExecutorService formatPool) throws Exception {
+    int slices = Math.min(formatThreads, submissions.size());
+    List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(slices);
+    for (int i = 0; i < slices; ++i) {
+      final List<Submission> slice = submissions.subList(
+          i * submissions.size() / slices, (i + 1) * submissions.size() / slices);
+      results.add(formatPool.submit(() -> {
+        List<String> formatted = new ArrayList<String>(slice.size());
+        for (Submission sub : slice) {
+          formatted.add(formatter.formatSubmission(sub, cc));
+        }
+        return formatted;
+      }));
+    }
+    for (Future<List<String>> result : results) {
+      List<String> formatted;
+      try {
+        formatted = result.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+      for (String s : formatted) {
+        formatter.appendFormattedSubmission(s);
+      }
+    }
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * A page of submissions, the end of the query (null submissions), or the
+   * failure that ended the fetch stage.
+   */
+  private static final class Page {
+    final List<Submission> submissions;
+    final Exception failure;
+
+    Page(List<Submission> submissions, Exception failure) {
+      this.submissions = submissions;
+      this.failure = failure;
+    }
+  }
+
+  private final class Fetcher implements Runnable {
+    private final QueryBase query;
+    private final BlockingQueue<Page> pages;
+    // written by the fetch thread only
+    volatile long fetchNanos = 0L;
+    volatile long fetchWaitNanos = 0L;
+
+    Fetcher(QueryBase query, BlockingQueue<Page> pages) {
+      this.query = query;
+      this.pages = pages;
+    }
+
+    @Override
+    public void run() {
+      try {
+        int count = 0;
+        for (; ; ) {
+          count++;
+          long fetchStart = System.nanoTime();
+          List<Submission> submissions = query.getResultSubmissions(cc);
+          fetchNanos += System.nanoTime() - fetchStart;
+          logger.info("page " + count + " of " + exportType + " export fetched for "
+              + form.getFormId());
+          long waitStart = System.nanoTime();
+          pages.put(new Page(submissions.isEmpty() ? null : submissions, null));
+          fetchWaitNanos += System.nanoTime() - waitStart;
+          if (submissions.isEmpty()) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // the format stage has finished or failed
+      } catch (Throwable t) {
+        try {
+          pages.put(new Page(null, (t instanceof Exception) ? (Exception) t
+              : new ExecutionException(t)));
+        } catch (InterruptedException e) {
+          // the format stage has finished or failed
+        }
+      }
+    }
+  }
+}
@@ -19,6 +19,7 @@ package org.opendatakit.aggregate.task;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 import org.slf4j.Logger;
@@ -30,7 +31,7 @@ public class FormDelete {
   public void createFormDeleteTask(IForm form, SubmissionKey miscTasksKey, long attemptCount, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     FormDeleteWorkerImpl worker = new FormDeleteWorkerImpl(form, miscTasksKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.MAINTENANCE, "formDelete:" + miscTasksKey, () -> {
       try {
         worker.deleteForm();
       } catch (ODKDatastoreException e) {
@@ -15,13 +15,14 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import org.opendatakit.aggregate.constants.TaskLockType;
 import org.opendatakit.aggregate.constants.common.FormActionStatus;
-import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.externalservice.ExternalService;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
@@ -30,14 +31,11 @@ import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.MiscTasks.TaskType;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.process.DeleteSubmissions;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.util.ThumbnailTable;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.PersistConsts;
-import org.opendatakit.common.persistence.Query;
-import org.opendatakit.common.persistence.QueryResult;
-import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -56,8 +54,6 @@ import org.slf4j.LoggerFactory;
  */
 public class FormDeleteWorkerImpl {
 
-  public static final int FORM_DELETE_RECORD_QUERY_LIMIT = 50;
-
   private final IForm form;
   private final SubmissionKey miscTasksKey;
   private final CallingContext cc;
@@ -275,64 +271,82 @@ public class FormDeleteWorkerImpl {
     t.persist(cc);
   }
 
-  private boolean doDeletion(MiscTasks t) throws ODKFormNotFoundException, ODKDatastoreException {
-
-    if (!deleteMiscTasks(t))
-      return false;
-
-    deletePersistentResultTasks();
+  /**
+   * Collects the tables holding the data of the given element and its
+   * descendants: the group and repeat tables, the select choice tables, and
+   * the binary content and blob tables of the binary fields.
+   */
+  private static void collectBackingTables(FormDataModel m, Map<String, CommonFieldsBase> tables) {
+    CommonFieldsBase relation = m.getBackingObjectPrototype();
+    if (relation != null) {
+      tables.put(relation.getSchemaName() + "." + relation.getTableName(), relation);
+    }
+    for (FormDataModel child : m.getChildren()) {
+      collectBackingTables(child, tables);
+    }
+  }
 
-    if (!deleteExternalServiceTasks())
-      return false;
+  /**
+   * Drops the tables holding the submissions of the form, renewing the task
+   * lock after each one. Tables dropped by an earlier attempt are skipped.
+   *
+   * @throws ODKDatastoreException if a table could not be dropped; the form
+   *                               definition still describes every table
+   *                               left, so the task can be retried.
+   * @throws ODKTaskLockException  if the task lock was lost.
+   */
+  void dropBackingTables(MiscTasks t) throws ODKDatastoreException, ODKTaskLockException {
+    // it is possible to have a FormInfo entry without any information
+    // on the backing object (no records in FormDataModel).
+    if (!form.hasValidFormDefinition()) {
+      return;
+    }
+    Map<String, CommonFieldsBase> tables = new LinkedHashMap<String, CommonFieldsBase>();
+    collectBackingTables(form.getTopLevelGroupElement().getFormDataModel(), tables);
 
-    CommonFieldsBase relation = null;
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
+    for (CommonFieldsBase relation : tables.values()) {
+      if (ds.hasRelation(relation.getSchemaName(), relation.getTableName(), user)) {
+        ds.dropRelation(relation, user);
+      }
 
-    // it is possible to have a FormInfo entry without any information
-    // on the backing object (no records in FormDataModel). In that
-    // case, the formDefinition will be null, causing getTLGE() to throw
-    // an exception.
-    try {
-      relation = form.getTopLevelGroupElement().getFormDataModel().getBackingObjectPrototype();
-    } catch (Exception e) {
-      relation = null;
+      t.setLastActivityDate(new Date());
+      t.persist(cc);
+      // renew lock
+      TaskLock taskLock = ds.createTaskLock(user);
+      if (!taskLock.renewLock(pFormIdLockId, t.getMiscTaskLockName(),
+          t.getTaskType().getLockType())) {
+        throw new ODKTaskLockException("Lost the lock on " + t.getMiscTaskLockName());
+      }
     }
+  }
 
-    if (relation != null) {
-      QueryResumePoint startCursor = null;
-      for (; ; ) {
-        // retrieve submissions
-        Query surveyQuery = ds.createQuery(relation, "FormDeleteWorkerImpl.doDeletion", user);
-        surveyQuery.addSort(relation.lastUpdateDate, Query.Direction.DESCENDING);
-        surveyQuery.addSort(relation.primaryKey, Query.Direction.DESCENDING);
-
-        QueryResult result = surveyQuery.executeQuery(startCursor, FORM_DELETE_RECORD_QUERY_LIMIT);
-        startCursor = result.getResumeCursor();
-
-        if (result.getResultList().size() == 0)
-          break;
-
-        List<SubmissionKey> keys = new ArrayList<SubmissionKey>();
-        String topLevelGroupName = form.getTopLevelGroupElement().getElementName();
-        for (CommonFieldsBase en : result.getResultList()) {
-          TopLevelDynamicBase tl = (TopLevelDynamicBase) en;
-          keys.add(new SubmissionKey(form.getFormId(), topLevelGroupName, tl.getUri()));
-        }
-        DeleteSubmissions delete;
-        delete = new DeleteSubmissions(keys);
-        delete.deleteSubmissions(cc);
+  /**
+   * Deletes the thumbnails of the form's attachments, then drops the tables
+   * holding its submissions.
+   */
+  void deleteSubmissions(MiscTasks t) throws ODKDatastoreException, ODKTaskLockException {
+    ThumbnailTable.deleteFormThumbnails(form, cc);
+    dropBackingTables(t);
+  }
 
-        t.setLastActivityDate(new Date());
-        t.persist(cc);
-        // renew lock
+  private boolean doDeletion(MiscTasks t) throws ODKFormNotFoundException, ODKDatastoreException,
+      ODKTaskLockException {
 
-        TaskLock taskLock = ds.createTaskLock(user);
-        // TODO: figure out what to do if this returns false
-        taskLock.renewLock(pFormIdLockId, t.getMiscTaskLockName(), t.getTaskType().getLockType());
-        taskLock = null;
-      }
-    }
+    if (!deleteMiscTasks(t))
+      return false;
+
+    deletePersistentResultTasks();
+
+    if (!deleteExternalServiceTasks())
+      return false;
+
+    // The publishers and exports of the form are gone, so nothing else
+    // reads its submissions. Rather than deleting the submissions one at a
+    // time, drop their tables, before the form definition describing them
+    // is deleted; only the thumbnails of their attachments live elsewhere.
+    deleteSubmissions(t);
 
     // we are avoiding strong locking, so some services might
     // have been set up during the deletion. Delete them.
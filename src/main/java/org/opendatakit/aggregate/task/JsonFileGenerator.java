@@ -20,12 +20,14 @@ package org.opendatakit.aggregate.task;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.web.CallingContext;
 
 public class JsonFileGenerator {
   public void createJsonFileTask(IForm form, SubmissionKey persistentResultsKey, long attemptCount, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     JsonFileWorkerImpl worker = new JsonFileWorkerImpl(form, persistentResultsKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::generateJsonFile);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.EXPORT, "json:" + persistentResultsKey,
+        worker::generateJsonFile);
   }
 }
@@ -27,6 +27,7 @@ import org.opendatakit.aggregate.client.form.KmlSelection;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 
@@ -35,7 +36,8 @@ public class KmlGenerator {
   public void createKmlTask(IForm form, PersistentResults persistentResults, long attemptCount, CallingContext cc) throws ODKDatastoreException {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     KmlWorkerImpl worker = new KmlWorkerImpl(form, persistentResults.getSubmissionKey(), attemptCount, getKmlElementsToInclude(persistentResults), wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::generateKml);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.EXPORT,
+        "kml:" + persistentResults.getSubmissionKey(), worker::generateKml);
   }
 
   private static List<KmlSelection> getKmlElementsToInclude(PersistentResults persistentResults) throws ODKDatastoreException {
@@ -15,8 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
@@ -33,8 +32,8 @@ import org.opendatakit.aggregate.format.structure.KmlFormatterWithFilters;
 import org.opendatakit.aggregate.query.submission.QueryBase;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.SpillFile;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 import org.slf4j.Logger;
@@ -68,9 +67,12 @@ public class KmlWorkerImpl {
     logger.info("Beginning KML generation: " + persistentResultsKey.toString() + " form "
         + form.getFormId());
 
+    SpillFile spillFile = null;
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
+      // written to disk as it is generated; never held in memory in full
+      spillFile = new SpillFile("kml");
+      // closed, if the export fails, when the spill file is deleted
+      PrintWriter pw = spillFile.openWriter();
 
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
@@ -98,32 +100,20 @@ public class KmlWorkerImpl {
           filterGroup, cc);
 
       logger.info("after setup of KML file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (; ; ) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for "
-            + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if (submissions.isEmpty())
-          break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting kml for "
-            + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
-      }
-      logger.info("wrapping up kml generation for " + form.getFormId());
-      formatter.afterProcessSubmissions(cc);
+      // fetch the next page while formatting this one
+      new ExportPipeline("KML", form, cc).run(query, formatter);
 
       // output file
       pw.close();
-      byte[] outputFile = stream.toByteArray();
+      if (pw.checkError()) {
+        throw new IOException("Unable to write kml file for " + form.getFormId());
+      }
 
       // refetch because this might have taken a while...
       r = new PersistentResults(persistentResultsKey, cc);
       if (attemptCount.equals(r.getAttemptCount())) {
         logger.info("saving kml into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_KML,
+        r.setResultFile(spillFile, HtmlConsts.RESP_TYPE_KML,
             form.getViewableFormNameSuitableAsFileName() + ServletConsts.KML_FILENAME_APPEND,
             false, cc);
         r.setStatus(ExportStatus.AVAILABLE);
@@ -138,6 +128,10 @@ public class KmlWorkerImpl {
       }
     } catch (Exception e) {
       failureRecovery(e);
+    } finally {
+      if (spillFile != null) {
+        spillFile.delete();
+      }
     }
   }
 
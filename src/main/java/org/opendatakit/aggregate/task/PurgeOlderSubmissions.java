@@ -32,11 +32,16 @@ import java.util.Optional;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.web.CallingContext;
 
 public class PurgeOlderSubmissions {
 
   public static final String PURGE_DATE = "purgeBefore";
+  /**
+   * Request parameter recording the number of submissions purged so far.
+   */
+  public static final String PURGED_COUNT = "purgedCount";
   private static final DateTimeFormatter PURGE_DATE_TIME_FORMAT = new DateTimeFormatterBuilder()
       .parseCaseInsensitive()
       .append(ISO_LOCAL_DATE)
@@ -49,6 +54,34 @@ public class PurgeOlderSubmissions {
       .toFormatter();
   private static final ZoneOffset SYSTEM_OFFSET = OffsetDateTime.now().getOffset();
 
+  private boolean setBasedPurge = true;
+  private int purgeBatchSize = 500;
+
+  /**
+   * @return true if submissions are purged with set-based DELETE statements
+   *     against each backing table, rather than one submission at a time.
+   */
+  public boolean isSetBasedPurge() {
+    return setBasedPurge;
+  }
+
+  public void setSetBasedPurge(boolean setBasedPurge) {
+    this.setBasedPurge = setBasedPurge;
+  }
+
+  /**
+   * @return the number of submissions a set-based purge deletes per
+   *     transaction.
+   */
+  public int getPurgeBatchSize() {
+    return purgeBatchSize;
+  }
+
+  public void setPurgeBatchSize(int purgeBatchSize) {
+    if (purgeBatchSize < 1)
+      throw new IllegalArgumentException("purgeBatchSize must be positive");
+    this.purgeBatchSize = purgeBatchSize;
+  }
 
   public static String formatPurgeDate(Date value) {
     return Optional.ofNullable(value)
@@ -64,7 +97,9 @@ public class PurgeOlderSubmissions {
 
   public final void createPurgeOlderSubmissionsTask(IForm form, SubmissionKey miscTasksKey, long attemptCount, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
-    PurgeOlderSubmissionsWorkerImpl worker = new PurgeOlderSubmissionsWorkerImpl(form, miscTasksKey, attemptCount, wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::purgeOlderSubmissions);
+    PurgeOlderSubmissionsWorkerImpl worker = new PurgeOlderSubmissionsWorkerImpl(form, miscTasksKey, attemptCount,
+        setBasedPurge ? purgeBatchSize : 0, wd.getCallingContext());
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.MAINTENANCE,
+        "purge:" + miscTasksKey, worker::purgeOlderSubmissions);
   }
 }
@@ -20,13 +20,17 @@ import static org.opendatakit.aggregate.task.PurgeOlderSubmissions.*;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.constants.TaskLockType;
 import org.opendatakit.aggregate.constants.common.FormActionStatus;
 import org.opendatakit.aggregate.constants.common.UIConsts;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
@@ -34,8 +38,15 @@ import org.opendatakit.aggregate.process.DeleteSubmissions;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.util.ThumbnailTable;
+import org.opendatakit.common.datamodel.BinaryContent;
+import org.opendatakit.common.datamodel.DynamicAssociationBase;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.datamodel.DynamicDocumentBase;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -59,10 +70,15 @@ public class PurgeOlderSubmissionsWorkerImpl {
   private final SubmissionKey miscTasksKey;
   private final CallingContext cc;
   private final String pFormIdLockId;
+  /**
+   * submissions per set-based purge batch, or 0 to purge one at a time.
+   */
+  private final int purgeBatchSize;
 
-  public PurgeOlderSubmissionsWorkerImpl(IForm form, SubmissionKey miscTasksKey, long attemptCount, CallingContext cc) {
+  public PurgeOlderSubmissionsWorkerImpl(IForm form, SubmissionKey miscTasksKey, long attemptCount, int purgeBatchSize, CallingContext cc) {
     this.form = form;
     this.miscTasksKey = miscTasksKey;
+    this.purgeBatchSize = purgeBatchSize;
     this.cc = cc;
     pFormIdLockId = UUID.randomUUID().toString();
   }
@@ -129,7 +145,7 @@ public class PurgeOlderSubmissionsWorkerImpl {
     }
   }
 
-  private List<TopLevelDynamicBase> querySubmissionsDateRange(Date startDate, Date endDate) throws ODKDatastoreException {
+  private List<String> querySubmissionsDateRange(Date startDate, Date endDate) throws ODKDatastoreException {
 
     // fetch completed submissions, ascending.  Stop before the endDate.
     FilterGroup filterGroup = new FilterGroup(UIConsts.FILTER_NONE, form.getFormId(), null);
@@ -138,8 +154,8 @@ public class PurgeOlderSubmissionsWorkerImpl {
         CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
     query.addFilterByPrimaryDate(FilterOperation.LESS_THAN, endDate);
 
-    // fetch the top-level entities for the submissions
-    return query.getTopLevelSubmissionObjects(cc);
+    // fetch the URIs of the submissions
+    return query.getTopLevelSubmissionUris(cc);
   }
 
   private void doMarkAsComplete(MiscTasks t) throws ODKEntityPersistException, ODKOverQuotaException {
@@ -154,6 +170,96 @@ public class PurgeOlderSubmissionsWorkerImpl {
     t.persist(cc);
   }
 
+  /**
+   * Collects the tables holding the data of the given element and its
+   * descendants, other than the already collected ones, along with their
+   * column referring to the top-level row.
+   */
+  private static void collectDependentTables(FormDataModel m, Set<String> tableNames,
+                                             Map<CommonFieldsBase, DataField> dependents) {
+    CommonFieldsBase b = m.getBackingObjectPrototype();
+    if (b != null && tableNames.add(b.getSchemaName() + "." + b.getTableName())) {
+      DataField topLevelAuri;
+      if (b instanceof DynamicBase) {
+        topLevelAuri = ((DynamicBase) b).topLevelAuri;
+      } else if (b instanceof DynamicAssociationBase) {
+        topLevelAuri = ((DynamicAssociationBase) b).topLevelAuri;
+      } else if (b instanceof DynamicDocumentBase) {
+        topLevelAuri = ((DynamicDocumentBase) b).topLevelAuri;
+      } else {
+        throw new IllegalStateException("unexpected backing table type for "
+            + b.getSchemaName() + "." + b.getTableName());
+      }
+      dependents.put(b, topLevelAuri);
+    }
+    for (FormDataModel child : m.getChildren()) {
+      collectDependentTables(child, tableNames, dependents);
+    }
+  }
+
+  /**
+   * Deletes the submissions straight from the backing tables, a batch at a
+   * time: the rows of every table are picked out by their top-level row, so
+   * no submission is read. Progress is recorded in the task after each batch.
+   *
+   * @throws ODKTaskLockException if the task lock was lost; the task is left
+   *                              incomplete, to be resumed by a later attempt.
+   */
+  void purgeSetBased(MiscTasks t, TopLevelDynamicBase tbl, Date purgeBeforeDate)
+      throws ODKDatastoreException, ODKTaskLockException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    Logger logger = LoggerFactory.getLogger(PurgeOlderSubmissionsWorkerImpl.class);
+
+    Set<String> tableNames = new HashSet<String>();
+    tableNames.add(tbl.getSchemaName() + "." + tbl.getTableName());
+    Map<CommonFieldsBase, DataField> dependents = new LinkedHashMap<CommonFieldsBase, DataField>();
+    collectDependentTables(form.getTopLevelGroupElement().getFormDataModel(), tableNames,
+        dependents);
+
+    boolean hasAttachments = false;
+    for (CommonFieldsBase b : dependents.keySet()) {
+      hasAttachments |= (b instanceof BinaryContent);
+    }
+
+    // the completed submissions older than the purge date, oldest first
+    Query query = ds.createQuery(tbl, "PurgeOlderSubmissionsWorkerImpl.purgeSetBased", user);
+    query.addSort(tbl.markedAsCompleteDate, Query.Direction.ASCENDING);
+    query.addFilter(tbl.markedAsCompleteDate, FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
+    query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+    query.addFilter(tbl.markedAsCompleteDate, FilterOperation.LESS_THAN, purgeBeforeDate);
+
+    Map<String, String> rp = t.getRequestParameters();
+    String purgedCountString = rp.get(PURGED_COUNT);
+    long purgedCount = (purgedCountString == null) ? 0L : Long.parseLong(purgedCountString);
+    for (; ; ) {
+      if (hasAttachments) {
+        // the thumbnails of the attachments about to be deleted: the keys
+        // are picked out exactly as by the delete below
+        List<String> batchUris = query.executeKeysOnly(purgeBatchSize);
+        ThumbnailTable.deleteSubmissionThumbnails(form, batchUris, cc);
+      }
+      int deleted = query.executeDelete(dependents, purgeBatchSize);
+      purgedCount += deleted;
+      logger.info("successfully deleted " + deleted + " submissions (" + purgedCount
+          + " in total)");
+
+      rp.put(PURGED_COUNT, Long.toString(purgedCount));
+      t.setRequestParameters(rp);
+      t.setLastActivityDate(new Date());
+      t.persist(cc);
+      if (deleted < purgeBatchSize)
+        break;
+
+      // renew lock
+      TaskLock taskLock = ds.createTaskLock(user);
+      if (!taskLock.renewLock(pFormIdLockId, t.getMiscTaskLockName(),
+          t.getTaskType().getLockType())) {
+        throw new ODKTaskLockException("Lost the lock on " + t.getMiscTaskLockName());
+      }
+    }
+  }
+
   private boolean doPurgeOlderSubmissions(MiscTasks t) throws Exception {
 
     CommonFieldsBase relation = null;
@@ -179,28 +285,30 @@ public class PurgeOlderSubmissionsWorkerImpl {
       relation = null;
     }
 
-    if (relation != null) {
+    if (relation != null && purgeBatchSize > 0) {
+      purgeSetBased(t, (TopLevelDynamicBase) relation, purgeBeforeDate);
+    } else if (relation != null) {
 
       for (; ; ) {
         // retrieve submissions
         // for large data sets, this might fail?
         Date startDate = BasicConsts.EPOCH;
-        List<TopLevelDynamicBase> topLevelEntities = querySubmissionsDateRange(startDate, purgeBeforeDate);
+        List<String> topLevelUris = querySubmissionsDateRange(startDate, purgeBeforeDate);
 
-        logger.info("retrieved " + topLevelEntities.size() + " submissions.");
-        if (topLevelEntities.size() == 0)
+        logger.info("retrieved " + topLevelUris.size() + " submissions.");
+        if (topLevelUris.size() == 0)
           break;
 
         List<SubmissionKey> keys = new ArrayList<SubmissionKey>();
-        for (TopLevelDynamicBase tld : topLevelEntities) {
-          keys.add(new SubmissionKey(form.getFormId(), form.getTopLevelGroupElement().getElementName(), tld.getEntityKey().getKey()));
+        for (String uri : topLevelUris) {
+          keys.add(new SubmissionKey(form.getFormId(), form.getTopLevelGroupElement().getElementName(), uri));
         }
 
         DeleteSubmissions delete;
         delete = new DeleteSubmissions(keys);
         delete.deleteSubmissions(cc);
 
-        logger.info("successfully deleted " + topLevelEntities.size() + " submissions");
+        logger.info("successfully deleted " + topLevelUris.size() + " submissions");
         t.setLastActivityDate(new Date());
         t.persist(cc);
         // renew lock
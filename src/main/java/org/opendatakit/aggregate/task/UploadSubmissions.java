@@ -19,6 +19,8 @@ package org.opendatakit.aggregate.task;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.externalservice.JsonServer.BatchFormat;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.web.CallingContext;
 import org.slf4j.Logger;
@@ -27,10 +29,35 @@ import org.slf4j.LoggerFactory;
 public class UploadSubmissions {
   private static final Logger logger = LoggerFactory.getLogger(UploadSubmissions.class);
 
+  private int jsonBatchSize = 1;
+  private BatchFormat jsonBatchFormat = BatchFormat.ARRAY;
+
+  /**
+   * @return the maximum number of submissions a JSON server publisher sends
+   *     in one POST. 1 (the default) keeps the one-record-per-POST protocol.
+   */
+  public int getJsonBatchSize() {
+    return jsonBatchSize;
+  }
+
+  public void setJsonBatchSize(int jsonBatchSize) {
+    if (jsonBatchSize < 1)
+      throw new IllegalArgumentException("jsonBatchSize must be positive");
+    this.jsonBatchSize = jsonBatchSize;
+  }
+
+  public BatchFormat getJsonBatchFormat() {
+    return jsonBatchFormat;
+  }
+
+  public void setJsonBatchFormat(BatchFormat jsonBatchFormat) {
+    this.jsonBatchFormat = jsonBatchFormat;
+  }
+
   public void createFormUploadTask(FormServiceCursor fsc, CallingContext cc) {
     Watchdog wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
     UploadSubmissionsWorkerImpl worker = new UploadSubmissionsWorkerImpl(fsc, wd.getFasterWatchdogCycleEnabled(), wd.getCallingContext());
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(() -> {
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.PUBLISHING, "upload:" + fsc.getUri(), () -> {
       try {
         worker.uploadAllSubmissions();
       } catch (ODKEntityNotFoundException | ODKExternalServiceException e) {
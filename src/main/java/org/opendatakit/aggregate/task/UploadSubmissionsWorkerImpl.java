@@ -18,6 +18,7 @@ package org.opendatakit.aggregate.task;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import org.apache.http.pool.PoolStats;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.TaskLockType;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
@@ -40,6 +41,7 @@ import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.utils.HttpClientFactory;
 import org.opendatakit.common.web.constants.BasicConsts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -200,6 +202,13 @@ public class UploadSubmissionsWorkerImpl {
       }
     }
 
+    if (logger.isDebugEnabled()) {
+      HttpClientFactory factory = (HttpClientFactory) cc.getBean(BeanDefs.HTTP_CLIENT_FACTORY);
+      PoolStats poolStats = factory.getPoolStats();
+      if (poolStats != null) {
+        logger.debug("Shared http connection pool after UPLOAD service: " + poolStats);
+      }
+    }
 
     if (reQueue) {
       // create another task to continue upload
@@ -269,7 +278,10 @@ public class UploadSubmissionsWorkerImpl {
     try {
       // check if publisher is capable of batching transmission
       if (externalService.canBatchSubmissions()) {
+        // the publisher advances and persists formServiceCursor
+        // after each batch that it sends
         externalService.sendSubmissions(submissionsToSend, streaming, cc);
+        renewTaskLock(submissionsToSend.size());
 
       } else { // publisher not capable of batching
         int counter = 0;
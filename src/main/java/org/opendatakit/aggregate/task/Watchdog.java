@@ -21,6 +21,7 @@ import java.util.concurrent.ScheduledFuture;
 import javax.servlet.ServletContext;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.aggregate.util.BackendActionsTable;
 import org.opendatakit.aggregate.util.ImageUtil;
 import org.opendatakit.common.persistence.Datastore;
@@ -64,6 +65,7 @@ public class Watchdog implements SmartLifecycle, InitializingBean,
 
   boolean isStarted = false;
   TaskScheduler taskScheduler = null;
+  BackgroundTaskExecutor backgroundTaskExecutor = null;
   Datastore datastore = null;
   UserService userService = null;
   UploadSubmissions uploadSubmissions = null;
@@ -186,6 +188,14 @@ public class Watchdog implements SmartLifecycle, InitializingBean,
     this.taskScheduler = taskScheduler;
   }
 
+  public BackgroundTaskExecutor getBackgroundTaskExecutor() {
+    return backgroundTaskExecutor;
+  }
+
+  public void setBackgroundTaskExecutor(BackgroundTaskExecutor backgroundTaskExecutor) {
+    this.backgroundTaskExecutor = backgroundTaskExecutor;
+  }
+
   public Datastore getDatastore() {
     return datastore;
   }
@@ -275,6 +285,12 @@ public class Watchdog implements SmartLifecycle, InitializingBean,
     logger.trace("afterPropertiesSet()");
     if (taskScheduler == null)
       throw new IllegalStateException("no task scheduler specified");
+    if (backgroundTaskExecutor == null) {
+      // settings files written before the task lanes existed don't define one
+      logger.warn("no background task executor specified; using the default lane sizes");
+      backgroundTaskExecutor = new BackgroundTaskExecutor();
+      backgroundTaskExecutor.afterPropertiesSet();
+    }
     if (datastore == null)
       throw new IllegalStateException("no datastore specified");
     if (userService == null)
@@ -297,7 +313,7 @@ public class Watchdog implements SmartLifecycle, InitializingBean,
       throw new IllegalStateException("no httpClientFactory specified");
     if (imageUtil == null)
       throw new IllegalStateException("no imageUtil specified");
-    AggregrateThreadExecutor.initialize(taskScheduler);
+    AggregrateThreadExecutor.initialize(taskScheduler, backgroundTaskExecutor);
   }
 
   @Override
@@ -350,6 +366,13 @@ public class Watchdog implements SmartLifecycle, InitializingBean,
       try {
         logger.debug("Running watchdog task in Tomcat");
         impl.checkTasks(cc);
+        if (logger.isDebugEnabled()) {
+          BackgroundTaskExecutor tasks = AggregrateThreadExecutor.getAggregateThreadExecutor()
+              .getBackgroundTaskExecutor();
+          for (TaskLane lane : TaskLane.values()) {
+            logger.debug("Background tasks {}", tasks.getStatistics(lane));
+          }
+        }
       } catch (Exception e) {
         logger.error("Exception: {}", e.getMessage());
         e.printStackTrace();
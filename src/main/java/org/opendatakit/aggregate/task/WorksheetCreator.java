@@ -25,6 +25,7 @@ import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.MiscTasks;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 
@@ -49,7 +50,8 @@ public class WorksheetCreator {
         publicationOption,
         wd.getCallingContext()
     );
-    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(worker::worksheetCreator);
+    AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskLane.PUBLISHING,
+        "worksheet:" + miscTasks.getSubmissionKey(), worker::worksheetCreator);
   }
 
 }
@@ -16,31 +16,112 @@
 
 package org.opendatakit.aggregate.util;
 
-import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ImageUtil {
 
+  /**
+   * Number of thumbnails held in memory. Thumbnails are a few KB each.
+   */
+  private static final int THUMBNAIL_CACHE_SIZE = 1000;
+  private static final Logger logger = LoggerFactory.getLogger(ImageUtil.class);
+
+  /**
+   * LRU front for {@link ThumbnailTable}, keyed the same way.
+   */
+  private final Map<String, byte[]> thumbnailCache = Collections.synchronizedMap(
+      new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+          return size() > THUMBNAIL_CACHE_SIZE;
+        }
+      });
+
+  /**
+   * Source of the full-size image, only consulted on a thumbnail cache miss.
+   */
+  public interface ImageSource {
+    byte[] getImage() throws ODKDatastoreException;
+  }
+
+  /**
+   * Return the thumbnail for the image with the given content hash, looking
+   * first in memory, then in the {@link ThumbnailTable}, and only then
+   * loading and resizing the original (and remembering the result).
+   * Images without a content hash (legacy or incomplete attachments) cannot
+   * be told apart, so their thumbnails are never cached.
+   */
+  public byte[] getThumbnail(String contentHash, int width, int height, ImageSource source,
+                             CallingContext cc) throws ODKDatastoreException {
+    if (contentHash == null) {
+      return resizeImage(source.getImage(), width, height);
+    }
+    String key = contentHash + "|" + width + "x" + height;
+    byte[] thumbnail = thumbnailCache.get(key);
+    if (thumbnail != null) {
+      return thumbnail;
+    }
+    thumbnail = ThumbnailTable.getThumbnail(key, cc.getDatastore(), cc.getCurrentUser());
+    if (thumbnail == null) {
+      thumbnail = resizeImage(source.getImage(), width, height);
+      try {
+        ThumbnailTable.putThumbnail(key, contentHash, thumbnail, cc.getDatastore(),
+            cc.getCurrentUser());
+      } catch (ODKEntityPersistException e) {
+        // most likely a concurrent request stored it first
+        logger.warn("Unable to persist thumbnail " + key + ": " + e.getMessage());
+      }
+    }
+    thumbnailCache.put(key, thumbnail);
+    return thumbnail;
+  }
+
+  /**
+   * Scale the image down by an integer factor so that it fits within the
+   * given bounds. The JPEG decoder subsamples while reading, so the full
+   * resolution image is never materialized; the result is then smoothed
+   * to its final size with bilinear interpolation.
+   */
   public byte[] resizeImage(byte[] imageBlob, int width, int height) {
-    BufferedImage image;
-    try {
-      image = ImageIO.read(new ByteArrayInputStream(imageBlob));
-    } catch (IOException var18) {
-      var18.printStackTrace();
+    if (width <= 0 || height <= 0) {
       return imageBlob;
     }
+    try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBlob))) {
+      Iterator<ImageReader> readers = (iis == null) ? null : ImageIO.getImageReaders(iis);
+      if (readers == null || !readers.hasNext()) {
+        return imageBlob;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(iis, true, true);
+        int imgWidth = reader.getWidth(0);
+        int imgHeight = reader.getHeight(0);
 
-    int imgWidth = image.getWidth();
-    int imgHeight = image.getHeight();
-    if (width > 0 && height > 0) {
-      int reductionWidth = imgWidth / width;
-      int reductionHeight = imgHeight / height;
-      if (reductionWidth > 0 && reductionHeight > 0) {
+        int reductionWidth = imgWidth / width;
+        int reductionHeight = imgHeight / height;
+        if (reductionWidth <= 0 || reductionHeight <= 0) {
+          return imageBlob;
+        }
         int reducer;
         if (reductionWidth > reductionHeight) {
           reducer = reductionWidth;
@@ -53,30 +134,31 @@ public class ImageUtil {
             reducer = reductionHeight + 1;
           }
         }
+        int resizeWidth = Math.max(1, imgWidth / reducer);
+        int resizeHeight = Math.max(1, imgHeight / reducer);
 
-        int resizeWidth = imgWidth / reducer;
-        int resizeHeight = imgHeight / reducer;
-        Image resized = image.getScaledInstance(resizeWidth, resizeHeight, 2);
-        ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
-        BufferedImage bi = new BufferedImage(resized.getWidth(null), resized.getHeight(null), 1);
-        Graphics bg = bi.getGraphics();
-        bg.drawImage(resized, 0, 0, null);
-        bg.dispose();
+        // decode at (roughly) twice the target size, then smooth down
+        int subsampling = Math.max(1, reducer / 2);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage image = reader.read(0, param);
 
-        try {
-          ImageIO.write(bi, "jpg", fileStream);
-        } catch (IOException var17) {
-          var17.printStackTrace();
-          return imageBlob;
-        }
+        BufferedImage bi = new BufferedImage(resizeWidth, resizeHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D bg = bi.createGraphics();
+        bg.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        bg.drawImage(image, 0, 0, resizeWidth, resizeHeight, null);
+        bg.dispose();
 
+        ByteArrayOutputStream fileStream = new ByteArrayOutputStream();
+        ImageIO.write(bi, "jpg", fileStream);
         return fileStream.toByteArray();
-      } else {
-        return imageBlob;
+      } finally {
+        reader.dispose();
       }
-    } else {
+    } catch (IOException e) {
+      e.printStackTrace();
       return imageBlob;
     }
   }
-
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.common.datamodel.BinaryContent;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Persisted thumbnails, keyed by the content hash of the original image and
+ * the thumbnail bounds. Because the key is derived from the content, rows
+ * never go stale; an attachment that changes gets a new hash and a new row.
+ * Rows are removed along with the attachments they were made from, when
+ * submissions are deleted or purged and when forms are deleted. Since equal
+ * attachments share a thumbnail, this may drop one still in use elsewhere;
+ * it is simply rebuilt on the next request.
+ *
+ * @see ImageUtil#getThumbnail
+ */
+public class ThumbnailTable extends CommonFieldsBase {
+
+  private static final String TABLE_NAME = "_thumbnails";
+  private static final DataField CONTENT_HASH = new DataField("CONTENT_HASH",
+      DataField.DataType.STRING, false, PersistConsts.GUARANTEED_SEARCHABLE_LEN)
+      .setIndexable(IndexType.HASH);
+  private static final DataField THUMBNAIL = new DataField("THUMBNAIL",
+      DataField.DataType.BINARY, false);
+  /**
+   * maximum number of values in one IN (...) filter.
+   */
+  private static final int VALUE_SET_LIMIT = 500;
+  private static ThumbnailTable relation = null;
+
+  private ThumbnailTable(String schemaName) {
+    super(schemaName, TABLE_NAME);
+    fieldList.add(CONTENT_HASH);
+    fieldList.add(THUMBNAIL);
+  }
+
+  private ThumbnailTable(ThumbnailTable ref, User user) {
+    super(ref, user);
+  }
+
+  private static synchronized ThumbnailTable assertRelation(Datastore datastore, User user)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      ThumbnailTable relationPrototype;
+      relationPrototype = new ThumbnailTable(datastore.getDefaultSchemaName());
+      datastore.assertRelation(relationPrototype, user);
+      relation = relationPrototype;
+    }
+    return relation;
+  }
+
+  /**
+   * @return the stored thumbnail, or null if none has been stored for this key.
+   */
+  static byte[] getThumbnail(String key, Datastore datastore, User user)
+      throws ODKDatastoreException {
+    ThumbnailTable prototype = assertRelation(datastore, user);
+    try {
+      ThumbnailTable record = datastore.getEntity(prototype, key, user);
+      return record.getBlobField(THUMBNAIL);
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  static void putThumbnail(String key, String contentHash, byte[] thumbnail, Datastore datastore,
+                           User user) throws ODKDatastoreException {
+    ThumbnailTable prototype = assertRelation(datastore, user);
+    ThumbnailTable record = datastore.createEntityUsingRelation(prototype, user);
+    record.setStringField(prototype.primaryKey, key);
+    record.setStringField(CONTENT_HASH, contentHash);
+    record.setBlobField(THUMBNAIL, thumbnail);
+    datastore.putEntity(record, user);
+  }
+
+  /**
+   * Deletes the thumbnails, of any size, of the images with the given content
+   * hashes.
+   */
+  public static void deleteThumbnails(Collection<String> contentHashes, Datastore datastore,
+                                      User user) throws ODKDatastoreException {
+    if (contentHashes.isEmpty()) {
+      return;
+    }
+    ThumbnailTable prototype = assertRelation(datastore, user);
+    List<String> hashes = new ArrayList<String>(contentHashes);
+    for (int i = 0; i < hashes.size(); i += VALUE_SET_LIMIT) {
+      Query query = datastore.createQuery(prototype, "ThumbnailTable.deleteThumbnails", user);
+      query.addValueSetFilter(CONTENT_HASH,
+          hashes.subList(i, Math.min(hashes.size(), i + VALUE_SET_LIMIT)));
+      List<EntityKey> keys = new ArrayList<EntityKey>();
+      for (String uri : query.executeKeysOnly()) {
+        keys.add(new EntityKey(prototype, uri));
+      }
+      if (!keys.isEmpty()) {
+        datastore.deleteEntities(keys, user);
+      }
+    }
+  }
+
+  /**
+   * Deletes the thumbnails of the attachments of the given submissions. Must
+   * be called before the submissions themselves are deleted.
+   */
+  public static void deleteSubmissionThumbnails(IForm form, Collection<String> topLevelUris,
+                                                CallingContext cc) throws ODKDatastoreException {
+    if (topLevelUris.isEmpty()) {
+      return;
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    Set<String> contentHashes = new HashSet<String>();
+    List<String> uris = new ArrayList<String>(topLevelUris);
+    for (BinaryContent table : getAttachmentTables(form)) {
+      for (int i = 0; i < uris.size(); i += VALUE_SET_LIMIT) {
+        Query query = ds.createQuery(table, "ThumbnailTable.deleteSubmissionThumbnails", user);
+        query.addValueSetFilter(table.topLevelAuri,
+            uris.subList(i, Math.min(uris.size(), i + VALUE_SET_LIMIT)));
+        addContentHashes(query.executeDistinctValueForDataField(table.contentHash), contentHashes);
+      }
+    }
+    deleteThumbnails(contentHashes, ds, user);
+  }
+
+  /**
+   * Deletes the thumbnails of all the attachments of the form's submissions.
+   * Must be called before the form's tables are dropped.
+   */
+  public static void deleteFormThumbnails(IForm form, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    Set<String> contentHashes = new HashSet<String>();
+    for (BinaryContent table : getAttachmentTables(form)) {
+      Query query = ds.createQuery(table, "ThumbnailTable.deleteFormThumbnails", user);
+      addContentHashes(query.executeDistinctValueForDataField(table.contentHash), contentHashes);
+    }
+    deleteThumbnails(contentHashes, ds, user);
+  }
+
+  private static void addContentHashes(List<?> values, Set<String> contentHashes) {
+    for (Object value : values) {
+      // placeholders for attachments not yet received have no hash
+      if (value != null) {
+        contentHashes.add((String) value);
+      }
+    }
+  }
+
+  /**
+   * @return the tables listing the attachments of the form's submissions;
+   *     none if the form has no usable definition.
+   */
+  private static List<BinaryContent> getAttachmentTables(IForm form) {
+    List<BinaryContent> tables = new ArrayList<BinaryContent>();
+    if (form.hasValidFormDefinition()) {
+      collectAttachmentTables(form.getTopLevelGroupElement().getFormDataModel(), tables);
+    }
+    return tables;
+  }
+
+  private static void collectAttachmentTables(FormDataModel m, List<BinaryContent> tables) {
+    CommonFieldsBase b = m.getBackingObjectPrototype();
+    if (b instanceof BinaryContent && !tables.contains(b)) {
+      tables.add((BinaryContent) b);
+    }
+    for (FormDataModel child : m.getChildren()) {
+      collectAttachmentTables(child, tables);
+    }
+  }
+
+  @Override
+  public ThumbnailTable getEmptyRow(User user) {
+    return new ThumbnailTable(this, user);
+  }
+}
@@ -13,9 +13,13 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +55,18 @@ import org.opendatakit.common.web.CallingContext;
  */
 public class BinaryContentManipulator {
 
+  /**
+   * Upper bound on the size of an individual {@link RefBlob} part written by
+   * the streaming write path. Keeps the heap cost of persisting an attachment
+   * to a single part rather than the whole attachment.
+   */
+  private static final int STREAM_PART_SIZE = 1024 * 1024;
+
+  /**
+   * Number of {@link RefBlob} parts fetched per query by the streaming read path.
+   */
+  private static final int STREAM_PART_FETCH_COUNT = 8;
+
   private final String parentKey;
   private final String topLevelKey;
   // these relations have already been asserted on the datastore...
@@ -60,6 +76,8 @@ public class BinaryContentManipulator {
   private final Map<Long, BinaryContent> attachments = new HashMap<Long, BinaryContent>();
   // implement lazy access to the attachment fields
   private boolean refreshBeforeUse = true;
+  // attachment declarations fetched in bulk, used by the next refresh
+  private List<? extends CommonFieldsBase> prefetchedAttachments = null;
 
   public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
                                   BinaryContentRefBlob vrefRelation, RefBlob blbRelation) {
@@ -134,6 +152,38 @@ public class BinaryContentManipulator {
   }
 
   public byte[] getBlob(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    ByteArrayOutputStream reconstructedBlob = new ByteArrayOutputStream();
+    try {
+      writeBlob(ordinal, reconstructedBlob, cc);
+    } catch (IOException e) {
+      throw new IllegalStateException("unexpected failure writing to memory", e);
+    }
+    return reconstructedBlob.toByteArray();
+  }
+
+  /**
+   * Write the content of the given attachment to the output stream, one
+   * {@link RefBlob} part at a time, without assembling it in memory.
+   */
+  public void writeBlob(int ordinal, OutputStream os, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, cc);
+    blbManipulator.writeBlob(os, cc);
+  }
+
+  /**
+   * Write the given byte range of the attachment to the output stream. Only
+   * the {@link RefBlob} parts overlapping the range are fetched (plus the
+   * first part, to learn the part size).
+   */
+  public void writeBlob(int ordinal, OutputStream os, long offset, long length, CallingContext cc)
+      throws ODKDatastoreException, IOException {
     updateAttachments(cc);
     BinaryContent b = attachments.get(Long.valueOf(ordinal));
     if (b == null) {
@@ -141,7 +191,7 @@ public class BinaryContentManipulator {
       throw new IllegalStateException("missing attachment declaration");
     }
     BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, cc);
-    return blbManipulator.getBlob();
+    blbManipulator.writeBlob(os, offset, length, cc);
   }
 
   /**
@@ -205,7 +255,43 @@ public class BinaryContentManipulator {
                                                                               String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
       throws ODKDatastoreException {
 
-    Long contentLength = (byteArray == null) ? null : Long.valueOf(byteArray.length);
+    if (byteArray == null) {
+      return setValue(null, null, contentType, unrootedFilePath, overwriteOK, cc);
+    }
+    return setValue(new ByteArrayBlobSource(byteArray), CommonFieldsBase.newMD5HashUri(byteArray),
+        contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
+  /**
+   * Save the attachment to the database, reading its content from the given
+   * source. The source is read twice -- once to compute the content hash and
+   * once to persist the content -- so that neither pass needs to hold the
+   * full attachment in memory. Same calling conventions as
+   * {@link #setValueFromByteArray}.
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromStream(BlobSource source,
+      String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException {
+
+    String md5Hash = null;
+    if (source != null) {
+      InputStream is = null;
+      try {
+        is = source.openStream();
+        md5Hash = CommonFieldsBase.newMD5HashUri(is);
+      } catch (IOException e) {
+        throw new ODKDatastoreException("unable to read attachment content", e);
+      } finally {
+        closeQuietly(is);
+      }
+    }
+    return setValue(source, md5Hash, contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
+  private BinaryContentManipulator.BlobSubmissionOutcome setValue(BlobSource source,
+      String md5Hash, String contentType, String unrootedFilePath, boolean overwriteOK,
+      CallingContext cc) throws ODKDatastoreException {
+
     // search for a matching entry for unrootedFilePath
     BinaryContent matchedBc = null;
     String currentContentHash = null;
@@ -224,7 +310,7 @@ public class BinaryContentManipulator {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
 
-    if (byteArray == null && contentType == null) {
+    if (source == null && contentType == null) {
       // adding a file entry without any actual file...
 
       if (matchedBc == null) {
@@ -244,11 +330,9 @@ public class BinaryContentManipulator {
         // record already exists (and it might have file data, too)...
         return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
       }
-    } else if (byteArray != null && contentType != null) {
+    } else if (source != null && contentType != null) {
       // adding a file entry with an actual file...
 
-      String md5Hash = CommonFieldsBase.newMD5HashUri(byteArray);
-
       if (matchedBc == null || currentContentHash == null) {
         // either
         // - create a new entry with file data
@@ -275,7 +359,7 @@ public class BinaryContentManipulator {
 
         // Step (1)
         matchedBc.setContentType(contentType);
-        matchedBc.setContentLength(Long.valueOf(byteArray.length));
+        matchedBc.setContentLength(Long.valueOf(source.getLength()));
         ds.putEntity(matchedBc, user);
 
         if (newBc) {
@@ -292,8 +376,7 @@ public class BinaryContentManipulator {
 
         // Step (3)
         // persist the binary data
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistBlob(source, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -316,7 +399,7 @@ public class BinaryContentManipulator {
         // Step (1)
         matchedBc.setContentHash(null);
         matchedBc.setContentType(contentType);
-        matchedBc.setContentLength(Long.valueOf(byteArray.length));
+        matchedBc.setContentLength(Long.valueOf(source.getLength()));
         ds.putEntity(matchedBc, user);
 
         // Step (2)
@@ -327,8 +410,7 @@ public class BinaryContentManipulator {
 
         // Step (3)
         // persist the binary data
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistBlob(source, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -341,20 +423,59 @@ public class BinaryContentManipulator {
     }
   }
 
+  private void persistBlob(BlobSource source, String uriVersionedContent, CallingContext cc)
+      throws ODKDatastoreException {
+    InputStream is = null;
+    try {
+      is = source.openStream();
+      BlobManipulator.persistBlob(is, uriVersionedContent, vrefRelation, blbRelation, topLevelKey,
+          cc);
+    } catch (IOException e) {
+      throw new ODKDatastoreException("unable to read attachment content", e);
+    } finally {
+      closeQuietly(is);
+    }
+  }
+
+  private static void closeQuietly(InputStream is) {
+    if (is != null) {
+      try {
+        is.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Supply the {@link BinaryContent} rows for this parent (in ordinal order),
+   * already fetched along with those of other parents, so that the next
+   * refresh does not need to query for them.
+   */
+  public synchronized void setPrefetchedAttachments(List<? extends CommonFieldsBase> contentHits) {
+    if (refreshBeforeUse) {
+      prefetchedAttachments = contentHits;
+    }
+  }
+
   public synchronized void updateAttachments(CallingContext cc) throws ODKDatastoreException {
     if (refreshBeforeUse) {
       // clear our mutable state.
       attachments.clear();
 
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
-      Query q = ds.createQuery(ctntRelation, "BinaryContentManipulator.refreshFromDatabase", user);
-      q.addFilter(ctntRelation.parentAuri, FilterOperation.EQUAL, parentKey);
-      q.addSort(ctntRelation.parentAuri, Direction.ASCENDING); // GAE work-around
-      q.addSort(ctntRelation.ordinalNumber, Direction.ASCENDING);
+      List<? extends CommonFieldsBase> contentHits = prefetchedAttachments;
+      prefetchedAttachments = null;
+      if (contentHits == null) {
+        Datastore ds = cc.getDatastore();
+        User user = cc.getCurrentUser();
+        Query q = ds.createQuery(ctntRelation, "BinaryContentManipulator.refreshFromDatabase", user);
+        q.addFilter(ctntRelation.parentAuri, FilterOperation.EQUAL, parentKey);
+        q.addSort(ctntRelation.parentAuri, Direction.ASCENDING); // GAE work-around
+        q.addSort(ctntRelation.ordinalNumber, Direction.ASCENDING);
+        contentHits = q.executeQuery();
+      }
 
       List<String> errors = new ArrayList<String>();
-      List<? extends CommonFieldsBase> contentHits = q.executeQuery();
       attachments.clear();
       long expectedOrdinal = 1L;
       for (CommonFieldsBase cb : contentHits) {
@@ -457,46 +578,93 @@ public class BinaryContentManipulator {
     FILE_UNCHANGED, NEW_FILE_VERSION, COMPLETELY_NEW_FILE
   }
 
+  /**
+   * Re-readable source of attachment content for
+   * {@link BinaryContentManipulator#setValueFromStream}.
+   */
+  public interface BlobSource {
+
+    long getLength();
+
+    /**
+     * @return a new stream positioned at the start of the content. The caller closes it.
+     */
+    InputStream openStream() throws IOException;
+  }
+
+  private static class ByteArrayBlobSource implements BlobSource {
+    private final byte[] content;
+
+    ByteArrayBlobSource(byte[] content) {
+      this.content = content;
+    }
+
+    @Override
+    public long getLength() {
+      return content.length;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ByteArrayInputStream(content);
+    }
+  }
+
   public static class BlobManipulator {
 
+    private final RefBlob ref;
     private List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
-    private List<RefBlob> dbRefBlobList = new ArrayList<RefBlob>();
 
     /**
-     * Construct an blob entity and persist it into the data store
+     * Read the blob from the input stream and persist it into the data store,
+     * one part at a time. Only a single part is held in memory.
      */
-    public BlobManipulator(byte[] blob, String uriVersionedContent, BinaryContentRefBlob bcbRef,
-                           RefBlob ref, String topLevelKey, CallingContext cc) throws ODKDatastoreException {
+    public static void persistBlob(InputStream blob, String uriVersionedContent,
+                                   BinaryContentRefBlob bcbRef, RefBlob ref, String topLevelKey,
+                                   CallingContext cc) throws ODKDatastoreException, IOException {
 
       // loop to create the VBCRB and RB entries for each part of the
       // larger blob
-      long blobLimit = ref.value.getMaxCharLen();
+      int partLimit = (int) Math.min(ref.value.getMaxCharLen(), STREAM_PART_SIZE);
+      byte[] buffer = new byte[partLimit];
       long part = 1L;
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
-      for (long index = 0; index < blob.length; index = index + blobLimit) {
-        long endCopy = index + blobLimit;
-        if (endCopy > blob.length)
-          endCopy = blob.length;
-        byte[] partialBlob = Arrays.copyOfRange(blob, (int) index, (int) endCopy);
+      for (; ; ) {
+        int len = 0;
+        int n;
+        while (len < partLimit && (n = blob.read(buffer, len, partLimit - len)) != -1) {
+          len += n;
+        }
+        if (len == 0) {
+          break;
+        }
+        byte[] partialBlob = new byte[len];
+        System.arraycopy(buffer, 0, partialBlob, 0, len);
         RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
         eBlob.setTopLevelAuri(topLevelKey);
         eBlob.setValue(partialBlob);
-        dbRefBlobList.add(eBlob);
         BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
         bcb.setTopLevelAuri(topLevelKey);
         bcb.setDomAuri(uriVersionedContent);
         bcb.setSubAuri(eBlob.getUri());
         bcb.setPart(part++);
-        dbBcbEntityList.add(bcb);
         ds.putEntity(eBlob, user);
         ds.putEntity(bcb, user);
+        if (len < partLimit) {
+          break;
+        }
       }
     }
 
+    /**
+     * Gather the ordered list of parts for the given content. The blob parts
+     * themselves are not fetched until {@link #writeBlob} is called.
+     */
     public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
                            CallingContext cc) throws ODKDatastoreException {
 
+      this.ref = ref;
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
       // gather the ordered list of parts...
@@ -518,24 +686,85 @@ public class BinaryContentManipulator {
         ++expectedPart;
         dbBcbEntityList.add(bcref);
       }
+    }
 
-      // and gather the blob parts themselves...
-      for (BinaryContentRefBlob b : dbBcbEntityList) {
-        RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
-        if (eBlob == null) {
-          throw new IllegalStateException("Missing blob part!");
+    /**
+     * Write the blob parts, in order, to the output stream. The parts are
+     * fetched a few at a time so that only a bounded number of them are
+     * held in memory.
+     */
+    public void writeBlob(OutputStream os, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      for (int i = 0; i < dbBcbEntityList.size(); i += STREAM_PART_FETCH_COUNT) {
+        for (RefBlob eBlob : fetchParts(i, i + STREAM_PART_FETCH_COUNT, cc)) {
+          os.write(eBlob.getValue());
         }
-        dbRefBlobList.add(eBlob);
       }
     }
 
-    public byte[] getBlob() {
-      ByteArrayOutputStream reconstructedBlob = new ByteArrayOutputStream();
-      for (RefBlob partialBlob : dbRefBlobList) {
-        byte[] part = partialBlob.getValue();
-        reconstructedBlob.write(part, 0, part.length);
+    /**
+     * Write the byte range [offset, offset+length) of the blob to the output
+     * stream. Every part but the last is the same size (both writers fill
+     * each part before starting the next), so the first part tells us which
+     * parts hold the range.
+     */
+    public void writeBlob(OutputStream os, long offset, long length, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      if (length <= 0 || dbBcbEntityList.isEmpty()) {
+        return;
+      }
+      RefBlob firstBlob = fetchParts(0, 1, cc).get(0);
+      long partSize = firstBlob.getValue().length;
+      if (partSize == 0) {
+        return;
+      }
+      long end = offset + length;
+      int firstPart = (int) (offset / partSize);
+      int lastPart = (int) Math.min((end - 1) / partSize, dbBcbEntityList.size() - 1);
+      for (int i = firstPart; i <= lastPart; i += STREAM_PART_FETCH_COUNT) {
+        List<RefBlob> parts = (i == 0 && lastPart == 0) ? Collections.singletonList(firstBlob)
+            : fetchParts(i, Math.min(i + STREAM_PART_FETCH_COUNT, lastPart + 1), cc);
+        long partStart = i * partSize;
+        for (RefBlob eBlob : parts) {
+          byte[] value = eBlob.getValue();
+          long from = Math.max(offset, partStart) - partStart;
+          long to = Math.min(end, partStart + value.length) - partStart;
+          if (from < to) {
+            os.write(value, (int) from, (int) (to - from));
+          }
+          partStart += value.length;
+        }
       }
-      return reconstructedBlob.toByteArray();
+    }
+
+    /**
+     * Fetch the blob parts in [from, to) of the ordered part list in a single query.
+     */
+    private List<RefBlob> fetchParts(int from, int to, CallingContext cc)
+        throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      List<BinaryContentRefBlob> batch = dbBcbEntityList.subList(from,
+          Math.min(to, dbBcbEntityList.size()));
+      List<String> uris = new ArrayList<String>();
+      for (BinaryContentRefBlob b : batch) {
+        uris.add(b.getSubAuri());
+      }
+      Query q = ds.createQuery(ref, "BinaryContentManipulator.BlobManipulator.fetchParts", user);
+      q.addValueSetFilter(ref.primaryKey, uris);
+      Map<String, RefBlob> blobs = new HashMap<String, RefBlob>();
+      for (CommonFieldsBase cb : q.executeQuery()) {
+        blobs.put(cb.getUri(), (RefBlob) cb);
+      }
+      List<RefBlob> parts = new ArrayList<RefBlob>();
+      for (String uri : uris) {
+        RefBlob eBlob = blobs.get(uri);
+        if (eBlob == null) {
+          throw new IllegalStateException("Missing blob part!");
+        }
+        parts.add(eBlob);
+      }
+      return parts;
     }
 
     /**
@@ -546,24 +775,10 @@ public class BinaryContentManipulator {
      * state.
      */
     public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList) {
-      HashMap<String, RefBlob> blobs = new HashMap<String, RefBlob>();
-      for (RefBlob r : dbRefBlobList) {
-        blobs.put(r.getUri(), r);
-      }
-
-      for (int i = 0; i < dbBcbEntityList.size(); ++i) {
-        BinaryContentRefBlob e = dbBcbEntityList.get(i);
-        String sub = e.getSubAuri();
-        RefBlob r = blobs.get(sub);
-        if (r != null) {
-          keyList.add(r.getEntityKey());
-          blobs.remove(sub);
-        }
+      for (BinaryContentRefBlob e : dbBcbEntityList) {
+        keyList.add(new EntityKey(ref, e.getSubAuri()));
         keyList.add(e.getEntityKey());
       }
-      for (RefBlob r : blobs.values()) {
-        keyList.add(r.getEntityKey());
-      }
     }
 
   }
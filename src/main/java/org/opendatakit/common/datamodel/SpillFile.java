@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+/**
+ * Temporary file that generated content (e.g., an export) is written to as it
+ * is produced, and then handed to
+ * {@link BinaryContentManipulator#setValueFromStream} so that it is copied
+ * into the datastore one part at a time. Neither step holds more than a
+ * buffer's worth of the content in memory.
+ * <p>
+ * Call {@link #delete()} once the content has been persisted (or abandoned);
+ * it also closes the writer, should the content have been abandoned part way.
+ */
+public final class SpillFile implements BinaryContentManipulator.BlobSource {
+
+  private final File file;
+  private PrintWriter writer = null;
+
+  public SpillFile(String prefix) throws IOException {
+    this.file = File.createTempFile(prefix, ".tmp");
+  }
+
+  /**
+   * @return a UTF-8 writer that (re)writes the content of the file. The caller
+   *     closes it once the content is complete; {@link #delete()} closes it
+   *     otherwise.
+   */
+  public PrintWriter openWriter() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+    writer = new PrintWriter(new OutputStreamWriter(
+        new BufferedOutputStream(new FileOutputStream(file)), HtmlConsts.UTF8_ENCODE));
+    return writer;
+  }
+
+  @Override
+  public long getLength() {
+    return file.length();
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    return new BufferedInputStream(new FileInputStream(file));
+  }
+
+  public void delete() {
+    if (writer != null) {
+      // release the file handle before deleting the file
+      writer.close();
+      writer = null;
+    }
+    if (!file.delete() && file.exists()) {
+      // only registered on failure: the JVM never forgets a registration
+      file.deleteOnExit();
+    }
+  }
+}
@@ -13,15 +13,18 @@
  */
 package org.opendatakit.common.persistence;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -83,14 +86,33 @@ public abstract class CommonFieldsBase {
    */
   protected final String schemaName;
   protected final String tableName;
-  protected final List<DataField> fieldList = new ArrayList<DataField>();
-  protected final Map<DataField, Object> fieldValueMap = new HashMap<DataField, Object>();
+  /**
+   * The fields of the relation. Only the relation prototype's constructors
+   * add to this list; the rows made from it share the prototype's list.
+   */
+  protected final List<DataField> fieldList;
+  /**
+   * Shared, immutable index of {@link #fieldList}. Rebuilt if the list has
+   * grown (i.e., while the prototype is still being constructed).
+   */
+  private FieldLayout layout;
+  /**
+   * The field values, indexed by position in {@link #fieldList}.
+   */
+  private Object[] fieldValues;
+  /**
+   * The user to stamp on the audit fields of a new row. Set until the audit
+   * fields are defaulted, which is deferred until they are first read so that
+   * rows read from the database never generate them.
+   */
+  private volatile String pendingAuditUser = null;
   private boolean fromDatabase = false;
   private Object opaquePersistenceData = null;
 
   protected CommonFieldsBase(String schemaName, String tableName) {
     this.schemaName = schemaName;
     this.tableName = tableName;
+    this.fieldList = new ArrayList<DataField>();
     // always primary key with the same name...
     fieldList.add(primaryKey = new DataField(URI));
 
@@ -111,14 +133,90 @@ public abstract class CommonFieldsBase {
     lastUpdateUriUser = ref.lastUpdateUriUser;
     lastUpdateDate = ref.lastUpdateDate;
 
-    fieldList.addAll(ref.fieldList);
+    fieldList = ref.fieldList;
+    layout = ref.getLayout();
+    fieldValues = new Object[layout.size];
+
+    // the audit fields are populated when first read...
+    pendingAuditUser = user.getUriUser();
+  }
+
+  /**
+   * Immutable index from field to position in the field list; shared by a
+   * relation prototype and every row made from it.
+   */
+  private static final class FieldLayout {
+    final int size;
+    final List<DataField> fields;
+    final Map<DataField, Integer> indexes;
+
+    FieldLayout(List<DataField> fieldList) {
+      List<DataField> copy = new ArrayList<DataField>(fieldList);
+      size = copy.size();
+      fields = Collections.unmodifiableList(copy);
+      indexes = new IdentityHashMap<DataField, Integer>(size);
+      for (int i = 0; i < size; ++i) {
+        indexes.put(copy.get(i), i);
+      }
+    }
+  }
+
+  private FieldLayout getLayout() {
+    FieldLayout l = layout;
+    if (l == null || l.size != fieldList.size()) {
+      l = new FieldLayout(fieldList);
+      layout = l;
+    }
+    return l;
+  }
+
+  private int getFieldIndex(DataField f, String verb) {
+    if (f == null) {
+      throw new IllegalArgumentException("Field value is null!");
+    }
+    FieldLayout l = getLayout();
+    Integer i = l.indexes.get(f);
+    if (i == null) {
+      throw new IllegalArgumentException("Attempting to " + verb + " a field " + f.getName()
+          + " not belonging to " + schemaName + "." + tableName);
+    }
+    if (fieldValues == null) {
+      fieldValues = new Object[l.size];
+    } else if (fieldValues.length < l.size) {
+      fieldValues = Arrays.copyOf(fieldValues, l.size);
+    }
+    return i;
+  }
+
+  /**
+   * @return the field values, after defaulting the audit fields of a new row.
+   */
+  private Object[] getFieldValues() {
+    if (pendingAuditUser != null) {
+      populateAuditFields();
+    }
+    return fieldValues;
+  }
 
-    // populate the audit fields...
+  private synchronized void populateAuditFields() {
+    String uriUser = pendingAuditUser;
+    if (uriUser == null) {
+      return;
+    }
+    FieldLayout l = getLayout();
     Date now = new Date();
-    fieldValueMap.put(creationDate, now);
-    fieldValueMap.put(lastUpdateDate, now);
-    fieldValueMap.put(creatorUriUser, user.getUriUser());
-    fieldValueMap.put(primaryKey, CommonFieldsBase.newUri());
+    defaultFieldValue(l, creationDate, now);
+    defaultFieldValue(l, lastUpdateDate, now);
+    defaultFieldValue(l, creatorUriUser, uriUser);
+    defaultFieldValue(l, primaryKey, CommonFieldsBase.newUri());
+    pendingAuditUser = null;
+  }
+
+  private void defaultFieldValue(FieldLayout l, DataField f, Object value) {
+    int i = l.indexes.get(f);
+    if (fieldValues[i] == null) {
+      fieldValues[i] = value;
+    }
   }
 
   public final static String newUri() {
@@ -167,6 +265,27 @@ public abstract class CommonFieldsBase {
     }
   }
 
+  public final static String newMD5HashUri(InputStream in) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        md.update(buffer, 0, len);
+      }
+
+      byte[] messageDigest = md.digest();
+
+      BigInteger number = new BigInteger(1, messageDigest);
+      String md5 = number.toString(16);
+      while (md5.length() < 32)
+        md5 = "0" + md5;
+      return "md5:" + md5;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
   public final EntityKey getEntityKey() {
     return new EntityKey(this, getUri());
   }
@@ -196,29 +315,17 @@ public abstract class CommonFieldsBase {
   }
 
   public final List<DataField> getFieldList() {
-    return Collections.unmodifiableList(fieldList);
+    return getLayout().fields;
   }
 
   public final boolean hasField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    return fieldValueMap.containsKey(f);
+    int i = getFieldIndex(f, "get");
+    return getFieldValues()[i] != null;
   }
 
   public final String getStringField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int i = getFieldIndex(f, "get");
+    Object o = getFieldValues()[i];
     if (o == null)
       return null;
     return (String) o;
@@ -229,13 +336,7 @@ public abstract class CommonFieldsBase {
    * prefix is stored and false is returned.
    */
   public final boolean setStringField(DataField f, String value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int i = getFieldIndex(f, "set");
     if (!((f.getDataType() == DataType.STRING) || (f.getDataType() == DataType.LONG_STRING) || (f
         .getDataType() == DataType.URI))) {
       throw new IllegalArgumentException("Attempting to set non-string field " + f.getName()
@@ -247,7 +348,7 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[i] = null;
       return true;
     } else if (f.getMaxCharLen().compareTo(Long.valueOf(value.length())) < 0) {
       if (f.getDataType() == DataType.LONG_STRING) {
@@ -260,32 +361,20 @@ public abstract class CommonFieldsBase {
       noOverflow = false;
       value = value.substring(0, f.getMaxCharLen().intValue());
     }
-    fieldValueMap.put(f, value);
+    fieldValues[i] = value;
     return noOverflow;
   }
 
   public final Long getLongField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int i = getFieldIndex(f, "get");
+    Object o = getFieldValues()[i];
     if (o == null)
       return null;
     return (Long) o;
   }
 
   public final void setLongField(DataField f, Long value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int i = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.INTEGER) {
       throw new IllegalArgumentException("Attempting to set non-integer field " + f.getName()
           + " with a Long in " + schemaName + "." + tableName);
@@ -295,34 +384,22 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[i] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[i] = value;
   }
 
   public final WrappedBigDecimal getNumericField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int i = getFieldIndex(f, "get");
+    Object o = getFieldValues()[i];
     if (o == null)
       return null;
     return (WrappedBigDecimal) o;
   }
 
   public final void setNumericField(DataField f, WrappedBigDecimal value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int i = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.DECIMAL) {
       throw new IllegalArgumentException("Attempting to set non-decimal field " + f.getName()
           + " with a BigDecimal in " + schemaName + "." + tableName);
@@ -332,39 +409,27 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[i] = null;
       return;
     }
     if (!f.isDoublePrecision() && !value.isSpecialValue()) {
       // enforce scaling here...
-      fieldValueMap.put(f, value.setScale(f.getNumericScale(), BigDecimal.ROUND_HALF_UP));
+      fieldValues[i] = value.setScale(f.getNumericScale(), BigDecimal.ROUND_HALF_UP);
     } else {
-      fieldValueMap.put(f, value);
+      fieldValues[i] = value;
     }
   }
 
   public final Date getDateField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int i = getFieldIndex(f, "get");
+    Object o = getFieldValues()[i];
     if (o == null)
       return null;
     return (Date) o;
   }
 
   public final void setDateField(DataField f, Date value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int i = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.DATETIME) {
       throw new IllegalArgumentException("Attempting to set non-datetime field " + f.getName()
           + " with a Date in " + schemaName + "." + tableName);
@@ -374,34 +439,22 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[i] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[i] = value;
   }
 
   public final Boolean getBooleanField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int i = getFieldIndex(f, "get");
+    Object o = getFieldValues()[i];
     if (o == null)
       return null;
     return (Boolean) o;
   }
 
   public final void setBooleanField(DataField f, Boolean value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int i = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.BOOLEAN) {
       throw new IllegalArgumentException("Attempting to set non-boolean field " + f.getName()
           + " with a Boolean in " + schemaName + "." + tableName);
@@ -411,34 +464,22 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[i] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[i] = value;
   }
 
   public final byte[] getBlobField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
+    int i = getFieldIndex(f, "get");
+    Object o = getFieldValues()[i];
     if (o == null)
       return null;
     return (byte[]) o;
   }
 
   public final void setBlobField(DataField f, byte[] value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int i = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.BINARY) {
       throw new IllegalArgumentException("Attempting to set non-blob field " + f.getName()
           + " with byte-array in " + schemaName + "." + tableName);
@@ -448,10 +489,10 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      fieldValues[i] = null;
       return;
     }
-    fieldValueMap.put(f, value);
+    fieldValues[i] = value;
   }
 
   /*
@@ -475,6 +516,10 @@ public abstract class CommonFieldsBase {
    * record in the persistent store.
    */
   public final void setFromDatabase(boolean fromDatabase) {
+    if (fromDatabase && pendingAuditUser != null) {
+      // a freshly mapped row: its audit fields come from the database
+      pendingAuditUser = null;
+    }
     this.fromDatabase = fromDatabase;
   }
 
@@ -493,7 +538,9 @@ public abstract class CommonFieldsBase {
   }
 
   public final boolean isNull(DataField f) {
-    return (fieldValueMap.get(f) == null);
+    Integer i = getLayout().indexes.get(f);
+    Object[] values = getFieldValues();
+    return (i == null) || (values == null) || (i >= values.length) || (values[i] == null);
   }
 
   public boolean sameTable(CommonFieldsBase ref) {
@@ -13,7 +13,9 @@
  */
 package org.opendatakit.common.persistence;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 
 /**
@@ -28,12 +30,54 @@ public interface Query {
 
   void addFilter(DataField attributeName, FilterOperation op, Object value);
 
+  /**
+   * Restrict the result to rows whose attribute value is one of the values in
+   * the set. Callers should keep the set to at most a few hundred values.
+   */
+  void addValueSetFilter(DataField attributeName, Collection<?> valueSet);
+
+  /**
+   * Fetch only the given fields (plus the primary key and the sort fields)
+   * when executing {@link #executeQuery()} or
+   * {@link #executeQuery(QueryResumePoint, int)}. The other fields of the
+   * returned rows are left null, so these rows must not be passed back to
+   * {@link Datastore#putEntity}.
+   */
+  void setProjection(List<DataField> fields);
+
   List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException;
 
   QueryResult executeQuery(QueryResumePoint startCursor, int fetchLimit) throws ODKDatastoreException;
 
   List<?> executeDistinctValueForDataField(DataField dataField) throws ODKDatastoreException;
 
+  /**
+   * @return the primary keys of the matching rows, in sort order, without
+   *     materializing the rows themselves.
+   */
+  List<String> executeKeysOnly() throws ODKDatastoreException;
+
+  /**
+   * @return the primary keys of the first {@code limit} matching rows, in
+   *     sort order and then primary key order: the rows a call to
+   *     {@link #executeDelete(Map, int)} with the same limit would delete.
+   */
+  List<String> executeKeysOnly(int limit) throws ODKDatastoreException;
+
+  /**
+   * Deletes, in one transaction, the first {@code limit} rows matching the
+   * query (in sort order, then primary key order) along with the rows of the
+   * dependent relations that belong to them. The rows are picked out by
+   * sub-selects, so none of them are read.
+   *
+   * @param dependents each dependent relation, mapped to its column holding
+   *                   the primary key of the matching row it belongs to.
+   * @return the number of matching rows deleted; fewer than {@code limit}
+   *     once no matching rows remain.
+   */
+  int executeDelete(Map<? extends CommonFieldsBase, DataField> dependents, int limit)
+      throws ODKDatastoreException;
+
   enum Direction {
     ASCENDING,
     DESCENDING
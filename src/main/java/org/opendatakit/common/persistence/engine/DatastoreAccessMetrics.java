@@ -13,166 +13,302 @@
  */
 package org.opendatakit.common.persistence.engine;
 
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.opendatakit.common.persistence.CommonFieldsBase;
-import org.opendatakit.common.persistence.EntityKey;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Tracks the access patterns for the datastore layer. Useful for identifying
  * inefficient datastore access patterns and minimizing excessive read/write
  * actions.
  * <p>
+ * Accesses are counted per table and, for queries, per the logging context
+ * tag passed to {@code Datastore.createQuery}. Where the caller supplies the
+ * elapsed time, a latency histogram is kept as well. Recording never blocks:
+ * the counters are {@link LongAdder}s held in concurrent maps.
+ * <p>
  * Note that if you create and delete many tables and don't reuse table names,
- * the tableMap and count arrays will grow without bounds.
+ * the table map will grow without bounds.
  *
  * @author mitchellsundt@gmail.com
  */
 public final class DatastoreAccessMetrics {
 
-  private static final Logger logger = LoggerFactory.getLogger(DatastoreAccessMetrics.class);
-  // 20-second dump
-  private static final long ACCESS_METRIC_DUMP_INTERVAL = 20 * 1000L;
-  // map of fully qualified table name to index in counter array.
-  private final Map<String, Short> tableMap = new TreeMap<String, Short>();
-  private final RingBufferCountArray countQueryArray = new RingBufferCountArray();
-  private final RingBufferCountArray countQueryResultArray = new RingBufferCountArray();
-  private final RingBufferCountArray countGetArray = new RingBufferCountArray();
-  private final RingBufferCountArray countPutArray = new RingBufferCountArray();
-  private final RingBufferCountArray countDeleteArray = new RingBufferCountArray();
-  private short nextCountIdx = 0;
-  private int readCount = 0;
-  private long lastLogging = 0L;
-
-  public DatastoreAccessMetrics() {
+  public enum Operation {
+    QUERY, GET, PUT, DELETE
   }
 
   /**
-   * NOTE: This method is NOT thread-safe. Call only from within a synchronized
-   * method!
+   * Upper bounds, in milliseconds, of the latency histogram buckets. A final
+   * bucket holds everything slower than the last bound.
    */
-  private void logUsage(int incCount) {
-    long now = System.currentTimeMillis();
-    int oldReadCount = readCount;
-    readCount = readCount + incCount;
-    if ((readCount / 500) != (oldReadCount / 500)
-        || (lastLogging + ACCESS_METRIC_DUMP_INTERVAL < now)) {
-    }
-  }
+  private static final long[] LATENCY_BUCKET_BOUNDS_MILLIS =
+      {1L, 2L, 5L, 10L, 20L, 50L, 100L, 200L, 500L, 1000L, 2000L, 5000L, 10000L};
 
-  /**
-   * this is the ONLY method that should manipulate the
-   * RingBufferCountArray or log usage statistics.
-   */
-  private synchronized void synchronizedRecordUsage(String fullyQualifiedName,
-                                                    RingBufferCountArray rbc, int incCount) {
-    Short countArrayIdx = tableMap.get(fullyQualifiedName);
-    if (countArrayIdx == null) {
-      countArrayIdx = nextCountIdx++;
-      tableMap.put(fullyQualifiedName, countArrayIdx);
-    }
+  private static final String UNTAGGED_CONTEXT = "(untagged)";
 
-    rbc.recordUsage(countArrayIdx, incCount);
-    logUsage(incCount);
-  }
+  private final ConcurrentMap<String, AccessCounters> tableCounters = new ConcurrentHashMap<String, AccessCounters>();
+  private final ConcurrentMap<String, AccessCounters> contextCounters = new ConcurrentHashMap<String, AccessCounters>();
 
-  private void recordUsage(String fullyQualifiedName, RingBufferCountArray rbc, int incCount) {
-    try {
-      synchronizedRecordUsage(fullyQualifiedName, rbc, incCount);
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-  }
-
-  private void recordUsage(String fullyQualifiedName, RingBufferCountArray rbc) {
-    recordUsage(fullyQualifiedName, rbc, 1);
+  public DatastoreAccessMetrics() {
   }
 
-  private void recordUsage(CommonFieldsBase relation, RingBufferCountArray rbc, int incCount) {
-    String fullyQualifiedName = relation.getSchemaName() + "." + relation.getTableName();
-    recordUsage(fullyQualifiedName, rbc, incCount);
+  private static String getFullyQualifiedName(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
   }
 
-  private void recordUsage(CommonFieldsBase relation, RingBufferCountArray rbc) {
-    recordUsage(relation, rbc, 1);
+  private static AccessCounters getCounters(ConcurrentMap<String, AccessCounters> map, String name) {
+    // plain get first: computeIfAbsent may lock even when the key is present
+    AccessCounters counters = map.get(name);
+    if (counters == null) {
+      counters = map.computeIfAbsent(name, AccessCounters::new);
+    }
+    return counters;
   }
 
   public void recordQueryUsage(String specialTableName, int resultCount) {
-    recordUsage(specialTableName, countQueryArray);
-    recordUsage(specialTableName, countQueryResultArray, resultCount);
+    getCounters(tableCounters, specialTableName).record(Operation.QUERY, 1, resultCount, -1L);
   }
 
-  public void recordQueryUsage(CommonFieldsBase relation, int resultCount) {
-    recordUsage(relation, countQueryArray);
-    recordUsage(relation, countQueryResultArray, resultCount);
+  /**
+   * @param loggingContextTag the tag the query was created with; may be null.
+   * @param elapsedNanos      the time taken to run the query and read its rows.
+   */
+  public void recordQueryUsage(CommonFieldsBase relation, String loggingContextTag,
+                               int resultCount, long elapsedNanos) {
+    getCounters(tableCounters, getFullyQualifiedName(relation))
+        .record(Operation.QUERY, 1, resultCount, elapsedNanos);
+    getCounters(contextCounters, (loggingContextTag == null) ? UNTAGGED_CONTEXT : loggingContextTag)
+        .record(Operation.QUERY, 1, resultCount, elapsedNanos);
   }
 
   public void recordGetUsage(String specialTableName) {
-    recordUsage(specialTableName, countGetArray);
+    getCounters(tableCounters, specialTableName).record(Operation.GET, 1, 0, -1L);
   }
 
   public void recordGetUsage(CommonFieldsBase relation) {
-    recordUsage(relation, countGetArray);
+    recordGetUsage(getFullyQualifiedName(relation));
   }
 
   public void recordPutUsage(String specialTableName) {
-    recordUsage(specialTableName, countPutArray);
+    getCounters(tableCounters, specialTableName).record(Operation.PUT, 1, 0, -1L);
   }
 
-  public void recordPutUsage(CommonFieldsBase relation) {
-    recordUsage(relation, countPutArray);
+  /**
+   * @param elapsedNanos the time taken by the statement (or batch) that wrote
+   *                     the rows.
+   */
+  public void recordPutUsage(CommonFieldsBase relation, int putCount, long elapsedNanos) {
+    getCounters(tableCounters, getFullyQualifiedName(relation))
+        .record(Operation.PUT, putCount, 0, elapsedNanos);
   }
 
   public void recordDeleteUsage(String specialTableName) {
-    recordUsage(specialTableName, countDeleteArray);
+    getCounters(tableCounters, specialTableName).record(Operation.DELETE, 1, 0, -1L);
+  }
+
+  /**
+   * @param elapsedNanos the time taken by the statements that deleted the rows.
+   */
+  public void recordDeleteUsage(CommonFieldsBase relation, int deleteCount, long elapsedNanos) {
+    getCounters(tableCounters, getFullyQualifiedName(relation))
+        .record(Operation.DELETE, deleteCount, 0, elapsedNanos);
+  }
+
+  /**
+   * @return a snapshot of the counters of every table accessed so far,
+   *     sorted by name.
+   */
+  public List<AccessStatistics> getTableStatistics() {
+    return snapshot(tableCounters);
   }
 
-  public void recordDeleteUsage(EntityKey key) {
-    recordUsage(key.getRelation(), countDeleteArray);
+  /**
+   * @return a snapshot of the query counters of every logging context tag
+   *     seen so far, sorted by tag.
+   */
+  public List<AccessStatistics> getContextStatistics() {
+    return snapshot(contextCounters);
   }
 
   /**
-   * Maintain a tally of which tables those actions were against.
-   * <p>
-   * NOTE: this is NOT thread-safe. All accesses should occur only from within
-   * synchronized methods.
+   * @return the upper bounds, in milliseconds, of all but the last bucket of
+   *     {@link LatencyStatistics#getBucketCounts()}.
    */
-  private final static class RingBufferCountArray {
-    private static final int ARRAY_INCREMENT = 20;
-    private int[] countArray = new int[36];
-
-    RingBufferCountArray() {
-      clear();
-    }
-
-    private void resizeArray(short arrayIdx) {
-      if (arrayIdx >= countArray.length) {
-        int newLen = ((arrayIdx / ARRAY_INCREMENT) + 1) * ARRAY_INCREMENT;
-        int[] newArray = new int[newLen];
-        for (int i = 0; i < newLen; ++i) {
-          newArray[i] = 0;
-        }
-        for (int i = 0; i < countArray.length; ++i) {
-          newArray[i] = countArray[i];
-        }
-        countArray = newArray;
-        logger.info("Resizing metrics array to " + newLen);
+  public static long[] getLatencyBucketBoundsMillis() {
+    return LATENCY_BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  private static List<AccessStatistics> snapshot(ConcurrentMap<String, AccessCounters> map) {
+    List<AccessStatistics> stats = new ArrayList<AccessStatistics>();
+    for (AccessCounters counters : map.values()) {
+      stats.add(counters.snapshot());
+    }
+    Collections.sort(stats, (a, b) -> a.getName().compareTo(b.getName()));
+    return stats;
+  }
+
+  /**
+   * Counts of the accesses to one table or from one logging context.
+   */
+  public static final class AccessStatistics {
+    private final String name;
+    private final long[] counts;
+    private final long rowsRead;
+    private final LatencyStatistics[] latencies;
+
+    AccessStatistics(String name, long[] counts, long rowsRead, LatencyStatistics[] latencies) {
+      this.name = name;
+      this.counts = counts;
+      this.rowsRead = rowsRead;
+      this.latencies = latencies;
+    }
+
+    /**
+     * @return the fully qualified table name or the logging context tag.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the number of queries issued, or of rows fetched, written or
+     *     deleted by the other operations.
+     */
+    public long getCount(Operation operation) {
+      return counts[operation.ordinal()];
+    }
+
+    /**
+     * @return the number of rows returned by queries.
+     */
+    public long getRowsRead() {
+      return rowsRead;
+    }
+
+    public LatencyStatistics getLatency(Operation operation) {
+      return latencies[operation.ordinal()];
+    }
+  }
+
+  /**
+   * Latency histogram of the timed accesses of one operation.
+   */
+  public static final class LatencyStatistics {
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] bucketCounts;
+
+    LatencyStatistics(long count, long totalNanos, long maxNanos, long[] bucketCounts) {
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+      this.bucketCounts = bucketCounts;
+    }
+
+    /**
+     * @return the number of timed accesses.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    public double getMeanMillis() {
+      return (count == 0) ? 0.0 : (totalNanos / (double) count) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxMillis() {
+      return maxNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the number of accesses that fell in each bucket of
+     *     {@link DatastoreAccessMetrics#getLatencyBucketBoundsMillis()}; the
+     *     last entry counts the accesses slower than the last bound.
+     */
+    public long[] getBucketCounts() {
+      return bucketCounts.clone();
+    }
+  }
+
+  private static final class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKET_BOUNDS_MILLIS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    LatencyHistogram() {
+      for (int i = 0; i < buckets.length; ++i) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long elapsedNanos) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+      int bucket = 0;
+      while (bucket < LATENCY_BUCKET_BOUNDS_MILLIS.length
+          && millis >= LATENCY_BUCKET_BOUNDS_MILLIS[bucket]) {
+        ++bucket;
+      }
+      buckets[bucket].increment();
+      count.increment();
+      totalNanos.add(elapsedNanos);
+      if (elapsedNanos > maxNanos.get()) {
+        maxNanos.accumulateAndGet(elapsedNanos, Math::max);
       }
     }
 
-    private void recordUsage(short countArrayIdx, int incCount) {
-      // make sure our count array is sized big enough...
-      resizeArray(countArrayIdx);
+    LatencyStatistics snapshot() {
+      long[] bucketCounts = new long[buckets.length];
+      for (int i = 0; i < buckets.length; ++i) {
+        bucketCounts[i] = buckets[i].sum();
+      }
+      return new LatencyStatistics(count.sum(), totalNanos.sum(), maxNanos.get(), bucketCounts);
+    }
+  }
 
-      countArray[countArrayIdx] = countArray[countArrayIdx] + incCount;
+  private static final class AccessCounters {
+    private final String name;
+    private final LongAdder[] counts = new LongAdder[Operation.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder rowsRead = new LongAdder();
+
+    AccessCounters(String name) {
+      this.name = name;
+      for (int i = 0; i < counts.length; ++i) {
+        counts[i] = new LongAdder();
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    /**
+     * @param elapsedNanos negative if the access was not timed.
+     */
+    void record(Operation operation, int count, int rows, long elapsedNanos) {
+      counts[operation.ordinal()].add(count);
+      if (rows > 0) {
+        rowsRead.add(rows);
+      }
+      if (elapsedNanos >= 0) {
+        latencies[operation.ordinal()].record(elapsedNanos);
+      }
     }
 
-    private void clear() {
-      for (int i = 0; i < countArray.length; ++i) {
-        countArray[i] = 0;
+    AccessStatistics snapshot() {
+      long[] countSnapshot = new long[counts.length];
+      LatencyStatistics[] latencySnapshot = new LatencyStatistics[latencies.length];
+      for (int i = 0; i < counts.length; ++i) {
+        countSnapshot[i] = counts[i].sum();
+        latencySnapshot[i] = latencies[i].snapshot();
       }
+      return new AccessStatistics(name, countSnapshot, rowsRead.sum(), latencySnapshot);
     }
   }
 }
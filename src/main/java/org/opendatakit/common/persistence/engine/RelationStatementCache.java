@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Per-relation cache of the SQL text of the statements the datastore issues
+ * on every write and primary-key read, along with the fields in bind order.
+ * <p>
+ * Besides saving the work of rebuilding the statements, handing the JDBC
+ * driver the same text each time lets its prepared statement cache hit. For
+ * the same reason, DELETE ... IN (...) statements are generated for a few
+ * fixed key counts only; see {@link Statements#getDeleteInKeyCount(int)}.
+ * <p>
+ * The bind fields must be the relation's own {@link DataField} instances, so
+ * each prototype of a table (and the rows built from it) has its own entry,
+ * told apart by the identity of its field list. Entries are never replaced:
+ * prototypes of the same table in use side by side each keep theirs. The
+ * datastore invalidates every entry of a table whenever the table is
+ * (re)asserted or dropped.
+ */
+public final class RelationStatementCache {
+
+  private static final String K_SELECT = "SELECT ";
+  private static final String K_FROM = " FROM ";
+  private static final String K_WHERE = " WHERE ";
+  private static final String K_INSERT_INTO = "INSERT INTO ";
+  private static final String K_VALUES = " VALUES ";
+  private static final String K_UPDATE = "UPDATE ";
+  private static final String K_SET = " SET ";
+  private static final String K_DELETE_FROM = "DELETE FROM ";
+  private static final String K_IN = " IN ";
+  private static final String K_EQ = " = ";
+  private static final String K_CS = ", ";
+  private static final String K_BIND_VALUE = "?";
+  private static final String K_OPEN_PAREN = " ( ";
+  private static final String K_CLOSE_PAREN = " ) ";
+
+  private final String identifierQuote;
+  /**
+   * the entries of each table, one per prototype. The lists are never
+   * modified once published.
+   */
+  private final ConcurrentMap<String, List<Statements>> statements = new ConcurrentHashMap<String, List<Statements>>();
+
+  /**
+   * @param identifierQuote the character(s) the engine quotes identifiers with.
+   */
+  public RelationStatementCache(String identifierQuote) {
+    this.identifierQuote = identifierQuote;
+  }
+
+  private static String getFullyQualifiedName(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
+  }
+
+  private static Statements find(List<Statements> entries, List<DataField> fieldList) {
+    if (entries != null) {
+      for (Statements s : entries) {
+        if (s.fieldList == fieldList) {
+          return s;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the statements of the relation's prototype, building them if they
+   *     are not cached.
+   */
+  public Statements get(CommonFieldsBase relation) {
+    String name = getFullyQualifiedName(relation);
+    List<DataField> fieldList = relation.getFieldList();
+    Statements s = find(statements.get(name), fieldList);
+    if (s != null) {
+      return s;
+    }
+    List<Statements> entries = statements.compute(name, (n, existing) -> {
+      if (find(existing, fieldList) != null) {
+        // built by another thread meanwhile
+        return existing;
+      }
+      List<Statements> added = new ArrayList<Statements>();
+      if (existing != null) {
+        added.addAll(existing);
+      }
+      added.add(new Statements(relation));
+      return added;
+    });
+    return find(entries, fieldList);
+  }
+
+  /**
+   * Drops the statements of every prototype of the relation's table.
+   */
+  public void invalidate(CommonFieldsBase relation) {
+    statements.remove(getFullyQualifiedName(relation));
+  }
+
+  /**
+   * The statements of one relation. Immutable apart from the lazily built
+   * DELETE ... IN (...) statements.
+   */
+  public final class Statements {
+    private final List<DataField> fieldList;
+    private final String qualifiedTableName;
+    private final String quotedPrimaryKey;
+    private final String select;
+    private final String selectKeys;
+    private final String selectByKey;
+    private final String insert;
+    private final DataField[] insertFields;
+    private final String update;
+    private final DataField[] updateFields;
+    private final String deleteByKey;
+    private final ConcurrentMap<Integer, String> deleteIn = new ConcurrentHashMap<Integer, String>();
+
+    private Statements(CommonFieldsBase relation) {
+      fieldList = relation.getFieldList();
+      qualifiedTableName = quote(relation.getSchemaName()) + "." + quote(relation.getTableName());
+      quotedPrimaryKey = quote(relation.primaryKey.getName());
+
+      StringBuilder b = new StringBuilder();
+      b.append(K_SELECT);
+      appendColumnList(b, fieldList);
+      b.append(K_FROM);
+      b.append(qualifiedTableName);
+      select = b.toString();
+      selectByKey = select + K_WHERE + quotedPrimaryKey + K_EQ + K_BIND_VALUE;
+      selectKeys = K_SELECT + quotedPrimaryKey + K_FROM + qualifiedTableName;
+
+      // the bind parameters are all the fields in field-list order
+      insertFields = fieldList.toArray(new DataField[fieldList.size()]);
+      b.setLength(0);
+      b.append(K_INSERT_INTO);
+      b.append(qualifiedTableName);
+      b.append(K_OPEN_PAREN);
+      appendColumnList(b, fieldList);
+      b.append(K_CLOSE_PAREN);
+      b.append(K_VALUES);
+      b.append(K_OPEN_PAREN);
+      appendBindList(b, insertFields.length);
+      b.append(K_CLOSE_PAREN);
+      insert = b.toString();
+
+      // the bind parameters are the non-PK fields followed by the PK
+      List<DataField> updateOrder = new ArrayList<DataField>(fieldList.size());
+      b.setLength(0);
+      b.append(K_UPDATE);
+      b.append(qualifiedTableName);
+      b.append(K_SET);
+      for (DataField f : fieldList) {
+        // primary key goes in the where clause...
+        if (f == relation.primaryKey)
+          continue;
+        if (!updateOrder.isEmpty()) {
+          b.append(K_CS);
+        }
+        updateOrder.add(f);
+        b.append(quote(f.getName()));
+        b.append(K_EQ);
+        b.append(K_BIND_VALUE);
+      }
+      b.append(K_WHERE);
+      b.append(quotedPrimaryKey);
+      b.append(K_EQ);
+      b.append(K_BIND_VALUE);
+      update = b.toString();
+      updateOrder.add(relation.primaryKey);
+      updateFields = updateOrder.toArray(new DataField[updateOrder.size()]);
+
+      deleteByKey = K_DELETE_FROM + qualifiedTableName + K_WHERE + quotedPrimaryKey + K_EQ
+          + K_BIND_VALUE;
+    }
+
+    /**
+     * @return the fields of the relation in the column order of
+     *     {@link #getSelect()} and {@link #getSelectByKey()}.
+     */
+    public List<DataField> getFields() {
+      return fieldList;
+    }
+
+    /**
+     * @return SELECT of every column, without a WHERE clause.
+     */
+    public String getSelect() {
+      return select;
+    }
+
+    /**
+     * @return SELECT of the primary key column, without a WHERE clause.
+     */
+    public String getSelectKeys() {
+      return selectKeys;
+    }
+
+    /**
+     * @return SELECT of every column of the row whose primary key is bound.
+     */
+    public String getSelectByKey() {
+      return selectByKey;
+    }
+
+    public String getInsert() {
+      return insert;
+    }
+
+    /**
+     * @return the fields bound by {@link #getInsert()}, in bind order.
+     */
+    public DataField[] getInsertFields() {
+      return insertFields;
+    }
+
+    public String getUpdate() {
+      return update;
+    }
+
+    /**
+     * @return the fields bound by {@link #getUpdate()}, in bind order.
+     */
+    public DataField[] getUpdateFields() {
+      return updateFields;
+    }
+
+    public String getDeleteByKey() {
+      return deleteByKey;
+    }
+
+    /**
+     * @return the number of keys the DELETE ... IN (...) statement for
+     *     {@code keyCount} keys binds: the next power of two. Callers pad the
+     *     extra parameters by repeating a key.
+     */
+    public int getDeleteInKeyCount(int keyCount) {
+      return (keyCount <= 1) ? 1 : Integer.highestOneBit(keyCount - 1) << 1;
+    }
+
+    /**
+     * @return the DELETE ... IN (...) statement binding
+     *     {@link #getDeleteInKeyCount(int)} keys.
+     */
+    public String getDeleteIn(int keyCount) {
+      Integer bindCount = getDeleteInKeyCount(keyCount);
+      String sql = deleteIn.get(bindCount);
+      if (sql == null) {
+        StringBuilder b = new StringBuilder();
+        b.append(K_DELETE_FROM);
+        b.append(qualifiedTableName);
+        b.append(K_WHERE);
+        b.append(quotedPrimaryKey);
+        b.append(K_IN);
+        b.append(K_OPEN_PAREN);
+        appendBindList(b, bindCount);
+        b.append(K_CLOSE_PAREN);
+        sql = b.toString();
+        deleteIn.put(bindCount, sql);
+      }
+      return sql;
+    }
+  }
+
+  private String quote(String identifier) {
+    return identifierQuote + identifier + identifierQuote;
+  }
+
+  private void appendColumnList(StringBuilder b, List<DataField> fields) {
+    boolean first = true;
+    for (DataField f : fields) {
+      if (!first) {
+        b.append(K_CS);
+      }
+      first = false;
+      b.append(identifierQuote);
+      b.append(f.getName());
+      b.append(identifierQuote);
+    }
+  }
+
+  private static void appendBindList(StringBuilder b, int count) {
+    for (int i = 0; i < count; ++i) {
+      if (i != 0) {
+        b.append(K_CS);
+      }
+      b.append(K_BIND_VALUE);
+    }
+  }
+}
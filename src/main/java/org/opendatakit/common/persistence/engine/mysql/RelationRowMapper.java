@@ -16,8 +16,10 @@ package org.opendatakit.common.persistence.engine.mysql;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.security.User;
 import org.springframework.jdbc.core.RowMapper;
@@ -30,10 +32,29 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
 
   private final CommonFieldsBase relation;
   private final User user;
+  /**
+   * The mapping plan, computed once per query: field i (and its type) is
+   * read from result set column i + 1.
+   */
+  private final DataField[] fields;
+  private final DataType[] types;
 
   RelationRowMapper(CommonFieldsBase relation, User user) {
+    this(relation, relation.getFieldList(), user);
+  }
+
+  /**
+   * Map only the given columns; the other fields of the row are left null.
+   * The columns of the result set must be in the order of the given fields.
+   */
+  RelationRowMapper(CommonFieldsBase relation, List<DataField> fields, User user) {
     this.relation = relation;
     this.user = user;
+    this.fields = fields.toArray(new DataField[fields.size()]);
+    this.types = new DataType[this.fields.length];
+    for (int i = 0; i < this.fields.length; ++i) {
+      this.types[i] = this.fields[i].getDataType();
+    }
   }
 
   @Override
@@ -50,19 +71,21 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
     /*
       Correct for the funky handling of nulls by the various accessors...
      */
-    for (DataField f : relation.getFieldList()) {
-      switch (f.getDataType()) {
+    for (int i = 0; i < fields.length; ++i) {
+      DataField f = fields[i];
+      int column = i + 1;
+      switch (types[i]) {
         case BINARY:
-          byte[] blobBytes = rs.getBytes(f.getName());
+          byte[] blobBytes = rs.getBytes(column);
           row.setBlobField(f, blobBytes);
           break;
         case LONG_STRING:
         case URI:
         case STRING:
-          row.setStringField(f, rs.getString(f.getName()));
+          row.setStringField(f, rs.getString(column));
           break;
         case INTEGER:
-          long l = rs.getLong(f.getName());
+          long l = rs.getLong(column);
           if (rs.wasNull()) {
             row.setLongField(f, null);
           } else {
@@ -70,7 +93,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
           }
           break;
         case DECIMAL: {
-          String value = rs.getString(f.getName());
+          String value = rs.getString(column);
           if (value == null) {
             row.setNumericField(f, null);
           } else {
@@ -79,7 +102,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
         case BOOLEAN:
-          Boolean b = rs.getBoolean(f.getName());
+          Boolean b = rs.getBoolean(column);
           if (rs.wasNull()) {
             row.setBooleanField(f, null);
           } else {
@@ -87,7 +110,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
           }
           break;
         case DATETIME:
-          Date d = rs.getTimestamp(f.getName());
+          Date d = rs.getTimestamp(column);
           if (d == null) {
             row.setDateField(f, null);
           } else {
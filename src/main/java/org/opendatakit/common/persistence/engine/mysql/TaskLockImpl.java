@@ -45,6 +45,7 @@ public class TaskLockImpl implements TaskLock {
 
   private static final String PERSISTENCE_LAYER_PROBLEM = "Persistence layer failure";
   private static final String K_BQ = "`";
+  private static final int NAMED_LOCK_TIMEOUT_SECONDS = 30;
   final DatastoreAccessMetrics dam;
   final DatastoreImpl datastore;
   final User user;
@@ -67,10 +68,17 @@ public class TaskLockImpl implements TaskLock {
         + TaskLockTable.TABLE_NAME + K_BQ;
     // String tableName= TaskLockTable.TABLE_NAME;
 
-    b.append("SET SESSION TRANSACTION ISOLATION LEVEL SERIALIZABLE");
-    stmts.add(b.toString());
+    // serialize only against other lockers of this resource and task type.
+    // Named locks belong to the session, so this is released explicitly after COMMIT.
+    String lockName = namedLock(entity.getFormId(), entity.getTaskType());
+    b.append("SELECT GET_LOCK('").append(lockName).append("', ")
+        .append(NAMED_LOCK_TIMEOUT_SECONDS).append(")");
+    final String getLockStmt = b.toString();
+    b.setLength(0);
+    b.append("SELECT RELEASE_LOCK('").append(lockName).append("')");
+    final String releaseLockStmt = b.toString();
     b.setLength(0);
-    b.append("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+    b.append("START TRANSACTION");
     stmts.add(b.toString());
     b.setLength(0);
     b.append("SET @present := NOW(),");
@@ -90,11 +98,6 @@ public class TaskLockImpl implements TaskLock {
     b.append(1000L * l);
     stmts.add(b.toString());
     b.setLength(0);
-    b.append("LOCK TABLES ");
-    b.append(tableName);
-    b.append(" WRITE ");
-    stmts.add(b.toString());
-    b.setLength(0);
 
     dam.recordPutUsage(TaskLockTable.TABLE_NAME);
     if (!entity.isFromDatabase()) {
@@ -180,12 +183,20 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks for this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ");
     b.append(tableName);
     b.append(" WHERE ");
     b.append(K_BQ);
+    b.append(entity.formId.getName());
+    b.append(K_BQ);
+    b.append(" = @formId AND ");
+    b.append(K_BQ);
+    b.append(entity.taskType.getName());
+    b.append(K_BQ);
+    b.append(" = @taskType AND ");
+    b.append(K_BQ);
     b.append(entity.expirationDateTime.getName());
     b.append(K_BQ);
     b.append(" <= CAST(@present AS DATETIME)");
@@ -303,9 +314,6 @@ public class TaskLockImpl implements TaskLock {
     b.append(" = CAST(@minExpiration AS DATETIME)");
     stmts.add(b.toString());
     b.setLength(0);
-    b.append("UNLOCK TABLES");
-    stmts.add(b.toString());
-    b.setLength(0);
     b.append("COMMIT");
     stmts.add(b.toString());
     b.setLength(0);
@@ -326,10 +334,22 @@ public class TaskLockImpl implements TaskLock {
         @Override
         public Object doInConnection(Connection conn) throws SQLException, DataAccessException {
           boolean success = false;
+          boolean locked = false;
           boolean oldValue = conn.getAutoCommit();
+          int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            // the named lock already serializes access to the rows we touch;
+            // SERIALIZABLE next-key locks would serialize unrelated resources again.
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            Statement lockStmt = conn.createStatement();
+            ResultSet lockRs = lockStmt.executeQuery(getLockStmt);
+            locked = lockRs.next() && lockRs.getInt(1) == 1;
+            lockRs.close();
+            lockStmt.close();
+            if (!locked) {
+              throw new SQLException("GET_LOCK timed out");
+            }
             String lastResult = null;
             for (String s : stmts) {
               Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, ResultSet.CLOSE_CURSORS_AT_COMMIT);
@@ -350,13 +370,14 @@ public class TaskLockImpl implements TaskLock {
             e.printStackTrace();
             conn.rollback();
           } finally {
-            if (!success) {
+            if (locked) {
               Statement stmt = conn.createStatement();
-              LoggerFactory.getLogger(TaskLockImpl.class).info("UNLOCK TABLES");
-              stmt.execute("UNLOCK TABLES");
+              stmt.execute(releaseLockStmt);
+              stmt.close();
               conn.commit();
             }
           }
+          conn.setTransactionIsolation(oldTransactionValue);
           conn.setAutoCommit(oldValue);
           return success ? uri : null;
         }
@@ -375,6 +396,15 @@ public class TaskLockImpl implements TaskLock {
     }
   }
 
+  /**
+   * GET_LOCK name for the resource and task type. Hashed because lock names
+   * are limited to 64 characters.
+   */
+  static String namedLock(String formId, String taskType) {
+    String md5 = CommonFieldsBase.newMD5HashUri(formId + "|" + taskType);
+    return "odk_task_lock:" + md5.substring("md5:".length());
+  }
+
   @Override
   public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
     boolean result = false;
@@ -16,7 +16,9 @@ package org.opendatakit.common.persistence.engine.pgres;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -25,6 +27,7 @@ import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.QueryResult;
 import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.engine.EngineUtils;
+import org.opendatakit.common.persistence.engine.RelationStatementCache;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.security.User;
 import org.slf4j.Logger;
@@ -49,6 +52,12 @@ public class QueryImpl implements Query {
   private static final String K_AND = " AND ";
   private static final String K_BIND_VALUE = " ? ";
   private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_DELETE_FROM = "DELETE FROM ";
+  private static final String K_IN = " IN ";
+  private static final String K_NO_MATCH = " 1 = 0 ";
+  private static final String K_OPEN_PAREN = " ( ";
+  private static final String K_CLOSE_PAREN = " ) ";
+  private static final String K_LIMIT = " LIMIT ";
 
   private static Map<FilterOperation, String> operationMap = new HashMap<FilterOperation, String>();
   private static Map<Direction, String> directionMap = new HashMap<Direction, String>();
@@ -71,26 +80,37 @@ public class QueryImpl implements Query {
   private final StringBuilder queryBindBuilder = new StringBuilder();
   private final List<Object> bindValues = new ArrayList<Object>();
   private final StringBuilder querySortBuilder = new StringBuilder();
+  private final List<DataField> sortAttrs = new ArrayList<DataField>();
+  private final List<Direction> sortDirections = new ArrayList<Direction>();
   private final Logger queryStringLogger;
+  private final String loggingContextTag;
   private DataField dominantSortAttr = null;
   private Direction dominantSortDirection = null;
   private boolean isSortedByUri = false;
+  private List<DataField> projection = null;
 
   public QueryImpl(CommonFieldsBase relation, String loggingContextTag, DatastoreImpl dataStoreImpl, User user) {
     this.queryStringLogger = LoggerFactory.getLogger("org.opendatakit.common.persistence.LogQueryString." + relation.getSchemaName() + "." + relation.getTableName());
     this.relation = relation;
+    this.loggingContextTag = loggingContextTag;
     this.dataStoreImpl = dataStoreImpl;
     this.user = user;
   }
 
-  private String generateQuery() {
+  private String generateQuery(List<DataField> fields) {
+    RelationStatementCache.Statements statements = dataStoreImpl.getStatements(relation);
+    if (fields == statements.getFields()) {
+      // every column -- reuse the cached text
+      return statements.getSelect();
+    }
+
     // generate the query
     StringBuilder baseQueryBuilder = new StringBuilder();
 
     baseQueryBuilder.append(K_SELECT);
 
     boolean first = true;
-    for (DataField f : relation.getFieldList()) {
+    for (DataField f : fields) {
       if (!first) {
         baseQueryBuilder.append(K_CS);
       }
@@ -111,6 +131,24 @@ public class QueryImpl implements Query {
     return baseQueryBuilder.toString();
   }
 
+  /**
+   * @return the columns to fetch: every column, or, if a projection was set,
+   *     the projected columns plus the primary key and sort columns, in
+   *     table order.
+   */
+  private List<DataField> getSelectedFields() {
+    if (projection == null) {
+      return relation.getFieldList();
+    }
+    List<DataField> fields = new ArrayList<DataField>();
+    for (DataField f : relation.getFieldList()) {
+      if (f.equals(relation.primaryKey) || projection.contains(f) || sortAttrs.contains(f)) {
+        fields.add(f);
+      }
+    }
+    return fields;
+  }
+
   private String generateDistinctFieldValueQuery(DataField dataField) {
     if (!relation.getFieldList().contains(dataField)) {
       throw new IllegalStateException("Attempting to retrieve non-existent data field "
@@ -136,6 +174,18 @@ public class QueryImpl implements Query {
     return baseQueryBuilder.toString();
   }
 
+  @Override
+  public void setProjection(List<DataField> fields) {
+    for (DataField f : fields) {
+      if (!relation.getFieldList().contains(f)) {
+        throw new IllegalStateException("Attempting to project non-existent data field "
+            + f.getName() + " from " + relation.getSchemaName() + "."
+            + relation.getTableName());
+      }
+    }
+    projection = new ArrayList<DataField>(fields);
+  }
+
   @Override
   public void addFilter(DataField attributeName, FilterOperation op, Object value) {
     if (queryBindBuilder.length() == 0) {
@@ -157,6 +207,35 @@ public class QueryImpl implements Query {
     }
   }
 
+  @Override
+  public void addValueSetFilter(DataField attributeName, Collection<?> valueSet) {
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    if (valueSet.isEmpty()) {
+      // nothing can match an empty set
+      queryBindBuilder.append(K_NO_MATCH);
+      return;
+    }
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(attributeName.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_IN);
+    queryBindBuilder.append(K_OPEN_PAREN);
+    boolean first = true;
+    for (Object value : valueSet) {
+      if (!first) {
+        queryBindBuilder.append(K_CS);
+      }
+      first = false;
+      queryBindBuilder.append(K_BIND_VALUE);
+      bindValues.add(DatastoreImpl.getBindValue(attributeName, value));
+    }
+    queryBindBuilder.append(K_CLOSE_PAREN);
+  }
+
   private ArrayList<Object> addContinuationFilter(StringBuilder queryContinuationBindBuilder, Object continuationValue) {
     if (dominantSortAttr == null) {
       throw new IllegalStateException("unexpected state");
@@ -185,6 +264,77 @@ public class QueryImpl implements Query {
     return values;
   }
 
+  /**
+   * Keyset pagination is only valid when the (dominant sort, PK) pair fully
+   * determines the row ordering, i.e., the dominant sort is the PK or the PK
+   * immediately follows it with the same direction.
+   */
+  private boolean isKeysetPageable() {
+    if (dominantSortAttr.equals(relation.primaryKey)) {
+      return true;
+    }
+    return sortAttrs.size() == 2 && sortAttrs.get(1).equals(relation.primaryKey)
+        && sortDirections.get(1).equals(dominantSortDirection);
+  }
+
+  /**
+   * Adds a strict (sortCol, PK) &gt; (value, uri) predicate (or &lt; for
+   * descending sorts) so that the rows preceding the resume point are never
+   * fetched.
+   */
+  private ArrayList<Object> addKeysetContinuationFilter(StringBuilder queryContinuationBindBuilder,
+                                                        Object continuationValue, String uriLastReturnedValue) {
+    if (dominantSortAttr == null) {
+      throw new IllegalStateException("unexpected state");
+    }
+    if (continuationValue == null || uriLastReturnedValue == null) {
+      throw new IllegalStateException("unexpected state");
+    }
+
+    if (queryBindBuilder.length() == 0) {
+      queryContinuationBindBuilder.append(K_WHERE);
+    } else {
+      queryContinuationBindBuilder.append(K_AND);
+    }
+
+    String op = operationMap.get(dominantSortDirection.equals(Direction.ASCENDING)
+        ? FilterOperation.GREATER_THAN : FilterOperation.LESS_THAN);
+
+    ArrayList<Object> values = new ArrayList<Object>();
+    values.addAll(bindValues);
+
+    if (dominantSortAttr.equals(relation.primaryKey)) {
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(relation.primaryKey.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(op);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      values.add(DatastoreImpl.getBindValue(relation.primaryKey, uriLastReturnedValue));
+      return values;
+    }
+
+    // a row-value comparison lets PostgreSQL walk the (sortCol, PK) ordering directly
+    queryContinuationBindBuilder.append(K_OPEN_PAREN);
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(dominantSortAttr.getName());
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(K_CS);
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(relation.primaryKey.getName());
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(K_CLOSE_PAREN);
+    queryContinuationBindBuilder.append(op);
+    queryContinuationBindBuilder.append(K_OPEN_PAREN);
+    queryContinuationBindBuilder.append(K_BIND_VALUE);
+    queryContinuationBindBuilder.append(K_CS);
+    queryContinuationBindBuilder.append(K_BIND_VALUE);
+    queryContinuationBindBuilder.append(K_CLOSE_PAREN);
+    values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
+    values.add(DatastoreImpl.getBindValue(relation.primaryKey, uriLastReturnedValue));
+
+    return values;
+  }
+
   @Override
   public void addSort(DataField attributeName, Direction direction) {
     if (querySortBuilder.length() == 0) {
@@ -196,6 +346,8 @@ public class QueryImpl implements Query {
     querySortBuilder.append(attributeName.getName());
     querySortBuilder.append(K_BQ);
     querySortBuilder.append(directionMap.get(direction));
+    sortAttrs.add(attributeName);
+    sortDirections.add(direction);
 
     // keep track of the dominant sort attribute...
     if (dominantSortAttr == null) {
@@ -212,19 +364,23 @@ public class QueryImpl implements Query {
   @Override
   public List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException {
 
-    String query = generateQuery() + queryBindBuilder.toString() + querySortBuilder.toString()
+    List<DataField> fields = getSelectedFields();
+    String query = generateQuery(fields) + queryBindBuilder.toString() + querySortBuilder.toString()
         + ";";
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
-    rowMapper = new RelationRowMapper(relation, user);
+    rowMapper = new RelationRowMapper(relation, fields, user);
 
+    long startNanos = System.nanoTime();
     try {
       queryStringLogger.debug(query);
       List<? extends CommonFieldsBase> l = dataStoreImpl.getJdbcConnection().query(query,
           bindValues.toArray(), rowMapper);
-      dataStoreImpl.recordQueryUsage(relation, l.size());
+      dataStoreImpl.recordQueryUsage(relation, loggingContextTag, l.size(),
+          System.nanoTime() - startNanos);
       return l;
     } catch (Exception e) {
-      dataStoreImpl.recordQueryUsage(relation, 0);
+      dataStoreImpl.recordQueryUsage(relation, loggingContextTag, 0,
+          System.nanoTime() - startNanos);
       e.printStackTrace();
       throw new ODKDatastoreException(e);
     }
@@ -237,18 +393,113 @@ public class QueryImpl implements Query {
         + querySortBuilder.toString() + ";";
 
     List<?> keys = null;
+    long startNanos = System.nanoTime();
     try {
       keys = dataStoreImpl.getJdbcConnection().queryForList(query, bindValues.toArray(),
           String.class);
-      dataStoreImpl.recordQueryUsage(relation, keys.size());
+      dataStoreImpl.recordQueryUsage(relation, loggingContextTag, keys.size(),
+          System.nanoTime() - startNanos);
     } catch (Exception e) {
-      dataStoreImpl.recordQueryUsage(relation, 0);
+      dataStoreImpl.recordQueryUsage(relation, loggingContextTag, 0,
+          System.nanoTime() - startNanos);
       e.printStackTrace();
       throw new ODKDatastoreException(e);
     }
     return keys;
   }
 
+  @Override
+  public List<String> executeKeysOnly() throws ODKDatastoreException {
+    return executeKeys(dataStoreImpl.getStatements(relation).getSelectKeys()
+        + queryBindBuilder.toString() + querySortBuilder.toString() + ";");
+  }
+
+  @Override
+  public List<String> executeKeysOnly(int limit) throws ODKDatastoreException {
+    return executeKeys(generateKeyBatchQuery(limit) + ";");
+  }
+
+  private List<String> executeKeys(String query) throws ODKDatastoreException {
+    List<String> keys = null;
+    long startNanos = System.nanoTime();
+    try {
+      queryStringLogger.debug(query);
+      keys = dataStoreImpl.getJdbcConnection().queryForList(query, bindValues.toArray(),
+          String.class);
+      dataStoreImpl.recordQueryUsage(relation, loggingContextTag, keys.size(),
+          System.nanoTime() - startNanos);
+    } catch (Exception e) {
+      dataStoreImpl.recordQueryUsage(relation, loggingContextTag, 0,
+          System.nanoTime() - startNanos);
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    }
+    return keys;
+  }
+
+  /**
+   * @return the sub-select of the primary keys of the first {@code limit}
+   *     matching rows, ordered by the sort columns and then the primary key.
+   */
+  private String generateKeyBatchQuery(int limit) {
+    StringBuilder b = new StringBuilder();
+    b.append(dataStoreImpl.getStatements(relation).getSelectKeys());
+    b.append(queryBindBuilder.toString());
+    b.append(querySortBuilder.toString());
+    if (!isSortedByUri) {
+      // make the batch deterministic
+      b.append((querySortBuilder.length() == 0) ? K_ORDER_BY : K_CS);
+      b.append(K_BQ);
+      b.append(relation.primaryKey.getName());
+      b.append(K_BQ);
+    }
+    b.append(K_LIMIT);
+    b.append(Integer.toString(limit));
+    return b.toString();
+  }
+
+  private static String generateDeleteInQuery(CommonFieldsBase table, DataField keyField,
+                                              String keyQuery) {
+    StringBuilder b = new StringBuilder();
+    b.append(K_DELETE_FROM);
+    b.append(K_BQ);
+    b.append(table.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(table.getTableName());
+    b.append(K_BQ);
+    b.append(K_WHERE);
+    b.append(K_BQ);
+    b.append(keyField.getName());
+    b.append(K_BQ);
+    b.append(K_IN);
+    b.append(K_OPEN_PAREN);
+    b.append(keyQuery);
+    b.append(K_CLOSE_PAREN);
+    return b.toString();
+  }
+
+  @Override
+  public int executeDelete(Map<? extends CommonFieldsBase, DataField> dependents, int limit)
+      throws ODKDatastoreException {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("limit must be positive");
+    }
+    String keyQuery = generateKeyBatchQuery(limit);
+
+    Map<CommonFieldsBase, String> statements = new LinkedHashMap<CommonFieldsBase, String>();
+    for (Map.Entry<? extends CommonFieldsBase, DataField> e : dependents.entrySet()) {
+      statements.put(e.getKey(), generateDeleteInQuery(e.getKey(), e.getValue(), keyQuery));
+    }
+    // the matching rows go last, so that every statement selects the same batch
+    statements.put(relation, generateDeleteInQuery(relation, relation.primaryKey, keyQuery));
+    for (String statement : statements.values()) {
+      queryStringLogger.debug(statement);
+    }
+    return dataStoreImpl.executeDeletes(statements, bindValues.toArray());
+  }
+
   @Override
   public QueryResult executeQuery(QueryResumePoint startCursor, int fetchLimit) throws ODKDatastoreException {
 
@@ -266,6 +517,9 @@ public class QueryImpl implements Query {
     // for continuation executions of queries
     StringBuilder queryContinuationBindBuilder = new StringBuilder();
     List<Object> values;
+    // the uri of the last row returned by the prior query, if the result set
+    // must be scanned up to (and past) that row.
+    String skipThroughUri = null;
 
     if (startCursor != null) {
       DataField matchingStartCursorAttr = null;
@@ -288,25 +542,41 @@ public class QueryImpl implements Query {
 
       Object continuationValue = EngineUtils.getDominantSortAttributeValueFromString(
           startCursor.getValue(), dominantSortAttr);
-      values = addContinuationFilter(queryContinuationBindBuilder, continuationValue);
+      String uriLastReturnedValue = startCursor.getUriLastReturnedValue();
+      if (uriLastReturnedValue != null && isKeysetPageable()) {
+        values = addKeysetContinuationFilter(queryContinuationBindBuilder, continuationValue,
+            uriLastReturnedValue);
+      } else {
+        // secondary sorts intervene -- fall back to scanning past the last uri
+        values = addContinuationFilter(queryContinuationBindBuilder, continuationValue);
+        skipThroughUri = uriLastReturnedValue;
+      }
     } else {
       values = bindValues;
     }
 
-    String query = generateQuery() + queryBindBuilder.toString()
-        + queryContinuationBindBuilder.toString() + querySortBuilder.toString() + ";";
+    // fetch one extra row to determine whether there are more results.
+    // We can only push the limit down if we don't need to skip leading rows.
+    int rowLimit = (fetchLimit > 0 && skipThroughUri == null) ? fetchLimit + 1 : 0;
+
+    List<DataField> fields = getSelectedFields();
+    String query = generateQuery(fields) + queryBindBuilder.toString()
+        + queryContinuationBindBuilder.toString() + querySortBuilder.toString()
+        + ((rowLimit > 0) ? K_LIMIT + Integer.toString(rowLimit) : "") + ";";
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
-    rowMapper = new RelationRowMapper(relation, user);
-    RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(startCursor,
+    rowMapper = new RelationRowMapper(relation, fields, user);
+    RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(skipThroughUri,
         fetchLimit, rowMapper);
 
     try {
       CoreResult r;
+      long startNanos = System.nanoTime();
       try {
         queryStringLogger.debug(query);
         r = dataStoreImpl.getJdbcConnection().query(query, values.toArray(), rse);
       } finally {
-        dataStoreImpl.recordQueryUsage(relation, rse.getReadCount());
+        dataStoreImpl.recordQueryUsage(relation, loggingContextTag, rse.getReadCount(),
+            System.nanoTime() - startNanos);
       }
 
       if (r.results.size() == 0) {
@@ -347,14 +617,14 @@ public class QueryImpl implements Query {
 
   private class RowMapperFilteredResultSetExtractor implements ResultSetExtractor<CoreResult> {
 
-    private final QueryResumePoint startCursor;
+    private final String startUri;
     private final int fetchLimit;
     private final RowMapper<? extends CommonFieldsBase> rowMapper;
     private int readCount = 0;
 
-    RowMapperFilteredResultSetExtractor(QueryResumePoint startCursor, int fetchLimit,
+    RowMapperFilteredResultSetExtractor(String startUri, int fetchLimit,
                                         RowMapper<? extends CommonFieldsBase> rowMapper) {
-      this.startCursor = startCursor;
+      this.startUri = startUri;
       this.fetchLimit = fetchLimit;
       this.rowMapper = rowMapper;
     }
@@ -363,7 +633,6 @@ public class QueryImpl implements Query {
     public CoreResult extractData(ResultSet rs) throws SQLException {
       boolean hasMoreResults = false;
       List<CommonFieldsBase> results = new ArrayList<CommonFieldsBase>();
-      String startUri = (startCursor == null) ? null : startCursor.getUriLastReturnedValue();
       boolean beforeUri = (startUri != null);
       while (rs.next()) {
         ++readCount;
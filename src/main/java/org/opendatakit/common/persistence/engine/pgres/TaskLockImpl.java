@@ -82,7 +82,10 @@ public class TaskLockImpl implements TaskLock {
     String lifetimeIntervalMilliseconds = b.toString();
     b.setLength(0);
 
-    b.append("LOCK TABLE ").append(tableName).append(" IN ACCESS EXCLUSIVE MODE");
+    // serialize only against other lockers of this resource and task type.
+    // The advisory lock is released when the transaction ends.
+    b.append("SELECT pg_advisory_xact_lock(CAST(")
+        .append(advisoryLockKey(entity.getFormId(), entity.getTaskType())).append(" AS BIGINT))");
     stmts.add(b.toString());
     b.setLength(0);
 
@@ -172,9 +175,13 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks for this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ").append(tableName).append(" WHERE ");
+    b.append(K_BQ).append(entity.formId.getName()).append(K_BQ).append(" = ")
+        .append(formIdInline).append(" AND ");
+    b.append(K_BQ).append(entity.taskType.getName()).append(K_BQ).append(" = ")
+        .append(taskTypeInline).append(" AND ");
     b.append(K_BQ).append(entity.expirationDateTime.getName()).append(K_BQ).append(" <= NOW()");
     stmts.add(b.toString());
     b.setLength(0);
@@ -228,7 +235,9 @@ public class TaskLockImpl implements TaskLock {
           int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            // the advisory lock already serializes access to the rows we touch;
+            // SERIALIZABLE would only add false conflicts with other resources.
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             Statement stmt = conn.createStatement();
             for (String s : stmts) {
               // for debugging: LoggerFactory.getLogger(TaskLockImpl.class).info(s);
@@ -253,6 +262,16 @@ public class TaskLockImpl implements TaskLock {
     return (TaskLockTable) datastore.getEntity(relation, entity.getUri(), user);
   }
 
+  /**
+   * 64-bit key for pg_advisory_xact_lock, derived from the md5 hash of the
+   * resource and task type. A collision only causes unrelated locks to
+   * serialize against each other.
+   */
+  static long advisoryLockKey(String formId, String taskType) {
+    String md5 = CommonFieldsBase.newMD5HashUri(formId + "|" + taskType);
+    return Long.parseUnsignedLong(md5.substring("md5:".length(), "md5:".length() + 16), 16);
+  }
+
   @Override
   public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
     boolean result = false;
@@ -20,10 +20,14 @@ import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import javax.sql.DataSource;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -34,16 +38,17 @@ import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
-import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.RelationStatementCache;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.security.User;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
@@ -83,6 +88,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+  public static final String K_IN = " IN ";
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
   public static final Integer DEFAULT_INT_NUMERIC_PRECISION = 9;
@@ -95,7 +101,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   // and the same limit applies to table names.
   private static final int MAX_TABLE_NAME_LEN = 112; // reserve 4 char for idx
   // limit on SqlServer capacity (minus about 100 for where clause filters)
-  private static final int MAX_BIND_PARAMS = 2000;
+  static final int MAX_BIND_PARAMS = 2000;
+  // number of keys per DELETE ... IN (...) statement; a power of two, since
+  // shorter statements are padded to the next one (see RelationStatementCache)
+  static final int MAX_DELETE_KEYS = Math.min(MAX_BIND_PARAMS, 1024);
   // limit to 256MB blob size; don't know the impact of this...
   private static final Long MAX_BLOB_SIZE = 65536 * 4096L;
   private static final String K_NULL = " NULL ";
@@ -106,7 +115,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       return new TableDefinition(rs);
     }
   };
-  private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private final RelationStatementCache statementCache = new RelationStatementCache(K_BQ);
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
   private String schemaName = null;
@@ -237,6 +247,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     this.schemaName = schemaName;
   }
 
+  /**
+   * Sets the shared counters that the datastore metrics servlet reports on.
+   */
+  public void setAccessMetrics(DatastoreAccessMetrics accessMetrics) {
+    this.dam = accessMetrics;
+  }
+
   @Override
   public void afterPropertiesSet() {
     if (dataSource == null) {
@@ -249,8 +266,9 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
-  void recordQueryUsage(CommonFieldsBase relation, int recCount) {
-    dam.recordQueryUsage(relation, recCount);
+  void recordQueryUsage(CommonFieldsBase relation, String loggingContextTag, int recCount,
+                        long elapsedNanos) {
+    dam.recordQueryUsage(relation, loggingContextTag, recCount, elapsedNanos);
   }
 
   @Override
@@ -258,6 +276,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return schemaName;
   }
 
+  RelationStatementCache.Statements getStatements(CommonFieldsBase relation) {
+    return statementCache.get(relation);
+  }
+
   JdbcTemplate getJdbcConnection() {
     return new JdbcTemplate(dataSource);
   }
@@ -367,6 +389,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    // the table may be (re)created with a different set of columns
+    statementCache.invalidate(relation);
     JdbcTemplate jc = getJdbcConnection();
     TransactionStatus status = null;
     try {
@@ -599,6 +623,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    statementCache.invalidate(relation);
     try {
       StringBuilder b = new StringBuilder();
       b.append(K_DROP_TABLE);
@@ -639,20 +664,26 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   @Override
   public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
       throws ODKEntityNotFoundException {
-    Query query = new QueryImpl(relation, "getEntity", this, user);
-    query.addFilter(relation.primaryKey, FilterOperation.EQUAL, uri);
+    RelationStatementCache.Statements statements = getStatements(relation);
+    RelationRowMapper rowMapper = new RelationRowMapper(relation, statements.getFields(), user);
     dam.recordGetUsage(relation);
+    long startNanos = System.nanoTime();
+    List<CommonFieldsBase> results = null;
     try {
-      List<? extends CommonFieldsBase> results = query.executeQuery();
-      if (results == null || results.size() != 1) {
-        throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
-            + relation.getTableName() + " key: " + uri);
-      }
-      return (T) results.get(0);
-    } catch (ODKDatastoreException e) {
+      results = getJdbcConnection().query(statements.getSelectByKey(),
+          new Object[]{getBindValue(relation.primaryKey, uri)}, rowMapper);
+    } catch (Exception e) {
       throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
           + relation.getTableName() + " key: " + uri, e);
+    } finally {
+      dam.recordQueryUsage(relation, "getEntity", (results == null) ? 0 : results.size(),
+          System.nanoTime() - startNanos);
     }
+    if (results.size() != 1) {
+      throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
+          + relation.getTableName() + " key: " + uri);
+    }
+    return (T) results.get(0);
   }
 
   @Override
@@ -661,164 +692,234 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return query;
   }
 
+  /**
+   * Stamps the update audit fields and returns the bind values of the
+   * relation's UPDATE statement.
+   */
+  private List<SqlParameterValue> buildUpdateArgumentList(CommonFieldsBase entity,
+                                                          RelationStatementCache.Statements statements,
+                                                          User user) {
+    entity.setDateField(entity.lastUpdateDate, new Date());
+    entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
+    return buildArgumentList(entity, statements.getUpdateFields());
+  }
+
+  private static List<SqlParameterValue> buildArgumentList(CommonFieldsBase entity,
+                                                           DataField[] bindFields) {
+    ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>(bindFields.length);
+    for (DataField f : bindFields) {
+      buildArgumentList(pv, entity, f);
+    }
+    return pv;
+  }
+
   @Override
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
-    dam.recordPutUsage(entity);
+    long startNanos = System.nanoTime();
     try {
-      boolean first;
-      StringBuilder b = new StringBuilder();
+      RelationStatementCache.Statements statements = getStatements(entity);
       if (entity.isFromDatabase()) {
         // we need to do an update
-        entity.setDateField(entity.lastUpdateDate, new Date());
-        entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
-
-        b.append(K_UPDATE);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        b.append(K_SET);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          // primary key goes in the where clause...
-          if (f == entity.primaryKey)
-            continue;
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
-          buildArgumentList(pv, entity, f);
-        }
-        b.append(K_WHERE);
-        b.append(K_BQ);
-        b.append(entity.primaryKey.getName());
-        b.append(K_BQ);
-        b.append(K_EQ);
-        b.append(K_BIND_VALUE);
-        buildArgumentList(pv, entity, entity.primaryKey);
+        List<SqlParameterValue> pv = buildUpdateArgumentList(entity, statements, user);
 
         // update...
-        String sql = b.toString();
+        String sql = statements.getUpdate();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
       } else {
         // not yet in database -- insert
-        b.append(K_INSERT_INTO);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-        }
-        b.append(K_CLOSE_PAREN);
-        b.append(K_VALUES);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BIND_VALUE);
-          buildArgumentList(pv, entity, f);
-        }
-        b.append(K_CLOSE_PAREN);
+        List<SqlParameterValue> pv = buildArgumentList(entity, statements.getInsertFields());
 
         // insert...
-        String sql = b.toString();
+        String sql = statements.getInsert();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
         getJdbcConnection().update(sql, setter);
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
       throw new ODKEntityPersistException(e);
+    } finally {
+      dam.recordPutUsage(entity, 1, System.nanoTime() - startNanos);
     }
   }
 
+  /**
+   * Groups the entities by relation and by insert-vs-update and issues each
+   * group as a JDBC batch. The SQL comes from the statement cache and each batch
+   * is sized so that its total bind count stays within MAX_BIND_PARAMS (the
+   * drivers may rewrite a batch into a single multi-row statement).
+   */
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
+    // entities derived from the same relation share their DataField instances,
+    // so the primary key field identifies the relation (and its field list).
+    Map<DataField, List<CommonFieldsBase>> inserts = new LinkedHashMap<DataField, List<CommonFieldsBase>>();
+    Map<DataField, List<CommonFieldsBase>> updates = new LinkedHashMap<DataField, List<CommonFieldsBase>>();
+    Set<CommonFieldsBase> seen = Collections.newSetFromMap(new IdentityHashMap<CommonFieldsBase, Boolean>());
     for (CommonFieldsBase d : entityList) {
-      putEntity(d, user);
+      if (!seen.add(d)) {
+        // the same object listed twice -- one write persists its state.
+        continue;
+      }
+      Map<DataField, List<CommonFieldsBase>> groups = d.isFromDatabase() ? updates : inserts;
+      List<CommonFieldsBase> group = groups.get(d.primaryKey);
+      if (group == null) {
+        group = new ArrayList<CommonFieldsBase>();
+        groups.put(d.primaryKey, group);
+      }
+      group.add(d);
+    }
+
+    for (List<CommonFieldsBase> group : inserts.values()) {
+      putEntityGroup(group, false, user);
+    }
+    for (List<CommonFieldsBase> group : updates.values()) {
+      putEntityGroup(group, true, user);
+    }
+  }
+
+  private void putEntityGroup(List<CommonFieldsBase> group, boolean isUpdate, User user)
+      throws ODKEntityPersistException {
+    if (group.size() == 1) {
+      putEntity(group.get(0), user);
+      return;
+    }
+
+    CommonFieldsBase relation = group.get(0);
+    RelationStatementCache.Statements statements = getStatements(relation);
+    String sql = isUpdate ? statements.getUpdate() : statements.getInsert();
+    int batchSize = Math.max(1, MAX_BIND_PARAMS / relation.getFieldList().size());
+
+    for (int i = 0; i < group.size(); i += batchSize) {
+      List<CommonFieldsBase> batch = group.subList(i, Math.min(i + batchSize, group.size()));
+      List<List<SqlParameterValue>> argLists = new ArrayList<List<SqlParameterValue>>();
+      try {
+        for (CommonFieldsBase entity : batch) {
+          argLists.add(isUpdate ? buildUpdateArgumentList(entity, statements, user)
+              : buildArgumentList(entity, statements.getInsertFields()));
+        }
+        long startNanos = System.nanoTime();
+        getJdbcConnection().batchUpdate(sql, new BatchedStatementSetter(sql, argLists));
+        dam.recordPutUsage(relation, batch.size(), System.nanoTime() - startNanos);
+      } catch (Exception e) {
+        throw new ODKEntityPersistException(e);
+      }
+      if (!isUpdate) {
+        for (CommonFieldsBase entity : batch) {
+          entity.setFromDatabase(true); // now it is in the database...
+        }
+      }
     }
   }
 
   @Override
   public void deleteEntity(EntityKey key, User user) throws ODKDatastoreException {
 
-    dam.recordDeleteUsage(key);
+    long startNanos = System.nanoTime();
     try {
-      CommonFieldsBase d = key.getRelation();
+      String sql = getStatements(key.getRelation()).getDeleteByKey();
 
-      StringBuilder b = new StringBuilder();
-      b.append(K_DELETE_FROM);
-      b.append(K_BQ);
-      b.append(d.getSchemaName());
-      b.append(K_BQ);
-      b.append(".");
-      b.append(K_BQ);
-      b.append(d.getTableName());
-      b.append(K_BQ);
-      b.append(K_WHERE);
-      b.append(K_BQ);
-      b.append(d.primaryKey.getName());
-      b.append(K_BQ);
-      b.append(K_EQ);
-      b.append(K_BIND_VALUE);
-
-      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + sql + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[]{key.getKey()});
+      getJdbcConnection().update(sql, new Object[]{key.getKey()});
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
+    } finally {
+      dam.recordDeleteUsage(key.getRelation(), 1, System.nanoTime() - startNanos);
     }
   }
 
+  /**
+   * Deletes the keys table-by-table within a single transaction, issuing
+   * DELETE ... WHERE _URI IN (...) statements of at most MAX_DELETE_KEYS keys.
+   * Tables are processed in the order they first appear in the key list.
+   */
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
-    ODKDatastoreException e = null;
+    Map<String, List<EntityKey>> keysByTable = new LinkedHashMap<String, List<EntityKey>>();
     for (EntityKey k : keys) {
-      try {
-        deleteEntity(k, user);
-      } catch (ODKDatastoreException ex) {
-        ex.printStackTrace();
-        if (e == null) {
-          e = ex; // save the first exception...
+      CommonFieldsBase d = k.getRelation();
+      String fullyQualifiedName = d.getSchemaName() + "." + d.getTableName();
+      List<EntityKey> tableKeys = keysByTable.get(fullyQualifiedName);
+      if (tableKeys == null) {
+        tableKeys = new ArrayList<EntityKey>();
+        keysByTable.put(fullyQualifiedName, tableKeys);
+      }
+      tableKeys.add(k);
+    }
+
+    TransactionStatus status = null;
+    try {
+      status = tm.getTransaction(new DefaultTransactionDefinition());
+      JdbcTemplate jc = getJdbcConnection();
+      for (List<EntityKey> tableKeys : keysByTable.values()) {
+        CommonFieldsBase d = tableKeys.get(0).getRelation();
+        RelationStatementCache.Statements statements = getStatements(d);
+        int deleteCount = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < tableKeys.size(); i += MAX_DELETE_KEYS) {
+          List<EntityKey> chunk = tableKeys.subList(i,
+              Math.min(i + MAX_DELETE_KEYS, tableKeys.size()));
+          // pad with the last key so that only a few distinct statements are issued
+          Object[] uris = new Object[statements.getDeleteInKeyCount(chunk.size())];
+          for (int j = 0; j < uris.length; ++j) {
+            uris[j] = chunk.get(Math.min(j, chunk.size() - 1)).getKey();
+          }
+          deleteCount += jc.update(statements.getDeleteIn(chunk.size()), uris);
         }
+        dam.recordDeleteUsage(d, deleteCount, System.nanoTime() - startNanos);
+        LoggerFactory.getLogger(DatastoreImpl.class).info("Deleted " + deleteCount + " of "
+            + tableKeys.size() + " keys from " + d.getSchemaName() + "." + d.getTableName()
+            + " by user " + user.getUriUser());
+      }
+      tm.commit(status);
+      status = null;
+    } catch (Exception e) {
+      if (status != null) {
+        tm.rollback(status);
       }
+      throw new ODKDatastoreException("delete failed", e);
+    }
+  }
+
+  /**
+   * Runs the DELETE statements, all binding the same values, in a single
+   * REPEATABLE READ transaction. The rows the first sub-select reads stay
+   * share-locked until commit, so the sub-selects shared by the statements
+   * see them unchanged. Rows inserted meanwhile are not locked out, but the
+   * purge only selects submissions completed before a date in the past,
+   * which incoming submissions do not match; SERIALIZABLE range locks would
+   * needlessly block them.
+   *
+   * @param statements the statements, each mapped from the relation it
+   *                   deletes from, in execution order.
+   * @return the number of rows deleted by the last statement.
+   */
+  int executeDeletes(Map<CommonFieldsBase, String> statements, Object[] bindValues)
+      throws ODKDatastoreException {
+    TransactionStatus status = null;
+    try {
+      DefaultTransactionDefinition paramTransactionDefinition = new DefaultTransactionDefinition();
+      paramTransactionDefinition
+          .setIsolationLevel(DefaultTransactionDefinition.ISOLATION_REPEATABLE_READ);
+      status = tm.getTransaction(paramTransactionDefinition);
+      JdbcTemplate jc = getJdbcConnection();
+      int deleteCount = 0;
+      for (Map.Entry<CommonFieldsBase, String> e : statements.entrySet()) {
+        long startNanos = System.nanoTime();
+        deleteCount = jc.update(e.getValue(), bindValues);
+        dam.recordDeleteUsage(e.getKey(), deleteCount, System.nanoTime() - startNanos);
+      }
+      tm.commit(status);
+      status = null;
+      return deleteCount;
+    } catch (Exception e) {
+      if (status != null) {
+        tm.rollback(status);
+      }
+      throw new ODKDatastoreException("delete failed", e);
     }
-    if (e != null)
-      throw e; // throw the first exception...
   }
 
   @Override
@@ -1066,4 +1167,25 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
+  private static class BatchedStatementSetter implements BatchPreparedStatementSetter {
+
+    private final String sql;
+    private final List<List<SqlParameterValue>> argLists;
+
+    BatchedStatementSetter(String sql, List<List<SqlParameterValue>> argLists) {
+      this.sql = sql;
+      this.argLists = argLists;
+    }
+
+    @Override
+    public void setValues(PreparedStatement ps, int i) throws SQLException {
+      new ReusableStatementSetter(sql, argLists.get(i)).setValues(ps);
+    }
+
+    @Override
+    public int getBatchSize() {
+      return argLists.size();
+    }
+  }
+
 }
@@ -44,6 +44,7 @@ public class TaskLockImpl implements TaskLock {
 
   private static final String PERSISTENCE_LAYER_PROBLEM = "Persistence layer failure";
   private static final String K_BQ = "\"";
+  private static final long APPLICATION_LOCK_TIMEOUT_MILLISECONDS = 30000L;
   final DatastoreAccessMetrics dam;
   final DatastoreImpl datastore;
   final User user;
@@ -82,7 +83,15 @@ public class TaskLockImpl implements TaskLock {
     String nowPlusLifetimeIntervalMilliseconds = b.toString();
     b.setLength(0);
 
-    b.append("SELECT  COUNT(1) FROM ").append(tableName).append(" WITH (TABLOCKX, HOLDLOCK)");
+    // serialize only against other lockers of this resource and task type.
+    // The application lock is owned by, and released with, the transaction;
+    // EXEC does not open an implicit transaction, so make sure one is open.
+    b.append("IF @@TRANCOUNT = 0 BEGIN TRANSACTION; ");
+    b.append("DECLARE @result INT; EXEC @result = sp_getapplock @Resource = '")
+        .append(applicationLockResource(entity.getFormId(), entity.getTaskType()))
+        .append("', @LockMode = 'Exclusive', @LockOwner = 'Transaction', @LockTimeout = ")
+        .append(APPLICATION_LOCK_TIMEOUT_MILLISECONDS)
+        .append("; IF @result < 0 RAISERROR('sp_getapplock failed', 16, 1)");
     stmts.add(b.toString());
     b.setLength(0);
 
@@ -170,9 +179,13 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks for this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ").append(tableName).append(" WHERE ");
+    b.append(K_BQ).append(entity.formId.getName()).append(K_BQ).append(" = ")
+        .append(formIdInline).append(" AND ");
+    b.append(K_BQ).append(entity.taskType.getName()).append(K_BQ).append(" = ")
+        .append(taskTypeInline).append(" AND ");
     b.append(K_BQ).append(entity.expirationDateTime.getName()).append(K_BQ).append(" <= SYSUTCDATETIME()");
     stmts.add(b.toString());
     b.setLength(0);
@@ -226,7 +239,9 @@ public class TaskLockImpl implements TaskLock {
           int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            // the application lock already serializes access to the rows we touch;
+            // SERIALIZABLE range locks would serialize unrelated resources again.
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             Statement stmt = conn.createStatement();
             for (String s : stmts) {
               // for debugging: LoggerFactory.getLogger(TaskLockImpl.class).info(s);
@@ -251,6 +266,15 @@ public class TaskLockImpl implements TaskLock {
     return (TaskLockTable) datastore.getEntity(relation, entity.getUri(), user);
   }
 
+  /**
+   * sp_getapplock resource name for the resource and task type. Hashed
+   * because form ids can be longer than the 255 characters allowed.
+   */
+  static String applicationLockResource(String formId, String taskType) {
+    String md5 = CommonFieldsBase.newMD5HashUri(formId + "|" + taskType);
+    return "odk_task_lock:" + md5.substring("md5:".length());
+  }
+
   @Override
   public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
     boolean result = false;
@@ -517,6 +517,8 @@ public class SecurityServiceUtil {
       userDefinition.setBasicAuthPassword(credential.getBasicAuthHash());
       userDefinition.setBasicAuthSalt(credential.getBasicAuthSalt());
       ds.putEntity(userDefinition, user);
+      // flush the cached credentials of the user details services
+      SecurityRevisionsTable.setLastRegisteredUsersRevisionDate(ds, user);
     } catch (ODKDatastoreException e) {
       e.printStackTrace();
       throw new DatastoreFailureException(e.getMessage());
@@ -38,13 +38,13 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.config.SocketConfig;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
 import org.opendatakit.common.utils.HttpClientFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -214,20 +214,20 @@ public class Oauth2ResourceFilter extends GenericFilterBean {
     // setup request interceptor to do preemptive auth
     // ((DefaultHttpClient) client).addRequestInterceptor(getPreemptiveAuth(), 0);
 
-    // setup client
-    SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
-        .setSoTimeout(SOCKET_ESTABLISHMENT_TIMEOUT_MILLISECONDS)
-        .build();
-    RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
+    // the client is shared and pooled; the response is consumed below to
+    // release its connection.
+    RequestConfig requestConfig = RequestConfig.copy(httpClientFactory.getDefaultRequestConfig())
+        .setSocketTimeout(SOCKET_ESTABLISHMENT_TIMEOUT_MILLISECONDS)
         .setConnectTimeout(SERVICE_TIMEOUT_MILLISECONDS)
         .setAuthenticationEnabled(true)
         .setRedirectsEnabled(true)
         .setMaxRedirects(1)
         .setCircularRedirectsAllowed(true)
         .build();
-    CloseableHttpClient client = httpClientFactory.createHttpClient(socketConfig, null, requestConfig);
+    HttpClient client = httpClientFactory.getSharedHttpClient();
 
     HttpGet httpget = new HttpGet(uri);
+    httpget.setConfig(requestConfig);
     logger.info(httpget.getURI().toString());
 
     HttpResponse response = null;
@@ -277,6 +277,10 @@ public class Oauth2ResourceFilter extends GenericFilterBean {
     } catch (Exception e) {
       logger.error(e.toString());
       return nullData;
+    } finally {
+      if (response != null) {
+        EntityUtils.consumeQuietly(response.getEntity());
+      }
     }
   }
 
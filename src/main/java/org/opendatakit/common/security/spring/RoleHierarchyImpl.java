@@ -18,15 +18,18 @@ package org.opendatakit.common.security.spring;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletContext;
 import org.opendatakit.aggregate.constants.TaskLockType;
 import org.opendatakit.common.persistence.Datastore;
@@ -55,6 +58,12 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
  * RoleHierarchyImpl.  The only difference is the use of InitializingBean
  * and the implementation of the buildRolesReachableInOneStepMap() which
  * now queries the database for the entries to insert into the map.
+ * <p>
+ * The reachable roles are kept up to date by a background refresher, which
+ * checks the {@link SecurityRevisionsTable} every CHECK_INTERVAL and rebuilds
+ * them when they changed or every UPDATE_INTERVAL. Each rebuild publishes an
+ * immutable map, so callers of getReachableGrantedAuthorities() neither touch
+ * the database nor take a lock.
  *
  * @author mitchellsundt@gmail.com
  */
@@ -82,16 +91,23 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
    */
   private WebStartup startupAction = null;
 
+  /**
+   * NOTE: should only be accessed by refreshReachableGrantedAuthorities()/checkForUpdates()
+   */
   private long lastCheckTimestamp = System.currentTimeMillis();
   private long lastUpdateTimestamp = System.currentTimeMillis();
 
   /**
-   * rolesReachableInOneOrMoreStepsMap is a Map that under the key of a specific role
-   * name contains a set of all roles reachable from this role in 1 or more steps.
+   * rolesReachableInOneOrMoreStepsMap is an immutable Map that under the key of a
+   * specific role name contains a set of all roles reachable from this role in 1
+   * or more steps.
    * <p>
-   * NOTE: should only be set/accessed with updateRolesMap()/getRolesMap()
+   * NOTE: should only be set by refreshReachableGrantedAuthorities()
    */
-  private Map<GrantedAuthority, Set<GrantedAuthority>> rolesReachableInOneOrMoreStepsMap = null;
+  private volatile Map<String, Set<GrantedAuthority>> rolesReachableInOneOrMoreStepsMap =
+      Collections.emptyMap();
+
+  private ScheduledExecutorService refresher = null;
 
   public Datastore getDatastore() {
     return datastore;
@@ -269,40 +285,95 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
         e.printStackTrace();
       }
     }
+
+    startRefresher();
+  }
+
+  synchronized void startRefresher() {
+    if (refresher != null) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "aggregate-role-hierarchy-refresher");
+      t.setDaemon(true);
+      return t;
+    });
+    refresher.scheduleWithFixedDelay(() -> {
+      // an exception would suppress all subsequent runs
+      try {
+        checkForUpdates();
+      } catch (Throwable t) {
+        logger.error("Role hierarchy refresh failed", t);
+      }
+    }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
   }
 
   /**
-   * Update the rolesReachableInOneOrMoreStepsMap with a clean fetch from the database.
+   * Stops the background refresher.
    */
-  public void refreshReachableGrantedAuthorities() throws ODKDatastoreException {
-    logger.info("Executing: refreshReachableGrantedAuthorities");
-    try {
-      Map<GrantedAuthority, Set<GrantedAuthority>> localRolesReachableInOneOrMoreStepsMap =
-          buildRolesReachableInOneOrMoreStepsMap(buildRolesReachableInOneStepMap());
-      updateRolesMap(localRolesReachableInOneOrMoreStepsMap);
-      // and wipe the user service, since permissions may have changed...
-      userService.reloadPermissions();
-      lastCheckTimestamp = lastUpdateTimestamp = System.currentTimeMillis();
-    } catch (ODKDatastoreException e) {
-      logger.warn("Datastore failure: refreshReachableGrantedAuthorities -- adjusting retry time");
-      // set ourselves up to hit the database again after half a check interval
-      lastCheckTimestamp = System.currentTimeMillis() - CHECK_INTERVAL / 2L;
-      throw e;
+  public synchronized void destroy() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
     }
   }
 
   /**
-   * Atomically swap out the rolesReachableInOneOrMoreStepsMap.
+   * Update the rolesReachableInOneOrMoreStepsMap with a clean fetch from the database.
    */
-  private synchronized void updateRolesMap(Map<GrantedAuthority, Set<GrantedAuthority>> localRolesReachableInOneOrMoreStepsMap) {
-    rolesReachableInOneOrMoreStepsMap = localRolesReachableInOneOrMoreStepsMap;
+  public synchronized void refreshReachableGrantedAuthorities() throws ODKDatastoreException {
+    logger.info("Executing: refreshReachableGrantedAuthorities");
+    // changes made while we read the tables are picked up by the next check
+    long timeRefreshStarts = System.currentTimeMillis();
+    Map<GrantedAuthority, Set<GrantedAuthority>> localRolesReachableInOneOrMoreStepsMap =
+        buildRolesReachableInOneOrMoreStepsMap(buildRolesReachableInOneStepMap());
+
+    Map<String, Set<GrantedAuthority>> snapshot = new HashMap<String, Set<GrantedAuthority>>();
+    for (Map.Entry<GrantedAuthority, Set<GrantedAuthority>> e : localRolesReachableInOneOrMoreStepsMap.entrySet()) {
+      if (e.getKey().getAuthority() != null) {
+        snapshot.put(e.getKey().getAuthority(), Collections.unmodifiableSet(e.getValue()));
+      }
+    }
+    rolesReachableInOneOrMoreStepsMap = Collections.unmodifiableMap(snapshot);
+    // and wipe the user service, since permissions may have changed...
+    userService.reloadPermissions();
+    lastCheckTimestamp = lastUpdateTimestamp = timeRefreshStarts;
   }
 
   /**
-   * Atomically fetch the rolesReachableInOneOrMoreStepsMap.
+   * Run by the background refresher every CHECK_INTERVAL. A failed refresh is
+   * retried on the next run; until then the previous roles remain in effect.
    */
-  private synchronized Map<GrantedAuthority, Set<GrantedAuthority>> getRolesMap() {
-    return rolesReachableInOneOrMoreStepsMap;
+  synchronized void checkForUpdates() throws ODKDatastoreException {
+    long timeCheckStarts = System.currentTimeMillis();
+    if (timeCheckStarts > lastUpdateTimestamp + UPDATE_INTERVAL) {
+      // update the security configuration entirely every UPDATE_INTERVAL...
+      refreshReachableGrantedAuthorities();
+    } else {
+      // check for updates to the security configuration every CHECK_INTERVAL...
+      long lastUsersChange = getLastRegisteredUsersRevisionDate();
+      long lastGrantsChange = getLastRoleHierarchyRevisionDate();
+      if (lastGrantsChange > lastCheckTimestamp) {
+        refreshReachableGrantedAuthorities();
+        // NOTE: Timestamps updated and user permissions have been reloaded.
+      } else if (lastUsersChange > lastCheckTimestamp) {
+        lastCheckTimestamp = timeCheckStarts;
+        userService.reloadPermissions();
+      } else {
+        lastCheckTimestamp = timeCheckStarts;
+        logger.debug("checkForUpdates -- interval check");
+      }
+    }
+  }
+
+  long getLastRegisteredUsersRevisionDate() throws ODKDatastoreException {
+    return SecurityRevisionsTable.getLastRegisteredUsersRevisionDate(datastore,
+        userService.getDaemonAccountUser());
+  }
+
+  long getLastRoleHierarchyRevisionDate() throws ODKDatastoreException {
+    return SecurityRevisionsTable.getLastRoleHierarchyRevisionDate(datastore,
+        userService.getDaemonAccountUser());
   }
 
   @Override
@@ -310,44 +381,16 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
     if (authorities == null || authorities.isEmpty()) {
       return AuthorityUtils.NO_AUTHORITIES;
     }
-    long timeRequestStarts = System.currentTimeMillis();
-    if (timeRequestStarts > lastUpdateTimestamp + UPDATE_INTERVAL) {
-      // update the security configuration entirely every UPDATE_INTERVAL...
-      try {
-        refreshReachableGrantedAuthorities();
-      } catch (ODKDatastoreException e) {
-        e.printStackTrace();
-      }
-    } else if (timeRequestStarts > lastCheckTimestamp + CHECK_INTERVAL) {
-      // check for updates to the security configuration every CHECK_INTERVAL...
-      try {
-        User daemon = userService.getDaemonAccountUser();
-        long lastUsersChange = SecurityRevisionsTable.getLastRegisteredUsersRevisionDate(datastore, daemon);
-        long lastGrantsChange = SecurityRevisionsTable.getLastRoleHierarchyRevisionDate(datastore, daemon);
-        if (lastGrantsChange > lastCheckTimestamp) {
-          refreshReachableGrantedAuthorities();
-          // NOTE: Timestamps updated and user permissions have been reloaded.
-        } else if (lastUsersChange > lastCheckTimestamp) {
-          lastCheckTimestamp = System.currentTimeMillis();
-          userService.reloadPermissions();
-        } else {
-          lastCheckTimestamp = System.currentTimeMillis();
-          logger.debug("getReachableGrantedAuthorities -- interval check");
-        }
-      } catch (ODKDatastoreException e) {
-        // log it, but assume we are OK...
-        e.printStackTrace();
-      }
-    }
 
-    Map<GrantedAuthority, Set<GrantedAuthority>> localRolesReachableInOneOrMoreStepsMap = getRolesMap();
+    Map<String, Set<GrantedAuthority>> localRolesReachableInOneOrMoreStepsMap =
+        rolesReachableInOneOrMoreStepsMap;
 
     Set<GrantedAuthority> reachableRoles = new HashSet<GrantedAuthority>();
 
     for (GrantedAuthority authority : authorities) {
       addReachableRoles(reachableRoles, authority);
-      Set<GrantedAuthority> additionalReachableRoles =
-          getRolesReachableInOneOrMoreSteps(localRolesReachableInOneOrMoreStepsMap, authority);
+      Set<GrantedAuthority> additionalReachableRoles = (authority.getAuthority() == null) ? null
+          : localRolesReachableInOneOrMoreStepsMap.get(authority.getAuthority());
       if (additionalReachableRoles != null) {
         reachableRoles.addAll(additionalReachableRoles);
       }
@@ -368,9 +411,7 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
   private void addReachableRoles(Set<GrantedAuthority> reachableRoles,
                                  GrantedAuthority authority) {
 
-    Iterator<GrantedAuthority> iterator = reachableRoles.iterator();
-    while (iterator.hasNext()) {
-      GrantedAuthority testAuthority = iterator.next();
+    for (GrantedAuthority testAuthority : reachableRoles) {
       String testKey = testAuthority.getAuthority();
       if ((testKey != null) && (testKey.equals(authority.getAuthority()))) {
         return;
@@ -379,27 +420,6 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
     reachableRoles.add(authority);
   }
 
-  // SEC-863
-  private Set<GrantedAuthority> getRolesReachableInOneOrMoreSteps(
-      Map<GrantedAuthority, Set<GrantedAuthority>> localRolesReachableInOneOrMoreStepsMap,
-      GrantedAuthority authority) {
-
-    if (authority.getAuthority() == null) {
-      return null;
-    }
-
-    Iterator<GrantedAuthority> iterator = localRolesReachableInOneOrMoreStepsMap.keySet().iterator();
-    while (iterator.hasNext()) {
-      GrantedAuthority testAuthority = iterator.next();
-      String testKey = testAuthority.getAuthority();
-      if ((testKey != null) && (testKey.equals(authority.getAuthority()))) {
-        return localRolesReachableInOneOrMoreStepsMap.get(testAuthority);
-      }
-    }
-
-    return null;
-  }
-
   /**
    * For every higher role from rolesReachableInOneStepMap store all roles that are reachable from it in the map of
    * roles reachable in one or more steps. (Or throw a CycleInRoleHierarchyException if a cycle in the role
@@ -453,7 +473,7 @@ public class RoleHierarchyImpl implements RoleHierarchy, InitializingBean {
    * Parse input and build the map for the roles reachable in one step: the higher role will become a key that
    * references a set of the reachable lower roles.
    */
-  private synchronized Map<GrantedAuthority, Set<GrantedAuthority>> buildRolesReachableInOneStepMap() throws ODKDatastoreException {
+  synchronized Map<GrantedAuthority, Set<GrantedAuthority>> buildRolesReachableInOneStepMap() throws ODKDatastoreException {
     Map<GrantedAuthority, Set<GrantedAuthority>> rolesReachableInOneStepMap = new HashMap<GrantedAuthority, Set<GrantedAuthority>>();
 
     User user = userService.getDaemonAccountUser();
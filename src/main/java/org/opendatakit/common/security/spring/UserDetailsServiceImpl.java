@@ -19,11 +19,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.security.UserService;
 import org.opendatakit.common.security.common.GrantedAuthorityName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.TransientDataAccessResourceException;
@@ -37,11 +44,24 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 /**
  * Implementation of a user details service that fetches data from the
  * {@link RegisteredUsersTable} to report on registered users.
+ * <p>
+ * The details of each user are cached for {@link #setCacheTimeToLive(long)}
+ * milliseconds, so that device requests (which digest authentication looks
+ * up twice) do not query the registered users and granted authorities tables
+ * every time. The whole cache is dropped as soon as the
+ * {@link SecurityRevisionsTable} records a change to the registered users,
+ * the role hierarchy or the super user. That table is checked by a
+ * background refresher every CHECK_INTERVAL, so lookups neither touch it nor
+ * take a lock.
  *
  * @author mitchellsundt@gmail.com
  */
 public class UserDetailsServiceImpl implements UserDetailsService, InitializingBean {
 
+  private static final Logger logger = LoggerFactory.getLogger(UserDetailsServiceImpl.class);
+  // look for flagged changes every CHECK_INTERVAL.
+  private static final long CHECK_INTERVAL = 1000L; // 1 seconds
+
   private Datastore datastore;
 
   ;
@@ -51,6 +71,22 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
   private PasswordType passwordType = PasswordType.Random;
   private CredentialType credentialType = CredentialType.Username;
   private Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+  private long cacheTimeToLive = 2 * 60 * 1000L; // 2 minutes
+
+  private final ConcurrentMap<String, CachedUserDetails> userDetailsCache =
+      new ConcurrentHashMap<String, CachedUserDetails>();
+  /**
+   * cached details loaded at or before this time are stale.
+   * <p>
+   * NOTE: should only be set with checkForRevisions()
+   */
+  private volatile long cacheValidAfterTimestamp = 0L;
+  /**
+   * NOTE: should only be accessed by checkForRevisions()
+   */
+  private long lastCheckTimestamp = System.currentTimeMillis();
+
+  private ScheduledExecutorService refresher = null;
 
   UserDetailsServiceImpl() {
   }
@@ -102,6 +138,21 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
     }
   }
 
+  public long getCacheTimeToLive() {
+    return cacheTimeToLive;
+  }
+
+  /**
+   * @param cacheTimeToLive milliseconds a user's details are reused for; 0
+   *                        disables the cache.
+   */
+  public void setCacheTimeToLive(long cacheTimeToLive) {
+    if (cacheTimeToLive < 0) {
+      throw new IllegalArgumentException("cacheTimeToLive cannot be negative");
+    }
+    this.cacheTimeToLive = cacheTimeToLive;
+  }
+
   @Override
   public void afterPropertiesSet() {
     if (datastore == null) {
@@ -110,6 +161,38 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
     if (userService == null) {
       throw new IllegalStateException("userService must be specified");
     }
+    if (cacheTimeToLive != 0) {
+      startRefresher();
+    }
+  }
+
+  private synchronized void startRefresher() {
+    if (refresher != null) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "aggregate-user-details-refresher");
+      t.setDaemon(true);
+      return t;
+    });
+    refresher.scheduleWithFixedDelay(() -> {
+      // an exception would suppress all subsequent runs
+      try {
+        checkForRevisions();
+      } catch (Throwable t) {
+        logger.error("User details cache check failed", t);
+      }
+    }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the background refresher.
+   */
+  public synchronized void destroy() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
   }
 
   private Set<GrantedAuthority> getGrantedAuthorities(String uriUser) throws ODKDatastoreException {
@@ -121,6 +204,61 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
     return grantedAuthorities;
   }
 
+  /**
+   * @return the time of the last change to the registered users, the role
+   *     hierarchy or the super user.
+   */
+  long getLastRevisionDate() throws ODKDatastoreException {
+    User daemon = userService.getDaemonAccountUser();
+    return Math.max(
+        SecurityRevisionsTable.getLastRegisteredUsersRevisionDate(datastore, daemon),
+        Math.max(SecurityRevisionsTable.getLastRoleHierarchyRevisionDate(datastore, daemon),
+            SecurityRevisionsTable.getLastSuperUserIdRevisionDate(datastore, daemon)));
+  }
+
+  /**
+   * Run by the background refresher every CHECK_INTERVAL. Drops the cached
+   * details if the security configuration changed since the last check.
+   */
+  void checkForRevisions() {
+    long timeCheckStarts = System.currentTimeMillis();
+    try {
+      long lastChange = getLastRevisionDate();
+      if (lastChange > lastCheckTimestamp) {
+        invalidateCache(timeCheckStarts);
+      }
+    } catch (ODKDatastoreException e) {
+      // we cannot tell whether anything changed -- assume it did.
+      logger.warn("Datastore failure: checkForRevisions -- flushing user details cache");
+      invalidateCache(timeCheckStarts);
+    }
+    lastCheckTimestamp = timeCheckStarts;
+  }
+
+  private void invalidateCache(long timestamp) {
+    logger.debug("checkForRevisions -- flushing user details cache");
+    // entries being loaded concurrently may predate the change; see getCachedUserDetails()
+    cacheValidAfterTimestamp = timestamp;
+    userDetailsCache.clear();
+  }
+
+  private CachedUserDetails getCachedUserDetails(String name) {
+    if (cacheTimeToLive == 0) {
+      return null;
+    }
+    CachedUserDetails cached = userDetailsCache.get(name);
+    if (cached == null) {
+      return null;
+    }
+    // loaded within the millisecond of a change, it may predate it
+    if (cached.loadTimestamp <= cacheValidAfterTimestamp
+        || System.currentTimeMillis() > cached.loadTimestamp + cacheTimeToLive) {
+      userDetailsCache.remove(name, cached);
+      return null;
+    }
+    return cached;
+  }
+
   @Override
   public UserDetails loadUserByUsername(String name)
       throws UsernameNotFoundException, DataAccessException {
@@ -128,14 +266,30 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
       throw new IllegalStateException("Username cannot be null");
     }
 
+    CachedUserDetails cached = getCachedUserDetails(name);
+    if (cached == null) {
+      long loadTimestamp = System.currentTimeMillis();
+      cached = loadUserDetails(name, loadTimestamp);
+      if (cacheTimeToLive != 0) {
+        userDetailsCache.put(name, cached);
+      }
+    }
+    // a new instance every time: the authentication manager erases the
+    // credentials of the instance it is handed.
+    final boolean isEnabled = true;
+    final boolean isCredentialNonExpired = true;
+    return new AggregateUser(cached.uriUser, cached.password,
+        (cached.salt == null) ? UUID.randomUUID().toString() : cached.salt, "-undefined-",
+        isEnabled, true, isCredentialNonExpired, true, cached.grantedAuthorities);
+  }
+
+  CachedUserDetails loadUserDetails(String name, long loadTimestamp) {
     User user = userService.getDaemonAccountUser();
 
     final String uriUser;
     final String password;
     final String salt;
     final Set<GrantedAuthority> grantedAuthorities;
-    final boolean isEnabled = true;
-    final boolean isCredentialNonExpired = true;
     try {
       if (credentialType == CredentialType.Username) {
         RegisteredUsersTable t;
@@ -160,7 +314,8 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
             break;
           case DigestAuth:
             password = t.getDigestAuthPassword();
-            salt = UUID.randomUUID().toString();
+            // a random salt is generated for every lookup
+            salt = null;
             break;
           default:
             throw new AuthenticationCredentialsNotFoundException(
@@ -196,8 +351,30 @@ public class UserDetailsServiceImpl implements UserDetailsService, InitializingB
       throw new TransientDataAccessResourceException("persistence layer problem", e);
     }
 
-    return new AggregateUser(uriUser, password, salt, "-undefined-",
-        isEnabled, true, isCredentialNonExpired, true, grantedAuthorities);
+    return new CachedUserDetails(uriUser, password, salt, grantedAuthorities, loadTimestamp);
+  }
+
+  /**
+   * The parts of a user's details read from the datastore.
+   */
+  static final class CachedUserDetails {
+    final String uriUser;
+    final String password;
+    /**
+     * null if a random salt is to be used.
+     */
+    final String salt;
+    final Set<GrantedAuthority> grantedAuthorities;
+    final long loadTimestamp;
+
+    CachedUserDetails(String uriUser, String password, String salt,
+                      Set<GrantedAuthority> grantedAuthorities, long loadTimestamp) {
+      this.uriUser = uriUser;
+      this.password = password;
+      this.salt = salt;
+      this.grantedAuthorities = grantedAuthorities;
+      this.loadTimestamp = loadTimestamp;
+    }
   }
 
   enum PasswordType {
@@ -15,11 +15,17 @@
  */
 package org.opendatakit.common.utils;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Interface for the bean that will construct an HttpClient that is appropriate
@@ -31,6 +37,113 @@ import org.apache.http.impl.client.HttpClientBuilder;
  * @author wbrunette@gmail.com
  */
 public class HttpClientFactory {
+  private static final Logger logger = LoggerFactory.getLogger(HttpClientFactory.class);
+
+  private int maxConnectionsTotal = 50;
+  private int maxConnectionsPerRoute = 10;
+  private int idleConnectionTimeoutSeconds = 30;
+  private int connectionRequestTimeoutMilliseconds = 30000;
+
+  private PoolingHttpClientConnectionManager connectionManager = null;
+  private CloseableHttpClient sharedHttpClient = null;
+
+  /**
+   * Returns the long-lived client shared by all callers. Its connections are
+   * pooled and kept alive between requests, so repeated requests to the same
+   * host skip the TCP and TLS handshakes. Callers must not close it, must
+   * fully consume (or close) each response so that the connection returns to
+   * the pool, and should set any per-request timeouts on the request itself
+   * via {@link org.apache.http.client.methods.HttpRequestBase#setConfig},
+   * starting from {@link #getDefaultRequestConfig()}.
+   */
+  public synchronized CloseableHttpClient getSharedHttpClient() {
+    if (sharedHttpClient == null) {
+      connectionManager = new PoolingHttpClientConnectionManager();
+      connectionManager.setMaxTotal(maxConnectionsTotal);
+      connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+      // check connections that sat idle in the pool before reusing them
+      connectionManager.setValidateAfterInactivity(2000);
+      sharedHttpClient = HttpClientBuilder.create()
+          .setConnectionManager(connectionManager)
+          .evictExpiredConnections()
+          .evictIdleConnections(idleConnectionTimeoutSeconds, TimeUnit.SECONDS)
+          .setDefaultRequestConfig(getDefaultRequestConfig())
+          .build();
+    }
+    return sharedHttpClient;
+  }
+
+  /**
+   * @return the request configuration of the shared client. A request that
+   *     sets its own configuration replaces this one entirely, so build it as
+   *     a copy of this one to keep the bounded wait for a pooled connection:
+   *     otherwise a request made while the pool is exhausted waits forever.
+   */
+  public RequestConfig getDefaultRequestConfig() {
+    return RequestConfig.copy(RequestConfig.DEFAULT)
+        .setConnectionRequestTimeout(connectionRequestTimeoutMilliseconds)
+        .build();
+  }
+
+  /**
+   * @return usage of the shared client's connection pool (leased, pending,
+   *     available and max connections), or null if it has not been created.
+   */
+  public synchronized PoolStats getPoolStats() {
+    if (connectionManager == null) {
+      return null;
+    }
+    return connectionManager.getTotalStats();
+  }
+
+  /**
+   * Closes the shared client and its pooled connections. Called by the
+   * container when the bean is destroyed.
+   */
+  public synchronized void destroy() {
+    if (sharedHttpClient != null) {
+      try {
+        sharedHttpClient.close();
+      } catch (IOException e) {
+        logger.warn("Unable to close shared http client", e);
+      }
+      sharedHttpClient = null;
+      connectionManager = null;
+    }
+  }
+
+  public int getMaxConnectionsTotal() {
+    return maxConnectionsTotal;
+  }
+
+  public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+    this.maxConnectionsTotal = maxConnectionsTotal;
+  }
+
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
+  public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+  }
+
+  public int getIdleConnectionTimeoutSeconds() {
+    return idleConnectionTimeoutSeconds;
+  }
+
+  public void setIdleConnectionTimeoutSeconds(int idleConnectionTimeoutSeconds) {
+    this.idleConnectionTimeoutSeconds = idleConnectionTimeoutSeconds;
+  }
+
+  public int getConnectionRequestTimeoutMilliseconds() {
+    return connectionRequestTimeoutMilliseconds;
+  }
+
+  public void setConnectionRequestTimeoutMilliseconds(int connectionRequestTimeoutMilliseconds) {
+    this.connectionRequestTimeoutMilliseconds = connectionRequestTimeoutMilliseconds;
+  }
+
   public CloseableHttpClient createHttpClient(SocketConfig socketConfig, ConnectionConfig connectionConfig, RequestConfig requestConfig) {
     HttpClientBuilder builder = HttpClientBuilder.create();
     if (socketConfig != null) {
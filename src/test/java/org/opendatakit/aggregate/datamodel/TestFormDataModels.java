@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.datamodel;
+
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+
+/**
+ * Builds form data model trees, without a datastore, for tests outside this
+ * package.
+ */
+public final class TestFormDataModels {
+
+  private static final String SCHEMA = "schema1";
+
+  private TestFormDataModels() {
+  }
+
+  /**
+   * @return a form data model element with the given children, in order.
+   */
+  public static FormDataModel element(String name, ElementType type, FormDataModel... children) {
+    FormDataModel fdm = new FormDataModel(SCHEMA);
+    fdm.setElementName(name);
+    fdm.setElementType(type);
+    long ordinal = 1L;
+    for (FormDataModel child : children) {
+      fdm.setChild(ordinal++, child);
+    }
+    return fdm;
+  }
+}
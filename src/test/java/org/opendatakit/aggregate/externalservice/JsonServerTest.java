@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.externalservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opendatakit.aggregate.datamodel.TestFormDataModels.element;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.common.BinaryOption;
+import org.opendatakit.aggregate.constants.common.ExternalServicePublicationOption;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.exception.ODKExternalServiceException;
+import org.opendatakit.aggregate.externalservice.JsonServer.BatchFormat;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.Row;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.task.UploadSubmissions;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.security.UserService;
+import org.opendatakit.common.utils.HttpClientFactory;
+import org.opendatakit.common.web.CallingContext;
+
+public class JsonServerTest {
+  private static final String TOKEN = "secret-token";
+
+  private User user;
+  private Datastore ds;
+  private IForm form;
+  private CallingContext cc;
+  private final UploadSubmissions uploadSubmissions = new UploadSubmissions();
+  private final List<String> bodies = new ArrayList<String>();
+  private final List<String> contentTypes = new ArrayList<String>();
+  private final Deque<Integer> statusCodes = new ArrayDeque<Integer>();
+  /**
+   * the last streaming key of the cursor, each time the cursor is persisted.
+   */
+  private final List<String> persistedCursorKeys = new ArrayList<String>();
+
+  @Before
+  public void setUp() throws Exception {
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:someone@example.org");
+    UserService userService = mock(UserService.class);
+    when(userService.getDaemonAccountUser()).thenReturn(user);
+
+    ds = mock(Datastore.class);
+    when(ds.getDefaultSchemaName()).thenReturn("SCHEMA");
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), any(User.class)))
+        .thenAnswer(invocation -> ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user));
+
+    CloseableHttpClient client = mock(CloseableHttpClient.class);
+    when(client.execute(any(HttpUriRequest.class), any(HttpContext.class))).thenAnswer(invocation -> {
+      HttpEntity entity = ((HttpPost) invocation.getArgument(0)).getEntity();
+      // streamed, rather than formatted up front
+      assertEquals(-1, entity.getContentLength());
+      assertTrue(entity.isRepeatable());
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      entity.writeTo(body);
+      bodies.add(body.toString("UTF-8"));
+      contentTypes.add(entity.getContentType().getValue());
+
+      int statusCode = statusCodes.isEmpty() ? 200 : statusCodes.removeFirst();
+      CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+      when(response.getStatusLine())
+          .thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, "status"));
+      return response;
+    });
+    HttpClientFactory httpClientFactory = mock(HttpClientFactory.class);
+    when(httpClientFactory.getSharedHttpClient()).thenReturn(client);
+
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+    when(cc.getUserService()).thenReturn(userService);
+    when(cc.getServerURL()).thenReturn("localhost:8080");
+    when(cc.getBean(BeanDefs.UPLOAD_TASK_BEAN)).thenReturn(uploadSubmissions);
+    when(cc.getBean(BeanDefs.HTTP_CLIENT_FACTORY)).thenReturn(httpClientFactory);
+
+    form = mock(IForm.class);
+    when(form.getFormId()).thenReturn("form1");
+    when(form.getMajorMinorVersionString()).thenReturn("2019010101");
+    when(form.getViewableName()).thenReturn("Form 1");
+    EntityKey formKey = mock(EntityKey.class);
+    when(formKey.getKey()).thenReturn("uuid:form1");
+    when(form.getEntityKey()).thenReturn(formKey);
+    when(form.getTopLevelGroupElement()).thenReturn(FormElementModel.buildFormElementModelTree(
+        element("data", ElementType.GROUP, element("name", ElementType.STRING))));
+  }
+
+  private JsonServer jsonServer(int batchSize, BatchFormat batchFormat) throws Exception {
+    uploadSubmissions.setJsonBatchSize(batchSize);
+    uploadSubmissions.setJsonBatchFormat(batchFormat);
+    JsonServer server = new JsonServer(form, TOKEN, "http://example.org/submissions",
+        ExternalServicePublicationOption.UPLOAD_N_STREAM, "mailto:owner@example.org",
+        BinaryOption.PROVIDE_LINKS, cc);
+    FormServiceCursor fsc = server.getFormServiceCursor();
+    clearInvocations(ds);
+    doAnswer(invocation -> {
+      persistedCursorKeys.add(fsc.getLastStreamingKey());
+      return null;
+    }).when(ds).putEntity(fsc, user);
+    return server;
+  }
+
+  private static List<Submission> submissions(String... names) throws Exception {
+    List<Submission> submissions = new ArrayList<Submission>();
+    for (String name : names) {
+      Submission submission = mock(Submission.class);
+      EntityKey key = mock(EntityKey.class);
+      when(key.getKey()).thenReturn("uuid:" + name);
+      when(submission.getKey()).thenReturn(key);
+      when(submission.getMarkedAsCompleteDate()).thenReturn(new Date());
+      Row row = new Row(null);
+      row.addFormattedValue("\"name\":\"" + name + "\"");
+      when(submission.getFormattedValuesAsRow(any(), any(), anyBoolean(), any()))
+          .thenReturn(row);
+      submissions.add(submission);
+    }
+    return submissions;
+  }
+
+  private static JsonObject parse(String json) {
+    return new JsonParser().parse(json).getAsJsonObject();
+  }
+
+  private static void assertEnvelope(JsonObject body, String content) {
+    assertEquals(TOKEN, body.get("token").getAsString());
+    assertEquals(content, body.get("content").getAsString());
+    assertEquals("form1", body.get("formId").getAsString());
+    assertEquals("2019010101", body.get("formVersion").getAsString());
+  }
+
+  private static List<String> names(JsonArray data) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < data.size(); ++i) {
+      names.add(data.get(i).getAsJsonObject().get("name").getAsString());
+    }
+    return names;
+  }
+
+  @Test
+  public void a_single_submission_is_posted_with_a_one_element_data_array() throws Exception {
+    jsonServer(1, BatchFormat.ARRAY).sendSubmission(submissions("a").get(0), cc);
+
+    assertEquals(1, bodies.size());
+    assertEquals("application/json", contentTypes.get(0));
+    JsonObject body = parse(bodies.get(0));
+    assertEnvelope(body, "record");
+    assertEquals(Arrays.asList("a"), names(body.getAsJsonArray("data")));
+  }
+
+  @Test
+  public void an_array_batch_is_posted_as_one_object_per_batch() throws Exception {
+    jsonServer(2, BatchFormat.ARRAY).sendSubmissions(submissions("a", "b", "c"), false, cc);
+
+    assertEquals(2, bodies.size());
+    JsonObject first = parse(bodies.get(0));
+    assertEquals("application/json", contentTypes.get(0));
+    assertEnvelope(first, "records");
+    assertEquals(Arrays.asList("a", "b"), names(first.getAsJsonArray("data")));
+    JsonObject second = parse(bodies.get(1));
+    assertEnvelope(second, "records");
+    assertEquals(Arrays.asList("c"), names(second.getAsJsonArray("data")));
+  }
+
+  @Test
+  public void an_ndjson_batch_is_posted_as_one_line_per_submission() throws Exception {
+    jsonServer(2, BatchFormat.NDJSON).sendSubmissions(submissions("a", "b", "c"), false, cc);
+
+    assertEquals(2, bodies.size());
+    assertEquals("application/x-ndjson", contentTypes.get(0));
+    assertTrue(bodies.get(0).endsWith("\n"));
+    String[] lines = bodies.get(0).split("\n");
+    assertEquals(2, lines.length);
+    for (int i = 0; i < lines.length; ++i) {
+      JsonObject line = parse(lines[i]);
+      assertEnvelope(line, "record");
+      assertEquals(i == 0 ? "a" : "b", line.getAsJsonObject("data").get("name").getAsString());
+    }
+    assertEquals("c", parse(bodies.get(1).trim()).getAsJsonObject("data").get("name")
+        .getAsString());
+  }
+
+  @Test
+  public void the_cursor_advances_once_per_accepted_batch() throws Exception {
+    jsonServer(2, BatchFormat.ARRAY).sendSubmissions(submissions("a", "b", "c", "d", "e"), true,
+        cc);
+
+    assertEquals(3, bodies.size());
+    assertEquals(Arrays.asList("uuid:b", "uuid:d", "uuid:e"), persistedCursorKeys);
+  }
+
+  @Test
+  public void a_rejected_batch_leaves_the_cursor_after_the_last_accepted_batch() throws Exception {
+    statusCodes.add(200);
+    statusCodes.add(500);
+    JsonServer server = jsonServer(2, BatchFormat.ARRAY);
+
+    try {
+      server.sendSubmissions(submissions("a", "b", "c", "d", "e"), true, cc);
+      fail("the rejected batch was not reported");
+    } catch (ODKExternalServiceException e) {
+      // expected
+    }
+    assertEquals(2, bodies.size());
+    assertEquals(Arrays.asList("uuid:b"), persistedCursorKeys);
+    assertEquals("uuid:b", server.getFormServiceCursor().getLastStreamingKey());
+    assertFalse(statusCodes.iterator().hasNext());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.form;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Test;
+
+public class FormDefinitionTest {
+  private static final int THREADS = 8;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final String uri = "uuid:" + UUID.randomUUID();
+  private final String otherUri = "uuid:" + UUID.randomUUID();
+
+  /**
+   * Counts the loads, optionally holding each one until released.
+   */
+  private static final class Loader implements Supplier<FormDefinition> {
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch mayFinish;
+
+    Loader(boolean blocking) {
+      mayFinish = new CountDownLatch(blocking ? 1 : 0);
+    }
+
+    @Override
+    public FormDefinition get() {
+      loads.incrementAndGet();
+      started.countDown();
+      try {
+        mayFinish.await();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return mock(FormDefinition.class);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    FormDefinition.forget(uri);
+    FormDefinition.forget(otherUri);
+  }
+
+  private Future<FormDefinition> lookUp(String uri, Loader loader) {
+    return executor.submit(() -> FormDefinition.getOrLoadFormDefinition(uri, loader));
+  }
+
+  @Test
+  public void concurrent_lookups_of_a_form_run_a_single_load() throws Exception {
+    Loader loader = new Loader(true);
+    List<Future<FormDefinition>> lookups = new ArrayList<Future<FormDefinition>>();
+    for (int i = 0; i < THREADS; ++i) {
+      lookups.add(lookUp(uri, loader));
+    }
+    assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+    // let the other lookups queue behind the load
+    Thread.sleep(100L);
+    loader.mayFinish.countDown();
+
+    FormDefinition fd = lookups.get(0).get(5, TimeUnit.SECONDS);
+    for (Future<FormDefinition> lookup : lookups) {
+      assertSame(fd, lookup.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, loader.loads.get());
+    assertSame(fd, FormDefinition.getOrLoadFormDefinition(uri, loader));
+    assertEquals(1, loader.loads.get());
+  }
+
+  @Test
+  public void a_load_does_not_block_lookups_of_another_form() throws Exception {
+    Loader loader = new Loader(true);
+    Future<FormDefinition> blocked = lookUp(uri, loader);
+    assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+
+    Loader otherLoader = new Loader(false);
+    FormDefinition other = lookUp(otherUri, otherLoader).get(5, TimeUnit.SECONDS);
+    assertSame(other, FormDefinition.getOrLoadFormDefinition(otherUri, otherLoader));
+    assertEquals(1, otherLoader.loads.get());
+
+    loader.mayFinish.countDown();
+    blocked.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void a_definition_forgotten_while_loading_is_not_cached() throws Exception {
+    Loader loader = new Loader(true);
+    Future<FormDefinition> lookup = lookUp(uri, loader);
+    assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+
+    FormDefinition.forget(uri);
+    loader.mayFinish.countDown();
+    FormDefinition stale = lookup.get(5, TimeUnit.SECONDS);
+
+    Loader reloader = new Loader(false);
+    FormDefinition reloaded = FormDefinition.getOrLoadFormDefinition(uri, reloader);
+    assertEquals(1, reloader.loads.get());
+    assertNotSame(stale, reloaded);
+    assertSame(reloaded, FormDefinition.getOrLoadFormDefinition(uri, reloader));
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class MultiPartFormDataTest {
+  private static final String BOUNDARY = "----boundary";
+  private static final int THRESHOLD = 1024;
+
+  /**
+   * Builds the body of a multipart/form-data request.
+   */
+  private static final class Body {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    Body field(String name, String value) throws IOException {
+      out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name
+          + "\"\r\n\r\n" + value + "\r\n").getBytes("UTF-8"));
+      return this;
+    }
+
+    Body file(String name, String fileName, byte[] content) throws IOException {
+      out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name
+          + "\"; filename=\"" + fileName + "\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+          .getBytes("UTF-8"));
+      out.write(content);
+      out.write("\r\n".getBytes("UTF-8"));
+      return this;
+    }
+
+    MockHttpServletRequest request() throws IOException {
+      out.write(("--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+      return request(out.toByteArray());
+    }
+
+    /**
+     * @return a request whose body stops part way through the last part.
+     */
+    MockHttpServletRequest truncatedRequest() {
+      return request(out.toByteArray());
+    }
+
+    private static MockHttpServletRequest request(byte[] content) {
+      MockHttpServletRequest req = new MockHttpServletRequest("POST", "/submission");
+      req.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+      req.setContent(content);
+      return req;
+    }
+  }
+
+  private static byte[] content(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      content[i] = (byte) (i % 251);
+    }
+    return content;
+  }
+
+  private static byte[] read(MultiPartFormItem item) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = item.openStream()) {
+      byte[] buffer = new byte[100];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        out.write(buffer, 0, len);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static Set<String> spillFiles() {
+    Set<String> names = new HashSet<String>();
+    String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+    if (files != null) {
+      for (String name : files) {
+        if (name.startsWith("odk-multipart-")) {
+          names.add(name);
+        }
+      }
+    }
+    return names;
+  }
+
+  @Test
+  public void parts_up_to_the_threshold_are_kept_in_memory() throws Exception {
+    byte[] small = content(100);
+    byte[] atThreshold = content(THRESHOLD);
+    MultiPartFormData data = new MultiPartFormData(new Body()
+        .field("deviceID", "imei:123")
+        .file("xml_submission_file", "submission.xml", small)
+        .file("photo", "photo.jpg", atThreshold)
+        .request(), THRESHOLD);
+
+    assertEquals("imei:123", data.getSimpleFormField("deviceID"));
+    MultiPartFormItem xml = data.getFormDataByFieldName("xml_submission_file");
+    assertFalse(xml.isSpilledToDisk());
+    assertEquals(100, xml.getLength());
+    assertArrayEquals(small, read(xml));
+    MultiPartFormItem photo = data.getFormDataByFileName("photo.jpg");
+    assertFalse(photo.isSpilledToDisk());
+    assertArrayEquals(atThreshold, photo.getBytes());
+    data.dispose();
+  }
+
+  @Test
+  public void a_part_over_the_threshold_is_spilled_to_disk() throws Exception {
+    Set<String> before = spillFiles();
+    byte[] large = content(10 * THRESHOLD + 17);
+    MultiPartFormData data = new MultiPartFormData(new Body()
+        .file("xml_submission_file", "submission.xml", content(100))
+        .file("photo", "photo.jpg", large)
+        .request(), THRESHOLD);
+
+    MultiPartFormItem photo = data.getFormDataByFileName("photo.jpg");
+    assertTrue(photo.isSpilledToDisk());
+    assertEquals(large.length, photo.getLength());
+    assertArrayEquals(large, read(photo));
+    assertArrayEquals(large, photo.getBytes());
+    assertFalse(data.getFormDataByFieldName("xml_submission_file").isSpilledToDisk());
+
+    Set<String> created = spillFiles();
+    created.removeAll(before);
+    assertEquals(1, created.size());
+
+    data.dispose();
+    Set<String> left = spillFiles();
+    left.retainAll(created);
+    assertTrue(left.isEmpty());
+    try {
+      photo.openStream().close();
+      fail("the spill file outlived dispose()");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void a_failed_parse_removes_the_spill_files() throws Exception {
+    Set<String> before = spillFiles();
+    MockHttpServletRequest req = new Body()
+        .file("photo", "photo.jpg", content(10 * THRESHOLD))
+        .truncatedRequest();
+
+    try {
+      new MultiPartFormData(req, THRESHOLD);
+      fail("the truncated request was accepted");
+    } catch (Exception e) {
+      // expected
+    }
+
+    Set<String> left = spillFiles();
+    left.removeAll(before);
+    assertTrue(left.isEmpty());
+  }
+
+  @Test
+  public void the_common_directory_of_the_file_names_is_stripped() throws Exception {
+    MultiPartFormData data = new MultiPartFormData(new Body()
+        .file("a", "instances/form1/submission.xml", content(10))
+        .file("b", "instances/form1/media/photo.jpg", content(10))
+        .request(), THRESHOLD);
+
+    assertNotNull(data.getFormDataByFileName("submission.xml"));
+    assertNotNull(data.getFormDataByFileName("media/photo.jpg"));
+    // and by the name without its extension
+    assertNotNull(data.getFormDataByFileName("submission"));
+    Set<String> fileNames = new HashSet<String>();
+    for (Map.Entry<String, MultiPartFormItem> e : data.getFileNameEntrySet()) {
+      fileNames.add(e.getKey());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("submission.xml", "media/photo.jpg")),
+        fileNames);
+  }
+}
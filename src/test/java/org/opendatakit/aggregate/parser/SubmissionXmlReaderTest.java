@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.opendatakit.aggregate.datamodel.TestFormDataModels.element;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.exception.ODKParseException;
+import org.opendatakit.aggregate.parser.SubmissionXmlReader.ParsedElement;
+
+public class SubmissionXmlReaderTest {
+
+  private static final FormElementModel FORM = FormElementModel.buildFormElementModelTree(
+      element("data", ElementType.GROUP,
+          element("name", ElementType.STRING),
+          element("grp", ElementType.GROUP,
+              element("age", ElementType.INTEGER)),
+          element("rpt", ElementType.REPEAT,
+              element("item", ElementType.STRING))));
+
+  private static SubmissionXmlReader reader(String xml) throws XMLStreamException {
+    return new SubmissionXmlReader(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static SubmissionXmlReader read(String xml) throws Exception {
+    SubmissionXmlReader r = reader(xml);
+    r.readRoot();
+    r.readSubmission(FORM);
+    return r;
+  }
+
+  @Test
+  public void testRootAttributes() throws Exception {
+    SubmissionXmlReader r = reader("<?xml version='1.0'?>"
+        + "<data xmlns:jr=\"http://openrosa.org/javarosa\" id=\"form1\" version=\"2019010101\""
+        + " jr:id=\"other\" instanceID=\"uuid:root\"><name>a</name></data>");
+    r.readRoot();
+    assertEquals("form1", r.getRootAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME));
+    assertEquals("2019010101", r.getRootAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME));
+    assertEquals("uuid:root", r.getRootAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME));
+    // missing attributes read as empty
+    assertEquals("", r.getRootAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME));
+    assertEquals("", r.getRootAttribute(ParserConsts.NAMESPACE_ATTRIBUTE));
+  }
+
+  @Test
+  public void testNamespaceFallback() throws Exception {
+    SubmissionXmlReader r = reader("<data xmlns=\"http://example.org/form1\""
+        + " xmlns:orx=\"http://openrosa.org/xforms\"><name>a</name></data>");
+    r.readRoot();
+    assertEquals("", r.getRootAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME));
+    assertEquals("http://example.org/form1",
+        r.getRootAttribute(ParserConsts.NAMESPACE_ATTRIBUTE));
+  }
+
+  @Test
+  public void testNamespacedInstanceId() throws Exception {
+    SubmissionXmlReader r = reader("<data id=\"f\" xmlns:orx=\"http://openrosa.org/xforms\">"
+        + "<name>a</name><orx:meta><orx:instanceID>uuid:1</orx:instanceID></orx:meta></data>");
+    r.readRoot();
+    assertNull(r.getOpenRosaInstanceId());
+    r.readSubmission(FORM);
+    assertEquals("uuid:1", r.getOpenRosaInstanceId());
+  }
+
+  @Test
+  public void testUnnamespacedInstanceId() throws Exception {
+    SubmissionXmlReader r = read("<data id=\"f\">"
+        + "<meta><instanceID>uuid:2</instanceID></meta><name>a</name></data>");
+    assertEquals("uuid:2", r.getOpenRosaInstanceId());
+  }
+
+  @Test
+  public void testForeignNamespaceInstanceIdIgnored() throws Exception {
+    SubmissionXmlReader r = read("<data id=\"f\" xmlns:x=\"http://example.org/other\">"
+        + "<x:meta><x:instanceID>uuid:3</x:instanceID></x:meta></data>");
+    assertNull(r.getOpenRosaInstanceId());
+  }
+
+  @Test
+  public void testEmptyFirstInstanceId() throws Exception {
+    SubmissionXmlReader r = read("<data id=\"f\">"
+        + "<meta><instanceID/><instanceID>uuid:4</instanceID></meta></data>");
+    assertEquals("uuid:4", r.getOpenRosaInstanceId());
+  }
+
+  @Test
+  public void testOnlyFirstMetaBlock() throws Exception {
+    SubmissionXmlReader r = read("<data id=\"f\">"
+        + "<meta><instanceID>uuid:5</instanceID></meta>"
+        + "<grp><meta><instanceID>uuid:6</instanceID></meta><age>7</age></grp></data>");
+    assertEquals("uuid:5", r.getOpenRosaInstanceId());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testInstanceIdWithSeveralTextNodes() throws Exception {
+    read("<data id=\"f\"><meta><instanceID>uuid:<x/>7</instanceID></meta></data>");
+  }
+
+  @Test
+  public void testRepeatInstancesInDocumentOrder() throws Exception {
+    SubmissionXmlReader r = reader("<data id=\"f\">"
+        + "<rpt><item>one</item></rpt><name>n</name><rpt/><rpt><item>three</item></rpt></data>");
+    r.readRoot();
+    List<ParsedElement> children = r.readSubmission(FORM).children;
+
+    // the parser numbers repeat instances 1, 2, 3 in this order
+    assertEquals(4, children.size());
+    assertEquals("rpt", children.get(0).model.getElementName());
+    assertEquals("one", children.get(0).children.get(0).value);
+    assertEquals("name", children.get(1).model.getElementName());
+    assertEquals("rpt", children.get(2).model.getElementName());
+    assertTrue(children.get(2).children.isEmpty());
+    assertEquals("rpt", children.get(3).model.getElementName());
+    assertEquals("three", children.get(3).children.get(0).value);
+  }
+
+  @Test
+  public void testUnknownElementsSkipped() throws Exception {
+    SubmissionXmlReader r = reader("<data id=\"f\">"
+        + "<extra><name>nested</name></extra><name>  n  </name>"
+        + "<grp><unknown><age>8</age></unknown><age>7</age></grp></data>");
+    r.readRoot();
+    ParsedElement root = r.readSubmission(FORM);
+
+    assertEquals(2, root.children.size());
+    ParsedElement name = root.children.get(0);
+    assertEquals("name", name.model.getElementName());
+    assertEquals("n", name.value);
+    ParsedElement grp = root.children.get(1);
+    assertEquals(1, grp.children.size());
+    assertEquals("7", grp.children.get(0).value);
+  }
+
+  @Test
+  public void testEmptyValue() throws Exception {
+    SubmissionXmlReader r = reader("<data id=\"f\"><name>   </name></data>");
+    r.readRoot();
+    assertNull(r.readSubmission(FORM).children.get(0).value);
+  }
+
+  @Test(expected = ODKParseException.class)
+  public void testMismatchedDocumentElementRejected() throws Exception {
+    read("<other id=\"f\"><name>a</name></other>");
+  }
+
+  @Test(expected = XMLStreamException.class)
+  public void testMismatchedTagRejected() throws Exception {
+    read("<data id=\"f\"><name>a</nam></data>");
+  }
+
+  @Test(expected = XMLStreamException.class)
+  public void testMalformedSkippedElementRejected() throws Exception {
+    read("<data id=\"f\"><extra><b></extra></data>");
+  }
+
+  @Test(expected = XMLStreamException.class)
+  public void testTrailingContentRejected() throws Exception {
+    read("<data id=\"f\"><name>a</name></data><data/>");
+  }
+
+  @Test(expected = XMLStreamException.class)
+  public void testNoDocumentElementRejected() throws Exception {
+    reader("<!-- empty -->").readRoot();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.servlet;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+  @Test
+  public void parses_closed_open_and_suffix_ranges() {
+    ByteRange closed = ByteRange.parse("bytes=0-99", 1000);
+    assertThat(closed.getFirst(), is(0L));
+    assertThat(closed.getLast(), is(99L));
+    assertThat(closed.getLength(), is(100L));
+    assertThat(closed.toContentRange(1000), is("bytes 0-99/1000"));
+
+    ByteRange open = ByteRange.parse("bytes=900-", 1000);
+    assertThat(open.getFirst(), is(900L));
+    assertThat(open.getLast(), is(999L));
+
+    ByteRange suffix = ByteRange.parse("bytes=-100", 1000);
+    assertThat(suffix.getFirst(), is(900L));
+    assertThat(suffix.getLast(), is(999L));
+  }
+
+  @Test
+  public void clamps_ranges_that_run_past_the_end() {
+    assertThat(ByteRange.parse("bytes=500-5000", 1000).getLast(), is(999L));
+    assertThat(ByteRange.parse("bytes=-5000", 1000).getFirst(), is(0L));
+  }
+
+  @Test
+  public void ranges_starting_past_the_end_are_unsatisfiable() {
+    ByteRange range = ByteRange.parse("bytes=1000-", 1000);
+    assertThat(range, sameInstance(ByteRange.UNSATISFIABLE));
+    assertThat(range.toContentRange(1000), is("bytes */1000"));
+    assertThat(ByteRange.parse("bytes=-0", 1000), sameInstance(ByteRange.UNSATISFIABLE));
+  }
+
+  @Test
+  public void ignores_missing_malformed_and_multiple_ranges() {
+    assertThat(ByteRange.parse(null, 1000), nullValue());
+    assertThat(ByteRange.parse("items=0-1", 1000), nullValue());
+    assertThat(ByteRange.parse("bytes=abc-def", 1000), nullValue());
+    assertThat(ByteRange.parse("bytes=50-10", 1000), nullValue());
+    assertThat(ByteRange.parse("bytes=0-1,5-6", 1000), nullValue());
+  }
+}
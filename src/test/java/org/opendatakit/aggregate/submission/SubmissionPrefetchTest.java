@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.submission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendatakit.aggregate.datamodel.TestFormDataModels.element;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.InstanceData;
+import org.opendatakit.aggregate.datamodel.SelectChoice;
+import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.common.datamodel.BinaryContent;
+import org.opendatakit.common.datamodel.BinaryContentRefBlob;
+import org.opendatakit.common.datamodel.DynamicBase;
+import org.opendatakit.common.datamodel.RefBlob;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class SubmissionPrefetchTest {
+  private final TopLevelInstanceData top = new TopLevelInstanceData("SCHEMA", "DATA");
+  private final InstanceData repeat = new InstanceData("SCHEMA", "DATA_RPT");
+  private final SelectChoice choices = new SelectChoice("SCHEMA", "DATA_COLORS");
+  private final BinaryContent attachments = new BinaryContent("SCHEMA", "DATA_PHOTO_BN");
+  private User user;
+  private Datastore ds;
+  private IForm form;
+  private CallingContext cc;
+  /**
+   * the rows of each child table, in the order the query returns them.
+   */
+  private final Map<CommonFieldsBase, List<CommonFieldsBase>> tableRows =
+      new HashMap<CommonFieldsBase, List<CommonFieldsBase>>();
+  /**
+   * the top level uris of each query, by table.
+   */
+  private final Map<CommonFieldsBase, List<List<?>>> filters =
+      new HashMap<CommonFieldsBase, List<List<?>>>();
+
+  private static FormDataModel backedBy(FormDataModel fdm, CommonFieldsBase relation) {
+    fdm.setBackingObject(relation);
+    return fdm;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    FormDataModel fdm = backedBy(element("data", ElementType.GROUP,
+        backedBy(element("name", ElementType.STRING), top),
+        backedBy(element("rpt", ElementType.REPEAT,
+            backedBy(element("item", ElementType.STRING), repeat),
+            backedBy(element("count", ElementType.INTEGER), repeat)), repeat),
+        backedBy(element("colors", ElementType.SELECTN), choices),
+        backedBy(element("photo", ElementType.BINARY,
+            backedBy(element("photo_blb", ElementType.BINARY_CONTENT_REF_BLOB),
+                new BinaryContentRefBlob("SCHEMA", "DATA_PHOTO_BLB")),
+            backedBy(element("photo_ref", ElementType.REF_BLOB),
+                new RefBlob("SCHEMA", "DATA_PHOTO_REF"))), attachments)), top);
+    form = mock(IForm.class);
+    when(form.getTopLevelGroupElement())
+        .thenReturn(FormElementModel.buildFormElementModelTree(fdm));
+
+    user = mock(User.class);
+    ds = mock(Datastore.class);
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+    for (DynamicBase relation : Arrays.<DynamicBase>asList(repeat, choices, attachments)) {
+      tableRows.put(relation, new ArrayList<CommonFieldsBase>());
+      filters.put(relation, new ArrayList<List<?>>());
+    }
+    when(ds.createQuery(any(CommonFieldsBase.class), anyString(), eq(user)))
+        .thenAnswer(invocation -> query(invocation.getArgument(0)));
+  }
+
+  /**
+   * @return a query over the rows of the relation under the filtered top
+   *     level uris.
+   */
+  private Query query(DynamicBase relation) throws Exception {
+    Query query = mock(Query.class);
+    List<Collection<?>> filter = new ArrayList<Collection<?>>();
+    doAnswer(invocation -> {
+      Collection<?> uris = invocation.getArgument(1);
+      filter.add(uris);
+      filters.get(relation).add(new ArrayList<Object>(uris));
+      return null;
+    }).when(query).addValueSetFilter(eq(relation.topLevelAuri), anyCollection());
+    doAnswer(invocation -> {
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      for (CommonFieldsBase row : tableRows.get(relation)) {
+        if (filter.get(0).contains(((DynamicBase) row).getTopLevelAuri())) {
+          rows.add(row);
+        }
+      }
+      return rows;
+    }).when(query).executeQuery();
+    return query;
+  }
+
+  private DynamicBase childRow(DynamicBase relation, String topLevelUri, String parentUri) {
+    DynamicBase row = (DynamicBase) relation.getEmptyRow(user);
+    row.setTopLevelAuri(topLevelUri);
+    row.setParentAuri(parentUri);
+    tableRows.get(relation).add(row);
+    return row;
+  }
+
+  private List<CommonFieldsBase> submissions(int count) {
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    for (int i = 0; i < count; ++i) {
+      CommonFieldsBase row = top.getEmptyRow(user);
+      row.setStringField(row.primaryKey, "uuid:" + i);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  @Test
+  public void each_child_table_is_queried_once_for_the_page() throws Exception {
+    SubmissionPrefetch.fetch(submissions(3), form, cc);
+
+    List<String> uris = Arrays.asList("uuid:0", "uuid:1", "uuid:2");
+    assertEquals(Collections.singletonList(uris), filters.get(repeat));
+    assertEquals(Collections.singletonList(uris), filters.get(choices));
+    assertEquals(Collections.singletonList(uris), filters.get(attachments));
+    // the blob tables are read lazily
+    verify(ds, never()).createQuery(eq(top), anyString(), any(User.class));
+    verify(ds, never()).createQuery(any(BinaryContentRefBlob.class), anyString(),
+        any(User.class));
+    verify(ds, never()).createQuery(any(RefBlob.class), anyString(), any(User.class));
+  }
+
+  @Test
+  public void a_large_page_is_queried_in_bounded_value_sets() throws Exception {
+    SubmissionPrefetch.fetch(submissions(1200), form, cc);
+
+    for (List<List<?>> tableFilters : filters.values()) {
+      assertEquals(3, tableFilters.size());
+      assertEquals(500, tableFilters.get(0).size());
+      assertEquals(500, tableFilters.get(1).size());
+      assertEquals(200, tableFilters.get(2).size());
+    }
+  }
+
+  @Test
+  public void child_rows_are_indexed_by_parent_in_query_order() throws Exception {
+    DynamicBase first = childRow(repeat, "uuid:0", "uuid:0");
+    DynamicBase second = childRow(repeat, "uuid:0", "uuid:0");
+    DynamicBase other = childRow(repeat, "uuid:1", "uuid:1");
+    DynamicBase nested = childRow(choices, "uuid:1", "uuid:rpt1");
+    childRow(repeat, "uuid:9", "uuid:9");
+
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(submissions(2), form, cc);
+
+    assertEquals(Arrays.asList(first, second), prefetch.getChildRows(repeat, "uuid:0"));
+    assertEquals(Collections.singletonList(other), prefetch.getChildRows(repeat, "uuid:1"));
+    assertEquals(Collections.singletonList(nested), prefetch.getChildRows(choices, "uuid:rpt1"));
+    // prefetched, without rows
+    assertTrue(prefetch.getChildRows(attachments, "uuid:0").isEmpty());
+    assertTrue(prefetch.getChildRows(repeat, "uuid:9").isEmpty());
+    // not prefetched
+    assertNull(prefetch.getChildRows(new InstanceData("SCHEMA", "OTHER"), "uuid:0"));
+  }
+
+  @Test
+  public void only_the_fetched_submissions_are_included() throws Exception {
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(submissions(2), form, cc);
+
+    assertTrue(prefetch.includes("uuid:0"));
+    assertTrue(prefetch.includes("uuid:1"));
+    assertFalse(prefetch.includes("uuid:2"));
+  }
+
+  @Test
+  public void an_empty_page_runs_no_queries() throws Exception {
+    SubmissionPrefetch prefetch = SubmissionPrefetch.fetch(
+        Collections.<CommonFieldsBase>emptyList(), form, cc);
+
+    assertFalse(prefetch.includes("uuid:0"));
+    verify(ds, never()).createQuery(any(CommonFieldsBase.class), anyString(), any(User.class));
+  }
+}
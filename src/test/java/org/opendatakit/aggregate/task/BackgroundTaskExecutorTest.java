@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.task.BackgroundTaskExecutor.TaskLane;
+
+public class BackgroundTaskExecutorTest {
+  private BackgroundTaskExecutor executor;
+
+  @Before
+  public void setUp() {
+    executor = new BackgroundTaskExecutor();
+    executor.setExportThreads(1);
+    executor.afterPropertiesSet();
+  }
+
+  @After
+  public void tearDown() {
+    executor.destroy();
+  }
+
+  @Test
+  public void identical_queued_tasks_are_dropped() throws InterruptedException {
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    // occupy the only export thread so that the next tasks stay queued
+    executor.execute(TaskLane.EXPORT, "blocker", () -> {
+      running.countDown();
+      await(release);
+    });
+    assertTrue(running.await(5, TimeUnit.SECONDS));
+
+    assertTrue(executor.execute(TaskLane.EXPORT, "csv:1", done::countDown));
+    assertFalse(executor.execute(TaskLane.EXPORT, "csv:1", done::countDown));
+    assertEquals(1, executor.getStatistics(TaskLane.EXPORT).getQueueDepth());
+    assertEquals(1, executor.getStatistics(TaskLane.EXPORT).getDroppedCount());
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void lanes_do_not_block_each_other() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch published = new CountDownLatch(1);
+    executor.execute(TaskLane.EXPORT, "long export", () -> await(release));
+
+    executor.execute(TaskLane.PUBLISHING, "upload:1", published::countDown);
+
+    assertTrue(published.await(5, TimeUnit.SECONDS));
+    release.countDown();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.RowSubmissionFormatter;
+import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.query.submission.QueryBase;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+public class ExportPipelineTest {
+  private static final int PAGE_SIZE = 10;
+
+  private IForm form;
+  private CallingContext cc;
+  private QueryBase query;
+  /**
+   * the name of each submission handed out by the query.
+   */
+  private final Map<Submission, String> names =
+      Collections.synchronizedMap(new HashMap<Submission, String>());
+  private final AtomicInteger fetches = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    form = mock(IForm.class);
+    when(form.getFormId()).thenReturn("form-" + System.nanoTime());
+    cc = mock(CallingContext.class);
+    query = mock(QueryBase.class);
+  }
+
+  private List<Submission> page(int number) {
+    List<Submission> page = new ArrayList<Submission>();
+    for (int i = 0; i < PAGE_SIZE; ++i) {
+      Submission submission = mock(Submission.class);
+      names.put(submission, "s" + (number * PAGE_SIZE + i));
+      page.add(submission);
+    }
+    return page;
+  }
+
+  /**
+   * Makes the query return the given number of full pages, then no more.
+   */
+  private void pages(int count) throws ODKDatastoreException {
+    when(query.getResultSubmissions(cc)).thenAnswer(invocation -> {
+      int number = fetches.getAndIncrement();
+      return number < count ? page(number) : Collections.<Submission>emptyList();
+    });
+  }
+
+  private static List<String> expectedNames(int count) {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < count; ++i) {
+      expected.add("s" + i);
+    }
+    return expected;
+  }
+
+  private static boolean fetchThreadAlive(String formId) {
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.isAlive() && t.getName().equals("CSV export fetch " + formId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void every_page_is_formatted_in_order() throws Exception {
+    pages(3);
+    SubmissionFormatter formatter = mock(SubmissionFormatter.class);
+    List<String> formatted = new ArrayList<String>();
+    doAnswer(invocation -> {
+      for (Submission s : (List<Submission>) invocation.getArgument(0)) {
+        formatted.add(names.get(s));
+      }
+      return null;
+    }).when(formatter).processSubmissionSegment(anyList(), any(CallingContext.class));
+
+    new ExportPipeline("CSV", form, cc, 1).run(query, formatter);
+
+    assertEquals(expectedNames(3 * PAGE_SIZE), formatted);
+    InOrder inOrder = inOrder(formatter);
+    inOrder.verify(formatter).beforeProcessSubmissions(cc);
+    inOrder.verify(formatter).afterProcessSubmissions(cc);
+  }
+
+  @Test
+  public void parallel_formatting_appends_the_submissions_in_order() throws Exception {
+    pages(3);
+    RowSubmissionFormatter formatter = mock(RowSubmissionFormatter.class);
+    when(formatter.formatSubmission(any(Submission.class), any(CallingContext.class)))
+        .thenAnswer(invocation -> {
+          // finish out of order
+          Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+          return names.get(invocation.getArgument(0));
+        });
+    List<String> appended = new ArrayList<String>();
+    doAnswer(invocation -> appended.add(invocation.getArgument(0)))
+        .when(formatter).appendFormattedSubmission(any());
+
+    new ExportPipeline("CSV", form, cc, 4).run(query, formatter);
+
+    assertEquals(expectedNames(3 * PAGE_SIZE), appended);
+    verify(formatter, never()).processSubmissionSegment(anyList(), any(CallingContext.class));
+    verify(formatter).afterProcessSubmissions(cc);
+  }
+
+  @Test
+  public void a_fetch_failure_is_thrown_from_run() throws Exception {
+    ODKDatastoreException failure = new ODKDatastoreException("fetch failed");
+    List<Submission> first = page(0);
+    when(query.getResultSubmissions(cc)).thenReturn(first).thenThrow(failure);
+    SubmissionFormatter formatter = mock(SubmissionFormatter.class);
+
+    try {
+      new ExportPipeline("CSV", form, cc, 1).run(query, formatter);
+      fail("the fetch failure was swallowed");
+    } catch (ODKDatastoreException e) {
+      assertSame(failure, e);
+    }
+    verify(formatter).processSubmissionSegment(anyList(), any(CallingContext.class));
+    verify(formatter, never()).afterProcessSubmissions(cc);
+  }
+
+  @Test
+  public void a_format_failure_stops_the_fetch_thread() throws Exception {
+    // the query never runs dry
+    pages(Integer.MAX_VALUE);
+    ODKDatastoreException failure = new ODKDatastoreException("format failed");
+    RowSubmissionFormatter formatter = mock(RowSubmissionFormatter.class);
+    when(formatter.formatSubmission(any(Submission.class), any(CallingContext.class)))
+        .thenAnswer(invocation -> {
+          if (names.get(invocation.getArgument(0)).equals("s15")) {
+            throw failure;
+          }
+          return names.get(invocation.getArgument(0));
+        });
+
+    try {
+      new ExportPipeline("CSV", form, cc, 3).run(query, formatter);
+      fail("the format failure was swallowed");
+    } catch (ODKDatastoreException e) {
+      assertSame(failure, e);
+    }
+
+    String formId = form.getFormId();
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (fetchThreadAlive(formId) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertFalse(fetchThreadAlive(formId));
+    int fetched = fetches.get();
+    Thread.sleep(100L);
+    assertEquals(fetched, fetches.get());
+    verify(formatter, never()).afterProcessSubmissions(cc);
+  }
+}
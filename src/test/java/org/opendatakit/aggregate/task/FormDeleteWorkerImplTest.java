@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendatakit.aggregate.datamodel.TestFormDataModels.element;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.MiscTasks;
+import org.opendatakit.aggregate.form.MiscTasks.TaskType;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.aggregate.util.ThumbnailTable;
+import org.opendatakit.common.datamodel.BinaryContent;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class FormDeleteWorkerImplTest {
+  private static final String LOCK_NAME = "MT:form1";
+
+  private Datastore ds;
+  private User user;
+  private TaskLock taskLock;
+  private MiscTasks task;
+  private FormDeleteWorkerImpl worker;
+  private final List<String> dropped = new ArrayList<String>();
+
+  private static final class TestRelation extends CommonFieldsBase {
+    TestRelation(String tableName) {
+      super("SCHEMA", tableName);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final BinaryContent PHOTOS = new BinaryContent("SCHEMA", "DATA_PHOTO_BN");
+
+  private static FormDataModel backedBy(FormDataModel fdm, String tableName) {
+    fdm.setBackingObject(new TestRelation(tableName));
+    return fdm;
+  }
+
+  private static FormDataModel backedBy(FormDataModel fdm, CommonFieldsBase relation) {
+    fdm.setBackingObject(relation);
+    return fdm;
+  }
+
+  /**
+   * A form with a field in the top-level table, a repeat, and an image
+   * whose content and blob tables hang below its binary content table.
+   */
+  private static IForm formWithRepeatAndBinary() {
+    FormDataModel top = backedBy(element("data", ElementType.GROUP,
+        backedBy(element("name", ElementType.STRING), "DATA"),
+        backedBy(element("rpt", ElementType.REPEAT,
+            backedBy(element("item", ElementType.STRING), "DATA_RPT")), "DATA_RPT"),
+        backedBy(element("photo", ElementType.BINARY,
+            backedBy(element("photo_blb", ElementType.BINARY_CONTENT_REF_BLOB), "DATA_PHOTO_BLB"),
+            backedBy(element("photo_ref", ElementType.REF_BLOB), "DATA_PHOTO_REF")),
+            PHOTOS)), "DATA");
+
+    IForm form = mock(IForm.class);
+    when(form.hasValidFormDefinition()).thenReturn(true);
+    when(form.getTopLevelGroupElement()).thenReturn(FormElementModel.buildFormElementModelTree(top));
+    return form;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ds = mock(Datastore.class);
+    user = mock(User.class);
+    taskLock = mock(TaskLock.class);
+    task = mock(MiscTasks.class);
+    CallingContext cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+    when(ds.createTaskLock(user)).thenReturn(taskLock);
+    when(ds.hasRelation(anyString(), anyString(), eq(user))).thenReturn(true);
+    doAnswer(invocation -> {
+      dropped.add(((CommonFieldsBase) invocation.getArgument(0)).getTableName());
+      return null;
+    }).when(ds).dropRelation(any(CommonFieldsBase.class), eq(user));
+    when(taskLock.renewLock(anyString(), eq(LOCK_NAME), eq(TaskLockType.FORM_DELETION)))
+        .thenReturn(true);
+    when(task.getMiscTaskLockName()).thenReturn(LOCK_NAME);
+    when(task.getTaskType()).thenReturn(TaskType.DELETE_FORM);
+
+    worker = new FormDeleteWorkerImpl(formWithRepeatAndBinary(),
+        new SubmissionKey("MiscTasks[@key=\"uuid:task\"]"), 1L, cc);
+  }
+
+  @Test
+  public void every_backing_table_is_dropped_once_renewing_the_lock_after_each() throws Exception {
+    worker.dropBackingTables(task);
+
+    assertEquals(5, dropped.size());
+    assertEquals(new HashSet<String>(Arrays.asList("DATA", "DATA_RPT", "DATA_PHOTO_BN",
+        "DATA_PHOTO_BLB", "DATA_PHOTO_REF")), new HashSet<String>(dropped));
+
+    InOrder inOrder = inOrder(ds, taskLock);
+    for (int i = 0; i < 5; ++i) {
+      inOrder.verify(ds).dropRelation(any(CommonFieldsBase.class), eq(user));
+      inOrder.verify(taskLock).renewLock(anyString(), eq(LOCK_NAME),
+          eq(TaskLockType.FORM_DELETION));
+    }
+    verify(task, times(5)).persist(any(CallingContext.class));
+  }
+
+  @Test
+  public void tables_dropped_by_an_earlier_attempt_are_skipped() throws Exception {
+    when(ds.hasRelation("SCHEMA", "DATA_RPT", user)).thenReturn(false);
+
+    worker.dropBackingTables(task);
+
+    assertEquals(4, dropped.size());
+    assertFalse(dropped.contains("DATA_RPT"));
+    verify(taskLock, times(5)).renewLock(anyString(), eq(LOCK_NAME),
+        eq(TaskLockType.FORM_DELETION));
+  }
+
+  @Test
+  public void a_failed_drop_fails_the_task() throws Exception {
+    doThrow(new ODKDatastoreException("drop failed")).when(ds)
+        .dropRelation(any(CommonFieldsBase.class), eq(user));
+
+    try {
+      worker.dropBackingTables(task);
+      fail("the drop failure was swallowed");
+    } catch (ODKDatastoreException e) {
+      // expected
+    }
+    verify(ds, times(1)).dropRelation(any(CommonFieldsBase.class), eq(user));
+    verify(taskLock, never()).renewLock(anyString(), anyString(), any(TaskLockType.class));
+  }
+
+  @Test
+  public void a_lost_lock_stops_the_drops() throws Exception {
+    when(taskLock.renewLock(anyString(), eq(LOCK_NAME), eq(TaskLockType.FORM_DELETION)))
+        .thenReturn(false);
+
+    try {
+      worker.dropBackingTables(task);
+      fail("kept dropping without the lock");
+    } catch (ODKTaskLockException e) {
+      // expected
+    }
+    assertEquals(1, dropped.size());
+  }
+
+  @Test
+  public void the_attachment_thumbnails_are_deleted_before_the_tables_are_dropped()
+      throws Exception {
+    when(ds.getDefaultSchemaName()).thenReturn("SCHEMA");
+    Query attachmentQuery = mock(Query.class);
+    when(ds.createQuery(eq(PHOTOS), anyString(), eq(user))).thenReturn(attachmentQuery);
+    doReturn(Arrays.asList("hash-a")).when(attachmentQuery)
+        .executeDistinctValueForDataField(PHOTOS.contentHash);
+    Query thumbnailQuery = mock(Query.class);
+    when(ds.createQuery(any(ThumbnailTable.class), anyString(), eq(user)))
+        .thenReturn(thumbnailQuery);
+    when(thumbnailQuery.executeKeysOnly()).thenReturn(Arrays.asList("hash-a|64x48"));
+
+    worker.deleteSubmissions(task);
+
+    verify(thumbnailQuery).addValueSetFilter(any(DataField.class),
+        eq(Arrays.asList("hash-a")));
+    InOrder inOrder = inOrder(ds);
+    inOrder.verify(ds).deleteEntities(anyCollection(), eq(user));
+    inOrder.verify(ds, times(5)).dropRelation(any(CommonFieldsBase.class), eq(user));
+  }
+
+  @Test
+  public void a_form_without_a_definition_drops_nothing() throws Exception {
+    IForm form = mock(IForm.class);
+    when(form.hasValidFormDefinition()).thenReturn(false);
+    CallingContext cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+
+    new FormDeleteWorkerImpl(form, new SubmissionKey("MiscTasks[@key=\"uuid:task\"]"), 1L, cc)
+        .dropBackingTables(task);
+
+    verify(ds, never()).dropRelation(any(CommonFieldsBase.class), any(User.class));
+  }
+}
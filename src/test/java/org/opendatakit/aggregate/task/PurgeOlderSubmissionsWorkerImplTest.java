@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendatakit.aggregate.datamodel.TestFormDataModels.element;
+import static org.opendatakit.aggregate.task.PurgeOlderSubmissions.PURGED_COUNT;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.InstanceData;
+import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.MiscTasks;
+import org.opendatakit.aggregate.form.MiscTasks.TaskType;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.BinaryContent;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class PurgeOlderSubmissionsWorkerImplTest {
+  private static final String LOCK_NAME = "MT:form1";
+  private static final int BATCH_SIZE = 10;
+
+  private final TopLevelInstanceData top = new TopLevelInstanceData("SCHEMA", "DATA");
+  private final InstanceData repeat = new InstanceData("SCHEMA", "DATA_RPT");
+  private User user;
+  private CallingContext cc;
+  private Datastore ds;
+  private Query query;
+  private TaskLock taskLock;
+  private MiscTasks task;
+  private final Map<String, String> requestParameters = new HashMap<String, String>();
+  private final Deque<Integer> batches = new ArrayDeque<Integer>();
+  private PurgeOlderSubmissionsWorkerImpl worker;
+
+  private static FormDataModel backedBy(FormDataModel fdm, CommonFieldsBase relation) {
+    fdm.setBackingObject(relation);
+    return fdm;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    FormDataModel fdm = backedBy(element("data", ElementType.GROUP,
+        backedBy(element("name", ElementType.STRING), top),
+        backedBy(element("rpt", ElementType.REPEAT,
+            backedBy(element("item", ElementType.STRING), repeat)), repeat)), top);
+    IForm form = mock(IForm.class);
+    when(form.getTopLevelGroupElement())
+        .thenReturn(FormElementModel.buildFormElementModelTree(fdm));
+
+    user = mock(User.class);
+    ds = mock(Datastore.class);
+    query = mock(Query.class);
+    taskLock = mock(TaskLock.class);
+    task = mock(MiscTasks.class);
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+    when(ds.createQuery(eq(top), anyString(), eq(user))).thenReturn(query);
+    when(ds.createTaskLock(user)).thenReturn(taskLock);
+    when(query.executeDelete(anyMap(), eq(BATCH_SIZE)))
+        .thenAnswer(invocation -> batches.removeFirst());
+    when(taskLock.renewLock(anyString(), eq(LOCK_NAME), eq(TaskLockType.PURGE_OLDER_SUBMISSIONS)))
+        .thenReturn(true);
+    when(task.getMiscTaskLockName()).thenReturn(LOCK_NAME);
+    when(task.getTaskType()).thenReturn(TaskType.PURGE_OLDER_SUBMISSIONS);
+    when(task.getRequestParameters()).thenReturn(requestParameters);
+    doAnswer(invocation -> {
+      requestParameters.putAll(invocation.getArgument(0));
+      return null;
+    }).when(task).setRequestParameters(anyMap());
+
+    worker = new PurgeOlderSubmissionsWorkerImpl(form,
+        new SubmissionKey("MiscTasks[@key=\"uuid:task\"]"), 1L, BATCH_SIZE, cc);
+  }
+
+  @Test
+  public void batches_are_deleted_until_a_partial_one_renewing_the_lock_in_between()
+      throws Exception {
+    batches.addAll(Arrays.asList(BATCH_SIZE, BATCH_SIZE, 3));
+
+    worker.purgeSetBased(task, top, new Date());
+
+    verify(query, times(3)).executeDelete(anyMap(), eq(BATCH_SIZE));
+    verify(taskLock, times(2)).renewLock(anyString(), eq(LOCK_NAME),
+        eq(TaskLockType.PURGE_OLDER_SUBMISSIONS));
+    verify(task, times(3)).persist(any(CallingContext.class));
+    assertEquals("23", requestParameters.get(PURGED_COUNT));
+  }
+
+  @Test
+  public void the_dependent_tables_are_deleted_by_their_top_level_column() throws Exception {
+    batches.add(0);
+    Map<CommonFieldsBase, DataField> dependents = new HashMap<CommonFieldsBase, DataField>();
+    dependents.put(repeat, repeat.topLevelAuri);
+
+    worker.purgeSetBased(task, top, new Date());
+
+    verify(query).executeDelete(eq(dependents), eq(BATCH_SIZE));
+  }
+
+  @Test
+  public void the_thumbnails_of_each_batch_are_deleted_before_the_batch() throws Exception {
+    BinaryContent photos = new BinaryContent("SCHEMA", "DATA_PHOTO_BN");
+    FormDataModel fdm = backedBy(element("data", ElementType.GROUP,
+        backedBy(element("name", ElementType.STRING), top),
+        backedBy(element("photo", ElementType.BINARY), photos)), top);
+    IForm form = mock(IForm.class);
+    when(form.hasValidFormDefinition()).thenReturn(true);
+    when(form.getTopLevelGroupElement())
+        .thenReturn(FormElementModel.buildFormElementModelTree(fdm));
+    worker = new PurgeOlderSubmissionsWorkerImpl(form,
+        new SubmissionKey("MiscTasks[@key=\"uuid:task\"]"), 1L, BATCH_SIZE, cc);
+    Query attachmentQuery = mock(Query.class);
+    when(ds.createQuery(eq(photos), anyString(), eq(user))).thenReturn(attachmentQuery);
+    when(query.executeKeysOnly(BATCH_SIZE))
+        .thenReturn(Arrays.asList("uuid:1"), Arrays.asList("uuid:2"));
+    batches.addAll(Arrays.asList(BATCH_SIZE, 3));
+
+    worker.purgeSetBased(task, top, new Date());
+
+    // each batch is picked out, its attachments looked up, then deleted
+    InOrder inOrder = inOrder(query, attachmentQuery);
+    for (String uri : Arrays.asList("uuid:1", "uuid:2")) {
+      inOrder.verify(query).executeKeysOnly(BATCH_SIZE);
+      inOrder.verify(attachmentQuery).addValueSetFilter(photos.topLevelAuri,
+          Arrays.asList(uri));
+      inOrder.verify(query).executeDelete(anyMap(), eq(BATCH_SIZE));
+    }
+  }
+
+  @Test
+  public void a_lost_lock_stops_the_purge_leaving_the_task_for_a_retry() throws Exception {
+    batches.addAll(Arrays.asList(BATCH_SIZE, BATCH_SIZE, 3));
+    when(taskLock.renewLock(anyString(), eq(LOCK_NAME), eq(TaskLockType.PURGE_OLDER_SUBMISSIONS)))
+        .thenReturn(false);
+
+    try {
+      worker.purgeSetBased(task, top, new Date());
+      fail("kept purging without the lock");
+    } catch (ODKTaskLockException e) {
+      // expected
+    }
+    verify(query, times(1)).executeDelete(anyMap(), anyInt());
+    // the progress so far is recorded, but the task is not marked complete
+    assertEquals(Integer.toString(BATCH_SIZE), requestParameters.get(PURGED_COUNT));
+    verify(task, never()).setStatus(any());
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class ImageUtilTest {
+  private static final String HASH = "md5:0123456789abcdef";
+
+  private User user;
+  private Datastore ds;
+  private CallingContext cc;
+  private final ImageUtil imageUtil = new ImageUtil();
+  /**
+   * the thumbnails in the datastore, by key.
+   */
+  private final Map<String, byte[]> stored = new HashMap<String, byte[]>();
+  /**
+   * the content hash of each stored thumbnail, by key.
+   */
+  private final Map<String, String> storedHashes = new HashMap<String, String>();
+
+  /**
+   * Serves the original image, counting the loads.
+   */
+  private static final class CountingSource implements ImageUtil.ImageSource {
+    final AtomicInteger loads = new AtomicInteger();
+    final byte[] image;
+
+    CountingSource(byte[] image) {
+      this.image = image;
+    }
+
+    @Override
+    public byte[] getImage() {
+      loads.incrementAndGet();
+      return image;
+    }
+  }
+
+  private static DataField field(CommonFieldsBase relation, String name) {
+    for (DataField f : relation.getFieldList()) {
+      if (f.getName().equals(name)) {
+        return f;
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  private static byte[] image(int width, int height) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+    return out.toByteArray();
+  }
+
+  private static BufferedImage decode(byte[] image) throws Exception {
+    return ImageIO.read(new ByteArrayInputStream(image));
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    user = mock(User.class);
+    ds = mock(Datastore.class);
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+    when(ds.getDefaultSchemaName()).thenReturn("SCHEMA");
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), eq(user)))
+        .thenAnswer(invocation -> ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user));
+    when(ds.getEntity(any(CommonFieldsBase.class), anyString(), eq(user))).thenAnswer(invocation -> {
+      CommonFieldsBase prototype = invocation.getArgument(0);
+      String key = invocation.getArgument(1);
+      if (!stored.containsKey(key)) {
+        throw new ODKEntityNotFoundException("no thumbnail " + key);
+      }
+      CommonFieldsBase row = prototype.getEmptyRow(user);
+      row.setBlobField(field(row, "THUMBNAIL"), stored.get(key));
+      return row;
+    });
+    doAnswer(invocation -> {
+      CommonFieldsBase row = invocation.getArgument(0);
+      stored.put(row.getUri(), row.getBlobField(field(row, "THUMBNAIL")));
+      storedHashes.put(row.getUri(), row.getStringField(field(row, "CONTENT_HASH")));
+      return null;
+    }).when(ds).putEntity(any(CommonFieldsBase.class), eq(user));
+  }
+
+  @Test
+  public void a_miss_resizes_the_original_and_stores_it_by_hash_and_size() throws Exception {
+    CountingSource source = new CountingSource(image(640, 480));
+
+    byte[] thumbnail = imageUtil.getThumbnail(HASH, 64, 48, source, cc);
+
+    assertEquals(1, source.loads.get());
+    BufferedImage decoded = decode(thumbnail);
+    assertEquals(64, decoded.getWidth());
+    assertEquals(48, decoded.getHeight());
+    assertArrayEquals(thumbnail, stored.get(HASH + "|64x48"));
+    assertEquals(HASH, storedHashes.get(HASH + "|64x48"));
+  }
+
+  @Test
+  public void repeat_requests_are_served_from_memory() throws Exception {
+    CountingSource source = new CountingSource(image(640, 480));
+
+    byte[] thumbnail = imageUtil.getThumbnail(HASH, 64, 48, source, cc);
+    assertSame(thumbnail, imageUtil.getThumbnail(HASH, 64, 48, source, cc));
+
+    assertEquals(1, source.loads.get());
+    verify(ds, times(1)).getEntity(any(CommonFieldsBase.class), anyString(), eq(user));
+    verify(ds, times(1)).putEntity(any(CommonFieldsBase.class), eq(user));
+  }
+
+  @Test
+  public void a_stored_thumbnail_is_served_without_loading_the_original() throws Exception {
+    byte[] thumbnail = image(64, 48);
+    stored.put(HASH + "|64x48", thumbnail);
+    CountingSource source = new CountingSource(image(640, 480));
+
+    assertArrayEquals(thumbnail, imageUtil.getThumbnail(HASH, 64, 48, source, cc));
+    assertArrayEquals(thumbnail, imageUtil.getThumbnail(HASH, 64, 48, source, cc));
+
+    assertEquals(0, source.loads.get());
+    verify(ds, times(1)).getEntity(any(CommonFieldsBase.class), anyString(), eq(user));
+    verify(ds, never()).putEntity(any(CommonFieldsBase.class), eq(user));
+  }
+
+  @Test
+  public void each_size_has_its_own_thumbnail() throws Exception {
+    CountingSource source = new CountingSource(image(640, 480));
+
+    byte[] small = imageUtil.getThumbnail(HASH, 64, 48, source, cc);
+    byte[] large = imageUtil.getThumbnail(HASH, 128, 96, source, cc);
+
+    assertEquals(2, source.loads.get());
+    assertEquals(128, decode(large).getWidth());
+    assertArrayEquals(small, stored.get(HASH + "|64x48"));
+    assertArrayEquals(large, stored.get(HASH + "|128x96"));
+  }
+
+  @Test
+  public void the_least_recently_used_thumbnail_is_evicted_from_memory() throws Exception {
+    // not an image, so it is passed through rather than resized
+    CountingSource source = new CountingSource(new byte[] {1, 2, 3});
+    imageUtil.getThumbnail("hash0", 64, 48, source, cc);
+    List<String> others = new ArrayList<String>();
+    for (int i = 1; i <= 1000; ++i) {
+      others.add("hash" + i);
+    }
+    for (String hash : others) {
+      imageUtil.getThumbnail(hash, 64, 48, source, cc);
+    }
+    verify(ds, times(1001)).getEntity(any(CommonFieldsBase.class), anyString(), eq(user));
+
+    // the most recent are still in memory, the first one is read back
+    imageUtil.getThumbnail("hash1000", 64, 48, source, cc);
+    verify(ds, times(1001)).getEntity(any(CommonFieldsBase.class), anyString(), eq(user));
+    imageUtil.getThumbnail("hash0", 64, 48, source, cc);
+    verify(ds, times(1002)).getEntity(any(CommonFieldsBase.class), anyString(), eq(user));
+    // from the datastore, rather than resized again
+    assertEquals(1001, source.loads.get());
+  }
+
+  @Test
+  public void thumbnails_of_images_without_a_hash_are_not_cached() throws Exception {
+    CountingSource source = new CountingSource(image(640, 480));
+
+    imageUtil.getThumbnail(null, 64, 48, source, cc);
+    imageUtil.getThumbnail(null, 64, 48, source, cc);
+
+    assertEquals(2, source.loads.get());
+    verifyZeroInteractions(ds);
+  }
+}
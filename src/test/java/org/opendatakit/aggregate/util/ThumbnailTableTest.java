@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendatakit.aggregate.datamodel.TestFormDataModels.element;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
+import org.opendatakit.aggregate.datamodel.FormDataModel.ElementType;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.common.datamodel.BinaryContent;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class ThumbnailTableTest {
+  private final BinaryContent attachments = new BinaryContent("SCHEMA", "DATA_PHOTO_BN");
+  private User user;
+  private Datastore ds;
+  private CallingContext cc;
+  private IForm form;
+  private Query attachmentQuery;
+  /**
+   * the top level uris of each attachment lookup.
+   */
+  private final List<List<?>> attachmentFilters = new ArrayList<List<?>>();
+  /**
+   * the content hashes of each thumbnail lookup.
+   */
+  private final List<List<?>> thumbnailFilters = new ArrayList<List<?>>();
+  private final Set<String> deletedThumbnails = new HashSet<String>();
+
+  private static FormDataModel backedBy(FormDataModel fdm, CommonFieldsBase relation) {
+    fdm.setBackingObject(relation);
+    return fdm;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    TopLevelInstanceData top = new TopLevelInstanceData("SCHEMA", "DATA");
+    FormDataModel fdm = backedBy(element("data", ElementType.GROUP,
+        backedBy(element("name", ElementType.STRING), top),
+        backedBy(element("photo", ElementType.BINARY), attachments)), top);
+    form = mock(IForm.class);
+    when(form.hasValidFormDefinition()).thenReturn(true);
+    when(form.getTopLevelGroupElement())
+        .thenReturn(FormElementModel.buildFormElementModelTree(fdm));
+
+    user = mock(User.class);
+    ds = mock(Datastore.class);
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+    when(ds.getDefaultSchemaName()).thenReturn("SCHEMA");
+
+    attachmentQuery = mock(Query.class);
+    when(ds.createQuery(eq(attachments), anyString(), eq(user))).thenReturn(attachmentQuery);
+    doAnswer(invocation -> {
+      attachmentFilters.add(new ArrayList<Object>((Collection<?>) invocation.getArgument(1)));
+      return null;
+    }).when(attachmentQuery).addValueSetFilter(eq(attachments.topLevelAuri), anyCollection());
+    // one attachment per submission, and a placeholder without a hash
+    when(attachmentQuery.executeDistinctValueForDataField(attachments.contentHash))
+        .thenAnswer(invocation -> {
+          List<String> hashes = new ArrayList<String>();
+          if (attachmentFilters.isEmpty()) {
+            hashes.addAll(Arrays.asList("hash-a", "hash-b"));
+          } else {
+            for (Object uri : attachmentFilters.get(attachmentFilters.size() - 1)) {
+              hashes.add("hash-" + uri);
+            }
+          }
+          hashes.add(null);
+          return hashes;
+        });
+
+    Query thumbnailQuery = mock(Query.class);
+    when(ds.createQuery(any(ThumbnailTable.class), anyString(), eq(user)))
+        .thenReturn(thumbnailQuery);
+    doAnswer(invocation -> {
+      thumbnailFilters.add(new ArrayList<Object>((Collection<?>) invocation.getArgument(1)));
+      return null;
+    }).when(thumbnailQuery).addValueSetFilter(any(), anyCollection());
+    when(thumbnailQuery.executeKeysOnly()).thenAnswer(invocation -> {
+      List<String> keys = new ArrayList<String>();
+      for (Object hash : thumbnailFilters.get(thumbnailFilters.size() - 1)) {
+        keys.add(hash + "|64x48");
+      }
+      return keys;
+    });
+    doAnswer(invocation -> {
+      for (EntityKey key : (Collection<EntityKey>) invocation.getArgument(0)) {
+        deletedThumbnails.add(key.getKey());
+      }
+      return null;
+    }).when(ds).deleteEntities(anyCollection(), eq(user));
+  }
+
+  private static List<String> uris(int count) {
+    List<String> uris = new ArrayList<String>();
+    for (int i = 0; i < count; ++i) {
+      uris.add("uuid:" + i);
+    }
+    return uris;
+  }
+
+  @Test
+  public void the_thumbnails_of_the_submissions_attachments_are_deleted() throws Exception {
+    ThumbnailTable.deleteSubmissionThumbnails(form, Arrays.asList("uuid:1", "uuid:2"), cc);
+
+    assertEquals(Collections.singletonList(Arrays.asList("uuid:1", "uuid:2")),
+        attachmentFilters);
+    assertEquals(new HashSet<String>(Arrays.asList("hash-uuid:1|64x48", "hash-uuid:2|64x48")),
+        deletedThumbnails);
+  }
+
+  @Test
+  public void many_submissions_are_looked_up_in_bounded_value_sets() throws Exception {
+    ThumbnailTable.deleteSubmissionThumbnails(form, uris(1200), cc);
+
+    assertEquals(3, attachmentFilters.size());
+    assertEquals(500, attachmentFilters.get(0).size());
+    assertEquals(500, attachmentFilters.get(1).size());
+    assertEquals(200, attachmentFilters.get(2).size());
+    assertEquals(3, thumbnailFilters.size());
+    for (List<?> hashes : thumbnailFilters) {
+      assertTrue(hashes.size() <= 500);
+      // placeholders without a hash are skipped
+      assertFalse(hashes.contains(null));
+    }
+    assertEquals(1200, deletedThumbnails.size());
+  }
+
+  @Test
+  public void no_submissions_delete_nothing() throws Exception {
+    ThumbnailTable.deleteSubmissionThumbnails(form, Collections.<String>emptyList(), cc);
+
+    verify(ds, never()).createQuery(any(CommonFieldsBase.class), anyString(), any(User.class));
+    verify(ds, never()).deleteEntities(anyCollection(), any(User.class));
+  }
+
+  @Test
+  public void the_thumbnails_of_all_the_forms_attachments_are_deleted() throws Exception {
+    ThumbnailTable.deleteFormThumbnails(form, cc);
+
+    assertTrue(attachmentFilters.isEmpty());
+    assertEquals(new HashSet<String>(Arrays.asList("hash-a|64x48", "hash-b|64x48")),
+        deletedThumbnails);
+  }
+
+  @Test
+  public void a_form_without_a_definition_deletes_nothing() throws Exception {
+    when(form.hasValidFormDefinition()).thenReturn(false);
+
+    ThumbnailTable.deleteFormThumbnails(form, cc);
+
+    verify(ds, never()).deleteEntities(anyCollection(), any(User.class));
+  }
+}
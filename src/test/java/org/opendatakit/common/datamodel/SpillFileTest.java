@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class SpillFileTest {
+
+  private static String readAll(SpillFile spillFile) throws IOException {
+    List<Byte> bytes = new ArrayList<Byte>();
+    try (InputStream in = spillFile.openStream()) {
+      int b;
+      while ((b = in.read()) != -1) {
+        bytes.add((byte) b);
+      }
+    }
+    byte[] content = new byte[bytes.size()];
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = bytes.get(i);
+    }
+    return new String(content, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void the_written_content_is_read_back() throws IOException {
+    SpillFile spillFile = new SpillFile("test");
+    try {
+      PrintWriter pw = spillFile.openWriter();
+      pw.print("a,b\n\u00e9,\u4e2d\n");
+      pw.close();
+      assertFalse(pw.checkError());
+
+      assertEquals(11, spillFile.getLength());
+      assertEquals("a,b\n\u00e9,\u4e2d\n", readAll(spillFile));
+    } finally {
+      spillFile.delete();
+    }
+  }
+
+  @Test
+  public void a_failed_export_releases_and_deletes_the_spill_file() throws IOException {
+    SpillFile spillFile = null;
+    PrintWriter pw = null;
+    // as the export workers do: the formatter fails part way through
+    try {
+      spillFile = new SpillFile("test");
+      pw = spillFile.openWriter();
+      pw.print("a,b\n");
+      pw.flush();
+      throw new IllegalStateException("formatter failed");
+    } catch (IllegalStateException e) {
+      // failure recovery
+    } finally {
+      if (spillFile != null) {
+        spillFile.delete();
+      }
+    }
+
+    // the writer is closed: it can no longer write
+    pw.print("c,d\n");
+    assertTrue(pw.checkError());
+    // and the file is gone
+    try {
+      spillFile.openStream().close();
+      fail("the spill file was not deleted");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void reopening_the_writer_rewrites_the_content() throws IOException {
+    SpillFile spillFile = new SpillFile("test");
+    try {
+      PrintWriter first = spillFile.openWriter();
+      first.print("first attempt");
+      PrintWriter second = spillFile.openWriter();
+      second.print("second");
+      second.close();
+
+      first.print("more");
+      assertTrue(first.checkError());
+      assertEquals("second", readAll(spillFile));
+    } finally {
+      spillFile.delete();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opendatakit.common.persistence.TestTable.integerField;
+import static org.opendatakit.common.persistence.TestTable.stringField;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.security.User;
+
+public class CommonFieldsBaseTest {
+  private TestTable prototype;
+  private User user;
+
+  @Before
+  public void setUp() {
+    prototype = new TestTable("TEST_SCHEMA");
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:someone@example.org");
+  }
+
+  @Test
+  public void new_rows_get_audit_fields() {
+    CommonFieldsBase row = prototype.getEmptyRow(user);
+
+    assertNotNull(row.getUri());
+    assertEquals("mailto:someone@example.org", row.getCreatorUriUser());
+    assertNotNull(row.getCreationDate());
+    assertEquals(row.getCreationDate(), row.getLastUpdateDate());
+    // the defaults are only generated once
+    assertEquals(row.getUri(), row.getUri());
+  }
+
+  @Test
+  public void audit_fields_set_before_first_read_are_kept() {
+    CommonFieldsBase row = prototype.getEmptyRow(user);
+    row.setStringField(row.primaryKey, "uuid:fixed");
+
+    assertEquals("uuid:fixed", row.getUri());
+    assertNotNull(row.getCreationDate());
+  }
+
+  @Test
+  public void rows_from_the_database_do_not_get_audit_defaults() {
+    CommonFieldsBase row = prototype.getEmptyRow(user);
+    row.setFromDatabase(true);
+    row.setStringField(stringField, "value");
+
+    assertNull(row.getUri());
+    assertNull(row.getCreationDate());
+    assertEquals("value", row.getStringField(stringField));
+  }
+
+  @Test
+  public void rows_share_the_prototype_field_list() {
+    CommonFieldsBase row = prototype.getEmptyRow(user);
+
+    assertSame(prototype.getFieldList(), row.getFieldList());
+  }
+
+  @Test
+  public void setting_null_clears_the_field() {
+    CommonFieldsBase row = prototype.getEmptyRow(user);
+    row.setLongField(integerField, 42L);
+    assertTrue(row.hasField(integerField));
+
+    row.setLongField(integerField, null);
+
+    assertFalse(row.hasField(integerField));
+    assertTrue(row.isNull(integerField));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void fields_of_other_relations_are_rejected() {
+    CommonFieldsBase row = prototype.getEmptyRow(user);
+    row.getStringField(new DataField("OTHER", DataField.DataType.STRING, true));
+  }
+}
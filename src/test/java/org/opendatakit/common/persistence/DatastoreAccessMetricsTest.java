@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.AccessStatistics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.LatencyStatistics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+
+public class DatastoreAccessMetricsTest {
+  private final TestTable relation = new TestTable("TEST_SCHEMA");
+
+  @Test
+  public void queries_are_counted_per_table_and_per_context() {
+    DatastoreAccessMetrics metrics = new DatastoreAccessMetrics();
+
+    metrics.recordQueryUsage(relation, "upload", 10, TimeUnit.MILLISECONDS.toNanos(3));
+    metrics.recordQueryUsage(relation, "export", 5, TimeUnit.MILLISECONDS.toNanos(30));
+    metrics.recordQueryUsage(relation, "export", 0, TimeUnit.SECONDS.toNanos(20));
+
+    List<AccessStatistics> tables = metrics.getTableStatistics();
+    assertEquals(1, tables.size());
+    AccessStatistics table = tables.get(0);
+    assertEquals("TEST_SCHEMA.TEST_TABLE", table.getName());
+    assertEquals(3, table.getCount(Operation.QUERY));
+    assertEquals(15, table.getRowsRead());
+
+    long[] buckets = table.getLatency(Operation.QUERY).getBucketCounts();
+    assertEquals(DatastoreAccessMetrics.getLatencyBucketBoundsMillis().length + 1, buckets.length);
+    assertEquals(1, buckets[2]); // 2-5 ms
+    assertEquals(1, buckets[5]); // 20-50 ms
+    assertEquals(1, buckets[buckets.length - 1]); // over the last bound
+
+    List<AccessStatistics> contexts = metrics.getContextStatistics();
+    assertEquals(2, contexts.size());
+    assertEquals("export", contexts.get(0).getName());
+    assertEquals(2, contexts.get(0).getCount(Operation.QUERY));
+    assertEquals("upload", contexts.get(1).getName());
+    assertEquals(10, contexts.get(1).getRowsRead());
+  }
+
+  @Test
+  public void untimed_accesses_are_only_counted() {
+    DatastoreAccessMetrics metrics = new DatastoreAccessMetrics();
+
+    metrics.recordPutUsage("_task_lock");
+    metrics.recordPutUsage(relation, 4, TimeUnit.MILLISECONDS.toNanos(1));
+
+    AccessStatistics lockTable = metrics.getTableStatistics().get(1);
+    assertEquals("_task_lock", lockTable.getName());
+    assertEquals(1, lockTable.getCount(Operation.PUT));
+    assertEquals(0, lockTable.getLatency(Operation.PUT).getCount());
+
+    LatencyStatistics latency = metrics.getTableStatistics().get(0).getLatency(Operation.PUT);
+    assertEquals(1, latency.getCount());
+    assertEquals(1.0, latency.getMeanMillis(), 0.001);
+  }
+
+  @Test
+  public void concurrent_updates_are_not_lost() throws InterruptedException {
+    DatastoreAccessMetrics metrics = new DatastoreAccessMetrics();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 4; ++i) {
+      executor.execute(() -> {
+        for (int j = 0; j < 1000; ++j) {
+          metrics.recordQueryUsage(relation, "concurrent", 1, 1000L);
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    AccessStatistics table = metrics.getTableStatistics().get(0);
+    assertEquals(4000, table.getCount(Operation.QUERY));
+    assertEquals(4000, table.getRowsRead());
+    assertEquals(4000, table.getLatency(Operation.QUERY).getCount());
+  }
+}
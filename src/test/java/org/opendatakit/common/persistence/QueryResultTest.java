@@ -17,6 +17,8 @@ package org.opendatakit.common.persistence;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.opendatakit.common.persistence.Query.Direction.ASCENDING;
 import static org.opendatakit.common.persistence.TestTable.booleanField;
 import static org.opendatakit.common.persistence.TestTable.dateField;
@@ -24,6 +26,7 @@ import static org.opendatakit.common.persistence.TestTable.doubleField;
 import static org.opendatakit.common.persistence.TestTable.integerField;
 import static org.opendatakit.common.persistence.TestTable.stringField;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -188,6 +191,52 @@ public class QueryResultTest {
     assertFalse(lastPage.hasMoreResults());
   }
 
+  @Test
+  public void query_executeQuery_keyset_cursor_pages_through_all_rows() throws ODKDatastoreException {
+    int pageSize = 7;
+    Set<String> pks = new HashSet<>();
+    QueryResumePoint startCursor = null;
+    QueryResult page;
+    do {
+      Query query = ds.createQuery(table, "query_executeQuery_keyset_cursor_pages_through_all_rows", user);
+      // A single sort column lets the persistence layer page on (dateField, PK)
+      query.addSort(dateField, ASCENDING);
+      page = query.executeQuery(startCursor, pageSize);
+      for (CommonFieldsBase cb : page.getResultList())
+        pks.add(cb.getUri());
+      startCursor = page.getResumeCursor();
+    } while (page.hasMoreResults());
+
+    assertEquals(TEST_ROWS.length, pks.size());
+  }
+
+  @Test
+  public void query_executeQuery_projection_fetches_only_projected_fields() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_projection_fetches_only_projected_fields", user);
+    query.addSort(dateField, ASCENDING);
+    query.setProjection(Collections.singletonList(stringField));
+
+    QueryResult result = query.executeQuery(null, TEST_ROWS.length);
+
+    assertEquals(TEST_ROWS.length, result.getResultList().size());
+    for (CommonFieldsBase cb : result.getResultList()) {
+      assertNotNull(cb.getUri());
+      assertNotNull(cb.getStringField(stringField));
+      // the sort column is always fetched, for the resume cursor
+      assertNotNull(cb.getDateField(dateField));
+      assertNull(cb.getLongField(integerField));
+    }
+  }
+
+  @Test
+  public void query_executeKeysOnly_returns_all_pks() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeKeysOnly_returns_all_pks", user);
+
+    List<String> keys = query.executeKeysOnly();
+
+    assertEquals(TEST_ROWS.length, new HashSet<>(keys).size());
+  }
+
   private static synchronized TestTable createTestTable() throws ODKDatastoreException {
     System.out.println("Creating the test table");
     TestTable tablePrototype = new TestTable(ds.getDefaultSchemaName());
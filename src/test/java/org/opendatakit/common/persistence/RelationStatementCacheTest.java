@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.opendatakit.common.persistence.engine.RelationStatementCache;
+import org.opendatakit.common.persistence.engine.RelationStatementCache.Statements;
+import org.opendatakit.common.security.User;
+
+public class RelationStatementCacheTest {
+  private final RelationStatementCache cache = new RelationStatementCache("\"");
+  private final TestTable relation = new TestTable("TEST_SCHEMA");
+
+  @Test
+  public void statements_are_built_once_per_relation() {
+    Statements statements = cache.get(relation);
+
+    assertSame(statements, cache.get(relation));
+    assertTrue(statements.getSelect().endsWith(" FROM \"TEST_SCHEMA\".\"TEST_TABLE\""));
+    assertEquals("SELECT \"_URI\" FROM \"TEST_SCHEMA\".\"TEST_TABLE\"", statements.getSelectKeys());
+    assertEquals(statements.getSelect() + " WHERE \"_URI\" = ?", statements.getSelectByKey());
+    assertEquals("DELETE FROM \"TEST_SCHEMA\".\"TEST_TABLE\" WHERE \"_URI\" = ?",
+        statements.getDeleteByKey());
+  }
+
+  @Test
+  public void update_binds_the_primary_key_last() {
+    Statements statements = cache.get(relation);
+
+    DataField[] updateFields = statements.getUpdateFields();
+    assertEquals(relation.getFieldList().size(), updateFields.length);
+    assertSame(relation.primaryKey, updateFields[updateFields.length - 1]);
+    assertTrue(statements.getUpdate().endsWith(" WHERE \"_URI\" = ?"));
+    assertEquals(relation.getFieldList().size(), statements.getInsertFields().length);
+  }
+
+  @Test
+  public void delete_in_statements_are_padded_to_a_power_of_two() {
+    Statements statements = cache.get(relation);
+
+    assertEquals(1, statements.getDeleteInKeyCount(1));
+    assertEquals(4, statements.getDeleteInKeyCount(3));
+    assertEquals(4, statements.getDeleteInKeyCount(4));
+    assertEquals(1024, statements.getDeleteInKeyCount(1000));
+    assertSame(statements.getDeleteIn(3), statements.getDeleteIn(4));
+    assertTrue(statements.getDeleteIn(3).endsWith(" IN  ( ?, ?, ?, ? ) "));
+  }
+
+  @Test
+  public void statements_are_rebuilt_after_invalidation() {
+    Statements statements = cache.get(relation);
+
+    cache.invalidate(relation);
+    Statements rebuilt = cache.get(relation);
+    assertNotSame(statements, rebuilt);
+    assertSame(rebuilt, cache.get(relation));
+  }
+
+  @Test
+  public void each_prototype_of_a_table_keeps_its_own_statements() {
+    Statements statements = cache.get(relation);
+
+    TestTable otherPrototype = new TestTable("TEST_SCHEMA");
+    Statements other = cache.get(otherPrototype);
+    assertNotSame(statements, other);
+    assertSame(otherPrototype.primaryKey, other.getUpdateFields()[other.getUpdateFields().length - 1]);
+    // alternating between the prototypes replaces neither entry
+    assertSame(statements, cache.get(relation));
+    assertSame(other, cache.get(otherPrototype));
+    // rows share their prototype's statements
+    assertSame(statements, cache.get(relation.getEmptyRow(mock(User.class))));
+    assertSame(other, cache.get(otherPrototype.getEmptyRow(mock(User.class))));
+
+    cache.invalidate(otherPrototype);
+    assertNotSame(statements, cache.get(relation));
+  }
+}
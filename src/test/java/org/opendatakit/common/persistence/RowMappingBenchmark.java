@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.security.User;
+
+/**
+ * Microbenchmark of mapping query results onto rows: the array-backed rows
+ * of {@link CommonFieldsBase}, filled column by index as RelationRowMapper
+ * does, against a replica of the map-backed rows they replaced, filled
+ * column by name.
+ * <p>
+ * Result set columns are served from memory, with by-name lookups going
+ * through a name to index map as JDBC drivers do, so only the mapping and
+ * row storage are measured. Reports rows/sec and bytes allocated per row
+ * (from the JVM's per-thread allocation counter).
+ * <p>
+ * Not part of the test suite; run it from the test classpath:
+ * <pre>
+ * java -cp &lt;test classpath&gt; org.opendatakit.common.persistence.RowMappingBenchmark [rows]
+ * </pre>
+ */
+public class RowMappingBenchmark {
+
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 10;
+  private static final int SOURCE_ROWS = 1024;
+
+  private static final User USER = new User() {
+    @Override
+    public String getUriUser() {
+      return "mailto:someone@example.org";
+    }
+
+    @Override
+    public boolean isAnonymous() {
+      return false;
+    }
+
+    @Override
+    public boolean isRegistered() {
+      return true;
+    }
+  };
+
+  private final TestTable prototype = new TestTable("TEST_SCHEMA");
+  private final DataField[] fields;
+  private final DataType[] types;
+  private final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+  private final Object[][] resultSet = new Object[SOURCE_ROWS][];
+  /**
+   * folds in a value of every row mapped, so that no mapping is optimized away.
+   */
+  private long sink = 0;
+
+  private RowMappingBenchmark() {
+    // as asserting the relation in the datastore would
+    TestTable.doubleField.setNumericPrecision(38);
+    TestTable.doubleField.setNumericScale(8);
+    List<DataField> fieldList = prototype.getFieldList();
+    fields = fieldList.toArray(new DataField[fieldList.size()]);
+    types = new DataType[fields.length];
+    for (int i = 0; i < fields.length; ++i) {
+      types[i] = fields[i].getDataType();
+      columnIndexes.put(fields[i].getName(), i);
+    }
+    for (int r = 0; r < SOURCE_ROWS; ++r) {
+      Object[] columns = new Object[fields.length];
+      for (int i = 0; i < fields.length; ++i) {
+        columns[i] = columnValue(types[i], r);
+      }
+      resultSet[r] = columns;
+    }
+  }
+
+  private static Object columnValue(DataType type, int r) {
+    switch (type) {
+      case URI:
+      case STRING:
+        return "value-" + r;
+      case INTEGER:
+        return Long.valueOf(r);
+      case DECIMAL:
+        return WrappedBigDecimal.fromDouble(r + 0.5);
+      case BOOLEAN:
+        return Boolean.valueOf((r & 1) == 0);
+      case DATETIME:
+        return new Date(1546300800000L + r);
+      default:
+        throw new IllegalStateException("unexpected type " + type);
+    }
+  }
+
+  /**
+   * Maps the rows as RelationRowMapper now does.
+   */
+  private void mapArrayBacked(int rows) {
+    for (int r = 0; r < rows; ++r) {
+      Object[] columns = resultSet[r % SOURCE_ROWS];
+      CommonFieldsBase row = prototype.getEmptyRow(USER);
+      row.setFromDatabase(true);
+      for (int i = 0; i < fields.length; ++i) {
+        DataField f = fields[i];
+        Object value = columns[i];
+        switch (types[i]) {
+          case URI:
+          case STRING:
+            row.setStringField(f, (String) value);
+            break;
+          case INTEGER:
+            row.setLongField(f, (Long) value);
+            break;
+          case DECIMAL:
+            row.setNumericField(f, (WrappedBigDecimal) value);
+            break;
+          case BOOLEAN:
+            row.setBooleanField(f, (Boolean) value);
+            break;
+          case DATETIME:
+            row.setDateField(f, (Date) ((Date) value).clone());
+            break;
+          default:
+            throw new IllegalStateException("unexpected type " + types[i]);
+        }
+      }
+      sink += row.getLongField(TestTable.integerField);
+    }
+  }
+
+  /**
+   * Maps the rows as RelationRowMapper did onto the map-backed rows.
+   */
+  private void mapMapBacked(int rows) {
+    for (int r = 0; r < rows; ++r) {
+      Object[] columns = resultSet[r % SOURCE_ROWS];
+      MapBackedRow row = new MapBackedRow(prototype, USER);
+      for (DataField f : prototype.getFieldList()) {
+        Object value = columns[columnIndexes.get(f.getName())];
+        if (f.getDataType() == DataType.DATETIME) {
+          value = ((Date) value).clone();
+        }
+        row.set(f, value);
+      }
+      sink += (Long) row.get(TestTable.integerField);
+    }
+  }
+
+  /**
+   * The storage of a row before rows became array-backed: a private copy of
+   * the field list, a hash map of values, and audit fields stamped on
+   * creation.
+   */
+  private static final class MapBackedRow {
+    private final List<DataField> fieldList = new ArrayList<DataField>();
+    private final Map<DataField, Object> fieldValueMap = new HashMap<DataField, Object>();
+
+    MapBackedRow(CommonFieldsBase ref, User user) {
+      fieldList.addAll(ref.getFieldList());
+      Date now = new Date();
+      fieldValueMap.put(ref.creationDate, now);
+      fieldValueMap.put(ref.lastUpdateDate, now);
+      fieldValueMap.put(ref.creatorUriUser, user.getUriUser());
+      fieldValueMap.put(ref.primaryKey, "uuid:" + UUID.randomUUID().toString().toLowerCase());
+    }
+
+    void set(DataField f, Object value) {
+      if (!fieldList.contains(f)) {
+        throw new IllegalArgumentException("Attempting to set a field " + f.getName());
+      }
+      if (value == null) {
+        fieldValueMap.remove(f);
+      } else if (f.getDataType() == DataType.DECIMAL) {
+        fieldValueMap.put(f, ((WrappedBigDecimal) value).setScale(f.getNumericScale(),
+            BigDecimal.ROUND_HALF_UP));
+      } else {
+        fieldValueMap.put(f, value);
+      }
+    }
+
+    Object get(DataField f) {
+      if (!fieldList.contains(f)) {
+        throw new IllegalArgumentException("Attempting to get a field " + f.getName());
+      }
+      return fieldValueMap.get(f);
+    }
+  }
+
+  private interface Mapping {
+    void map(int rows);
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void measure(String name, Mapping mapping, int rows) {
+    for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+      mapping.map(rows);
+    }
+    long bestNanos = Long.MAX_VALUE;
+    long bytes = 0;
+    for (int i = 0; i < MEASURED_ROUNDS; ++i) {
+      long startBytes = allocatedBytes();
+      long startNanos = System.nanoTime();
+      mapping.map(rows);
+      bestNanos = Math.min(bestNanos, System.nanoTime() - startNanos);
+      bytes += allocatedBytes() - startBytes;
+    }
+    System.out.printf("%-13s %,12.0f rows/sec %8.1f bytes/row%n", name,
+        rows * 1e9 / bestNanos, (double) bytes / ((long) MEASURED_ROUNDS * rows));
+  }
+
+  public static void main(String[] args) {
+    int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    RowMappingBenchmark b = new RowMappingBenchmark();
+    measure("map-backed", b::mapMapBacked, rows);
+    measure("array-backed", b::mapArrayBacked, rows);
+    System.out.println("(sink " + b.sink + ")");
+  }
+}
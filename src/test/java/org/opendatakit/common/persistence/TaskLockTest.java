@@ -14,12 +14,16 @@
 package org.opendatakit.common.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -208,4 +212,120 @@ public class TaskLockTest {
 
     assertEquals(failure, false);
   }
+
+  @Test
+  public void locksOnDistinctResourcesAreIndependent() throws ODKTaskLockException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+
+    String resourceA = "TASK_LOCK_TESTING_A_" + UUID.randomUUID().toString();
+    String resourceB = "TASK_LOCK_TESTING_B_" + UUID.randomUUID().toString();
+    String lockA = UUID.randomUUID().toString();
+    String lockB = UUID.randomUUID().toString();
+    String lockA2 = UUID.randomUUID().toString();
+
+    assertTrue(ds.createTaskLock(user).obtainLock(lockA, resourceA, TaskLockType.CREATE_FORM));
+    try {
+      // a different resource is not blocked by the held lock...
+      assertTrue(ds.createTaskLock(user).obtainLock(lockB, resourceB, TaskLockType.CREATE_FORM));
+      // but the same resource still is.
+      assertFalse(ds.createTaskLock(user).obtainLock(lockA2, resourceA, TaskLockType.CREATE_FORM));
+      assertTrue(ds.createTaskLock(user).renewLock(lockA, resourceA, TaskLockType.CREATE_FORM));
+    } finally {
+      ds.createTaskLock(user).releaseLock(lockB, resourceB, TaskLockType.CREATE_FORM);
+      ds.createTaskLock(user).releaseLock(lockA, resourceA, TaskLockType.CREATE_FORM);
+    }
+  }
+
+  /**
+   * Contends for one of two resources, holding it for a while on each entry.
+   * The first holder of each resource waits, while holding it, for the first
+   * holder of the other resource: that only happens if the two resources are
+   * locked independently.
+   */
+  @Ignore
+  static class ResourceContender extends Thread {
+    static int ENTRY_ATTEMPTS = 3;
+
+    final CallingContext cc;
+    final String resource;
+    final AtomicBoolean inside;
+    final AtomicBoolean entered;
+    final CyclicBarrier bothHeld;
+    final AtomicInteger entries;
+    boolean failed = false;
+
+    ResourceContender(CallingContext cc, String resource, AtomicBoolean inside,
+        AtomicBoolean entered, CyclicBarrier bothHeld, AtomicInteger entries) {
+      this.cc = cc;
+      this.resource = resource;
+      this.inside = inside;
+      this.entered = entered;
+      this.bothHeld = bothHeld;
+      this.entries = entries;
+    }
+
+    @Override
+    public void run() {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      try {
+        for (int j = 0; j < ENTRY_ATTEMPTS; ++j) {
+          String lockId = UUID.randomUUID().toString();
+          while (!ds.createTaskLock(user).obtainLock(lockId, resource, TaskLockType.CREATE_FORM)) {
+            Thread.sleep(PersistConsts.MIN_SETTLE_MILLISECONDS);
+          }
+          try {
+            if (!inside.compareAndSet(false, true)) {
+              System.out.println("Thread " + getId() + " finds " + resource + " held!");
+              failed = true;
+            }
+            if (entered.compareAndSet(false, true)) {
+              bothHeld.await(60, TimeUnit.SECONDS);
+            }
+            Thread.sleep(50);
+            inside.set(false);
+            entries.incrementAndGet();
+          } finally {
+            ds.createTaskLock(user).releaseLock(lockId, resource, TaskLockType.CREATE_FORM);
+          }
+        }
+      } catch (Exception e) {
+        failed = true;
+        System.out.println("FAILED Thread " + getId() + " " + e.toString());
+      }
+    }
+  }
+
+  @Test
+  public void distinctResourcesProceedConcurrentlyWhileContendersExclude()
+      throws InterruptedException {
+    int THREADS_PER_RESOURCE = 4;
+    CallingContext cc = TestContextFactory.getCallingContext();
+    String[] resources = {"TASK_LOCK_TESTING_A_" + UUID.randomUUID().toString(),
+        "TASK_LOCK_TESTING_B_" + UUID.randomUUID().toString()};
+    CyclicBarrier bothHeld = new CyclicBarrier(resources.length);
+    AtomicInteger entries = new AtomicInteger();
+
+    List<ResourceContender> contenders = new ArrayList<ResourceContender>();
+    for (String resource : resources) {
+      AtomicBoolean inside = new AtomicBoolean(false);
+      AtomicBoolean entered = new AtomicBoolean(false);
+      for (int i = 0; i < THREADS_PER_RESOURCE; ++i) {
+        contenders.add(new ResourceContender(cc, resource, inside, entered, bothHeld, entries));
+      }
+    }
+    for (ResourceContender t : contenders) {
+      t.start();
+    }
+    for (ResourceContender t : contenders) {
+      t.join();
+    }
+
+    for (ResourceContender t : contenders) {
+      assertFalse("Thread " + t.getId(), t.failed);
+    }
+    assertEquals(contenders.size() * ResourceContender.ENTRY_ATTEMPTS, entries.get());
+  }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.sql.DataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.security.User;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+
+public class DatastoreImplTest {
+  private static final class TestRelation extends CommonFieldsBase {
+    TestRelation(String tableName) {
+      super("odk_prod", tableName);
+      fieldList.add(new DataField("VALUE", DataField.DataType.STRING, true, 80L));
+    }
+
+    private TestRelation(TestRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new TestRelation(this, user);
+    }
+  }
+
+  private final TestRelation relationA = new TestRelation("TABLE_A");
+  private final TestRelation relationB = new TestRelation("TABLE_B");
+  private User user;
+  private JdbcTemplate jdbc;
+  private Connection connection;
+  private DatastoreImpl ds;
+  /**
+   * the statement and row count of each write, in order.
+   */
+  private final List<String> writes = new ArrayList<String>();
+  /**
+   * the bind values of each delete, in order.
+   */
+  private final List<List<Object>> deletedKeys = new ArrayList<List<Object>>();
+
+  @Before
+  public void setUp() throws Exception {
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:someone@example.org");
+    jdbc = mock(JdbcTemplate.class);
+    recordBatches();
+    when(jdbc.update(anyString(), any(PreparedStatementSetter.class)))
+        .thenAnswer(invocation -> {
+          writes.add(invocation.getArgument(0) + " x1");
+          return 1;
+        });
+    when(jdbc.update(anyString(), (Object[]) any())).thenAnswer(invocation -> {
+      Object[] arguments = invocation.getArguments();
+      writes.add((String) arguments[0]);
+      deletedKeys.add(Arrays.asList(arguments).subList(1, arguments.length));
+      return arguments.length - 1;
+    });
+    connection = mock(Connection.class);
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    ds = spy(new DatastoreImpl());
+    ds.setDataSource(dataSource);
+    doReturn(jdbc).when(ds).getJdbcConnection();
+  }
+
+  private void recordBatches() {
+    when(jdbc.batchUpdate(anyString(), any(BatchPreparedStatementSetter.class)))
+        .thenAnswer(invocation -> {
+          int rows = ((BatchPreparedStatementSetter) invocation.getArgument(1)).getBatchSize();
+          writes.add(invocation.getArgument(0) + " x" + rows);
+          return new int[rows];
+        });
+  }
+
+  private CommonFieldsBase newRow(TestRelation relation) {
+    return relation.getEmptyRow(user);
+  }
+
+  private CommonFieldsBase storedRow(TestRelation relation) {
+    CommonFieldsBase row = relation.getEmptyRow(user);
+    row.setFromDatabase(true);
+    return row;
+  }
+
+  private String insert(TestRelation relation, int rows) {
+    return ds.getStatements(relation).getInsert() + " x" + rows;
+  }
+
+  private String update(TestRelation relation, int rows) {
+    return ds.getStatements(relation).getUpdate() + " x" + rows;
+  }
+
+  private static List<EntityKey> keys(TestRelation relation, int from, int to) {
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    for (int i = from; i < to; ++i) {
+      keys.add(new EntityKey(relation, "uuid:" + relation.getTableName() + i));
+    }
+    return keys;
+  }
+
+  private static List<Object> uris(List<EntityKey> keys) {
+    List<Object> uris = new ArrayList<Object>();
+    for (EntityKey key : keys) {
+      uris.add(key.getKey());
+    }
+    return uris;
+  }
+
+  @Test
+  public void entities_are_batched_by_relation_inserts_before_updates() throws Exception {
+    ds.putEntities(Arrays.asList(newRow(relationA), newRow(relationB), storedRow(relationA),
+        newRow(relationA), storedRow(relationA), newRow(relationB), storedRow(relationB)),
+        user);
+
+    assertEquals(Arrays.asList(insert(relationA, 2), insert(relationB, 2), update(relationA, 2),
+        update(relationB, 1)), writes);
+  }
+
+  @Test
+  public void an_entity_listed_twice_is_written_once() throws Exception {
+    CommonFieldsBase twice = newRow(relationA);
+
+    ds.putEntities(Arrays.asList(twice, newRow(relationA), twice), user);
+
+    assertEquals(Arrays.asList(insert(relationA, 2)), writes);
+  }
+
+  @Test
+  public void batches_stay_within_the_bind_parameter_limit() throws Exception {
+    int batchSize = DatastoreImpl.MAX_BIND_PARAMS / relationA.getFieldList().size();
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    for (int i = 0; i < 2 * batchSize + 1; ++i) {
+      rows.add(newRow(relationA));
+    }
+
+    ds.putEntities(rows, user);
+
+    assertEquals(Arrays.asList(insert(relationA, batchSize), insert(relationA, batchSize),
+        insert(relationA, 1)), writes);
+  }
+
+  @Test
+  public void inserted_entities_are_marked_as_stored_batch_by_batch() throws Exception {
+    int batchSize = DatastoreImpl.MAX_BIND_PARAMS / relationA.getFieldList().size();
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    for (int i = 0; i < batchSize + 1; ++i) {
+      rows.add(newRow(relationA));
+    }
+    when(jdbc.batchUpdate(anyString(), any(BatchPreparedStatementSetter.class)))
+        .thenReturn(new int[batchSize])
+        .thenThrow(new DataIntegrityViolationException("duplicate key"));
+
+    try {
+      ds.putEntities(rows, user);
+      fail("the failed batch was not reported");
+    } catch (ODKEntityPersistException e) {
+      // expected
+    }
+    assertTrue(rows.get(batchSize - 1).isFromDatabase());
+    assertFalse(rows.get(batchSize).isFromDatabase());
+
+    // the stored rows are updated, rather than inserted again, on a retry
+    writes.clear();
+    recordBatches();
+    ds.putEntities(rows, user);
+    assertEquals(Arrays.asList(insert(relationA, 1), update(relationA, batchSize)), writes);
+  }
+
+  @Test
+  public void keys_are_deleted_table_by_table_in_bounded_in_lists() throws Exception {
+    int chunk = DatastoreImpl.MAX_DELETE_KEYS;
+    List<EntityKey> keysA = keys(relationA, 0, 2 * chunk + 3);
+    List<EntityKey> keysB = keys(relationB, 0, 2);
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    keys.add(keysA.get(0));
+    keys.add(keysB.get(0));
+    keys.addAll(keysA.subList(1, keysA.size()));
+    keys.add(keysB.get(1));
+
+    ds.deleteEntities(keys, user);
+
+    assertEquals(Arrays.asList(ds.getStatements(relationA).getDeleteIn(chunk),
+        ds.getStatements(relationA).getDeleteIn(chunk),
+        ds.getStatements(relationA).getDeleteIn(3),
+        ds.getStatements(relationB).getDeleteIn(2)), writes);
+    assertEquals(uris(keysA.subList(0, chunk)), deletedKeys.get(0));
+    assertEquals(uris(keysA.subList(chunk, 2 * chunk)), deletedKeys.get(1));
+    // padded with the last key to a power of two
+    List<Object> padded = uris(keysA.subList(2 * chunk, 2 * chunk + 3));
+    padded.add(padded.get(2));
+    assertEquals(padded, deletedKeys.get(2));
+    assertEquals(uris(keysB), deletedKeys.get(3));
+    verify(connection).commit();
+  }
+
+  @Test
+  public void a_failed_delete_rolls_back_every_table() throws Exception {
+    when(jdbc.update(anyString(), (Object[]) any()))
+        .thenReturn(1)
+        .thenThrow(new TransientDataAccessResourceException("lost connection"));
+    List<EntityKey> keys = keys(relationA, 0, 2);
+    keys.addAll(keys(relationB, 0, 2));
+
+    try {
+      ds.deleteEntities(keys, user);
+      fail("the failed delete was not reported");
+    } catch (ODKDatastoreException e) {
+      // expected
+    }
+    verify(connection).rollback();
+    verify(connection, never()).commit();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.datamodel.InstanceData;
+import org.opendatakit.aggregate.datamodel.TopLevelInstanceData;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.engine.RelationStatementCache;
+import org.opendatakit.common.security.User;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+
+public class QueryImplTest {
+  // a derived table, as MySQL rejects LIMIT in an IN (...) sub-select
+  private static final String KEY_BATCH = "SELECT `_URI` FROM "
+      + " ( SELECT `_URI` FROM `odk_prod`.`DATA`"
+      + " WHERE `_IS_COMPLETE` =  ?  AND `_MARKED_AS_COMPLETE_DATE` <  ? "
+      + " ORDER BY `_MARKED_AS_COMPLETE_DATE` ASC , `_URI` LIMIT 500 )  AS `KEY_BATCH`";
+
+  private final TopLevelInstanceData top = new TopLevelInstanceData("odk_prod", "DATA");
+  private final InstanceData repeat = new InstanceData("odk_prod", "DATA_RPT");
+  private final InstanceData nested = new InstanceData("odk_prod", "DATA_RPT_NESTED");
+  private final Date purgeBefore = new Date(1546300800000L);
+  private final List<String> queries = new ArrayList<String>();
+  private final List<Object[]> bindValues = new ArrayList<Object[]>();
+  private Map<CommonFieldsBase, String> deletes;
+  private Query query;
+
+  @Before
+  public void setUp() throws Exception {
+    RelationStatementCache statements = new RelationStatementCache("`");
+    JdbcTemplate jdbc = mock(JdbcTemplate.class);
+    when(jdbc.queryForList(anyString(), any(Object[].class), eq(String.class)))
+        .thenAnswer(invocation -> {
+          queries.add(invocation.getArgument(0));
+          bindValues.add(invocation.getArgument(1));
+          return new ArrayList<String>();
+        });
+    DatastoreImpl ds = mock(DatastoreImpl.class);
+    when(ds.getStatements(any(CommonFieldsBase.class)))
+        .thenAnswer(invocation -> statements.get(invocation.getArgument(0)));
+    when(ds.getJdbcConnection()).thenReturn(jdbc);
+    when(ds.executeDeletes(anyMap(), any(Object[].class))).thenAnswer(invocation -> {
+      deletes = invocation.getArgument(0);
+      bindValues.add(invocation.getArgument(1));
+      return 0;
+    });
+
+    // as built by the set-based purge
+    query = new QueryImpl(top, "QueryImplTest", ds, mock(User.class));
+    query.addSort(top.markedAsCompleteDate, Direction.ASCENDING);
+    query.addFilter(top.isComplete, FilterOperation.EQUAL, true);
+    query.addFilter(top.markedAsCompleteDate, FilterOperation.LESS_THAN, purgeBefore);
+  }
+
+  private Map<CommonFieldsBase, DataField> dependents() {
+    Map<CommonFieldsBase, DataField> dependents = new LinkedHashMap<CommonFieldsBase, DataField>();
+    dependents.put(repeat, repeat.topLevelAuri);
+    dependents.put(nested, nested.topLevelAuri);
+    return dependents;
+  }
+
+  private static List<Object> values(Object[] bindValues) {
+    List<Object> values = new ArrayList<Object>();
+    for (Object o : bindValues) {
+      values.add(((SqlParameterValue) o).getValue());
+    }
+    return values;
+  }
+
+  /**
+   * @return the values bound for the filters, as this engine binds them.
+   */
+  private List<Object> filterValues() {
+    return Arrays.<Object>asList(DatastoreImpl.getBindValue(top.isComplete, true).getValue(),
+        DatastoreImpl.getBindValue(top.markedAsCompleteDate, purgeBefore).getValue());
+  }
+
+  @Test
+  public void a_key_batch_is_limited_and_ordered_by_the_sort_then_the_primary_key()
+      throws Exception {
+    query.executeKeysOnly(500);
+
+    assertEquals(KEY_BATCH + ";", queries.get(0));
+    assertEquals(filterValues(), values(bindValues.get(0)));
+  }
+
+  @Test
+  public void the_dependents_are_deleted_before_the_top_level_rows() throws Exception {
+    query.executeDelete(dependents(), 500);
+
+    assertEquals(Arrays.<CommonFieldsBase>asList(repeat, nested, top),
+        new ArrayList<CommonFieldsBase>(deletes.keySet()));
+    assertEquals("DELETE FROM `odk_prod`.`DATA_RPT` WHERE `_TOP_LEVEL_AURI` IN  ( "
+        + KEY_BATCH + " ) ", deletes.get(repeat));
+    assertEquals("DELETE FROM `odk_prod`.`DATA_RPT_NESTED` WHERE `_TOP_LEVEL_AURI` IN  ( "
+        + KEY_BATCH + " ) ", deletes.get(nested));
+    assertEquals("DELETE FROM `odk_prod`.`DATA` WHERE `_URI` IN  ( " + KEY_BATCH + " ) ",
+        deletes.get(top));
+    assertEquals(filterValues(), values(bindValues.get(0)));
+  }
+
+  @Test
+  public void the_deletes_pick_out_the_batch_of_the_keys_only_query() throws Exception {
+    query.executeKeysOnly(500);
+    query.executeDelete(dependents(), 500);
+
+    String keyQuery = queries.get(0).substring(0, queries.get(0).length() - 1);
+    for (String delete : deletes.values()) {
+      assertTrue(delete, delete.endsWith(" IN  ( " + keyQuery + " ) "));
+    }
+    assertEquals(values(bindValues.get(0)), values(bindValues.get(1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void an_unlimited_delete_is_rejected() throws Exception {
+    query.executeDelete(dependents(), 0);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.security.User;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class TaskLockImplTest {
+  private static final String LOCK_ID = "uuid:lock";
+  private static final String FORM_ID = "form1";
+
+  private User user;
+  private DatastoreImpl ds;
+  private Connection conn;
+  private Statement stmt;
+  private ResultSet getLockResult;
+  private final List<String> executed = new ArrayList<String>();
+
+  @Before
+  public void setUp() throws Exception {
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:someone@example.org");
+
+    getLockResult = mock(ResultSet.class);
+    when(getLockResult.next()).thenReturn(true);
+    when(getLockResult.getInt(1)).thenReturn(1);
+    // the last SELECT names the lock that won
+    ResultSet winner = mock(ResultSet.class);
+    when(winner.first()).thenReturn(true);
+    when(winner.getString(1)).thenReturn(LOCK_ID);
+
+    stmt = mock(Statement.class);
+    when(stmt.executeQuery(anyString())).thenAnswer(invocation -> {
+      String sql = invocation.getArgument(0);
+      executed.add(sql);
+      return sql.startsWith("SELECT GET_LOCK") ? getLockResult : winner;
+    });
+    doAnswer(invocation -> {
+      executed.add(invocation.getArgument(0));
+      return 0;
+    }).when(stmt).executeUpdate(anyString());
+    doAnswer(invocation -> executed.add(invocation.getArgument(0))).when(stmt).execute(anyString());
+    conn = mock(Connection.class);
+    when(conn.getAutoCommit()).thenReturn(true);
+    when(conn.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_REPEATABLE_READ);
+    when(conn.createStatement()).thenReturn(stmt);
+    when(conn.createStatement(anyInt(), anyInt(), anyInt())).thenReturn(stmt);
+    JdbcTemplate jdbc = mock(JdbcTemplate.class);
+    when(jdbc.execute(any(ConnectionCallback.class))).thenAnswer(invocation ->
+        ((ConnectionCallback<?>) invocation.getArgument(0)).doInConnection(conn));
+
+    ds = mock(DatastoreImpl.class);
+    when(ds.getDefaultSchemaName()).thenReturn("odk_prod");
+    when(ds.getJdbcConnection()).thenReturn(jdbc);
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), any(User.class)))
+        .thenAnswer(invocation -> ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user));
+    when(ds.getEntity(any(CommonFieldsBase.class), anyString(), any(User.class)))
+        .thenAnswer(invocation -> ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user));
+  }
+
+  private boolean obtainLock() {
+    return new TaskLockImpl(ds, new DatastoreAccessMetrics(), user)
+        .obtainLock(LOCK_ID, FORM_ID, TaskLockType.CREATE_FORM);
+  }
+
+  private String namedLock() {
+    return TaskLockImpl.namedLock(FORM_ID, TaskLockType.CREATE_FORM.getName());
+  }
+
+  @Test
+  public void the_named_lock_is_taken_first_and_released_after_the_commit() throws Exception {
+    assertTrue(obtainLock());
+
+    assertEquals("SELECT GET_LOCK('" + namedLock() + "', 30)", executed.get(0));
+    assertEquals("START TRANSACTION", executed.get(1));
+    assertEquals("COMMIT", executed.get(executed.size() - 2));
+    assertEquals("SELECT RELEASE_LOCK('" + namedLock() + "')", executed.get(executed.size() - 1));
+    for (String s : executed) {
+      assertFalse(s, s.contains("LOCK TABLES"));
+    }
+
+    InOrder inOrder = inOrder(conn, stmt);
+    inOrder.verify(stmt).executeUpdate("COMMIT");
+    inOrder.verify(conn).commit();
+    inOrder.verify(stmt).execute("SELECT RELEASE_LOCK('" + namedLock() + "')");
+    inOrder.verify(conn).commit();
+  }
+
+  @Test
+  public void distinct_resources_take_distinct_named_locks() {
+    String taskType = TaskLockType.CREATE_FORM.getName();
+
+    assertEquals(TaskLockImpl.namedLock(FORM_ID, taskType), TaskLockImpl.namedLock(FORM_ID, taskType));
+    assertFalse(TaskLockImpl.namedLock(FORM_ID, taskType)
+        .equals(TaskLockImpl.namedLock("form2", taskType)));
+    assertFalse(TaskLockImpl.namedLock(FORM_ID, taskType)
+        .equals(TaskLockImpl.namedLock(FORM_ID, TaskLockType.FORM_DELETION.getName())));
+    // GET_LOCK names are limited to 64 characters
+    assertTrue(TaskLockImpl.namedLock(new String(new char[4096]).replace('\0', 'x'), taskType)
+        .length() <= 64);
+  }
+
+  @Test
+  public void every_delete_is_scoped_to_the_resource_and_task_type() {
+    assertTrue(obtainLock());
+
+    int deletes = 0;
+    for (String s : executed) {
+      if (s.startsWith("DELETE")) {
+        ++deletes;
+        assertTrue(s, s.contains("`FORM_ID` = @formId AND `TASK_TYPE` = @taskType AND "));
+      }
+    }
+    assertTrue(deletes > 0);
+  }
+
+  @Test
+  public void the_transaction_runs_at_read_committed_and_restores_the_connection()
+      throws Exception {
+    assertTrue(obtainLock());
+
+    InOrder inOrder = inOrder(conn, stmt);
+    inOrder.verify(conn).setAutoCommit(false);
+    inOrder.verify(conn).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    inOrder.verify(stmt).executeQuery(startsWith("SELECT GET_LOCK"));
+    inOrder.verify(conn).setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+    inOrder.verify(conn).setAutoCommit(true);
+  }
+
+  @Test
+  public void a_get_lock_timeout_runs_nothing_and_releases_nothing() throws Exception {
+    when(getLockResult.getInt(1)).thenReturn(0);
+
+    assertFalse(obtainLock());
+
+    assertEquals(1, executed.size());
+    verify(conn).rollback();
+    verify(conn, never()).commit();
+    verify(conn).setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+    verify(conn).setAutoCommit(true);
+  }
+
+  @Test
+  public void a_failed_statement_rolls_back_and_still_releases_the_named_lock() throws Exception {
+    doThrow(new SQLException("deadlock")).when(stmt).executeUpdate(startsWith("REPLACE INTO"));
+
+    assertFalse(obtainLock());
+
+    InOrder inOrder = inOrder(conn, stmt);
+    inOrder.verify(conn).rollback();
+    inOrder.verify(stmt).execute("SELECT RELEASE_LOCK('" + namedLock() + "')");
+    inOrder.verify(conn).commit();
+    verify(ds, never()).getEntity(any(CommonFieldsBase.class), anyString(), any(User.class));
+    verify(conn).setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.sqlserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class TaskLockImplTest {
+  private static final String LOCK_ID = "uuid:lock";
+  private static final String FORM_ID = "form1";
+
+  private User user;
+  private DatastoreImpl ds;
+  private Connection conn;
+  private Statement stmt;
+  private final List<String> executed = new ArrayList<String>();
+
+  @Before
+  public void setUp() throws Exception {
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:someone@example.org");
+
+    stmt = mock(Statement.class);
+    doAnswer(invocation -> executed.add(invocation.getArgument(0))).when(stmt).execute(anyString());
+    conn = mock(Connection.class);
+    when(conn.getAutoCommit()).thenReturn(true);
+    when(conn.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_SERIALIZABLE);
+    when(conn.createStatement()).thenReturn(stmt);
+    JdbcTemplate jdbc = mock(JdbcTemplate.class);
+    when(jdbc.execute(any(ConnectionCallback.class))).thenAnswer(invocation ->
+        ((ConnectionCallback<?>) invocation.getArgument(0)).doInConnection(conn));
+
+    ds = mock(DatastoreImpl.class);
+    when(ds.getDefaultSchemaName()).thenReturn("odk_prod");
+    when(ds.getJdbcConnection()).thenReturn(jdbc);
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), any(User.class)))
+        .thenAnswer(invocation -> ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user));
+    when(ds.getEntity(any(CommonFieldsBase.class), anyString(), any(User.class)))
+        .thenAnswer(invocation -> ((CommonFieldsBase) invocation.getArgument(0)).getEmptyRow(user));
+  }
+
+  private boolean obtainLock() {
+    return new TaskLockImpl(ds, new DatastoreAccessMetrics(), user)
+        .obtainLock(LOCK_ID, FORM_ID, TaskLockType.CREATE_FORM);
+  }
+
+  @Test
+  public void the_application_lock_on_the_resource_is_taken_first() {
+    assertTrue(obtainLock());
+
+    String resource = TaskLockImpl.applicationLockResource(FORM_ID,
+        TaskLockType.CREATE_FORM.getName());
+    assertEquals("IF @@TRANCOUNT = 0 BEGIN TRANSACTION; "
+        + "DECLARE @result INT; EXEC @result = sp_getapplock @Resource = '" + resource
+        + "', @LockMode = 'Exclusive', @LockOwner = 'Transaction', @LockTimeout = 30000"
+        + "; IF @result < 0 RAISERROR('sp_getapplock failed', 16, 1)", executed.get(0));
+    for (String s : executed) {
+      assertFalse(s, s.contains("TABLOCKX"));
+    }
+  }
+
+  @Test
+  public void distinct_resources_take_distinct_application_locks() {
+    String taskType = TaskLockType.CREATE_FORM.getName();
+
+    assertEquals(TaskLockImpl.applicationLockResource(FORM_ID, taskType),
+        TaskLockImpl.applicationLockResource(FORM_ID, taskType));
+    assertFalse(TaskLockImpl.applicationLockResource(FORM_ID, taskType)
+        .equals(TaskLockImpl.applicationLockResource("form2", taskType)));
+    assertFalse(TaskLockImpl.applicationLockResource(FORM_ID, taskType)
+        .equals(TaskLockImpl.applicationLockResource(FORM_ID, TaskLockType.FORM_DELETION.getName())));
+    // sp_getapplock resource names are limited to 255 characters
+    assertTrue(TaskLockImpl.applicationLockResource(new String(new char[4096]).replace('\0', 'x'),
+        taskType).length() <= 255);
+  }
+
+  @Test
+  public void every_delete_is_scoped_to_the_resource_and_task_type() {
+    assertTrue(obtainLock());
+
+    int deletes = 0;
+    for (String s : executed) {
+      if (s.startsWith("DELETE")) {
+        ++deletes;
+        assertTrue(s, s.contains("\"FORM_ID\" = '" + FORM_ID + "' AND \"TASK_TYPE\" = '"
+            + TaskLockType.CREATE_FORM.getName() + "' AND "));
+      }
+    }
+    assertEquals(3, deletes);
+  }
+
+  @Test
+  public void the_transaction_runs_at_read_committed_and_restores_the_connection()
+      throws Exception {
+    assertTrue(obtainLock());
+
+    InOrder inOrder = inOrder(conn, stmt);
+    inOrder.verify(conn).setAutoCommit(false);
+    inOrder.verify(conn).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    inOrder.verify(stmt).execute(startsWith("IF @@TRANCOUNT = 0 BEGIN TRANSACTION;"));
+    inOrder.verify(conn).commit();
+    inOrder.verify(conn).setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    inOrder.verify(conn).setAutoCommit(true);
+  }
+
+  @Test
+  public void a_failed_statement_rolls_back_and_restores_the_connection() throws Exception {
+    doThrow(new SQLException("deadlock")).when(stmt).execute(startsWith("INSERT"));
+    when(ds.getEntity(any(CommonFieldsBase.class), anyString(), any(User.class)))
+        .thenThrow(new ODKEntityNotFoundException());
+
+    assertFalse(obtainLock());
+
+    verify(conn).rollback();
+    verify(conn, never()).commit();
+    verify(conn).setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    verify(conn).setAutoCommit(true);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.security.spring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.UserService;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+public class RoleHierarchyImplTest {
+  private static final GrantedAuthority ADMIN = new SimpleGrantedAuthority("ROLE_ADMIN");
+  private static final GrantedAuthority USER = new SimpleGrantedAuthority("ROLE_USER");
+  private static final GrantedAuthority VIEWER = new SimpleGrantedAuthority("ROLE_VIEWER");
+
+  /**
+   * Serves the role hierarchy and the revisions from memory, counting the reads.
+   */
+  private static final class TestRoleHierarchy extends RoleHierarchyImpl {
+    final AtomicInteger builds = new AtomicInteger();
+    final AtomicInteger revisionReads = new AtomicInteger();
+    volatile Map<GrantedAuthority, Set<GrantedAuthority>> oneStep =
+        Collections.<GrantedAuthority, Set<GrantedAuthority>>singletonMap(ADMIN,
+            Collections.singleton(USER));
+    volatile long lastUsersChange = 0L;
+    volatile long lastGrantsChange = 0L;
+
+    @Override
+    synchronized Map<GrantedAuthority, Set<GrantedAuthority>> buildRolesReachableInOneStepMap() {
+      builds.incrementAndGet();
+      Map<GrantedAuthority, Set<GrantedAuthority>> map =
+          new HashMap<GrantedAuthority, Set<GrantedAuthority>>();
+      for (Map.Entry<GrantedAuthority, Set<GrantedAuthority>> e : oneStep.entrySet()) {
+        map.put(e.getKey(), new HashSet<GrantedAuthority>(e.getValue()));
+      }
+      return map;
+    }
+
+    @Override
+    long getLastRegisteredUsersRevisionDate() {
+      revisionReads.incrementAndGet();
+      return lastUsersChange;
+    }
+
+    @Override
+    long getLastRoleHierarchyRevisionDate() {
+      return lastGrantsChange;
+    }
+
+    /**
+     * Grants ROLE_VIEWER to ROLE_USER, after any earlier check.
+     */
+    void grantViewerToUsers() throws InterruptedException {
+      Map<GrantedAuthority, Set<GrantedAuthority>> map =
+          new HashMap<GrantedAuthority, Set<GrantedAuthority>>(oneStep);
+      map.put(USER, Collections.singleton(VIEWER));
+      oneStep = map;
+      Thread.sleep(2);
+      lastGrantsChange = System.currentTimeMillis();
+      Thread.sleep(2);
+    }
+  }
+
+  private TestRoleHierarchy hierarchy;
+  private UserService userService;
+
+  @Before
+  public void setUp() throws ODKDatastoreException {
+    userService = mock(UserService.class);
+    hierarchy = new TestRoleHierarchy();
+    hierarchy.setDatastore(mock(Datastore.class));
+    hierarchy.setUserService(userService);
+    hierarchy.refreshReachableGrantedAuthorities();
+  }
+
+  @After
+  public void tearDown() {
+    hierarchy.destroy();
+  }
+
+  private Set<GrantedAuthority> reachableFrom(GrantedAuthority role) {
+    Collection<? extends GrantedAuthority> reachable =
+        hierarchy.getReachableGrantedAuthorities(Collections.singleton(role));
+    return new HashSet<GrantedAuthority>(reachable);
+  }
+
+  @Test
+  public void roles_reachable_in_one_or_more_steps_are_published() throws Exception {
+    hierarchy.grantViewerToUsers();
+    hierarchy.refreshReachableGrantedAuthorities();
+
+    assertEquals(new HashSet<GrantedAuthority>(Arrays.asList(ADMIN, USER, VIEWER)),
+        reachableFrom(ADMIN));
+    assertEquals(new HashSet<GrantedAuthority>(Arrays.asList(USER, VIEWER)), reachableFrom(USER));
+    assertEquals(Collections.singleton(VIEWER), reachableFrom(VIEWER));
+  }
+
+  @Test
+  public void a_check_without_revisions_keeps_the_published_roles() throws Exception {
+    hierarchy.checkForUpdates();
+
+    assertEquals(1, hierarchy.builds.get());
+    assertEquals(new HashSet<GrantedAuthority>(Arrays.asList(ADMIN, USER)),
+        reachableFrom(ADMIN));
+    // reloaded once, by the initial refresh
+    verify(userService, times(1)).reloadPermissions();
+  }
+
+  @Test
+  public void a_role_hierarchy_revision_republishes_the_roles() throws Exception {
+    hierarchy.grantViewerToUsers();
+    hierarchy.checkForUpdates();
+
+    assertEquals(2, hierarchy.builds.get());
+    assertEquals(new HashSet<GrantedAuthority>(Arrays.asList(ADMIN, USER, VIEWER)),
+        reachableFrom(ADMIN));
+    verify(userService, times(2)).reloadPermissions();
+  }
+
+  @Test
+  public void a_registered_users_revision_only_reloads_the_permissions() throws Exception {
+    Thread.sleep(2);
+    hierarchy.lastUsersChange = System.currentTimeMillis();
+    Thread.sleep(2);
+    hierarchy.checkForUpdates();
+
+    assertEquals(1, hierarchy.builds.get());
+    verify(userService, times(2)).reloadPermissions();
+
+    // the revision is not reported twice
+    hierarchy.checkForUpdates();
+    verify(userService, times(2)).reloadPermissions();
+  }
+
+  @Test
+  public void the_refresher_republishes_the_roles_in_the_background() throws Exception {
+    hierarchy.startRefresher();
+    hierarchy.grantViewerToUsers();
+
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (!reachableFrom(USER).contains(VIEWER) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L);
+    }
+    assertTrue(reachableFrom(USER).contains(VIEWER));
+    assertEquals(2, hierarchy.builds.get());
+  }
+
+  @Test
+  public void destroy_stops_the_refresher() throws Exception {
+    hierarchy.startRefresher();
+    hierarchy.destroy();
+    int reads = hierarchy.revisionReads.get();
+    hierarchy.grantViewerToUsers();
+    Thread.sleep(2500L);
+
+    assertEquals(reads, hierarchy.revisionReads.get());
+    assertEquals(1, hierarchy.builds.get());
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.security.spring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.UserService;
+import org.springframework.security.core.GrantedAuthority;
+
+public class UserDetailsServiceImplTest {
+  private static final String NAME = "someone";
+
+  /**
+   * Serves the revisions and the user details from memory, counting the reads.
+   */
+  private static final class TestUserDetailsService extends UserDetailsServiceImpl {
+    final AtomicInteger loads = new AtomicInteger();
+    final AtomicInteger revisionReads = new AtomicInteger();
+    volatile long lastRevisionDate = 0L;
+    volatile boolean revisionsUnavailable = false;
+    volatile CountDownLatch loadStarted = null;
+    volatile CountDownLatch loadMayFinish = null;
+
+    @Override
+    long getLastRevisionDate() throws ODKDatastoreException {
+      revisionReads.incrementAndGet();
+      if (revisionsUnavailable) {
+        throw new ODKDatastoreException("unavailable");
+      }
+      return lastRevisionDate;
+    }
+
+    @Override
+    CachedUserDetails loadUserDetails(String name, long loadTimestamp) {
+      loads.incrementAndGet();
+      if (loadStarted != null) {
+        loadStarted.countDown();
+        try {
+          loadMayFinish.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return new CachedUserDetails("uid:" + name, "password", "salt",
+          new HashSet<GrantedAuthority>(), loadTimestamp);
+    }
+
+    /**
+     * Records a change to the security configuration, after any earlier check.
+     */
+    void revise() throws InterruptedException {
+      Thread.sleep(2);
+      lastRevisionDate = System.currentTimeMillis();
+      Thread.sleep(2);
+    }
+  }
+
+  private TestUserDetailsService service;
+
+  @Before
+  public void setUp() {
+    service = new TestUserDetailsService();
+    service.setDatastore(mock(Datastore.class));
+    service.setUserService(mock(UserService.class));
+  }
+
+  @After
+  public void tearDown() {
+    service.destroy();
+  }
+
+  @Test
+  public void details_are_loaded_once_within_the_time_to_live() {
+    service.loadUserByUsername(NAME);
+    service.loadUserByUsername(NAME);
+    service.loadUserByUsername(NAME);
+
+    assertEquals(1, service.loads.get());
+  }
+
+  @Test
+  public void lookups_do_not_read_the_revisions() {
+    for (int i = 0; i < 10; ++i) {
+      service.loadUserByUsername(NAME);
+    }
+
+    assertEquals(0, service.revisionReads.get());
+  }
+
+  @Test
+  public void details_are_reloaded_once_the_time_to_live_expires() throws Exception {
+    service.setCacheTimeToLive(50L);
+    service.loadUserByUsername(NAME);
+    Thread.sleep(100L);
+    service.loadUserByUsername(NAME);
+
+    assertEquals(2, service.loads.get());
+  }
+
+  @Test
+  public void a_zero_time_to_live_disables_the_cache() {
+    service.setCacheTimeToLive(0L);
+    service.loadUserByUsername(NAME);
+    service.loadUserByUsername(NAME);
+
+    assertEquals(2, service.loads.get());
+  }
+
+  @Test
+  public void details_outlive_a_check_without_revisions() {
+    service.loadUserByUsername(NAME);
+    service.checkForRevisions();
+    service.loadUserByUsername(NAME);
+
+    assertEquals(1, service.loads.get());
+  }
+
+  @Test
+  public void a_revision_invalidates_the_details() throws Exception {
+    service.loadUserByUsername(NAME);
+    service.revise();
+    service.checkForRevisions();
+    service.loadUserByUsername(NAME);
+
+    assertEquals(2, service.loads.get());
+  }
+
+  @Test
+  public void unreadable_revisions_invalidate_the_details() throws Exception {
+    service.loadUserByUsername(NAME);
+    Thread.sleep(2);
+    service.revisionsUnavailable = true;
+    service.checkForRevisions();
+    service.loadUserByUsername(NAME);
+
+    assertEquals(2, service.loads.get());
+  }
+
+  @Test
+  public void details_loaded_across_an_invalidation_are_not_reused() throws Exception {
+    service.loadStarted = new CountDownLatch(1);
+    service.loadMayFinish = new CountDownLatch(1);
+    Thread loader = new Thread(() -> service.loadUserByUsername(NAME));
+    loader.start();
+    assertTrue(service.loadStarted.await(5, TimeUnit.SECONDS));
+
+    // the configuration changes while the details are being read
+    service.revise();
+    service.checkForRevisions();
+    service.loadStarted = null;
+    service.loadMayFinish.countDown();
+    loader.join(5000L);
+
+    service.loadUserByUsername(NAME);
+    assertEquals(2, service.loads.get());
+  }
+
+  @Test
+  public void the_refresher_invalidates_the_details_in_the_background() throws Exception {
+    service.afterPropertiesSet();
+    service.loadUserByUsername(NAME);
+    service.revise();
+
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (service.loads.get() == 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L);
+      service.loadUserByUsername(NAME);
+    }
+    assertEquals(2, service.loads.get());
+    assertTrue(service.revisionReads.get() > 0);
+  }
+
+  @Test
+  public void destroy_stops_the_refresher() throws Exception {
+    service.afterPropertiesSet();
+    service.destroy();
+    int reads = service.revisionReads.get();
+    Thread.sleep(2500L);
+
+    assertEquals(reads, service.revisionReads.get());
+  }
+}
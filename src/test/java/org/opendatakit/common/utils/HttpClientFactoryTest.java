@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientFactoryTest {
+  private HttpServer server;
+  private HttpClientFactory factory;
+  private String url;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+    factory = new HttpClientFactory();
+    factory.setMaxConnectionsTotal(1);
+    factory.setMaxConnectionsPerRoute(1);
+    factory.setConnectionRequestTimeoutMilliseconds(200);
+  }
+
+  @After
+  public void tearDown() {
+    factory.destroy();
+    server.stop(0);
+  }
+
+  @Test
+  public void the_default_request_config_bounds_the_wait_for_a_pooled_connection() {
+    assertEquals(200, factory.getDefaultRequestConfig().getConnectionRequestTimeout());
+  }
+
+  @Test
+  public void a_request_gives_up_when_the_pool_stays_exhausted() throws Exception {
+    CloseableHttpClient client = factory.getSharedHttpClient();
+    // not consumed, so its connection stays leased
+    CloseableHttpResponse held = client.execute(new HttpGet(url));
+
+    long start = System.currentTimeMillis();
+    try {
+      client.execute(new HttpGet(url));
+      fail("waited for a connection that was never released");
+    } catch (ConnectionPoolTimeoutException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start < 10000L);
+
+    // once the response is consumed, the connection is reused
+    EntityUtils.consume(held.getEntity());
+    try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+      assertEquals("ok", EntityUtils.toString(response.getEntity()));
+    }
+    assertEquals(1, factory.getPoolStats().getAvailable());
+  }
+}